@@ -1,75 +1,513 @@
 package org.exist.xquery.modules.cache;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.apache.log4j.Logger;
+import org.exist.dom.DocumentImpl;
+import org.exist.dom.NodeProxy;
+import org.exist.dom.StoredNode;
+import org.exist.management.AgentFactory;
+import org.exist.numbering.NodeId;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.NotificationService;
+import org.exist.storage.UpdateListener;
+import org.exist.util.DatabaseConfigurationException;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.XPathException;
 import org.exist.xquery.value.*;
 
 /**
- * Static Global cache model
- * 
+ * Static Global cache model.
+ *
+ * Every named cache is a bounded map from serialized keys to sequences.
+ * Entries are evicted in least recently used order once the configured
+ * maximum number of entries or estimated bytes is exceeded, and expire
+ * after a fixed time to live or an idle period. Reads and writes go to a
+ * {@link ConcurrentHashMap}; only eviction runs are serialized per cache,
+ * and a thread finding an eviction in progress does not wait for it. The
+ * limits are therefore soft: a cache may briefly exceed them under
+ * concurrent writes.
+ *
+ * A cache may be bound to one or more collections. Any document stored,
+ * updated or removed in one of them (or a descendant collection) clears
+ * the cache.
+ *
  * @author Evgeny Gazdovsky <gazdovsky@gmail.com>
  * @version 1.0
  */
-public class Cache extends HashMap<String, Sequence> {
-	
-	private static final long serialVersionUID = 2560835928124595024L;
-
-	private static HashMap<String, Cache> globalCache = new HashMap<String, Cache>();
-	
-    public Cache(String name) {
-    	super();
-    	globalCache.put(name, this);
-    }
-    
-	public static Cache getInstance(String name){
-		Cache cache = globalCache.get(name);
-		if (cache == null){
-			cache = new Cache(name);
-		}
-		return cache;
-	}
-	
-	public Sequence put(String key, Sequence value){
-		Sequence v = super.put(key, value); 
-		return (v==null) ? Sequence.EMPTY_SEQUENCE : v;
-	}
-	
-	public static Sequence put(String name, String key, Sequence value){
-		return getInstance(name).put(key, value);
-	}
-	
-	public Sequence get(String key){
-		Sequence v = super.get(key); 
-		return (v==null) ? Sequence.EMPTY_SEQUENCE : v;
-	}
-	
-	public static Sequence get(String name, String key){
-		return getInstance(name).get(key);
-	}
+public class Cache implements CacheMBean {
+
+    private final static Logger LOG = Logger.getLogger(Cache.class);
+
+    /** Estimated overhead of an entry in the map, without key and value */
+    private final static int ENTRY_OVERHEAD = 96;
+
+    /** Estimated size of a node in an in-memory document */
+    private final static int MEMTREE_NODE_SIZE = 48;
+
+    private final static Map<String, Cache> globalCache = new ConcurrentHashMap<String, Cache>();
+
+    private static volatile CacheConfig defaultConfig = CacheConfig.UNBOUNDED;
+
+    private final String name;
+    private final ConcurrentHashMap<String, Entry> map = new ConcurrentHashMap<String, Entry>();
+    private volatile CacheConfig config;
+
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private volatile long lastSweep = System.currentTimeMillis();
+
+    private CollectionListener listener = null;
+    private volatile String registeredFor = null;
+
+    private Cache(String name, CacheConfig config) {
+        this.name = name;
+        this.config = config;
+    }
+
+    /**
+     * Returns the cache with the given name, creating it with the default
+     * configuration if it does not exist.
+     */
+    public static Cache getInstance(String name) {
+        Cache cache = globalCache.get(name);
+        if (cache == null) {
+            synchronized (globalCache) {
+                cache = globalCache.get(name);
+                if (cache == null) {
+                    cache = new Cache(name, defaultConfig);
+                    globalCache.put(name, cache);
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the cache with the given name after applying the configuration
+     * to it. Entries already in the cache are kept, but trimmed to the new
+     * limits.
+     */
+    public static Cache getInstance(String name, CacheConfig config, BrokerPool pool) {
+        final Cache cache = getInstance(name);
+        cache.configure(config, pool);
+        return cache;
+    }
+
+    /**
+     * Set the configuration used for caches created without an explicit
+     * configuration. Set by the module parameters max-entries, max-bytes,
+     * time-to-live and max-idle-time in conf.xml.
+     */
+    public static void setDefaultConfig(CacheConfig config) {
+        defaultConfig = config;
+    }
+
+    public static CacheConfig getDefaultConfig() {
+        return defaultConfig;
+    }
+
+    public static Cache[] getCaches() {
+        final Cache[] caches = globalCache.values().toArray(new Cache[0]);
+        Arrays.sort(caches, new Comparator<Cache>() {
+            @Override
+            public int compare(Cache c1, Cache c2) {
+                return c1.name.compareTo(c2.name);
+            }
+        });
+        return caches;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public CacheConfig getConfig() {
+        return config;
+    }
+
+    private synchronized void configure(CacheConfig newConfig, BrokerPool pool) {
+        if (listener != null) {
+            listener.service.unsubscribe(listener);
+            listener = null;
+        }
+        this.config = newConfig;
+        if (newConfig.getCollections().length > 0) {
+            listener = new CollectionListener(pool.getNotificationService(), newConfig.getCollections());
+            listener.service.subscribe(listener);
+        }
+        evict(System.currentTimeMillis());
+    }
+
+    /**
+     * Register the statistics of this cache as an MBean for the given
+     * database instance, unless that has been done before.
+     */
+    public void register(BrokerPool pool) {
+        final String id = pool.getId();
+        if (id.equals(registeredFor))
+            {return;}
+        synchronized (this) {
+            if (id.equals(registeredFor))
+                {return;}
+            try {
+                AgentFactory.getInstance().addMBean(id, "org.exist.management." + id +
+                    ":type=XQueryCache,name=" + quote(name), this);
+            } catch (final DatabaseConfigurationException e) {
+                LOG.warn("Exception while registering cache mbean.", e);
+            }
+            registeredFor = id;
+        }
+    }
+
+    public Sequence put(String key, Sequence value) throws XPathException {
+        final long now = System.currentTimeMillis();
+        final Entry entry = new Entry(value, estimateSize(key, value), now);
+        final Entry old = map.put(key, entry);
+        bytes.addAndGet(old == null ? entry.size : entry.size - old.size);
+        final CacheConfig c = config;
+        if (c.isExceeded(map.size(), bytes.get()) || (c.expires() && now - lastSweep > c.getSweepInterval()))
+            {evict(now);}
+        return (old == null || old.isExpired(c, now)) ? Sequence.EMPTY_SEQUENCE : old.value;
+    }
+
+    public static Sequence put(String name, String key, Sequence value) throws XPathException {
+        return getInstance(name).put(key, value);
+    }
+
+    public Sequence get(String key) {
+        final Entry entry = map.get(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return Sequence.EMPTY_SEQUENCE;
+        }
+        final long now = System.currentTimeMillis();
+        if (entry.isExpired(config, now)) {
+            if (removeEntry(key, entry))
+                {expirations.incrementAndGet();}
+            misses.incrementAndGet();
+            return Sequence.EMPTY_SEQUENCE;
+        }
+        entry.lastAccess = now;
+        entry.recency = System.nanoTime();
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    public static Sequence get(String name, String key) {
+        return getInstance(name).get(key);
+    }
 
     public static Sequence keys(String name) {
-        ValueSequence keys = new ValueSequence();
-        for (String key : getInstance(name).keySet()) {
-            keys.add(new StringValue(key));
+        return getInstance(name).keys();
+    }
+
+    public Sequence keys() {
+        final ValueSequence keys = new ValueSequence();
+        final long now = System.currentTimeMillis();
+        final CacheConfig c = config;
+        for (final Map.Entry<String, Entry> e : map.entrySet()) {
+            if (!e.getValue().isExpired(c, now))
+                {keys.add(new StringValue(e.getKey()));}
         }
         return keys;
     }
 
-	public Sequence remove(String key){
-		Sequence v = super.remove(key); 
-		return (v==null) ? Sequence.EMPTY_SEQUENCE : v;
-	}
-	
-	public static Sequence remove(String name, String key){
-		return getInstance(name).remove(key);
-	}
-	
-	public static void clear(String name){
-		getInstance(name).clear();
-	}
-	
-	public static void clearGlobal(){
-		globalCache.clear();
-	}
-	
+    public Sequence remove(String key) {
+        final Entry old = map.remove(key);
+        if (old == null)
+            {return Sequence.EMPTY_SEQUENCE;}
+        bytes.addAndGet(-old.size);
+        return old.isExpired(config, System.currentTimeMillis()) ? Sequence.EMPTY_SEQUENCE : old.value;
+    }
+
+    public static Sequence remove(String name, String key) {
+        return getInstance(name).remove(key);
+    }
+
+    public void clear() {
+        for (final Map.Entry<String, Entry> e : map.entrySet()) {
+            removeEntry(e.getKey(), e.getValue());
+        }
+    }
+
+    public static void clear(String name) {
+        getInstance(name).clear();
+    }
+
+    /**
+     * Clear the entries of all caches. The caches and their configuration
+     * are kept.
+     */
+    public static void clearGlobal() {
+        for (final Cache cache : globalCache.values()) {
+            cache.clear();
+        }
+    }
+
+    private boolean removeEntry(String key, Entry entry) {
+        if (map.remove(key, entry)) {
+            bytes.addAndGet(-entry.size);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remove expired entries and, if the cache is still above one of its
+     * limits, the least recently used entries until it is 10% below. Returns
+     * immediately if another thread is already evicting.
+     */
+    private void evict(long now) {
+        if (!evictionLock.tryLock())
+            {return;}
+        try {
+            lastSweep = now;
+            final CacheConfig c = config;
+            final List<Map.Entry<String, Entry>> live = new ArrayList<Map.Entry<String, Entry>>(map.size());
+            for (final Map.Entry<String, Entry> e : map.entrySet()) {
+                if (e.getValue().isExpired(c, now)) {
+                    if (removeEntry(e.getKey(), e.getValue()))
+                        {expirations.incrementAndGet();}
+                } else
+                    {live.add(e);}
+            }
+            if (!c.isExceeded(map.size(), bytes.get()))
+                {return;}
+
+            final int maxEntries = c.getMaxEntries() < 0 ? Integer.MAX_VALUE : c.getMaxEntries() - c.getMaxEntries() / 10;
+            final long maxBytes = c.getMaxBytes() < 0 ? Long.MAX_VALUE : c.getMaxBytes() - c.getMaxBytes() / 10;
+            final Candidate[] candidates = new Candidate[live.size()];
+            for (int i = 0; i < candidates.length; i++) {
+                candidates[i] = new Candidate(live.get(i).getKey(), live.get(i).getValue());
+            }
+            Arrays.sort(candidates);
+            for (int i = 0; i < candidates.length && (map.size() > maxEntries || bytes.get() > maxBytes); i++) {
+                if (removeEntry(candidates[i].key, candidates[i].entry))
+                    {evictions.incrementAndGet();}
+            }
+            if (LOG.isDebugEnabled())
+                {LOG.debug("Cache [" + name + "] evicted down to " + map.size() + " entries, " + bytes.get() + " bytes");}
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Estimate the memory held by an entry. Nodes stored in the database are
+     * only referenced; in-memory nodes are charged for their whole document,
+     * once per document and entry.
+     */
+    private static long estimateSize(String key, Sequence value) throws XPathException {
+        long size = ENTRY_OVERHEAD + 2L * key.length();
+        Map<org.exist.memtree.DocumentImpl, Object> documents = null;
+        for (final SequenceIterator i = value.iterate(); i.hasNext(); ) {
+            final Item item = i.nextItem();
+            if (item instanceof NodeProxy) {
+                size += 48;
+            } else if (item instanceof org.exist.memtree.NodeImpl) {
+                final org.exist.memtree.DocumentImpl doc = ((org.exist.memtree.NodeImpl) item).getDocument();
+                if (documents == null)
+                    {documents = new IdentityHashMap<org.exist.memtree.DocumentImpl, Object>();}
+                if (documents.put(doc, doc) == null)
+                    {size += (long) doc.getSize() * MEMTREE_NODE_SIZE;}
+                size += 16;
+            } else if (Type.subTypeOf(item.getType(), Type.ATOMIC)) {
+                size += 32 + 2L * item.getStringValue().length();
+            } else {
+                size += 64;
+            }
+        }
+        return size;
+    }
+
+    private static String quote(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            switch (name.charAt(i)) {
+                case ',': case '=': case ':': case '"': case '*': case '?': case '\n':
+                    return javax.management.ObjectName.quote(name);
+            }
+        }
+        return name;
+    }
+
+    @Override
+    public int getEntries() {
+        return map.size();
+    }
+
+    @Override
+    public int getMaxEntries() {
+        return config.getMaxEntries();
+    }
+
+    @Override
+    public long getEstimatedBytes() {
+        return bytes.get();
+    }
+
+    @Override
+    public long getMaxBytes() {
+        return config.getMaxBytes();
+    }
+
+    @Override
+    public long getTimeToLive() {
+        return config.getTimeToLive();
+    }
+
+    @Override
+    public long getMaxIdleTime() {
+        return config.getMaxIdleTime();
+    }
+
+    @Override
+    public String[] getCollections() {
+        final XmldbURI[] collections = config.getCollections();
+        final String[] result = new String[collections.length];
+        for (int i = 0; i < collections.length; i++) {
+            result[i] = collections[i].toString();
+        }
+        return result;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public double getHitRate() {
+        final long h = hits.get();
+        final long requests = h + misses.get();
+        return requests == 0 ? 0.0 : (double) h / requests;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    @Override
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    @Override
+    public String toString() {
+        return "cache:" + name;
+    }
+
+    private final static class Entry {
+
+        final Sequence value;
+        final long size;
+        final long created;
+        volatile long lastAccess;
+        /** Higher resolution access time, used for the eviction order only */
+        volatile long recency;
+
+        Entry(Sequence value, long size, long now) {
+            this.value = value;
+            this.size = size;
+            this.created = now;
+            this.lastAccess = now;
+            this.recency = System.nanoTime();
+        }
+
+        boolean isExpired(CacheConfig config, long now) {
+            return (config.getTimeToLive() > 0 && now - created > config.getTimeToLive()) ||
+                (config.getMaxIdleTime() > 0 && now - lastAccess > config.getMaxIdleTime());
+        }
+    }
+
+    /**
+     * Snapshot of an entry's recency, so the eviction order does not change
+     * while sorting.
+     */
+    private final static class Candidate implements Comparable<Candidate> {
+
+        final String key;
+        final Entry entry;
+        final long accessed;
+
+        Candidate(String key, Entry entry) {
+            this.key = key;
+            this.entry = entry;
+            this.accessed = entry.recency;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            return accessed < other.accessed ? -1 : (accessed == other.accessed ? 0 : 1);
+        }
+    }
+
+    /**
+     * Clears the cache when a document in one of the observed collections
+     * changes.
+     */
+    private final class CollectionListener implements UpdateListener {
+
+        private final NotificationService service;
+        private final XmldbURI[] collections;
+
+        CollectionListener(NotificationService service, XmldbURI[] collections) {
+            this.service = service;
+            this.collections = collections;
+        }
+
+        @Override
+        public void documentUpdated(DocumentImpl document, int event) {
+            final String path = document.getURI().toString();
+            for (int i = 0; i < collections.length; i++) {
+                if (path.startsWith(collections[i].toString() + '/')) {
+                    if (!map.isEmpty()) {
+                        invalidations.incrementAndGet();
+                        clear();
+                    }
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void nodeMoved(NodeId oldNodeId, StoredNode newNode) {
+            // nothing to do
+        }
+
+        @Override
+        public void unsubscribe() {
+            // only unsubscribed by configure()
+        }
+
+        @Override
+        public void debug() {
+            LOG.debug("Cache [" + name + "] observes " + Arrays.toString(collections));
+        }
+    }
 }
@@ -34,6 +34,7 @@ import org.exist.xquery.value.Item;
 import org.exist.xquery.value.NodeValue;
 import org.exist.xquery.value.Sequence;
 import org.exist.xquery.value.SequenceIterator;
+import org.exist.xquery.value.Type;
 import org.xml.sax.SAXException;
 
 /**
@@ -54,6 +55,21 @@ public abstract class CacheBasicFunction extends BasicFunction {
         OUTPUT_PROPERTIES.setProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
     }
     
+	/**
+	 * Resolve the cache identified by either its name or the Java cache object
+	 * and make sure its statistics are registered with JMX.
+	 */
+	protected Cache getCache(Item item) throws XPathException {
+		final Cache cache;
+		if (item.getType()==Type.STRING){
+			cache = Cache.getInstance(item.getStringValue());
+		} else {
+			cache = (Cache)item.toJavaObject(Cache.class);
+		}
+		cache.register(context.getBroker().getBrokerPool());
+		return cache;
+	}
+
 	protected String serialize(Sequence q) throws SAXException, XPathException {
 		String tmp = "";
 		Serializer serializer = context.getBroker().getSerializer();
@@ -0,0 +1,182 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-13 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * $Id$
+ */
+package org.exist.xquery.modules.cache;
+
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.exist.xmldb.XmldbURI;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Limits and invalidation settings of a {@link Cache}. A negative
+ * limit means unlimited.
+ *
+ * A configuration can be read from an options element:
+ *
+ * <pre>
+ * &lt;options&gt;
+ *     &lt;max-entries&gt;1000&lt;/max-entries&gt;
+ *     &lt;max-bytes&gt;10485760&lt;/max-bytes&gt;
+ *     &lt;time-to-live&gt;300000&lt;/time-to-live&gt;
+ *     &lt;max-idle-time&gt;60000&lt;/max-idle-time&gt;
+ *     &lt;collection&gt;/db/apps/data&lt;/collection&gt;
+ * &lt;/options&gt;
+ * </pre>
+ *
+ * Times are given in milliseconds. Elements which are missing keep the
+ * value of the base configuration, except for the collections.
+ */
+public class CacheConfig {
+
+    public final static String MAX_ENTRIES = "max-entries";
+    public final static String MAX_BYTES = "max-bytes";
+    public final static String TIME_TO_LIVE = "time-to-live";
+    public final static String MAX_IDLE_TIME = "max-idle-time";
+    public final static String COLLECTION = "collection";
+
+    public final static CacheConfig UNBOUNDED = new CacheConfig(-1, -1, -1, -1, new XmldbURI[0]);
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long timeToLive;
+    private final long maxIdleTime;
+    private final XmldbURI[] collections;
+
+    public CacheConfig(int maxEntries, long maxBytes, long timeToLive, long maxIdleTime, XmldbURI[] collections) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.timeToLive = timeToLive;
+        this.maxIdleTime = maxIdleTime;
+        this.collections = collections;
+    }
+
+    /**
+     * Read a configuration from the child elements of an options element.
+     *
+     * @throws IllegalArgumentException if a value cannot be parsed
+     */
+    public static CacheConfig parse(Element options, CacheConfig base) {
+        int maxEntries = base.maxEntries;
+        long maxBytes = base.maxBytes;
+        long timeToLive = base.timeToLive;
+        long maxIdleTime = base.maxIdleTime;
+        final List<XmldbURI> collections = new ArrayList<XmldbURI>();
+        for (Node child = options.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() != Node.ELEMENT_NODE)
+                {continue;}
+            final String name = child.getLocalName();
+            final String value = getText(child);
+            if (MAX_ENTRIES.equals(name))
+                {maxEntries = (int) parseNumber(name, value);}
+            else if (MAX_BYTES.equals(name))
+                {maxBytes = parseNumber(name, value);}
+            else if (TIME_TO_LIVE.equals(name))
+                {timeToLive = parseNumber(name, value);}
+            else if (MAX_IDLE_TIME.equals(name))
+                {maxIdleTime = parseNumber(name, value);}
+            else if (COLLECTION.equals(name)) {
+                try {
+                    collections.add(XmldbURI.xmldbUriFor(value).toCollectionPathURI());
+                } catch (final URISyntaxException e) {
+                    throw new IllegalArgumentException("Invalid collection in cache options: " + value);
+                }
+            } else
+                {throw new IllegalArgumentException("Unknown cache option: " + name);}
+        }
+        return new CacheConfig(maxEntries, maxBytes, timeToLive, maxIdleTime,
+            collections.toArray(new XmldbURI[collections.size()]));
+    }
+
+    /**
+     * Read a configuration from module parameters, using the same names
+     * as the options element. Collections are not read.
+     */
+    public static CacheConfig fromParameters(String maxEntries, String maxBytes, String timeToLive,
+            String maxIdleTime) {
+        return new CacheConfig(
+            maxEntries == null ? -1 : (int) parseNumber(MAX_ENTRIES, maxEntries),
+            maxBytes == null ? -1 : parseNumber(MAX_BYTES, maxBytes),
+            timeToLive == null ? -1 : parseNumber(TIME_TO_LIVE, timeToLive),
+            maxIdleTime == null ? -1 : parseNumber(MAX_IDLE_TIME, maxIdleTime),
+            new XmldbURI[0]);
+    }
+
+    private static String getText(Node node) {
+        final StringBuilder buf = new StringBuilder();
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.TEXT_NODE)
+                {buf.append(child.getNodeValue());}
+        }
+        return buf.toString().trim();
+    }
+
+    private static long parseNumber(String name, String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for cache option " + name + ": " + value);
+        }
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    public long getMaxIdleTime() {
+        return maxIdleTime;
+    }
+
+    public XmldbURI[] getCollections() {
+        return collections;
+    }
+
+    public boolean isExceeded(int entries, long bytes) {
+        return (maxEntries >= 0 && entries > maxEntries) || (maxBytes >= 0 && bytes > maxBytes);
+    }
+
+    /**
+     * @return true if entries expire after some time
+     */
+    public boolean expires() {
+        return timeToLive > 0 || maxIdleTime > 0;
+    }
+
+    /**
+     * @return the interval at which expired entries are removed on put
+     */
+    public long getSweepInterval() {
+        if (timeToLive > 0 && maxIdleTime > 0)
+            {return Math.min(timeToLive, maxIdleTime);}
+        return timeToLive > 0 ? timeToLive : maxIdleTime;
+    }
+}
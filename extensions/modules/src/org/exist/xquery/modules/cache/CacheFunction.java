@@ -30,9 +30,11 @@ import org.exist.xquery.XPathException;
 import org.exist.xquery.XQueryContext;
 import org.exist.xquery.value.FunctionParameterSequenceType;
 import org.exist.xquery.value.JavaObjectValue;
+import org.exist.xquery.value.NodeValue;
 import org.exist.xquery.value.Sequence;
 import org.exist.xquery.value.SequenceType;
 import org.exist.xquery.value.Type;
+import org.w3c.dom.Element;
 
 /**
  * Global cache module. Get function
@@ -52,7 +54,21 @@ public class CacheFunction extends BasicFunction {
 					new FunctionParameterSequenceType("name", Type.STRING, Cardinality.ONE, "The name of the cache to get/create") 
 				}, 
 		        new FunctionParameterSequenceType("java-object", Type.JAVA_OBJECT, Cardinality.ONE, "the Java cache object with the given name.")
-			) 
+			),
+		new FunctionSignature(
+				new QName("cache", CacheModule.NAMESPACE_URI, CacheModule.PREFIX),
+				"Get/create a cache using the specified name and (re)configure its limits. " +
+				"The options element may contain the child elements max-entries, max-bytes (estimated), " +
+				"time-to-live and max-idle-time (both in milliseconds), and any number of collection " +
+				"elements. Missing limits are taken from the module configuration; a negative value " +
+				"means unlimited. The cache is cleared whenever a document in one of the collections " +
+				"(or their descendants) is stored, updated or removed.",
+				new SequenceType[] { 
+					new FunctionParameterSequenceType("name", Type.STRING, Cardinality.ONE, "The name of the cache to get/create"),
+					new FunctionParameterSequenceType("options", Type.ELEMENT, Cardinality.ONE, "The configuration of the cache")
+				}, 
+		        new FunctionParameterSequenceType("java-object", Type.JAVA_OBJECT, Cardinality.ONE, "the Java cache object with the given name.")
+			)
 	};
 
 	public CacheFunction(XQueryContext context, FunctionSignature signature) {
@@ -65,6 +81,19 @@ public class CacheFunction extends BasicFunction {
 			logger.debug("Get/create cache [" + name + "]");
 		}
 		
-		return new JavaObjectValue(Cache.getInstance(name));
+		final Cache cache;
+		if (args.length == 2) {
+			final CacheConfig config;
+			try {
+				config = CacheConfig.parse((Element) ((NodeValue) args[1].itemAt(0)).getNode(), Cache.getDefaultConfig());
+			} catch (IllegalArgumentException e) {
+				throw new XPathException(this, e.getMessage());
+			}
+			cache = Cache.getInstance(name, config, context.getBroker().getBrokerPool());
+		} else {
+			cache = Cache.getInstance(name);
+		}
+		cache.register(context.getBroker().getBrokerPool());
+		return new JavaObjectValue(cache);
 	}
 }
\ No newline at end of file
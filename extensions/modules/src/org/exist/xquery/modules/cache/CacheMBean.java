@@ -0,0 +1,37 @@
+package org.exist.xquery.modules.cache;
+
+/**
+ * Statistics of a named XQuery cache.
+ */
+public interface CacheMBean {
+
+    String getName();
+
+    int getEntries();
+
+    int getMaxEntries();
+
+    long getEstimatedBytes();
+
+    long getMaxBytes();
+
+    long getTimeToLive();
+
+    long getMaxIdleTime();
+
+    String[] getCollections();
+
+    long getHits();
+
+    long getMisses();
+
+    double getHitRate();
+
+    long getEvictions();
+
+    long getExpirations();
+
+    long getInvalidations();
+
+    void clear();
+}
@@ -25,6 +25,7 @@ import java.util.List;
 import java.util.Map;
 import org.exist.xquery.AbstractInternalModule;
 import org.exist.xquery.FunctionDef;
+import org.exist.xquery.XPathException;
 
 /**
  * XQuery Extension module for store data in global cache
@@ -45,14 +46,31 @@ public class CacheModule extends AbstractInternalModule {
         new FunctionDef(PutFunction.signatures[0], PutFunction.class),
         new FunctionDef(GetFunction.signatures[0], GetFunction.class),
         new FunctionDef(CacheFunction.signatures[0], CacheFunction.class),
+        new FunctionDef(CacheFunction.signatures[1], CacheFunction.class),
         new FunctionDef(ClearFunction.signatures[0], ClearFunction.class),
         new FunctionDef(ClearFunction.signatures[1], ClearFunction.class),
         new FunctionDef(RemoveFunction.signatures[0], RemoveFunction.class),
-        new FunctionDef(ListFunction.signature, ListFunction.class)
+        new FunctionDef(ListFunction.signature, ListFunction.class),
+        new FunctionDef(StatsFunction.signatures[0], StatsFunction.class),
+        new FunctionDef(StatsFunction.signatures[1], StatsFunction.class)
     };
 
-    public CacheModule(Map<String, List<? extends Object>> parameters) {
+    public CacheModule(Map<String, List<? extends Object>> parameters) throws XPathException {
         super(functions, parameters);
+        try {
+            Cache.setDefaultConfig(CacheConfig.fromParameters(
+                getParameterValue(CacheConfig.MAX_ENTRIES), getParameterValue(CacheConfig.MAX_BYTES),
+                getParameterValue(CacheConfig.TIME_TO_LIVE), getParameterValue(CacheConfig.MAX_IDLE_TIME)));
+        } catch (final IllegalArgumentException e) {
+            throw new XPathException("Invalid configuration of the cache module: " + e.getMessage());
+        }
+    }
+
+    private String getParameterValue(String name) {
+        final List<? extends Object> values = getParameter(name);
+        if (values == null || values.isEmpty())
+            {return null;}
+        return values.get(0).toString();
     }
 
     @Override
@@ -78,7 +78,7 @@ public class ClearFunction extends BasicFunction {
 				Cache.clear(item.getStringValue());
 			} else {
 				if( logger.isDebugEnabled() ) {
-					logger.debug("Clearing cache [" + item.toJavaObject(Cache.class).toString() + "]");
+					logger.debug("Clearing cache [" + ((Cache)item.toJavaObject(Cache.class)).getName() + "]");
 				}
 				((Cache)item.toJavaObject(Cache.class)).clear();
 			}
@@ -64,17 +64,11 @@ public class GetFunction extends CacheBasicFunction {
 		Item item = args[0].itemAt(0);
 		try {
 			String key = serialize(args[1]);
-			if (item.getType()==Type.STRING){
-				if( logger.isTraceEnabled() ) {
-					logger.trace("getting cache value [" + item.getStringValue() + ", " + key +"]");
-				}
-				return Cache.get(item.getStringValue(), key);
-			} else {
-				if( logger.isTraceEnabled() ) {
-					logger.trace("getting cache value [" + item.toJavaObject(Cache.class).toString() + ", " + key +"]");
-				}
-				return ((Cache)item.toJavaObject(Cache.class)).get(key);
+			final Cache cache = getCache(item);
+			if( logger.isTraceEnabled() ) {
+				logger.trace("getting cache value [" + cache.getName() + ", " + key +"]");
 			}
+			return cache.get(key);
 		} catch (SAXException e) {
 			logger.error("Error getting cache value", e);
 		}
@@ -28,7 +28,6 @@ public class ListFunction extends CacheBasicFunction {
 
     @Override
     public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
-        String cacheId = args[0].getStringValue();
-        return Cache.keys(cacheId);
+        return getCache(args[0].itemAt(0)).keys();
     }
 }
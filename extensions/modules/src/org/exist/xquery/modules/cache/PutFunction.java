@@ -66,17 +66,11 @@ public class PutFunction extends CacheBasicFunction {
 		Sequence value = args[2];
 		try {
 			String key = serialize(args[1]);
-			if (item.getType()==Type.STRING){
-				if( logger.isTraceEnabled() ) {
-					logger.trace("putting cache value [" + item.getStringValue() + ", " + key +"]");
-				}
-				return Cache.put(item.getStringValue(), key, value);
-			} else {
-				if( logger.isTraceEnabled() ) {
-					logger.trace("putting cache value [" + item.toJavaObject(Cache.class).toString() + ", " + key +"]");
-				}
-				return ((Cache)item.toJavaObject(Cache.class)).put(key, value);
+			final Cache cache = getCache(item);
+			if( logger.isTraceEnabled() ) {
+				logger.trace("putting cache value [" + cache.getName() + ", " + key +"]");
 			}
+			return cache.put(key, value);
 		} catch (SAXException e) {
 			logger.error("Error putting cache value", e);
 		}
@@ -64,17 +64,11 @@ public class RemoveFunction extends CacheBasicFunction {
 		Item item = args[0].itemAt(0);
 		try {
 			String key = serialize(args[1]);
-			if (item.getType()==Type.STRING){
-				if( logger.isDebugEnabled() ) {
-					logger.debug("removing cache value [" + item.getStringValue() + ", " + key +"]");
-				}
-				return Cache.remove(item.getStringValue(), key);
-			} else {
-				if( logger.isDebugEnabled() ) {
-					logger.debug("removing cache value [" + item.toJavaObject(Cache.class).toString() + ", " + key +"]");
-				}
-				return ((Cache)item.toJavaObject(Cache.class)).remove(key);
+			final Cache cache = getCache(item);
+			if( logger.isDebugEnabled() ) {
+				logger.debug("removing cache value [" + cache.getName() + ", " + key +"]");
 			}
+			return cache.remove(key);
 		} catch (SAXException e) {
 			logger.error("Error removing cache value", e);
 		}
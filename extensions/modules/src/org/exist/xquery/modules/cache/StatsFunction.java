@@ -0,0 +1,106 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-13 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * $Id$
+ */
+package org.exist.xquery.modules.cache;
+
+import org.exist.dom.QName;
+import org.exist.memtree.MemTreeBuilder;
+import org.exist.xquery.Cardinality;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.FunctionParameterSequenceType;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceType;
+import org.exist.xquery.value.Type;
+import org.exist.xquery.value.ValueSequence;
+
+/**
+ * Global cache module. Stats function
+ */
+public class StatsFunction extends CacheBasicFunction {
+
+    private final static QName CACHE_ELEMENT = new QName("cache", CacheModule.NAMESPACE_URI, CacheModule.PREFIX);
+
+    public final static FunctionSignature signatures[] = {
+        new FunctionSignature(
+            new QName("stats", CacheModule.NAMESPACE_URI, CacheModule.PREFIX),
+            "Returns the configured limits and the hit, miss, eviction, expiration and " +
+            "invalidation counters of all caches, one cache:cache element per cache.",
+            null,
+            new FunctionParameterSequenceType("stats", Type.ELEMENT, Cardinality.ZERO_OR_MORE, "the statistics of all caches")
+        ),
+        new FunctionSignature(
+            new QName("stats", CacheModule.NAMESPACE_URI, CacheModule.PREFIX),
+            "Returns the configured limits and the hit, miss, eviction, expiration and " +
+            "invalidation counters of the identified cache as a cache:cache element.",
+            new SequenceType[] {
+                new FunctionParameterSequenceType("cache-identity", Type.ITEM, Cardinality.ONE, "Either the Java cache object or the name of the cache")
+            },
+            new FunctionParameterSequenceType("stats", Type.ELEMENT, Cardinality.ONE, "the statistics of the cache")
+        )
+    };
+
+    public StatsFunction(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+        final Cache[] caches = args.length == 0 ? Cache.getCaches() : new Cache[] { getCache(args[0].itemAt(0)) };
+        final MemTreeBuilder builder = context.getDocumentBuilder();
+        builder.startDocument();
+        final int[] nodes = new int[caches.length];
+        for (int i = 0; i < caches.length; i++) {
+            nodes[i] = stats(builder, caches[i]);
+        }
+        builder.endDocument();
+        final ValueSequence result = new ValueSequence(caches.length);
+        for (int i = 0; i < nodes.length; i++) {
+            result.add(builder.getDocument().getNode(nodes[i]));
+        }
+        return result;
+    }
+
+    private int stats(MemTreeBuilder builder, Cache cache) {
+        final int node = builder.startElement(CACHE_ELEMENT, null);
+        builder.addAttribute(new QName("name", null, null), cache.getName());
+        builder.addAttribute(new QName("entries", null, null), Integer.toString(cache.getEntries()));
+        builder.addAttribute(new QName("estimated-bytes", null, null), Long.toString(cache.getEstimatedBytes()));
+        builder.addAttribute(new QName(CacheConfig.MAX_ENTRIES, null, null), Integer.toString(cache.getMaxEntries()));
+        builder.addAttribute(new QName(CacheConfig.MAX_BYTES, null, null), Long.toString(cache.getMaxBytes()));
+        builder.addAttribute(new QName(CacheConfig.TIME_TO_LIVE, null, null), Long.toString(cache.getTimeToLive()));
+        builder.addAttribute(new QName(CacheConfig.MAX_IDLE_TIME, null, null), Long.toString(cache.getMaxIdleTime()));
+        builder.addAttribute(new QName("hits", null, null), Long.toString(cache.getHits()));
+        builder.addAttribute(new QName("misses", null, null), Long.toString(cache.getMisses()));
+        builder.addAttribute(new QName("hit-rate", null, null), Double.toString(cache.getHitRate()));
+        builder.addAttribute(new QName("evictions", null, null), Long.toString(cache.getEvictions()));
+        builder.addAttribute(new QName("expirations", null, null), Long.toString(cache.getExpirations()));
+        builder.addAttribute(new QName("invalidations", null, null), Long.toString(cache.getInvalidations()));
+        for (final String collection : cache.getCollections()) {
+            builder.startElement(new QName(CacheConfig.COLLECTION, CacheModule.NAMESPACE_URI, CacheModule.PREFIX), null);
+            builder.characters(collection);
+            builder.endElement();
+        }
+        builder.endElement();
+        return node;
+    }
+}
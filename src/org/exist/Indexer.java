@@ -88,10 +88,17 @@ public class Indexer extends Observable implements ContentHandler,
     public static final String CONFIGURATION_INDEX_ELEMENT_NAME = "index";
     public static final String SUPPRESS_WHITESPACE_ATTRIBUTE = "suppress-whitespace";
     public static final String PRESERVE_WS_MIXED_CONTENT_ATTRIBUTE = "preserve-whitespace-mixed-content";
+    public static final String SINGLE_PASS_ATTRIBUTE = "single-pass";
+    public static final String BULK_FILL_FACTOR_ATTRIBUTE = "bulk-fill-factor";
 
     public static final String PROPERTY_INDEXER_CONFIG = "indexer.config";
     public final static String PROPERTY_SUPPRESS_WHITESPACE = "indexer.suppress-whitespace";
     public static final String PROPERTY_PRESERVE_WS_MIXED_CONTENT = "indexer.preserve-whitespace-mixed-content";
+    public static final String PROPERTY_SINGLE_PASS = "indexer.single-pass";
+    public static final String PROPERTY_BULK_FILL_FACTOR = "indexer.bulk-fill-factor";
+
+    /** Default fill factor of index pages built bottom-up by a reindex or restore */
+    public static final double DEFAULT_BULK_FILL_FACTOR = 0.9;
 
     protected DBBroker broker = null;
     protected Txn transaction;
@@ -243,6 +250,20 @@ public class Indexer extends Observable implements ContentHandler,
         return document;
     }
 
+    /**
+     * Called if parsing failed while storing. Writes the child count of all
+     * elements which have not been closed yet, so the nodes stored so far
+     * can be traversed to remove the document.
+     */
+    public void abortDocument() {
+        while (!stack.isEmpty()) {
+            final ElementImpl last = stack.pop();
+            if (last.getChildCount() > 0)
+                {broker.updateNode(transaction, last, false);}
+        }
+        level = 0;
+    }
+
     public int getDocSize() {
         return docSize;
     }
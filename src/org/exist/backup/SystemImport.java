@@ -93,6 +93,8 @@ public class SystemImport {
 	                reader.parse(is);
 	            }
 	        } finally {
+	            // write the deferred index entries of the restored documents, see SystemImportHandler
+	            broker.setDeferredIndexing(false);
 	            listener.restoreFinished();
 	        }
         } finally {
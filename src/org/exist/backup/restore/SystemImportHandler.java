@@ -379,6 +379,10 @@ public class SystemImportHandler extends DefaultHandler {
 			try {
 				if ("XMLResource".equals(type)) {
 					// store as xml resource
+
+					// the security manager queries the system collection while it is restored,
+					// the index entries of other documents are written once the restore is complete
+					broker.setDeferredIndexing(!currentCollection.getURI().startsWith(XmldbURI.SYSTEM));
 					
 					final IndexInfo info = currentCollection.validateXMLResource(txn, broker, docUri, is);
 					
@@ -1206,6 +1206,10 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
         storeXMLInternal(transaction, broker, info, privileged, new StoreBlock() {
             @Override
             public void run() throws EXistException, SAXException {
+                if(info.isValidationDeferred()) {
+                    parseSinglePass(broker, info, source);
+                    return;
+                }
                 try {
                     final InputStream is = source.getByteStream();
                     if(is != null && is.markSupported()) {
@@ -1255,6 +1259,10 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
         storeXMLInternal(transaction, broker, info, privileged, new StoreBlock() {
             @Override
             public void run() throws SAXException, EXistException {
+                if(info.isValidationDeferred()) {
+                    parseSinglePass(broker, info, new InputSource(new StringReader(data)));
+                    return;
+                }
                 final CollectionConfiguration colconf = info.getDocument().getCollection().getConfiguration(broker);
                 final XMLReader reader = getReader(broker, false, colconf);
                 info.setReader(reader, null);
@@ -1304,6 +1312,61 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
         public void run() throws EXistException, SAXException;
     }
 
+    /**
+     * Parse, validate and store a document whose validation was deferred by
+     * {@link #validateXMLResource(Txn, DBBroker, XmldbURI, InputSource)}.
+     * The source is read only once, so it does not need to support mark/reset.
+     */
+    private void parseSinglePass(final DBBroker broker, final IndexInfo info, final InputSource source) throws EXistException, SAXException {
+        final XMLReader reader = getReader(broker, true, info.getCollectionConfig());
+        info.setReader(reader, null);
+        try {
+            reader.parse(source);
+        } catch(final SAXException e) {
+            throw new SAXException("The XML parser reported a problem: " + e.getMessage(), e);
+        } catch(final IOException e) {
+            throw new EXistException(e);
+        } finally {
+            releaseReader(broker, info, reader);
+        }
+    }
+
+    /**
+     * Remove the nodes written for a document which failed to parse in single pass
+     * mode and unlink the document from this collection. The document is new, so
+     * nothing else refers to it yet. If it cannot be unlinked, an EXistException is
+     * thrown instead of the error which caused the removal, which is logged.
+     *
+     * @param cause the error which caused the removal
+     */
+    private void removeFailedDocument(final Txn transaction, final DBBroker broker, final IndexInfo info,
+            final Exception cause) throws EXistException {
+        final DocumentImpl document = info.getDocument();
+        LOG.debug("Removing document " + document.getFileURI() + " after a failed single pass store");
+        try {
+            info.getIndexer().abortDocument();
+            broker.flush();
+            broker.closeDocument();
+            if(document.getFirstChild() != null) {
+                broker.removeXMLResource(transaction, document, false);
+            }
+        } catch(final Exception e) {
+            LOG.error("Failed to remove nodes of document " + document.getFileURI() + ": " + e.getMessage(), e);
+        }
+        try {
+            getLock().acquire(Lock.WRITE_LOCK);
+            try {
+                documents.remove(document.getFileURI().getRawCollectionPath());
+            } finally {
+                getLock().release(Lock.WRITE_LOCK);
+            }
+        } catch(final LockException e) {
+            LOG.error("Failed to store document " + document.getFileURI() + ": " + cause.getMessage(), cause);
+            throw new EXistException("Failed to remove document " + document.getFileURI() + " from collection " +
+                getURI() + " after a failed store: " + e.getMessage(), e);
+        }
+    }
+
     /** 
      * Stores an XML document in the database. {@link #validateXMLResourceInternal(org.exist.storage.txn.Txn,
      * org.exist.storage.DBBroker, org.exist.xmldb.XmldbURI, CollectionConfiguration, org.exist.collections.Collection.ValidateBlock)} 
@@ -1376,7 +1439,22 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
             }
             
             db.getProcessMonitor().startJob(ProcessMonitor.ACTION_STORE_DOC, document.getFileURI());
-            doParse.run();
+            if(info.isValidationDeferred()) {
+                try {
+                    doParse.run();
+                } catch(final SAXException e) {
+                    removeFailedDocument(transaction, broker, info, e);
+                    throw e;
+                } catch(final EXistException e) {
+                    removeFailedDocument(transaction, broker, info, e);
+                    throw e;
+                } catch(final RuntimeException e) {
+                    removeFailedDocument(transaction, broker, info, e);
+                    throw e;
+                }
+            } else {
+                doParse.run();
+            }
             broker.storeXMLResource(transaction, document);
             broker.flush();
             broker.closeDocument();
@@ -1476,7 +1554,7 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
     public IndexInfo validateXMLResource(final Txn transaction, final DBBroker broker, final XmldbURI docUri, final InputSource source) throws EXistException, PermissionDeniedException, TriggerException, SAXException, LockException, IOException {
         final CollectionConfiguration colconf = getConfiguration(broker);
         
-        return validateXMLResourceInternal(transaction, broker, docUri, colconf, new ValidateBlock() {
+        return validateXMLResourceInternal(transaction, broker, docUri, colconf, true, new ValidateBlock() {
             @Override
             public void run(final IndexInfo info) throws SAXException, EXistException {
                 final XMLReader reader = getReader(broker, true, colconf);
@@ -1562,7 +1640,7 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
      */    
     public IndexInfo validateXMLResource(final Txn transaction, final DBBroker broker, final XmldbURI docUri, final Node node) throws EXistException, PermissionDeniedException, TriggerException, SAXException, LockException, IOException {
     	
-        return validateXMLResourceInternal(transaction, broker, docUri, getConfiguration(broker), new ValidateBlock() {
+        return validateXMLResourceInternal(transaction, broker, docUri, getConfiguration(broker), false, new ValidateBlock() {
             @Override
             public void run(final IndexInfo info) throws SAXException {
                 info.setDOMStreamer(new DOMStreamer());
@@ -1578,6 +1656,7 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
      * @param transaction
      * @param broker
      * @param docUri
+     * @param deferrable if the validation may be deferred to a single pass store, see {@link #isSinglePassStore(DBBroker)}
      * @param doValidate
      * 
      * @return An {@link IndexInfo} with a write lock on the document. 
@@ -1588,7 +1667,7 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
      * @throws SAXException
      * @throws LockException
      */
-    private IndexInfo validateXMLResourceInternal(final Txn transaction, final DBBroker broker, final XmldbURI docUri, final CollectionConfiguration config, final ValidateBlock doValidate) throws EXistException, PermissionDeniedException, TriggerException, SAXException, LockException, IOException {
+    private IndexInfo validateXMLResourceInternal(final Txn transaction, final DBBroker broker, final XmldbURI docUri, final CollectionConfiguration config, final boolean deferrable, final ValidateBlock doValidate) throws EXistException, PermissionDeniedException, TriggerException, SAXException, LockException, IOException {
         //Make the necessary operations if we process a collection configuration document
         checkConfigurationDocument(transaction, broker, docUri);
         
@@ -1651,7 +1730,13 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
             if (LOG.isDebugEnabled()) {
                 LOG.debug("Scanning document " + getURI().append(docUri));
             }
-            doValidate.run(info);
+            if(deferrable && oldDoc == null && isCollectionConfigEnabled() && isSinglePassStore(broker) &&
+                    (triggersVisitor == null || getConfiguration(broker).getDocumentTriggerProxies().isEmpty())) {
+                // nobody needs to see the new document before it is stored: validate while storing
+                info.setValidationDeferred(true);
+            } else {
+                doValidate.run(info);
+            }
             // new document is valid: remove old document
             if (oldDoc != null) {
                 if (LOG.isDebugEnabled()) {
@@ -1710,6 +1795,19 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
         }
     }
 
+    /**
+     * Returns true if new documents are validated and stored in a single parse, see
+     * {@link Indexer#PROPERTY_SINGLE_PASS}. This only applies to documents stored from
+     * an {@link InputSource} or a string, which do not replace an existing document and
+     * do not have to be passed to document triggers. If the document turns out not to
+     * be well-formed or valid, store removes the nodes written so far and throws the
+     * parser exception, which should make the caller abort the transaction.
+     */
+    private boolean isSinglePassStore(final DBBroker broker) {
+        final Boolean singlePass = (Boolean) broker.getConfiguration().getProperty(Indexer.PROPERTY_SINGLE_PASS);
+        return singlePass != null && singlePass.booleanValue();
+    }
+
     private void checkConfigurationDocument(final Txn transaction, final DBBroker broker, final XmldbURI docUri) throws EXistException, PermissionDeniedException, LockException {
         //Is it a collection configuration file ?
         //TODO : use XmldbURI.resolve() !
@@ -52,6 +52,7 @@ public class IndexInfo {
     private boolean creating = false;
     private Permission oldDocPermissions = null;
     private CollectionConfiguration collectionConfig;
+    private boolean validationDeferred = false;
 
     IndexInfo(Indexer indexer, CollectionConfiguration collectionConfig) {
         this.indexer = indexer;
@@ -86,6 +87,18 @@ public class IndexInfo {
         return oldDocPermissions;
     }
 
+    /**
+     * Set if the document has not been parsed by validateXMLResource, but
+     * will be validated and stored in a single pass by store.
+     */
+    void setValidationDeferred(boolean validationDeferred) {
+        this.validationDeferred = validationDeferred;
+    }
+
+    public boolean isValidationDeferred() {
+        return validationDeferred;
+    }
+
     void setReader(XMLReader reader, EntityResolver entityResolver) throws SAXException {
         if(entityResolver != null) {
             reader.setEntityResolver(entityResolver);
@@ -40,6 +40,10 @@ public abstract class AbstractTriggerProxies<T extends Trigger, P extends Abstra
         proxies.add(proxy);
     }
     
+    public boolean isEmpty() {
+        return proxies.isEmpty();
+    }
+    
     protected List<T> instantiateTriggers(DBBroker broker) throws TriggerException {
         
         final List<T> triggers = new ArrayList<T>(proxies.size());
@@ -0,0 +1,1061 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-13 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * $Id$
+ */
+package org.exist.dom;
+
+import org.exist.numbering.DLNBase;
+import org.exist.numbering.NodeId;
+import org.exist.storage.RangeIndexSpec;
+import org.exist.storage.StorageAddress;
+import org.exist.util.hashtable.Int2ObjectHashMap;
+import org.exist.xquery.Constants;
+import org.exist.xquery.Expression;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.value.Item;
+import org.exist.xquery.value.SequenceIterator;
+import org.exist.xquery.value.Type;
+import org.w3c.dom.Node;
+
+import java.util.Iterator;
+
+/**
+ * A node set which stores its nodes column-wise in primitive arrays instead of
+ * holding one {@link NodeProxy} per node.
+ *
+ * For every node, the set keeps the document id in an int[], the storage address
+ * in a long[] and the node type in a byte[]. The node ids are serialized one after
+ * the other into a single shared byte[], with the offset and the number of bits of
+ * each id kept in two more int arrays. Sorting and duplicate removal work on these
+ * arrays, comparing the serialized ids byte by byte.
+ *
+ * A NodeProxy is only created when a node is actually requested, e.g. by an
+ * iterator or by {@link #get(int)}. The proxy is then kept, so changes to its
+ * context or matches are seen by later callers, as with the other node set
+ * implementations. Nodes added via {@link #add(NodeProxy)} keep the passed proxy.
+ *
+ * Structural joins in which this set provides the descendants
+ * ({@link #selectParentChild(NodeSet, int, int)},
+ * {@link #selectAncestorDescendant(NodeSet, int, boolean, int, boolean)}) and
+ * the lookups used by the ancestor and parent steps and the positional selections
+ * on the following and preceding axes only create proxies for nodes which take
+ * part in the result.
+ *
+ * Like {@link NewArrayNodeSet}, nodes may be appended in any order. The set is
+ * sorted and duplicates are removed on first read access. Appending nodes in
+ * document order, as the structural index does, avoids the sort.
+ */
+public class ColumnarNodeSet extends AbstractNodeSet implements ExtNodeSet {
+
+    private final static int INITIAL_SIZE = 64;
+
+    private int size = 0;
+
+    private int docIds[];
+    private long addresses[];
+    private byte nodeTypes[];
+    private int idOffsets[];
+    private int idUnits[];
+
+    /** The serialized node ids of all nodes */
+    private byte idData[];
+    private int idDataLength = 0;
+
+    /** Proxies created for or added to this set, allocated on first use */
+    private NodeProxy proxies[] = null;
+
+    private Int2ObjectHashMap<DocumentImpl> documents = new Int2ObjectHashMap<DocumentImpl>();
+    private DocumentImpl lastDoc = null;
+
+    // document ranges, recomputed by sort() if documentCount is -1
+    private int documentIds[] = new int[16];
+    private int documentOffsets[] = new int[16];
+    private int documentLengths[] = new int[16];
+    private int documentCount = 0;
+
+    private boolean isSorted = true;
+
+    private boolean hasOne = false;
+
+    private int state = 0;
+
+    private DocumentSet cachedDocuments = null;
+
+    //  used to keep track of the type of added items.
+    private int itemType = Type.ANY_TYPE;
+
+    public ColumnarNodeSet() {
+        this(INITIAL_SIZE);
+    }
+
+    /**
+     * @param initialSize the expected number of nodes
+     */
+    public ColumnarNodeSet(int initialSize) {
+        if (initialSize < 1)
+            {initialSize = INITIAL_SIZE;}
+        docIds = new int[initialSize];
+        addresses = new long[initialSize];
+        nodeTypes = new byte[initialSize];
+        idOffsets = new int[initialSize];
+        idUnits = new int[initialSize];
+        idData = new byte[initialSize * 4];
+    }
+
+    public ColumnarNodeSet(ColumnarNodeSet other) {
+        size = other.size;
+        docIds = other.docIds.clone();
+        addresses = other.addresses.clone();
+        nodeTypes = other.nodeTypes.clone();
+        idOffsets = other.idOffsets.clone();
+        idUnits = other.idUnits.clone();
+        idData = other.idData.clone();
+        idDataLength = other.idDataLength;
+        if (other.proxies != null)
+            {proxies = other.proxies.clone();}
+        for (final Iterator<DocumentImpl> i = other.documents.valueIterator(); i.hasNext(); ) {
+            final DocumentImpl doc = i.next();
+            documents.put(doc.getDocId(), doc);
+        }
+        isSorted = false;
+        hasOne = other.hasOne;
+        itemType = other.itemType;
+    }
+
+    public NodeSet copy() {
+        return new ColumnarNodeSet(this);
+    }
+
+    /**
+     * Append a node whose id is available in serialized form, e.g. as part
+     * of an index key. No NodeId or NodeProxy object is created.
+     *
+     * @param doc the owner document
+     * @param data array containing the serialized node id
+     * @param offset start of the node id in data
+     * @param units number of bits used by the node id
+     * @param nodeType the DOM node type
+     * @param address the storage address of the node
+     */
+    public void add(DocumentImpl doc, byte[] data, int offset, int units, short nodeType, long address) {
+        final int row = newRow(doc, units, nodeType, address);
+        System.arraycopy(data, offset, idData, idOffsets[row], idLength(units));
+        rowAdded(row);
+    }
+
+    /**
+     * Append a node without creating a NodeProxy for it.
+     */
+    public void add(DocumentImpl doc, NodeId nodeId, short nodeType, long address) {
+        final int row = newRow(doc, nodeId.units(), nodeType, address);
+        writeId(row, nodeId);
+        rowAdded(row);
+    }
+
+    public void add(NodeProxy proxy) {
+        final NodeId nodeId = proxy.getNodeId();
+        final int row = newRow(proxy.getDocument(), nodeId.units(), proxy.getNodeType(),
+            proxy.getInternalAddress());
+        writeId(row, nodeId);
+        ensureProxies();
+        proxies[row] = proxy;
+        rowAdded(row);
+    }
+
+    public void add(NodeProxy proxy, int sizeHint) {
+        add(proxy);
+    }
+
+    public void addAll(NodeSet other) {
+        if (other.isEmpty())
+            {return;}
+        if (other instanceof ColumnarNodeSet) {
+            final ColumnarNodeSet set = (ColumnarNodeSet) other;
+            for (int i = 0; i < set.size; i++) {
+                addRow(set, i);
+            }
+        } else if (other.hasOne()) {
+            add((NodeProxy) other.itemAt(0));
+        } else {
+            for (final NodeProxy node : other) {
+                add(node);
+            }
+        }
+    }
+
+    /**
+     * Copy a node from another columnar set, without creating a proxy for it
+     * unless the other set already has one.
+     */
+    private void addRow(ColumnarNodeSet other, int pos) {
+        final int units = other.idUnits[pos];
+        final int row = newRow(other.documents.get(other.docIds[pos]), units,
+            other.nodeTypes[pos], other.addresses[pos]);
+        System.arraycopy(other.idData, other.idOffsets[pos], idData, idOffsets[row], idLength(units));
+        if (other.proxies != null && other.proxies[pos] != null) {
+            ensureProxies();
+            proxies[row] = other.proxies[pos];
+        }
+        rowAdded(row);
+    }
+
+    private int newRow(DocumentImpl doc, int units, short nodeType, long address) {
+        if (size == docIds.length) {
+            final int nsize = size << 1;
+            docIds = grow(docIds, nsize);
+            idOffsets = grow(idOffsets, nsize);
+            idUnits = grow(idUnits, nsize);
+            final long[] ta = new long[nsize];
+            System.arraycopy(addresses, 0, ta, 0, size);
+            addresses = ta;
+            final byte[] tt = new byte[nsize];
+            System.arraycopy(nodeTypes, 0, tt, 0, size);
+            nodeTypes = tt;
+            if (proxies != null) {
+                final NodeProxy[] tp = new NodeProxy[nsize];
+                System.arraycopy(proxies, 0, tp, 0, size);
+                proxies = tp;
+            }
+        }
+        final int len = idLength(units);
+        if (idDataLength + len > idData.length) {
+            final byte[] td = new byte[Math.max(idData.length << 1, idDataLength + len)];
+            System.arraycopy(idData, 0, td, 0, idDataLength);
+            idData = td;
+        }
+        if (doc != lastDoc) {
+            if (documents.get(doc.getDocId()) == null)
+                {documents.put(doc.getDocId(), doc);}
+            lastDoc = doc;
+        }
+        final int row = size++;
+        docIds[row] = doc.getDocId();
+        addresses[row] = address;
+        nodeTypes[row] = (byte) nodeType;
+        idOffsets[row] = idDataLength;
+        idUnits[row] = units;
+        idDataLength += len;
+        return row;
+    }
+
+    private void writeId(int row, NodeId nodeId) {
+        final int len = idLength(idUnits[row]);
+        if (nodeId.size() == len)
+            {nodeId.serialize(idData, idOffsets[row]);}
+        else
+            {System.arraycopy(serialize(nodeId), 0, idData, idOffsets[row], len);}
+    }
+
+    private void rowAdded(int row) {
+        if (row == 0)
+            {hasOne = true;}
+        else {
+            if (hasOne)
+                {hasOne = compareRows(0, row) == 0;}
+            // stays sorted as long as nodes are appended in document order
+            if (isSorted && compareRows(row - 1, row) >= 0)
+                {isSorted = false;}
+        }
+        checkItemType(NodeProxy.nodeType2XQuery(nodeTypes[row]));
+        documentCount = -1;
+        cachedDocuments = null;
+        setHasChanged();
+    }
+
+    private static int[] grow(int[] array, int nsize) {
+        final int[] temp = new int[nsize];
+        System.arraycopy(array, 0, temp, 0, array.length);
+        return temp;
+    }
+
+    private void ensureProxies() {
+        if (proxies == null)
+            {proxies = new NodeProxy[docIds.length];}
+    }
+
+    private void checkItemType(int type) {
+        if (itemType == Type.NODE || itemType == type) {
+            return;
+        }
+        if (itemType == Type.ANY_TYPE) {
+            itemType = type;
+        } else {
+            itemType = Type.NODE;
+        }
+    }
+
+    public int getItemType() {
+        return itemType;
+    }
+
+    private void setHasChanged() {
+        state = (state == Integer.MAX_VALUE ? 0 : state + 1);
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public boolean hasChanged(int previousState) {
+        return state != previousState;
+    }
+
+    public boolean isCacheable() {
+        return true;
+    }
+
+    /**
+     * Returns the proxy for the node at the given position, creating it if
+     * necessary.
+     */
+    private NodeProxy proxyAt(int pos) {
+        ensureProxies();
+        NodeProxy p = proxies[pos];
+        if (p == null) {
+            p = new NodeProxy(documents.get(docIds[pos]), nodeIdAt(pos), nodeTypes[pos], addresses[pos]);
+            proxies[pos] = p;
+        }
+        return p;
+    }
+
+    private boolean hasProxy(int pos) {
+        return proxies != null && proxies[pos] != null;
+    }
+
+    private NodeId nodeIdAt(int pos) {
+        if (hasProxy(pos))
+            {return proxies[pos].getNodeId();}
+        return documents.get(docIds[pos]).getBrokerPool().getNodeFactory()
+            .createFromData(idUnits[pos], idData, idOffsets[pos]);
+    }
+
+    private static int idLength(int units) {
+        return (units + 7) >>> 3;
+    }
+
+    private static byte[] serialize(NodeId nodeId) {
+        final byte[] data = new byte[nodeId.size()];
+        nodeId.serialize(data, 0);
+        return data;
+    }
+
+    private int compareRows(int a, int b) {
+        if (docIds[a] != docIds[b])
+            {return docIds[a] < docIds[b] ? -1 : 1;}
+        return DLNBase.compare(idData, idOffsets[a], idUnits[a], idData, idOffsets[b], idUnits[b]);
+    }
+
+    public void sort() {
+        sort(false);
+    }
+
+    /**
+     * Remove all duplicate nodes, but merge their
+     * contexts.
+     */
+    public void mergeDuplicates() {
+        sort(true);
+    }
+
+    public final void sortInDocumentOrder() {
+        sort(false);
+    }
+
+    public void removeDuplicates() {
+        sort(false);
+    }
+
+    public void sort(boolean mergeContexts) {
+        if (!isSorted) {
+            sortRows(mergeContexts);
+            isSorted = true;
+            documentCount = -1;
+        }
+        if (documentCount < 0)
+            {updateDocs();}
+    }
+
+    public void setSorted(DocumentImpl document, boolean sorted) {
+        // has to be ignored for this node set implementation
+    }
+
+    /**
+     * Sort the rows by document and node id and remove duplicates. The
+     * columns are rebuilt in sorted order, which also compacts the node
+     * id data.
+     */
+    private void sortRows(boolean mergeContexts) {
+        final int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        sortOrder(order, new int[size], 0, size);
+
+        final int capacity = docIds.length;
+        final int[] nDocIds = new int[capacity];
+        final long[] nAddresses = new long[capacity];
+        final byte[] nNodeTypes = new byte[capacity];
+        final int[] nIdOffsets = new int[capacity];
+        final int[] nIdUnits = new int[capacity];
+        final byte[] nIdData = new byte[idData.length];
+        final NodeProxy[] nProxies = proxies == null ? null : new NodeProxy[capacity];
+        int j = -1;
+        int dataLength = 0;
+        for (int i = 0; i < size; i++) {
+            final int row = order[i];
+            if (j > -1 && compareRows(order[i - 1], row) == 0) {
+                // duplicate of the last node copied
+                if (nProxies != null && nProxies[j] == null && proxies[row] != null) {
+                    if (mergeContexts || proxies[row].getContext() == null)
+                        {nProxies[j] = proxies[row];}
+                    else {
+                        nProxies[j] = new NodeProxy(documents.get(docIds[row]), nodeIdAt(row),
+                            nodeTypes[row], addresses[row]);
+                        nProxies[j].addMatches(proxies[row]);
+                    }
+                } else if (nProxies != null && proxies[row] != null) {
+                    if (mergeContexts)
+                        {nProxies[j].addContext(proxies[row]);}
+                    nProxies[j].addMatches(proxies[row]);
+                }
+                continue;
+            }
+            ++j;
+            final int len = idLength(idUnits[row]);
+            nDocIds[j] = docIds[row];
+            nAddresses[j] = addresses[row];
+            nNodeTypes[j] = nodeTypes[row];
+            nIdUnits[j] = idUnits[row];
+            nIdOffsets[j] = dataLength;
+            System.arraycopy(idData, idOffsets[row], nIdData, dataLength, len);
+            dataLength += len;
+            if (nProxies != null)
+                {nProxies[j] = proxies[row];}
+        }
+        docIds = nDocIds;
+        addresses = nAddresses;
+        nodeTypes = nNodeTypes;
+        idOffsets = nIdOffsets;
+        idUnits = nIdUnits;
+        idData = nIdData;
+        idDataLength = dataLength;
+        proxies = nProxies;
+        size = j + 1;
+    }
+
+    /**
+     * Merge sort on the row indexes. Runs which are already in order,
+     * as produced by the index lookups, are not merged again.
+     */
+    private void sortOrder(int[] order, int[] temp, int from, int to) {
+        if (to - from < 8) {
+            for (int i = from + 1; i < to; i++) {
+                final int row = order[i];
+                int k = i - 1;
+                while (k >= from && compareRows(order[k], row) > 0) {
+                    order[k + 1] = order[k];
+                    --k;
+                }
+                order[k + 1] = row;
+            }
+            return;
+        }
+        final int mid = (from + to) >>> 1;
+        sortOrder(order, temp, from, mid);
+        sortOrder(order, temp, mid, to);
+        if (compareRows(order[mid - 1], order[mid]) <= 0)
+            {return;}
+        System.arraycopy(order, from, temp, from, to - from);
+        int i = from;
+        int k = mid;
+        for (int p = from; p < to; p++) {
+            if (k >= to || (i < mid && compareRows(temp[i], temp[k]) <= 0))
+                {order[p] = temp[i++];}
+            else
+                {order[p] = temp[k++];}
+        }
+    }
+
+    private void updateDocs() {
+        documentCount = 0;
+        for (int i = 0; i < size; i++) {
+            if (documentCount > 0 && documentIds[documentCount - 1] == docIds[i]) {
+                ++documentLengths[documentCount - 1];
+            } else {
+                if (documentCount == documentIds.length) {
+                    final int nlen = documentCount << 1;
+                    documentIds = grow(documentIds, nlen);
+                    documentOffsets = grow(documentOffsets, nlen);
+                    documentLengths = grow(documentLengths, nlen);
+                }
+                documentIds[documentCount] = docIds[i];
+                documentOffsets[documentCount] = i;
+                documentLengths[documentCount++] = 1;
+            }
+        }
+    }
+
+    private int findDoc(int docId) {
+        int low = 0;
+        int high = documentCount - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int midVal = documentIds[mid];
+            if (midVal < docId)
+                {low = mid + 1;}
+            else if (midVal > docId)
+                {high = mid - 1;}
+            else
+                {return mid;} // key found
+        }
+        return -(low + 1);  // key not found.
+    }
+
+    /**
+     * Binary search for a serialized node id within the range of a document.
+     *
+     * @return the position of the node or -(insertion point + 1)
+     */
+    private int findNode(int docIdx, byte[] key, int units) {
+        int low = documentOffsets[docIdx];
+        int high = low + (documentLengths[docIdx] - 1);
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int cmp = DLNBase.compare(idData, idOffsets[mid], idUnits[mid], key, 0, units);
+            if (cmp == 0)
+                {return mid;}
+            if (cmp > 0)
+                {high = mid - 1;}
+            else
+                {low = mid + 1;}
+        }
+        return -(low + 1);
+    }
+
+    private int findNode(DocumentImpl doc, NodeId nodeId) {
+        sort();
+        final int docIdx = findDoc(doc.getDocId());
+        if (docIdx < 0)
+            {return -1;}
+        final int pos = findNode(docIdx, serialize(nodeId), nodeId.units());
+        return pos < 0 ? -1 : pos;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean hasOne() {
+        return hasOne;
+    }
+
+    public int getLength() {
+        sort(); // sort to remove duplicates
+        return size;
+    }
+
+    public int getItemCount() {
+        sort(); // sort to remove duplicates
+        return size;
+    }
+
+    public int getSizeHint(DocumentImpl doc) {
+        sort();
+        final int idx = findDoc(doc.getDocId());
+        return idx < 0 ? Constants.NO_SIZE_HINT : documentLengths[idx];
+    }
+
+    public NodeSetIterator iterator() {
+        sort();
+        return new ColumnarIterator();
+    }
+
+    public SequenceIterator iterate() throws XPathException {
+        sort();
+        return new ColumnarIterator();
+    }
+
+    public SequenceIterator unorderedIterator() throws XPathException {
+        sort();
+        return new ColumnarIterator();
+    }
+
+    public ByDocumentIterator iterateByDocument() {
+        sort();
+        return new ColumnarDocIterator();
+    }
+
+    public Node item(int pos) {
+        sort();
+        final NodeProxy p = get(pos);
+        return p == null ? null : p.getNode();
+    }
+
+    public NodeProxy get(int pos) {
+        if (pos < 0 || pos >= size)
+            {return null;}
+        return proxyAt(pos);
+    }
+
+    public Item itemAt(int pos) {
+        sort();
+        return get(pos);
+    }
+
+    public boolean contains(NodeProxy proxy) {
+        return findNode(proxy.getDocument(), proxy.getNodeId()) > -1;
+    }
+
+    public NodeProxy get(NodeProxy proxy) {
+        return get(proxy.getDocument(), proxy.getNodeId());
+    }
+
+    public NodeProxy get(DocumentImpl doc, NodeId nodeId) {
+        final int pos = findNode(doc, nodeId);
+        return pos < 0 ? null : proxyAt(pos);
+    }
+
+    public NodeProxy parentWithChild(DocumentImpl doc, NodeId nodeId, boolean directParent, boolean includeSelf) {
+        sort();
+        final int docIdx = findDoc(doc.getDocId());
+        if (docIdx < 0)
+            {return null;}
+        int pos;
+        if (includeSelf && (pos = findNode(docIdx, serialize(nodeId), nodeId.units())) > -1)
+            {return proxyAt(pos);}
+        nodeId = nodeId.getParentId();
+        while (nodeId != null) {
+            if ((pos = findNode(docIdx, serialize(nodeId), nodeId.units())) > -1)
+                {return proxyAt(pos);}
+            else if (directParent)
+                {return null;}
+            nodeId = nodeId.getParentId();
+        }
+        return null;
+    }
+
+    public NodeSet selectParentChild(NodeSet al, int mode, int contextId) {
+        sort();
+        if (al instanceof VirtualNodeSet)
+            {return super.selectParentChild(al, mode, contextId);}
+        return getDescendantsInSet(al, true, false, mode, contextId, true);
+    }
+
+    public NodeSet selectAncestorDescendant(NodeSet al, int mode, boolean includeSelf,
+            int contextId, boolean copyMatches) {
+        sort();
+        if (al instanceof VirtualNodeSet)
+            {return super.selectAncestorDescendant(al, mode, includeSelf, contextId, copyMatches);}
+        return getDescendantsInSet(al, false, includeSelf, mode, contextId, copyMatches);
+    }
+
+    public NodeSet selectAncestors(NodeSet al, boolean includeSelf, int contextId) {
+        sort();
+        return super.selectAncestors(al, includeSelf, contextId);
+    }
+
+    /**
+     * Find all nodes in this set which are children or descendants of a node
+     * in the given ancestor set.
+     */
+    private NodeSet getDescendantsInSet(NodeSet al, boolean childOnly,
+            boolean includeSelf, int mode, int contextId, boolean copyMatches) {
+        final ColumnarNodeSet result = new ColumnarNodeSet();
+        for (final NodeProxy node : al) {
+            final int docIdx = findDoc(node.getDocument().getDocId());
+            if (docIdx > -1) {
+                getDescendantsInSet(docIdx, result, node, childOnly, includeSelf,
+                    mode, contextId, copyMatches);
+            }
+        }
+        return result;
+    }
+
+    private void getDescendantsInSet(int docIdx, ColumnarNodeSet result, NodeProxy parent,
+            boolean childOnly, boolean includeSelf, int mode, int contextId, boolean copyMatches) {
+        final NodeId parentId = parent.getNodeId();
+        final int end = documentOffsets[docIdx] + documentLengths[docIdx];
+        if (parentId == NodeId.DOCUMENT_NODE) {
+            // document nodes are treated specially
+            for (int i = documentOffsets[docIdx]; i < end; i++) {
+                boolean add;
+                if (childOnly)
+                    {add = DLNBase.getTreeLevel(idData, idOffsets[i], idUnits[i]) == 1;}
+                else if (includeSelf)
+                    {add = true;}
+                else
+                    {add = !hasProxy(i) || proxies[i].getNodeId() != NodeId.DOCUMENT_NODE;}
+                if (add)
+                    {addDescendant(result, i, parent, mode, contextId, copyMatches);}
+            }
+            return;
+        }
+        final byte[] key = serialize(parentId);
+        final int units = parentId.units();
+        int pos = findNode(docIdx, key, units);
+        if (pos < 0)
+            {pos = -(pos + 1);}
+        // walk through the range of descendants
+        for (int i = pos; i < end && DLNBase.isDescendantOrSelf(idData, idOffsets[i], idUnits[i], key, 0, units); i++) {
+            boolean add;
+            if (idUnits[i] == units)
+                {add = includeSelf && !childOnly;}
+            else if (childOnly)
+                {add = DLNBase.isChild(idData, idOffsets[i], idUnits[i], key, 0, units);}
+            else
+                {add = true;}
+            if (add)
+                {addDescendant(result, i, parent, mode, contextId, copyMatches);}
+        }
+    }
+
+    private void addDescendant(ColumnarNodeSet result, int pos, NodeProxy parent, int mode,
+            int contextId, boolean copyMatches) {
+        switch (mode) {
+        case NodeSet.DESCENDANT :
+            if (Expression.NO_CONTEXT_ID == contextId && !hasProxy(pos) && parent.getContext() == null
+                    && (!copyMatches || parent.getMatches() == null)) {
+                // nothing to copy: the node does not need a proxy
+                result.addRow(this, pos);
+                break;
+            }
+            final NodeProxy node = proxyAt(pos);
+            if (Expression.NO_CONTEXT_ID != contextId) {
+                node.deepCopyContext(parent, contextId);
+            } else {
+                node.copyContext(parent);
+            }
+            if (copyMatches)
+                {node.addMatches(parent);}
+            result.add(node);
+            break;
+        case NodeSet.ANCESTOR :
+            final NodeProxy descendant = proxyAt(pos);
+            if (Expression.NO_CONTEXT_ID != contextId) {
+                parent.deepCopyContext(descendant, contextId);
+            } else {
+                parent.copyContext(descendant);
+            }
+            if (copyMatches)
+                {parent.addMatches(descendant);}
+            result.add(parent, 1);
+            break;
+        }
+    }
+
+    public NodeProxy hasDescendantsInSet(DocumentImpl doc, NodeId ancestorId,
+            boolean includeSelf, int contextId, boolean copyMatches) {
+        sort();
+        final int docIdx = findDoc(doc.getDocId());
+        if (docIdx < 0)
+            {return null;}
+        final int end = documentOffsets[docIdx] + documentLengths[docIdx];
+        final boolean documentNode = ancestorId == NodeId.DOCUMENT_NODE;
+        byte[] key = null;
+        int units = 0;
+        int pos = documentOffsets[docIdx];
+        if (!documentNode) {
+            key = serialize(ancestorId);
+            units = ancestorId.units();
+            pos = findNode(docIdx, key, units);
+            if (pos < 0)
+                {pos = -(pos + 1);}
+        }
+        final NodeProxy ancestor = new NodeProxy(doc, ancestorId, Node.ELEMENT_NODE);
+        boolean foundOne = false;
+        for (int i = pos; i < end; i++) {
+            if (!documentNode) {
+                if (!DLNBase.isDescendantOrSelf(idData, idOffsets[i], idUnits[i], key, 0, units))
+                    {break;}
+                if (!includeSelf && idUnits[i] == units)
+                    {continue;}
+            }
+            if (Expression.NO_CONTEXT_ID != contextId) {
+                ancestor.deepCopyContext(proxyAt(i), contextId);
+            } else if (hasProxy(i) || ancestor.getContext() != null) {
+                ancestor.copyContext(proxyAt(i));
+            }
+            if (copyMatches && hasProxy(i))
+                {ancestor.addMatches(proxies[i]);}
+            foundOne = true;
+        }
+        return foundOne ? ancestor : null;
+    }
+
+    /**
+     * Select the nodes in this set which follow a node in the given set. If
+     * position is > 0, only the nth following node is selected for each
+     * context node.
+     */
+    public NodeSet selectFollowing(NodeSet pl, int position, int contextId) throws XPathException {
+        sort();
+        final ColumnarNodeSet result = new ColumnarNodeSet();
+        for (final NodeProxy reference : pl) {
+            final int docIdx = findDoc(reference.getDocument().getDocId());
+            if (docIdx < 0 || reference.getNodeId() == NodeId.DOCUMENT_NODE)
+                {continue;}
+            final int end = documentOffsets[docIdx] + documentLengths[docIdx];
+            final byte[] key = serialize(reference.getNodeId());
+            final int units = reference.getNodeId().units();
+            int pos = findNode(docIdx, key, units);
+            if (pos < 0)
+                {pos = -(pos + 1);}
+            // skip the reference node and its descendants
+            while (pos < end && DLNBase.isDescendantOrSelf(idData, idOffsets[pos], idUnits[pos], key, 0, units)) {
+                ++pos;
+            }
+            if (position < 0) {
+                for (int i = pos; i < end; i++) {
+                    addSelected(result, i, reference, contextId);
+                }
+            } else if (pos + position - 1 < end)
+                {addSelected(result, pos + position - 1, reference, contextId);}
+        }
+        return result;
+    }
+
+    /**
+     * Select the nodes in this set which precede a node in the given set. If
+     * position is > 0, only the nth preceding node, counted backwards from the
+     * context node, is selected.
+     */
+    public NodeSet selectPreceding(NodeSet pl, int position, int contextId) throws XPathException {
+        sort();
+        final ColumnarNodeSet result = new ColumnarNodeSet();
+        for (final NodeProxy reference : pl) {
+            final int docIdx = findDoc(reference.getDocument().getDocId());
+            if (docIdx < 0 || reference.getNodeId() == NodeId.DOCUMENT_NODE)
+                {continue;}
+            final byte[] key = serialize(reference.getNodeId());
+            final int units = reference.getNodeId().units();
+            int pos = findNode(docIdx, key, units);
+            if (pos < 0)
+                {pos = -(pos + 1);}
+            int n = 0;
+            for (int i = pos - 1; i >= documentOffsets[docIdx]; i--) {
+                // ancestors of the reference node are not preceding nodes
+                if (DLNBase.isDescendant(key, 0, units, idData, idOffsets[i], idUnits[i]))
+                    {continue;}
+                if (position < 0 || ++n == position)
+                    {addSelected(result, i, reference, contextId);}
+                if (n == position)
+                    {break;}
+            }
+        }
+        return result;
+    }
+
+    private void addSelected(ColumnarNodeSet result, int pos, NodeProxy reference, int contextId) {
+        if (Expression.IGNORE_CONTEXT == contextId) {
+            result.addRow(this, pos);
+            return;
+        }
+        final NodeProxy node = proxyAt(pos);
+        if (Expression.NO_CONTEXT_ID == contextId)
+            {node.copyContext(reference);}
+        else
+            {node.addContextNode(contextId, reference);}
+        result.add(node);
+    }
+
+    public void setSelfAsContext(int contextId) throws XPathException {
+        for (int i = 0; i < size; i++) {
+            final NodeProxy p = proxyAt(i);
+            p.addContextNode(contextId, p);
+        }
+    }
+
+    public void clearContext(int contextId) throws XPathException {
+        // only proxies can have a context
+        if (proxies == null)
+            {return;}
+        for (int i = 0; i < size; i++) {
+            if (proxies[i] != null)
+                {proxies[i].clearContext(contextId);}
+        }
+    }
+
+    public NodeSet getContextNodes(int contextId) {
+        sort();
+        final NewArrayNodeSet result = new NewArrayNodeSet();
+        if (proxies == null)
+            {return result;}
+        DocumentImpl lastDoc = null;
+        for (int i = 0; i < size; i++) {
+            final NodeProxy current = proxies[i];
+            if (current == null)
+                {continue;}
+            ContextItem contextNode = current.getContext();
+            while (contextNode != null) {
+                if (contextNode.getContextId() == contextId) {
+                    final NodeProxy context = contextNode.getNode();
+                    context.addMatches(current);
+                    if (Expression.NO_CONTEXT_ID != contextId)
+                        {context.addContextNode(contextId, context);}
+                    if (lastDoc != null && lastDoc.getDocId() != context.getDocument().getDocId()) {
+                        lastDoc = context.getDocument();
+                        result.add(context, getSizeHint(lastDoc));
+                    } else
+                        {result.add(context);}
+                }
+                contextNode = contextNode.getNextDirect();
+            }
+        }
+        return result;
+    }
+
+    public int getIndexType() {
+        //Is the index type initialized ?
+        if (indexType == Type.ANY_TYPE) {
+            for (int i = 0; i < size; i++) {
+                if (documents.get(docIds[i]).getCollection().isTempCollection()) {
+                    //Temporary nodes return default values
+                    indexType = Type.ITEM;
+                    break;
+                }
+                final long address = hasProxy(i) ? proxies[i].getInternalAddress() : addresses[i];
+                final int nodeIndexType =
+                    RangeIndexSpec.indexTypeToXPath(StorageAddress.indexTypeFromPointer(address));
+                if (indexType == Type.ANY_TYPE) {
+                    indexType = nodeIndexType;
+                } else if (indexType != nodeIndexType)
+                    {indexType = Type.ITEM;}
+            }
+        }
+        return indexType;
+    }
+
+    public void nodeMoved(NodeId oldNodeId, StoredNode newNode) {
+        final int pos = findNode((DocumentImpl) newNode.getOwnerDocument(), oldNodeId);
+        if (pos < 0)
+            {return;}
+        final NodeProxy p = proxyAt(pos);
+        p.nodeMoved(oldNodeId, newNode);
+        // the old id data is left unused
+        final NodeId nodeId = p.getNodeId();
+        final int len = nodeId.size();
+        if (idDataLength + len > idData.length) {
+            final byte[] td = new byte[(idData.length << 1) + len];
+            System.arraycopy(idData, 0, td, 0, idDataLength);
+            idData = td;
+        }
+        nodeId.serialize(idData, idDataLength);
+        idOffsets[pos] = idDataLength;
+        idUnits[pos] = nodeId.units();
+        addresses[pos] = p.getInternalAddress();
+        idDataLength += len;
+        isSorted = false;
+        documentCount = -1;
+    }
+
+    public DocumentSet getDocumentSet() {
+        if (cachedDocuments == null) {
+            sort();
+            final DefaultDocumentSet docs = new DefaultDocumentSet(documentCount);
+            for (int i = 0; i < documentCount; i++) {
+                docs.add(documents.get(documentIds[i]), false);
+            }
+            cachedDocuments = docs;
+        }
+        return cachedDocuments;
+    }
+
+    public String toString() {
+        return "ColumnarNodeSet#" + super.toString();
+    }
+
+    private class ColumnarIterator implements NodeSetIterator, SequenceIterator {
+
+        int pos = 0;
+
+        public void setPosition(NodeProxy proxy) {
+            pos = findNode(proxy.getDocument(), proxy.getNodeId());
+        }
+
+        public boolean hasNext() {
+            return pos < size && pos > -1;
+        }
+
+        public NodeProxy next() {
+            if (pos == size || pos < 0) {
+                pos = -1;
+                return null;
+            }
+            return proxyAt(pos++);
+        }
+
+        public NodeProxy peekNode() {
+            if (pos == size || pos < 0) {
+                pos = -1;
+                return null;
+            }
+            return proxyAt(pos);
+        }
+
+        public Item nextItem() {
+            return next();
+        }
+
+        public void remove() {
+        }
+    }
+
+    private class ColumnarDocIterator implements ByDocumentIterator {
+
+        int pos = 0;
+        int end = 0;
+
+        ColumnarDocIterator() {
+            end = documentCount > 0 ? documentLengths[0] : 0;
+        }
+
+        public void nextDocument(DocumentImpl document) {
+            final int docIdx = findDoc(document.getDocId());
+            if (docIdx > -1) {
+                pos = documentOffsets[docIdx];
+                end = pos + documentLengths[docIdx];
+            } else {
+                pos = end = 0;
+            }
+        }
+
+        public boolean hasNextNode() {
+            return pos < end;
+        }
+
+        public NodeProxy nextNode() {
+            if (pos >= end)
+                {return null;}
+            return proxyAt(pos++);
+        }
+
+        public NodeProxy peekNode() {
+            return pos < end ? proxyAt(pos) : null;
+        }
+
+        public void setPosition(NodeProxy node) {
+            final int p = findNode(node.getDocument(), node.getNodeId());
+            if (p > -1)
+                {pos = p;}
+            else
+                {pos = end;}
+        }
+    }
+}
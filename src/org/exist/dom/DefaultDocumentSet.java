@@ -246,22 +246,33 @@ public class DefaultDocumentSet extends Int2ObjectHashMap implements MutableDocu
         return true;
     }
 
+    /**
+     * Locks the documents in ascending order of their document id, so
+     * two threads locking overlapping sets of documents can not deadlock.
+     * If a lock can not be acquired, all locks acquired so far are released.
+     */
     @Override
     public void lock(DBBroker broker, boolean exclusive, boolean checkExisting) throws LockException {
-        DocumentImpl d;
-        Lock dlock;
-        //final Thread thread = Thread.currentThread();
+        final int[] docIds = new int[size()];
+        int count = 0;
         for(int idx = 0; idx < tabSize; idx++) {
             if(values[idx] == null || values[idx] == REMOVED)
                 {continue;}
-            d = (DocumentImpl)values[idx];
-            dlock = d.getUpdateLock();
-            //if (checkExisting && dlock.hasLock(thread))
-                //continue;
-            if(exclusive)
-                {dlock.acquire(Lock.WRITE_LOCK);}
-            else
-                {dlock.acquire(Lock.READ_LOCK);}
+            docIds[count++] = keys[idx];
+        }
+        Arrays.sort(docIds, 0, count);
+        final int mode = exclusive ? Lock.WRITE_LOCK : Lock.READ_LOCK;
+        int locked = 0;
+        try {
+            for (; locked < count; locked++) {
+                getDoc(docIds[locked]).getUpdateLock().acquire(mode);
+            }
+        } finally {
+            if (locked < count) {
+                for (int i = 0; i < locked; i++) {
+                    getDoc(docIds[i]).getUpdateLock().release(mode);
+                }
+            }
         }
     }
 
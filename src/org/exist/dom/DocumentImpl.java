@@ -38,7 +38,7 @@ import org.exist.storage.StorageAddress;
 import org.exist.storage.io.VariableByteInput;
 import org.exist.storage.io.VariableByteOutputStream;
 import org.exist.storage.lock.Lock;
-import org.exist.storage.lock.MultiReadReentrantLock;
+import org.exist.storage.lock.LockFactory;
 import org.exist.storage.txn.Txn;
 import org.exist.xmldb.XmldbURI;
 import org.exist.xquery.Constants;
@@ -364,7 +364,7 @@ public class DocumentImpl extends NodeImpl implements Document, DocumentAtExist,
      */
     public final synchronized Lock getUpdateLock() {
         if(updateLock == null)
-            {updateLock = new MultiReadReentrantLock(fileURI);}
+            {updateLock = LockFactory.createDocumentLock(pool == null ? null : pool.getConfiguration(), fileURI);}
         return updateLock;
     }
 
@@ -31,6 +31,15 @@ public interface DocumentSet {
 
     public NodeSet docsToNodeSet();
 
+    /**
+     * Acquire the update lock on all documents in this set. Implementations
+     * lock the documents in ascending order of their document id.
+     *
+     * @param broker the broker
+     * @param exclusive acquire a write lock if true, a read lock otherwise
+     * @param checkExisting unused
+     * @throws LockException
+     */
     public void lock(DBBroker broker, boolean exclusive, boolean checkExisting) throws LockException;
 
     public void unlock(boolean exclusive);
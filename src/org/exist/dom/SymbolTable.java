@@ -197,6 +197,17 @@ public class SymbolTable {
         return (short)namespaceSymbols.getId(ns);
     }
 
+    /**
+     * Returns true if the namespace URI has been registered,
+     * i.e. it is used by at least one stored node. Unlike
+     * {@link #getNSSymbol(String)}, this does not add the namespace.
+     *
+     * @param ns
+     */
+    public synchronized boolean hasNamespace(String ns) {
+        return namespaceSymbols.hasSymbol(ns);
+    }
+
     public synchronized int getMimeTypeId(String mimeType) {
         return mimeTypeSymbols.getId(mimeType);
     }
@@ -492,6 +503,10 @@ public class SymbolTable {
             return symbolsById[id];
         }
 
+        public synchronized boolean hasSymbol(String name) {
+            return symbolsByName.get(name) != -1;
+        }
+
         public synchronized int getId(String name) {
             int id = symbolsByName.get(name);
             if (id != -1) {
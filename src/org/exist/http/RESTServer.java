@@ -101,6 +101,7 @@ import org.exist.xmldb.XmldbURI;
 import org.exist.xqj.Marshaller;
 import org.exist.xquery.CompiledXQuery;
 import org.exist.xquery.Constants;
+import org.exist.xquery.LazySequence;
 import org.exist.xquery.NameTest;
 import org.exist.xquery.XPathException;
 import org.exist.xquery.XQuery;
@@ -1293,6 +1294,7 @@ public class RESTServer {
                     if (cached != null) {
                         LOG.debug("Returning cached query result");
                         writeResults(response, broker, cached, howmany, start, typed, outputProperties, wrap);
+                        return;
 
                     } else {
                         LOG.debug("Cached query result not found. Probably timed out. Repeating query.");
@@ -1331,9 +1333,12 @@ public class RESTServer {
                 context.getWatchDog().reset();
             }
 
+            // only the requested items of the result are evaluated, if possible
+            Sequence resultSequence = null;
+            boolean keepQuery = false;
             try {
                 final long startTime = System.currentTimeMillis();
-                final Sequence resultSequence = xquery.execute(compiled, null, outputProperties);
+                resultSequence = xquery.executeLazy(compiled, null, outputProperties);
                 final long queryTime = System.currentTimeMillis() - startTime;
 
                 if (LOG.isDebugEnabled()) {
@@ -1341,7 +1346,11 @@ public class RESTServer {
                 }
 
                 if (cache) {
-                    final int sessionId = sessionManager.add(query, resultSequence);
+                    // a lazy result is evaluated by the compiled query until the session is released
+                    keepQuery = resultSequence instanceof LazySequence;
+                    final int sessionId = sessionManager.add(query, resultSequence,
+                        compiled.getContext().detachSortedSequences(),
+                        pool, source, keepQuery ? compiled : null);
                     outputProperties.setProperty(Serializer.PROPERTY_SESSION_ID, Integer.toString(sessionId));
                     if (!response.isCommitted()) {
                         response.setIntHeader("X-Session-Id", sessionId);
@@ -1351,7 +1360,13 @@ public class RESTServer {
                 writeResults(response, broker, resultSequence, howmany, start, typed, outputProperties, wrap);
 
             } finally {
-                pool.returnCompiledXQuery(source, compiled);
+                if (!keepQuery) {
+                    if (resultSequence instanceof LazySequence) {
+                        ((LazySequence) resultSequence).close();
+                    }
+                    compiled.getContext().closeSortedSequences();
+                    pool.returnCompiledXQuery(source, compiled);
+                }
             }
 
         } catch (final IOException e) {
@@ -1755,7 +1770,15 @@ public class RESTServer {
                     outputProperties.setProperty("omit-xml-declaration", "no");
                 }
 
-                final OutputStreamWriter writer = new OutputStreamWriter(response.getOutputStream(), encoding);
+                // stream the stored document directly if no transformation is needed
+                serializer.setProperties(outputProperties);
+                final OutputStream os = response.getOutputStream();
+                if (serializer.toOutputStream(resource, os)) {
+                    os.close();
+                    return;
+                }
+
+                final OutputStreamWriter writer = new OutputStreamWriter(os, encoding);
                 sax.setOutput(writer, outputProperties);
                 serializer.setSAXHandlers(sax, sax);
 
@@ -2027,7 +2050,7 @@ public class RESTServer {
     protected void writeResults(final HttpServletResponse response, final DBBroker broker,
             final Sequence results, int howmany, final int start, final boolean typed,
             final Properties outputProperties, final boolean wrap)
-            throws BadRequestException {
+            throws BadRequestException, XPathException {
 
         // some xquery functions can write directly to the output stream
         // (response:stream-binary() etc...)
@@ -2062,7 +2085,7 @@ public class RESTServer {
     private void writeResultXML(final HttpServletResponse response,
         final DBBroker broker, final Sequence results, final int howmany,
         final int start, final boolean typed, final Properties outputProperties,
-        final boolean wrap) throws BadRequestException {
+        final boolean wrap) throws BadRequestException, XPathException {
         
         // serialize the results to the response output stream
         final Serializer serializer = broker.getSerializer();
@@ -2107,6 +2130,15 @@ public class RESTServer {
             LOG.warn(e);
             throw new BadRequestException("Error while serializing xml: "
                     + e.toString(), e);
+        } catch (final RuntimeException e) {
+            // query errors raised while the items are read
+            final XPathException xpe = XPathException.unwrap(e);
+            if (xpe != null) {
+                throw xpe;
+            }
+            LOG.warn(e.getMessage(), e);
+            throw new BadRequestException("Error while serializing xml: "
+                    + e.toString(), e);
         } catch (final Exception e) {
             LOG.warn(e.getMessage(), e);
             throw new BadRequestException("Error while serializing xml: "
@@ -2121,7 +2153,7 @@ public class RESTServer {
     private void writeResultJSON(final HttpServletResponse response,
         final DBBroker broker, final Sequence results, int howmany,
         int start, final Properties outputProperties, final boolean wrap)
-            throws BadRequestException {
+            throws BadRequestException, XPathException {
         
         // calculate number of results to return
         final int rlen = results.getItemCount();
@@ -2186,6 +2218,13 @@ public class RESTServer {
             throw new BadRequestException("Error while serializing xml: " + e.toString(), e);
         } catch (final XPathException e) {
             throw new BadRequestException("Error while serializing xml: " + e.toString(), e);
+        } catch (final RuntimeException e) {
+            // query errors raised while the items are read
+            final XPathException xpe = XPathException.unwrap(e);
+            if (xpe == null) {
+                throw e;
+            }
+            throw xpe;
         }
     }
 
@@ -25,9 +25,16 @@ import org.apache.log4j.Logger;
 import org.exist.scheduler.JobException;
 import org.exist.scheduler.JobException.JobExceptionAction;
 import org.exist.scheduler.UserJavaJob;
+import org.exist.source.Source;
 import org.exist.storage.BrokerPool;
+import org.exist.storage.XQueryPool;
+import org.exist.xquery.CompiledXQuery;
+import org.exist.xquery.LazySequence;
+import org.exist.xquery.value.OrderedValueSequence;
 import org.exist.xquery.value.Sequence;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
@@ -46,10 +53,19 @@ public class SessionManager {
         long lastAccess;
         String queryString;
         Sequence sequence;
+        List<OrderedValueSequence> sortedSequences;
+        XQueryPool pool;
+        Source source;
+        CompiledXQuery compiled;
 
-        private QueryResult(String query, Sequence sequence) {
+        private QueryResult(String query, Sequence sequence, List<OrderedValueSequence> sortedSequences,
+                XQueryPool pool, Source source, CompiledXQuery compiled) {
             this.queryString = query;
             this.sequence = sequence;
+            this.sortedSequences = sortedSequences;
+            this.pool = pool;
+            this.source = source;
+            this.compiled = compiled;
             this.lastAccess = System.currentTimeMillis();
         }
         
@@ -57,6 +73,21 @@ public class SessionManager {
             lastAccess = System.currentTimeMillis();
             return sequence;
         }
+
+        /**
+         * A lazy result keeps the context of the query, which is reset when
+         * the result is closed. The query is then returned to the pool. Sorted
+         * sequences delete their temporary files.
+         */
+        private void close() {
+            if (sequence instanceof LazySequence)
+                {((LazySequence) sequence).close();}
+            for (final OrderedValueSequence sorted : sortedSequences) {
+                sorted.close();
+            }
+            if (compiled != null)
+                {pool.returnCompiledXQuery(source, compiled);}
+        }
     }
 
     public static class TimeoutCheck extends UserJavaJob {
@@ -89,17 +120,36 @@ public class SessionManager {
     }
 
     public int add(String query, Sequence sequence) {
+        return add(query, sequence, new ArrayList<OrderedValueSequence>(), null, null, null);
+    }
+
+    /**
+     * Cache the result of a query.
+     *
+     * @param query the query string
+     * @param sequence the result
+     * @param sortedSequences sequences of the query with temporary files, see
+     *  {@link org.exist.xquery.XQueryContext#detachSortedSequences()}. They are closed
+     *  when the session is released
+     * @param pool the pool the compiled query is returned to
+     * @param source the source of the compiled query
+     * @param compiled if not null, the query is returned to the pool when the session
+     *  is released, e.g. as it evaluates the items of a lazy result
+     * @return the session id
+     */
+    public int add(String query, Sequence sequence, List<OrderedValueSequence> sortedSequences,
+            XQueryPool pool, Source source, CompiledXQuery compiled) {
         final int len = slots.length;
         for (int i = 0; i < len; i++) {
             if (slots[i] == null) {
-                slots[i] = new QueryResult(query, sequence);
+                slots[i] = new QueryResult(query, sequence, sortedSequences, pool, source, compiled);
                 return i;
             }
         }
         // no free slots, resize
         QueryResult[] t = new QueryResult[(len * 3) / 2];
         System.arraycopy(slots, 0, t, 0, len);
-        t[len] = new QueryResult(query, sequence);
+        t[len] = new QueryResult(query, sequence, sortedSequences, pool, source, compiled);
         slots = t;
         return len;
     }
@@ -119,6 +169,8 @@ public class SessionManager {
     public void release(int sessionId) {
         if (sessionId < 0 || sessionId >= slots.length)
             {return;} // out of scope
+        if (slots[sessionId] != null)
+            {slots[sessionId].close();}
         slots[sessionId] = null;
     }
 
@@ -127,6 +179,7 @@ public class SessionManager {
         for (int i = 0; i < slots.length; i++) {
             if (slots[i] != null && now - slots[i].lastAccess > TIMEOUT) {
                 LOG.debug("Removing cached query result for session " + i);
+                slots[i].close();
                 slots[i] = null;
             }
         }
@@ -27,6 +27,16 @@ public interface StructuralIndex {
     public NodeSet findDescendantsByTagName(byte type, QName qname, int axis,
         DocumentSet docs, NodeSet contextSet,  int contextId);
 
+    /**
+     * Find all descendants (or children) of the specified node set matching the given QName
+     * by scanning the index once for every range of documents in contextSet and joining the
+     * results with the context nodes in a single merge pass. Produces the same result as
+     * {@link #findDescendantsByTagName(byte, QName, int, DocumentSet, NodeSet, int)}, but
+     * scales with the number of matching nodes instead of the size of contextSet.
+     */
+    public NodeSet joinDescendantsByTagName(byte type, QName qname, int axis,
+        DocumentSet docs, NodeSet contextSet, int contextId);
+
     public NodeSet findAncestorsByTagName(byte type, QName qname, int axis,
             DocumentSet docs, NodeSet contextSet, int contextId);
 
@@ -21,6 +21,8 @@
  */
 package org.exist.management;
 
+import org.exist.storage.cache.TwoQueueCache;
+
 public class Cache implements CacheMBean {
 
     private org.exist.storage.cache.Cache cache;
@@ -54,6 +56,30 @@ public class Cache implements CacheMBean {
         return cache.getFails();
     }
 
+    @Override
+    public double getHitRate() {
+        final int hits = cache.getHits();
+        final int requests = hits + cache.getFails();
+        return requests == 0 ? 0.0 : (double) hits / requests;
+    }
+
+    @Override
+    public int getEvictions() {
+        return cache.getEvictions();
+    }
+
+    @Override
+    public int getThrashing() {
+        return cache.getThrashing();
+    }
+
+    @Override
+    public int getPollution() {
+        if (cache instanceof TwoQueueCache)
+            {return ((TwoQueueCache) cache).getPollution();}
+        return -1;
+    }
+
     @Override
     public String getFileName() {
         return cache.getFileName();
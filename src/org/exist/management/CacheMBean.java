@@ -37,5 +37,17 @@ public interface CacheMBean {
 
     public int getFails();
 
+    public double getHitRate();
+
+    public int getEvictions();
+
+    public int getThrashing();
+
+    /**
+     * Number of pages evicted without being accessed again after they had
+     * been loaded. Only tracked by scan resistant caches, -1 otherwise.
+     */
+    public int getPollution();
+
     public String getFileName();
 }
\ No newline at end of file
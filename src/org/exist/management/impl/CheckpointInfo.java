@@ -0,0 +1,82 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.management.impl;
+
+import org.exist.storage.BrokerPool;
+import org.exist.storage.sync.BackgroundPageWriter;
+
+public class CheckpointInfo implements CheckpointInfoMBean {
+
+    private final BrokerPool pool;
+
+    public CheckpointInfo(BrokerPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public long getCheckpoints() {
+        return pool.getCheckpointCount();
+    }
+
+    @Override
+    public long getLastCheckpointTime() {
+        return pool.getLastCheckpointTime();
+    }
+
+    @Override
+    public long getMaxCheckpointTime() {
+        return pool.getMaxCheckpointTime();
+    }
+
+    @Override
+    public double getAverageCheckpointTime() {
+        return pool.getAverageCheckpointTime();
+    }
+
+    @Override
+    public int getDirtyPages() {
+        return BackgroundPageWriter.getDirtyPages(pool.getConfiguration());
+    }
+
+    @Override
+    public boolean isPageWriterEnabled() {
+        return pool.getPageWriter() != null;
+    }
+
+    @Override
+    public int getPageWriterRate() {
+        final BackgroundPageWriter writer = pool.getPageWriter();
+        return writer == null ? 0 : writer.getWriteRate();
+    }
+
+    @Override
+    public long getPagesWritten() {
+        final BackgroundPageWriter writer = pool.getPageWriter();
+        return writer == null ? 0 : writer.getPagesWritten();
+    }
+
+    @Override
+    public long getSkippedFiles() {
+        final BackgroundPageWriter writer = pool.getPageWriter();
+        return writer == null ? 0 : writer.getSkipped();
+    }
+}
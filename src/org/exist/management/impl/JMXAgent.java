@@ -108,6 +108,15 @@ public class JMXAgent implements Agent {
 
             addMBean(instance.getId(), "org.exist.management." + instance.getId() + ":type=ProcessReport",
                     new ProcessReport(instance));
+
+            addMBean(instance.getId(), "org.exist.management." + instance.getId() + ":type=Journal",
+                    new JournalInfo(instance));
+
+            addMBean(instance.getId(), "org.exist.management." + instance.getId() + ":type=Checkpoint",
+                    new CheckpointInfo(instance));
+
+            addMBean(instance.getId(), "org.exist.management." + instance.getId() + ":type=XQueryPool",
+                    new QueryPoolInfo(instance));
                         
         } catch (final DatabaseConfigurationException e) {
             LOG.warn("Exception while registering database mbean.", e);
@@ -0,0 +1,94 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.management.impl;
+
+import org.exist.storage.BrokerPool;
+import org.exist.storage.journal.GroupCommitThread;
+import org.exist.storage.journal.Journal;
+import org.exist.storage.journal.Lsn;
+
+public class JournalInfo implements JournalInfoMBean {
+
+    private final BrokerPool pool;
+
+    public JournalInfo(BrokerPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public boolean isGroupCommit() {
+        return getGroupCommitThread() != null;
+    }
+
+    @Override
+    public long getLastWrittenLsn() {
+        final Journal journal = getJournal();
+        return journal == null ? Lsn.LSN_INVALID : journal.lastWrittenLsn();
+    }
+
+    @Override
+    public long getGroupCommits() {
+        final GroupCommitThread writer = getGroupCommitThread();
+        return writer == null ? 0 : writer.getCommitCount();
+    }
+
+    @Override
+    public long getGroupSyncs() {
+        final GroupCommitThread writer = getGroupCommitThread();
+        return writer == null ? 0 : writer.getSyncCount();
+    }
+
+    @Override
+    public double getAverageBatchSize() {
+        final GroupCommitThread writer = getGroupCommitThread();
+        return writer == null ? 0.0 : writer.getAverageBatchSize();
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        final GroupCommitThread writer = getGroupCommitThread();
+        return writer == null ? 0 : writer.getMaxBatchSize();
+    }
+
+    @Override
+    public double getAverageSyncTime() {
+        final GroupCommitThread writer = getGroupCommitThread();
+        return writer == null ? 0.0 : writer.getAverageSyncTime();
+    }
+
+    @Override
+    public double getMaxSyncTime() {
+        final GroupCommitThread writer = getGroupCommitThread();
+        return writer == null ? 0.0 : writer.getMaxSyncTime();
+    }
+
+    private Journal getJournal() {
+        if (pool.getTransactionManager() == null)
+            {return null;}
+        return pool.getTransactionManager().getJournal();
+    }
+
+    private GroupCommitThread getGroupCommitThread() {
+        final Journal journal = getJournal();
+        return journal == null ? null : journal.getGroupCommitThread();
+    }
+}
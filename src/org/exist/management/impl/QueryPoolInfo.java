@@ -0,0 +1,94 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.management.impl;
+
+import org.exist.storage.BrokerPool;
+import org.exist.storage.XQueryPool;
+
+public class QueryPoolInfo implements QueryPoolInfoMBean {
+
+    private final BrokerPool pool;
+
+    public QueryPoolInfo(BrokerPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public int getSize() {
+        return pool.getXQueryPool().getSize();
+    }
+
+    @Override
+    public int getMaxSize() {
+        return pool.getXQueryPool().getMaxSize();
+    }
+
+    @Override
+    public int getPooledInstances() {
+        return pool.getXQueryPool().getPooledInstances();
+    }
+
+    @Override
+    public long getHits() {
+        return pool.getXQueryPool().getHits();
+    }
+
+    @Override
+    public long getMisses() {
+        return pool.getXQueryPool().getMisses();
+    }
+
+    @Override
+    public double getReuseRate() {
+        final XQueryPool xqPool = pool.getXQueryPool();
+        final long hits = xqPool.getHits();
+        final long requests = hits + xqPool.getMisses();
+        return requests == 0 ? 0.0 : (double) hits / requests;
+    }
+
+    @Override
+    public long getInvalidations() {
+        return pool.getXQueryPool().getInvalidations();
+    }
+
+    @Override
+    public long getEvictions() {
+        return pool.getXQueryPool().getEvictions();
+    }
+
+    @Override
+    public long getCompilations() {
+        return pool.getXQueryPool().getCompilations();
+    }
+
+    @Override
+    public long getCompileTime() {
+        return pool.getXQueryPool().getCompileTime();
+    }
+
+    @Override
+    public double getAverageCompileTime() {
+        final XQueryPool xqPool = pool.getXQueryPool();
+        final long compilations = xqPool.getCompilations();
+        return compilations == 0 ? 0.0 : (double) xqPool.getCompileTime() / compilations;
+    }
+}
@@ -53,12 +53,12 @@ public class AttributeImpl extends NodeImpl implements Attr {
 
     @Override
     public NodeId getNodeId() {
-        return document.attrNodeId[nodeNumber];
+        return document.getAttributeNodeId(nodeNumber);
     }
 
     @Override
     public QName getQName() {
-        return document.attrName[nodeNumber];
+        return document.getAttrQName(nodeNumber);
     }
 
     /* (non-Javadoc)
@@ -140,7 +140,7 @@ public class AttributeImpl extends NodeImpl implements Attr {
      * @see org.w3c.dom.Attr#getValue()
      */
     public String getValue() {
-        return document.attrValue[nodeNumber];
+        return document.getAttrValue(nodeNumber);
     }
 
     /* (non-Javadoc)
@@ -148,12 +148,12 @@ public class AttributeImpl extends NodeImpl implements Attr {
      */
     @Override
     public String getNodeValue() throws DOMException {
-        return document.attrValue[nodeNumber];
+        return document.getAttrValue(nodeNumber);
     }
 
     @Override
     public String getStringValue() throws DOMException {
-        return document.attrValue[nodeNumber];
+        return document.getAttrValue(nodeNumber);
     }
 
     /* (non-Javadoc)
@@ -163,7 +163,7 @@ public class AttributeImpl extends NodeImpl implements Attr {
     public void setNodeValue(String arg0) throws DOMException {
         //This method was added to enable the SQL XQuery Extension Module
         //to change the value of an attribute after the fact - Andrzej
-        document.attrValue[nodeNumber] = arg0;
+        document.setAttrValue(nodeNumber, arg0);
     }
 
     /* (non-Javadoc)
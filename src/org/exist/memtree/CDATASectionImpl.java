@@ -66,8 +66,7 @@ public class CDATASectionImpl extends NodeImpl implements CDATASection {
      * @see org.w3c.dom.CharacterData#getData()
      */
     public String getData() throws DOMException {
-        return new String(document.characters, document.alpha[nodeNumber],
-            document.alphaLen[nodeNumber]);
+        return document.getChars(nodeNumber);
     }
 
     public String getNodeValue() {
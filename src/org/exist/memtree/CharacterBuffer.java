@@ -0,0 +1,240 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2013 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ *  $Id$
+ */
+package org.exist.memtree;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+/**
+ * Holds the character data of an in-memory document: text, comments, processing
+ * instructions and attribute values. Characters are only appended, nodes refer to
+ * them by offset and length.
+ *
+ * <p>The characters are kept in a char array. If the buffer grows beyond
+ * {@link #OFF_HEAP_THRESHOLD} characters, they are moved into direct buffers outside
+ * the Java heap, so large temporary documents do not have to be copied around by the
+ * garbage collector. Off heap, the characters are stored in chunks of
+ * {@link #CHUNK_SIZE} characters: growing the buffer allocates another chunk and
+ * never copies the characters already stored. The threshold is set with the system
+ * property <code>exist.memtree.offheap-threshold</code>. It is 0 by default, which
+ * disables off-heap buffers.</p>
+ */
+final class CharacterBuffer {
+
+    private final static int INITIAL_SIZE = 256;
+
+    public final static int OFF_HEAP_THRESHOLD =
+        Integer.getInteger("exist.memtree.offheap-threshold", 0).intValue();
+
+    // number of characters in an off-heap chunk: 64K characters, 128KB
+    private final static int CHUNK_SHIFT = 16;
+    final static int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private final static int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final int offHeapThreshold;
+
+    // the characters, if stored on the heap
+    private char[] chars = null;
+
+    // the characters, if stored off heap. Only the first chunkCount entries are used
+    private CharBuffer[] chunks = null;
+    private int chunkCount = 0;
+
+    private int length = 0;
+
+    CharacterBuffer() {
+        this(OFF_HEAP_THRESHOLD);
+    }
+
+    CharacterBuffer(int offHeapThreshold) {
+        this.offHeapThreshold = offHeapThreshold;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public boolean isOffHeap() {
+        return chunks != null;
+    }
+
+    /**
+     * Appends characters and returns their offset.
+     */
+    public int append(char[] ch, int start, int len) {
+        ensureCapacity(len);
+        final int offset = length;
+        if (chunks == null)
+            {System.arraycopy(ch, start, chars, length, len);}
+        else {
+            int pos = length;
+            int done = 0;
+            while (done < len) {
+                final int n = Math.min(len - done, CHUNK_SIZE - (pos & CHUNK_MASK));
+                final CharBuffer buf = chunks[pos >> CHUNK_SHIFT].duplicate();
+                buf.position(pos & CHUNK_MASK);
+                buf.put(ch, start + done, n);
+                done += n;
+                pos += n;
+            }
+        }
+        length += len;
+        return offset;
+    }
+
+    /**
+     * Appends characters and returns their offset.
+     */
+    public int append(CharSequence s) {
+        final int len = s == null ? 0 : s.length();
+        ensureCapacity(len);
+        final int offset = length;
+        if (chunks == null) {
+            if (s instanceof String)
+                {((String) s).getChars(0, len, chars, length);}
+            else {
+                for (int i = 0; i < len; i++) {
+                    chars[length + i] = s.charAt(i);
+                }
+            }
+        } else {
+            for (int i = 0; i < len; i++) {
+                final int pos = length + i;
+                chunks[pos >> CHUNK_SHIFT].put(pos & CHUNK_MASK, s.charAt(i));
+            }
+        }
+        length += len;
+        return offset;
+    }
+
+    public String getString(int offset, int len) {
+        if (len <= 0)
+            {return "";}
+        if (chunks == null)
+            {return new String(chars, offset, len);}
+        final char[] ch = new char[len];
+        getChars(offset, len, ch, 0);
+        return new String(ch);
+    }
+
+    public void getChars(int offset, int len, char[] dest, int destOffset) {
+        if (chunks == null)
+            {System.arraycopy(chars, offset, dest, destOffset, len);}
+        else {
+            int pos = offset;
+            int done = 0;
+            while (done < len) {
+                final int n = Math.min(len - done, CHUNK_SIZE - (pos & CHUNK_MASK));
+                final CharBuffer buf = chunks[pos >> CHUNK_SHIFT].duplicate();
+                buf.position(pos & CHUNK_MASK);
+                buf.get(dest, destOffset + done, n);
+                done += n;
+                pos += n;
+            }
+        }
+    }
+
+    public void appendTo(StringBuilder buf, int offset, int len) {
+        if (chunks == null)
+            {buf.append(chars, offset, len);}
+        else {
+            int pos = offset;
+            final int end = offset + len;
+            while (pos < end) {
+                final int n = Math.min(end - pos, CHUNK_SIZE - (pos & CHUNK_MASK));
+                final CharBuffer b = chunks[pos >> CHUNK_SHIFT].duplicate();
+                b.limit((pos & CHUNK_MASK) + n);
+                b.position(pos & CHUNK_MASK);
+                buf.append(b);
+                pos += n;
+            }
+        }
+    }
+
+    /**
+     * Returns true if the characters can be accessed through {@link #array()}.
+     */
+    public boolean hasArray() {
+        return chunks == null && chars != null;
+    }
+
+    /**
+     * Returns the char array holding the characters. Only valid if
+     * {@link #hasArray()} returns true.
+     */
+    public char[] array() {
+        return chars;
+    }
+
+    public boolean equals(int offset, int len, String s) {
+        if (s.length() != len)
+            {return false;}
+        for (int i = 0; i < len; i++) {
+            if (charAt(offset + i) != s.charAt(i))
+                {return false;}
+        }
+        return true;
+    }
+
+    private char charAt(int index) {
+        return chunks == null ? chars[index] : chunks[index >> CHUNK_SHIFT].get(index & CHUNK_MASK);
+    }
+
+    private void ensureCapacity(int len) {
+        if (chunks != null) {
+            // allocate the chunks needed, the characters stored are not moved
+            final int needed = (length + len + CHUNK_MASK) >> CHUNK_SHIFT;
+            if (needed > chunks.length) {
+                final CharBuffer[] nc = new CharBuffer[Math.max(needed, chunks.length * 2)];
+                System.arraycopy(chunks, 0, nc, 0, chunkCount);
+                chunks = nc;
+            }
+            while (chunkCount < needed) {
+                chunks[chunkCount++] = ByteBuffer.allocateDirect(CHUNK_SIZE * 2).asCharBuffer();
+            }
+            return;
+        }
+        final int capacity = chars == null ? 0 : chars.length;
+        if (capacity > 0 && length + len <= capacity)
+            {return;}
+        int newSize = capacity == 0 ? INITIAL_SIZE : (capacity * 3) / 2;
+        if (newSize < length + len)
+            {newSize = length + len;}
+        if (offHeapThreshold <= 0 || newSize < offHeapThreshold) {
+            final char[] nc = new char[newSize];
+            if (chars != null)
+                {System.arraycopy(chars, 0, nc, 0, length);}
+            chars = nc;
+        } else {
+            // move the characters off heap
+            chunks = new CharBuffer[4];
+            chunkCount = 0;
+            final char[] old = chars;
+            final int oldLength = length;
+            chars = null;
+            length = 0;
+            ensureCapacity(oldLength + len);
+            if (old != null)
+                {append(old, 0, oldLength);}
+        }
+    }
+}
@@ -64,7 +64,7 @@ public class CommentImpl extends NodeImpl implements Comment {
      * @see org.w3c.dom.CharacterData#getData()
      */
     public String getData() throws DOMException {
-        return new String(document.characters, document.alpha[nodeNumber], document.alphaLen[nodeNumber]);
+        return document.getChars(nodeNumber);
     }
 
     public AtomicValue atomize() throws XPathException {
@@ -195,7 +195,7 @@ public class DOMIndexer {
                     break;
                 }
                 last = stack.peek();
-                text.setData( new String( doc.characters, doc.alpha[nodeNr], doc.alphaLen[nodeNr] ) );
+                text.setData( doc.getChars(nodeNr) );
                 text.setOwnerDocument( targetDoc );
                 last.appendChildInternal( prevNode, text );
                 setPrevious( text );
@@ -206,7 +206,7 @@ public class DOMIndexer {
             case Node.CDATA_SECTION_NODE: {
                 last = stack.peek();
                 final org.exist.dom.CDATASectionImpl cdata = (org.exist.dom.CDATASectionImpl)NodePool.getInstance().borrowNode( Node.CDATA_SECTION_NODE );
-                cdata.setData( doc.characters, doc.alpha[nodeNr], doc.alphaLen[nodeNr] );
+                cdata.setData( doc.getChars(nodeNr) );
                 cdata.setOwnerDocument( targetDoc );
                 last.appendChildInternal( prevNode, cdata );
                 setPrevious( cdata );
@@ -215,7 +215,7 @@ public class DOMIndexer {
             }
 
             case Node.COMMENT_NODE: {
-                comment.setData( doc.characters, doc.alpha[nodeNr], doc.alphaLen[nodeNr] );
+                comment.setData( doc.getChars(nodeNr) );
                 comment.setOwnerDocument( targetDoc );
                 if( stack.empty() ) {
                     comment.setNodeId( NodeId.DOCUMENT_NODE );
@@ -231,9 +231,9 @@ public class DOMIndexer {
             }
 
             case Node.PROCESSING_INSTRUCTION_NODE: {
-                final QName qn = doc.nodeName[nodeNr];
+                final QName qn = doc.getQName(nodeNr);
                 pi.setTarget( qn.getLocalName() );
-                pi.setData( new String( doc.characters, doc.alpha[nodeNr], doc.alphaLen[nodeNr] ) );
+                pi.setData( doc.getChars(nodeNr) );
                 pi.setOwnerDocument( targetDoc );
                 if( stack.empty() ) {
                     pi.setNodeId( NodeId.DOCUMENT_NODE );
@@ -266,7 +266,7 @@ public class DOMIndexer {
         elem.setOwnerDocument( targetDoc );
         elem.setAttributes( attribs );
         elem.setChildCount( doc.getChildCountFor( nodeNr ) + attribs );
-        elem.setNodeName( doc.nodeName[nodeNr] );
+        elem.setNodeName( doc.getQName(nodeNr) );
         final Map<String, String> ns = getNamespaces( nodeNr );
 
         if( ns != null ) {
@@ -314,10 +314,10 @@ public class DOMIndexer {
         if( -1 < attr ) {
 
             while( ( attr < doc.nextAttr ) && ( doc.attrParent[attr] == nodeNr ) ) {
-                final QName    qn     = doc.attrName[attr];
+                final QName    qn     = doc.getAttrQName(attr);
                 final AttrImpl attrib = (AttrImpl)NodePool.getInstance().borrowNode( Node.ATTRIBUTE_NODE );
                 attrib.setNodeName( qn );
-                attrib.setValue( doc.attrValue[attr] );
+                attrib.setValue( doc.getAttrValue(attr) );
                 attrib.setOwnerDocument( targetDoc );
                 elem.appendChildInternal( prevNode, attrib );
                 setPrevious( attrib );
@@ -80,7 +80,6 @@ public class DocumentImpl extends NodeImpl implements DocumentAtExist {
 
     private final static int   NODE_SIZE        = 16;
     private final static int   ATTR_SIZE        = 8;
-    private final static int   CHAR_BUF_SIZE    = 256;
     private final static int   REF_SIZE         = 8;
 
     protected XQueryContext    context;
@@ -97,28 +96,31 @@ public class DocumentImpl extends NodeImpl implements DocumentAtExist {
     protected int[]            next;
 
     // pointer into the namePool
-    protected QName[]          nodeName;
+    protected int[]            nodeName;
 
-    protected NodeId[]         nodeId;
+    // node ids are computed when they are first needed, see computeNodeIds()
+    protected NodeId[]         nodeId = null;
 
     protected int[]            alpha;
 
     protected int[]            alphaLen;
 
-    protected char[]           characters = null;
-
-    protected int              nextChar = 0;
+    // text, comments, processing instructions and attribute values
+    protected CharacterBuffer  characters = null;
 
     // attributes
-    protected QName[]          attrName;
+    protected int[]            attrName;
 
     protected int[]            attrType;
 
-    protected NodeId[]         attrNodeId;
+    protected NodeId[]         attrNodeId = null;
 
     protected int[]            attrParent;
 
-    protected String[]         attrValue;
+    // offset and length of the attribute value in characters
+    protected int[]            attrValueOffset;
+
+    protected int[]            attrValueLen;
 
     protected int              nextAttr         = 0;
 
@@ -169,7 +171,7 @@ public class DocumentImpl extends NodeImpl implements DocumentAtExist {
         return db;
     }
 
-    private static long createDocId() {
+    private static synchronized long createDocId() {
         return( nextDocId++ );
     }
 
@@ -178,16 +180,16 @@ public class DocumentImpl extends NodeImpl implements DocumentAtExist {
         treeLevel = new short[NODE_SIZE];
         next      = new int[NODE_SIZE];
         Arrays.fill(next, -1);
-        nodeName = new QName[NODE_SIZE];
-        nodeId   = new NodeId[NODE_SIZE];
+        nodeName = new int[NODE_SIZE];
         alpha    = new int[NODE_SIZE];
         alphaLen = new int[NODE_SIZE];
         Arrays.fill(alphaLen, -1);
-        attrName     = new QName[ATTR_SIZE];
-        attrParent   = new int[ATTR_SIZE];
-        attrValue    = new String[ATTR_SIZE];
-        attrType     = new int[ATTR_SIZE];
-        attrNodeId   = new NodeId[NODE_SIZE];
+        attrName        = new int[ATTR_SIZE];
+        attrParent      = new int[ATTR_SIZE];
+        attrValueOffset = new int[ATTR_SIZE];
+        attrValueLen    = new int[ATTR_SIZE];
+        attrType        = new int[ATTR_SIZE];
+        characters      = new CharacterBuffer();
         treeLevel[0] = 0;
         nodeKind[0]  = Node.DOCUMENT_NODE;
         document     = this;
@@ -195,7 +197,9 @@ public class DocumentImpl extends NodeImpl implements DocumentAtExist {
 
     public void reset() {
         size       = 0;
-        nextChar   = 0;
+        characters = new CharacterBuffer();
+        nodeId     = null;
+        attrNodeId = null;
         nextAttr   = 0;
         nextRef    = 0;
         references = null;
@@ -214,89 +218,85 @@ public class DocumentImpl extends NodeImpl implements DocumentAtExist {
         }
         nodeKind[size]  = kind;
         treeLevel[size] = level;
-        nodeName[size]  = qname != null ? namePool.getSharedName(qname) : null;
+        nodeName[size]  = qname != null ? namePool.getCode(qname) : -1;
         alpha[size]     = -1; // undefined
         next[size]      = -1;
+        // node ids have to be computed again
+        nodeId = null;
         return(size++);
     }
 
+    /**
+     * Returns the name of an element or processing instruction node.
+     */
+    public QName getQName(int nodeNum) {
+        final int code = nodeName[nodeNum];
+        return code < 0 ? null : namePool.getName(code);
+    }
+
+    /**
+     * Returns the name of an attribute.
+     */
+    public QName getAttrQName(int attr) {
+        return namePool.getName(attrName[attr]);
+    }
+
+    /**
+     * Returns the value of an attribute.
+     */
+    public String getAttrValue(int attr) {
+        return characters.getString(attrValueOffset[attr], attrValueLen[attr]);
+    }
+
+    void setAttrValue(int attr, String value) {
+        attrValueOffset[attr] = characters.append(value);
+        attrValueLen[attr] = value == null ? 0 : value.length();
+    }
+
+    /**
+     * Returns the characters of a text, comment, cdata section or processing
+     * instruction node.
+     */
+    public String getChars(int nodeNum) {
+        return characters.getString(alpha[nodeNum], alphaLen[nodeNum]);
+    }
+
     public void addChars(int nodeNum, char[] ch, int start, int len) {
         if (nodeKind == null) {
             init();
         }
-        if(characters == null) {
-            characters = new char[len > CHAR_BUF_SIZE ? len : CHAR_BUF_SIZE];
-        } else if ((nextChar + len) >= characters.length) {
-            int newLen = (characters.length * 3) / 2;
-            if (newLen < (nextChar + len)) {
-                newLen = nextChar + len;
-            }
-            char[] nc = new char[newLen];
-            System.arraycopy(characters, 0, nc, 0, characters.length);
-            characters = nc;
-        }
-        alpha[nodeNum] = nextChar;
+        alpha[nodeNum] = characters.append(ch, start, len);
         alphaLen[nodeNum] = len;
-        System.arraycopy(ch, start, characters, nextChar, len);
-        nextChar += len;
     }
 
     public void addChars(int nodeNum, CharSequence s) {
         if (nodeKind == null) {
             init();
         }
-        int len = (s == null) ? 0 : s.length();
-        if (characters == null) {
-            characters = new char[(len > CHAR_BUF_SIZE) ? len : CHAR_BUF_SIZE];
-        } else if ((nextChar + len) >= characters.length) {
-            int newLen = (characters.length * 3) / 2;
-            if (newLen < (nextChar + len)) {
-                newLen = nextChar + len;
-            }
-            char[] nc = new char[newLen];
-            System.arraycopy(characters, 0, nc, 0, characters.length);
-            characters = nc;
-        }
-        alpha[nodeNum] = nextChar;
-        alphaLen[nodeNum] = len;
-        for (int i = 0; i < len; i++) {
-            characters[nextChar++] = s.charAt( i );
-        }
+        alphaLen[nodeNum] = (s == null) ? 0 : s.length();
+        alpha[nodeNum] = characters.append(s);
     }
 
     public void appendChars(int nodeNum, char[] ch, int start, int len) {
-        if (characters == null) {
-            characters = new char[(len > CHAR_BUF_SIZE) ? len : CHAR_BUF_SIZE];
-        } else if((nextChar + len) >= characters.length) {
-            int newLen = (characters.length * 3) / 2;
-            if (newLen < (nextChar + len)) {
-                newLen = nextChar + len;
-            }
-            char[] nc = new char[newLen];
-            System.arraycopy(characters, 0, nc, 0, characters.length);
-            characters = nc;
-        }
+        moveCharsToEnd(nodeNum);
+        characters.append(ch, start, len);
         alphaLen[nodeNum] = alphaLen[nodeNum] + len;
-        System.arraycopy(ch, start, characters, nextChar, len);
-        nextChar += len;
     }
 
     public void appendChars(int nodeNum, CharSequence s) {
-        final int len = s.length();
-        if (characters == null) {
-            characters = new char[(len > CHAR_BUF_SIZE) ? len : CHAR_BUF_SIZE];
-        } else if ((nextChar + len) >= characters.length) {
-            int newLen = (characters.length * 3) / 2;
-            if (newLen < (nextChar + len)) {
-                newLen = nextChar + len;
-            }
-            char[] nc = new char[newLen];
-            System.arraycopy(characters, 0, nc, 0, characters.length);
-            characters = nc;
-        }
-        alphaLen[nodeNum] = alphaLen[nodeNum] + len;
-        for (int i = 0; i < len; i++) {
-            characters[nextChar++] = s.charAt(i);
+        moveCharsToEnd(nodeNum);
+        characters.append(s);
+        alphaLen[nodeNum] = alphaLen[nodeNum] + s.length();
+    }
+
+    /**
+     * Make sure the characters of a node are the last ones in the buffer, so
+     * more characters can be appended to them. An attribute value may have been
+     * added in between.
+     */
+    private void moveCharsToEnd(int nodeNum) {
+        if (alpha[nodeNum] + alphaLen[nodeNum] != characters.length()) {
+            alpha[nodeNum] = characters.append(getChars(nodeNum));
         }
     }
 
@@ -334,10 +334,10 @@ public class DocumentImpl extends NodeImpl implements DocumentAtExist {
         //Check if an attribute with the same qname exists in the parent element
         while ((nodeNum > 0) && (prevAttr > -1) && (attrParent[prevAttr] == nodeNum)) {
             attrN = prevAttr--;
-            final QName prevQn = attrName[attrN];
+            final QName prevQn = getAttrQName(attrN);
             if (prevQn.equalsSimple(qname)) {
                 if (replaceAttribute) {
-                    attrValue[attrN] = value;
+                    setAttrValue(attrN, value);
                     attrType[attrN] = type;
                     return attrN;
                 } else
@@ -350,9 +350,10 @@ public class DocumentImpl extends NodeImpl implements DocumentAtExist {
         }
         qname.setNameType(ElementValue.ATTRIBUTE);
         attrParent[nextAttr] = nodeNum;
-        attrName[nextAttr]   = namePool.getSharedName(qname);
-        attrValue[nextAttr]  = value;
+        attrName[nextAttr]   = namePool.getCode(qname);
+        setAttrValue(nextAttr, value);
         attrType[nextAttr]   = type;
+        attrNodeId = null;
         if (alpha[nodeNum] < 0) {
             alpha[nodeNum] = nextAttr;
         }
@@ -413,12 +414,9 @@ public class DocumentImpl extends NodeImpl implements DocumentAtExist {
         Arrays.fill(newNext, -1);
         System.arraycopy(next, 0, newNext, 0, size);
         next = newNext;
-        QName[] newNodeName = new QName[newSize];
+        int[] newNodeName = new int[newSize];
         System.arraycopy(nodeName, 0, newNodeName, 0, size);
         nodeName = newNodeName;
-        NodeId[] newNodeId = new NodeId[newSize];
-        System.arraycopy(nodeId, 0, newNodeId, 0, size);
-        nodeId = newNodeId;
         int[] newAlpha = new int[newSize];
         System.arraycopy(alpha, 0, newAlpha, 0, size);
         alpha = newAlpha;
@@ -431,21 +429,21 @@ public class DocumentImpl extends NodeImpl implements DocumentAtExist {
     private void growAttributes() {
         final int size = attrName.length;
         final int newSize = (size * 3) / 2;
-        QName[] newAttrName = new QName[newSize];
+        int[] newAttrName = new int[newSize];
         System.arraycopy(attrName, 0, newAttrName, 0, size);
         attrName = newAttrName;
         int[] newAttrParent = new int[newSize];
         System.arraycopy(attrParent, 0, newAttrParent, 0, size);
         attrParent = newAttrParent;
-        String[] newAttrValue = new String[newSize];
-        System.arraycopy(attrValue, 0, newAttrValue, 0, size);
-        attrValue = newAttrValue;
+        int[] newAttrValueOffset = new int[newSize];
+        System.arraycopy(attrValueOffset, 0, newAttrValueOffset, 0, size);
+        attrValueOffset = newAttrValueOffset;
+        int[] newAttrValueLen = new int[newSize];
+        System.arraycopy(attrValueLen, 0, newAttrValueLen, 0, size);
+        attrValueLen = newAttrValueLen;
         int[] newAttrType = new int[newSize];
         System.arraycopy(attrType, 0, newAttrType, 0, size);
         attrType = newAttrType;
-        NodeId[] newNodeId = new NodeId[newSize];
-        System.arraycopy(attrNodeId, 0, newNodeId, 0, size);
-        attrNodeId = newNodeId;
     }
 
     private void growReferences() {
@@ -763,7 +761,7 @@ public class DocumentImpl extends NodeImpl implements DocumentAtExist {
         if (-1 < attr) {
             while ((attr < document.nextAttr) && (document.attrParent[attr] == nodeNumber)) {
                 if ((document.attrType[attr] == AttributeImpl.ATTR_ID_TYPE) &&
-                        id.equals(document.attrValue[attr])) {
+                        characters.equals(attrValueOffset[attr], attrValueLen[attr], id)) {
                     return true;
                 }
                 ++attr;
@@ -777,7 +775,7 @@ public class DocumentImpl extends NodeImpl implements DocumentAtExist {
         if (-1 < attr) {
             while ((attr < document.nextAttr) && (document.attrParent[attr] == nodeNumber)) {
                 if ((document.attrType[attr] == AttributeImpl.ATTR_IDREF_TYPE) &&
-                        id.equals(document.attrValue[attr])) {
+                        characters.equals(attrValueOffset[attr], attrValueLen[attr], id)) {
                     return new AttributeImpl(this, attr);
                 }
                 ++attr;
@@ -938,7 +936,7 @@ public class DocumentImpl extends NodeImpl implements DocumentAtExist {
         final NodeListImpl nl = new NodeListImpl();
         for (int i = 1; i < size; i++) {
             if (nodeKind[i] == Node.ELEMENT_NODE) {
-                final QName qn = nodeName[i];
+                final QName qn = getQName(i);
                 if (qn.getStringValue().equals(name)) {
                     nl.add(getNode(i));
                 }
@@ -989,7 +987,7 @@ public class DocumentImpl extends NodeImpl implements DocumentAtExist {
         final NodeListImpl nl = new NodeListImpl();
         for (int i = 1; i < size; i++) {
             if (nodeKind[i] == Node.ELEMENT_NODE) {
-                final QName qn = nodeName[i];
+                final QName qn = getQName(i);
                 if (qn.getNamespaceURI().equals(namespaceURI) && qn.getLocalName().equals(localName)) {
                     nl.add(getNode(i));
                 }
@@ -1066,13 +1064,13 @@ public class DocumentImpl extends NodeImpl implements DocumentAtExist {
         final int nr = node.nodeNumber;
         switch(node.getNodeType()) {
         case Node.ELEMENT_NODE: {
-            final QName nodeName = document.nodeName[nr];
+            final QName nodeName = getQName(nr);
             receiver.startElement(nodeName, null);
             int attr = document.alpha[nr];
             if(-1 < attr) {
                 while ((attr < document.nextAttr) && (document.attrParent[attr] == nr)) {
-                    final QName attrQName = document.attrName[attr];
-                    receiver.attribute( attrQName, attrValue[attr] );
+                    final QName attrQName = getAttrQName(attr);
+                    receiver.attribute( attrQName, getAttrValue(attr) );
                     ++attr;
                 }
             }
@@ -1087,21 +1085,30 @@ public class DocumentImpl extends NodeImpl implements DocumentAtExist {
             break;
         }
         case Node.TEXT_NODE:
-            receiver.characters(document.characters, document.alpha[nr], document.alphaLen[nr]);
+            if (characters.hasArray())
+                {receiver.characters(characters.array(), alpha[nr], alphaLen[nr]);}
+            else
+                {receiver.characters(getChars(nr));}
             break;
         case Node.CDATA_SECTION_NODE:
-            receiver.cdataSection(document.characters, document.alpha[nr], document.alphaLen[nr]);
+            if (characters.hasArray())
+                {receiver.cdataSection(characters.array(), alpha[nr], alphaLen[nr]);}
+            else
+                {receiver.cdataSection(getChars(nr).toCharArray(), 0, alphaLen[nr]);}
             break;
         case Node.ATTRIBUTE_NODE:
-            final QName attrQName = document.attrName[nr];
-            receiver.attribute(attrQName, attrValue[nr]);
+            final QName attrQName = getAttrQName(nr);
+            receiver.attribute(attrQName, getAttrValue(nr));
             break;
         case Node.COMMENT_NODE:
-            receiver.comment(document.characters, document.alpha[nr], document.alphaLen[nr]);
+            if (characters.hasArray())
+                {receiver.comment(characters.array(), alpha[nr], alphaLen[nr]);}
+            else
+                {receiver.comment(getChars(nr).toCharArray(), 0, alphaLen[nr]);}
             break;
         case Node.PROCESSING_INSTRUCTION_NODE:
-            final QName qn   = document.nodeName[nr];
-            final String data = new String(document.characters, document.alpha[nr], document.alphaLen[nr]);
+            final QName qn   = getQName(nr);
+            final String data = getChars(nr);
             receiver.processingInstruction(qn.getLocalName(), data);
             break;
         case NodeImpl.NAMESPACE_NODE:
@@ -1180,6 +1187,32 @@ public class DocumentImpl extends NodeImpl implements DocumentAtExist {
         }
     }
 
+    /**
+     * Returns the node id of the node. Reference nodes are expanded and the node ids
+     * computed first, if necessary.
+     *
+     * @param  nodeNum  the number of the node
+     *
+     * @return  the node id
+     */
+    public NodeId getNodeId(int nodeNum) {
+        expand();
+        return nodeId[nodeNum];
+    }
+
+    /**
+     * Returns the node id of the attribute. Reference nodes are expanded and the node
+     * ids computed first, if necessary.
+     *
+     * @param  attrNum  the number of the attribute
+     *
+     * @return  the node id
+     */
+    public NodeId getAttributeNodeId(int attrNum) {
+        expand();
+        return attrNodeId[attrNum];
+    }
+
     public NodeImpl getNodeById(NodeId id) {
         expand();
         for (int i = 0; i < size; i++) {
@@ -1190,39 +1223,47 @@ public class DocumentImpl extends NodeImpl implements DocumentAtExist {
         return null;
     }
 
+    /**
+     * Computes the node ids of all nodes. The ids are only computed when they are first
+     * needed and again after nodes or attributes were added, so documents which are only
+     * built and serialized never create them.
+     */
     private void computeNodeIds() throws EXistException {
-        if (nodeId[0] != null) {
+        if (nodeId != null && attrNodeId != null) {
             return;
         }
+        final NodeId[] ids = new NodeId[size];
+        final NodeId[] attrIds = new NodeId[nextAttr];
         final NodeIdFactory nodeFactory = getDatabase().getNodeFactory();
-        nodeId[0] = nodeFactory.documentNodeId();
-        if (size == 1) {
-            return;
-        }
-        NodeId nextId = nodeFactory.createInstance();
-        NodeImpl next = (NodeImpl)getFirstChild();
-        while (next != null) {
-            computeNodeIds(nextId, next.nodeNumber);
-            next = (NodeImpl)next.getNextSibling();
-            nextId = nextId.nextSibling();
+        ids[0] = nodeFactory.documentNodeId();
+        if (size > 1) {
+            NodeId nextId = nodeFactory.createInstance();
+            NodeImpl next = (NodeImpl)getFirstChild();
+            while (next != null) {
+                computeNodeIds(ids, attrIds, nextId, next.nodeNumber);
+                next = (NodeImpl)next.getNextSibling();
+                nextId = nextId.nextSibling();
+            }
         }
+        attrNodeId = attrIds;
+        nodeId = ids;
     }
 
-    private void computeNodeIds(NodeId id, int nodeNum) {
-        nodeId[nodeNum] = id;
+    private void computeNodeIds(NodeId[] ids, NodeId[] attrIds, NodeId id, int nodeNum) {
+        ids[nodeNum] = id;
         if (nodeKind[nodeNum] == Node.ELEMENT_NODE) {
             NodeId nextId = id.newChild();
             int attr = document.alpha[nodeNum];
             if (-1 < attr) {
                 while ((attr < document.nextAttr) && (document.attrParent[attr] == nodeNum)) {
-                    attrNodeId[attr] = nextId;
+                    attrIds[attr] = nextId;
                     nextId = nextId.nextSibling();
                     ++attr;
                 }
             }
             int nextNode = getFirstChildFor(nodeNum);
             while (nextNode > nodeNum) {
-                computeNodeIds(nextId, nextNode);
+                computeNodeIds(ids, attrIds, nextId, nextNode);
                 nextNode = document.next[nextNode];
                 if (nextNode > nodeNum) {
                     nextId = nextId.nextSibling();
@@ -1246,11 +1287,11 @@ public class DocumentImpl extends NodeImpl implements DocumentAtExist {
         alpha            = newDoc.alpha;
         alphaLen         = newDoc.alphaLen;
         characters       = newDoc.characters;
-        nextChar         = newDoc.nextChar;
         attrName         = newDoc.attrName;
         attrNodeId       = newDoc.attrNodeId;
         attrParent       = newDoc.attrParent;
-        attrValue        = newDoc.attrValue;
+        attrValueOffset  = newDoc.attrValueOffset;
+        attrValueLen     = newDoc.attrValueLen;
         nextAttr         = newDoc.nextAttr;
         namespaceParent  = newDoc.namespaceParent;
         namespaceCode    = newDoc.namespaceCode;
@@ -1306,7 +1347,7 @@ public class DocumentImpl extends NodeImpl implements DocumentAtExist {
         final int nr = node.nodeNumber;
         switch (node.getNodeType()) {
         case Node.ELEMENT_NODE:
-            final QName nodeName = document.nodeName[nr];
+            final QName nodeName = getQName(nr);
             //Output required namespace declarations
             int ns = document.alphaLen[nr];
             if (-1 < ns) {
@@ -1326,31 +1367,36 @@ public class DocumentImpl extends NodeImpl implements DocumentAtExist {
             if (-1 < attr) {
                 attribs = new AttrList();
                 while ((attr < document.nextAttr) && (document.attrParent[attr] == nr)) {
-                    final QName attrQName = document.attrName[attr];
-                    attribs.addAttribute(attrQName, attrValue[attr]);
+                    final QName attrQName = getAttrQName(attr);
+                    attribs.addAttribute(attrQName, getAttrValue(attr));
                     ++attr;
                 }
             }
             receiver.startElement(nodeName, attribs);
             break;
         case Node.TEXT_NODE:
-            receiver.characters(new String(document.characters, document.alpha[nr],
-                document.alphaLen[nr]));
+            receiver.characters(getChars(nr));
             break;
         case Node.ATTRIBUTE_NODE:
-            final QName attrQName = document.attrName[nr];
-            receiver.attribute(attrQName, attrValue[nr]);
+            final QName attrQName = getAttrQName(nr);
+            receiver.attribute(attrQName, getAttrValue(nr));
             break;
         case Node.COMMENT_NODE:
-            receiver.comment(document.characters, document.alpha[nr], document.alphaLen[nr]);
+            if (characters.hasArray())
+                {receiver.comment(characters.array(), alpha[nr], alphaLen[nr]);}
+            else
+                {receiver.comment(getChars(nr).toCharArray(), 0, alphaLen[nr]);}
             break;
         case Node.PROCESSING_INSTRUCTION_NODE:
-            final QName qn = document.nodeName[nr];
-            final String data = new String(document.characters, document.alpha[nr], document.alphaLen[nr]);
+            final QName qn = getQName(nr);
+            final String data = getChars(nr);
             receiver.processingInstruction(qn.getLocalName(), data);
             break;
         case Node.CDATA_SECTION_NODE:
-            receiver.cdataSection(document.characters, document.alpha[nr], document.alphaLen[nr]);
+            if (characters.hasArray())
+                {receiver.cdataSection(characters.array(), alpha[nr], alphaLen[nr]);}
+            else
+                {receiver.cdataSection(getChars(nr).toCharArray(), 0, alphaLen[nr]);}
             break;
         case NodeImpl.REFERENCE_NODE:
             serializer.toReceiver(document.references[document.alpha[nr]], true, false);
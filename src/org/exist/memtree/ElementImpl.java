@@ -62,7 +62,7 @@ public class ElementImpl extends NodeImpl implements ElementAtExist {
 
     @Override
     public QName getQName() {
-        return( document.nodeName[nodeNumber] );
+        return( document.getQName(nodeNumber) );
     }
 
     /* (non-Javadoc)
@@ -143,9 +143,9 @@ public class ElementImpl extends NodeImpl implements ElementAtExist {
         int attr = document.alpha[nodeNumber];
         if( -1 < attr ) {
             while( ( attr < document.nextAttr ) && ( document.attrParent[attr] == nodeNumber ) ) {
-                final QName attrQName = document.attrName[attr];
+                final QName attrQName = document.getAttrQName(attr);
                 if( attrQName.getStringValue().equals( name ) ) {
-                    return( document.attrValue[attr] );
+                    return( document.getAttrValue(attr) );
                 }
                 ++attr;
             }
@@ -225,7 +225,7 @@ public class ElementImpl extends NodeImpl implements ElementAtExist {
         int attr = document.alpha[nodeNumber];
         if( -1 < attr ) {
             while( ( attr < document.nextAttr ) && ( document.attrParent[attr] == nodeNumber ) ) {
-                final QName attrQName = document.attrName[attr];
+                final QName attrQName = document.getAttrQName(attr);
                 if( attrQName.getStringValue().equals( name ) ) {
                     return( new AttributeImpl( document, attr ) );
                 }
@@ -339,7 +339,7 @@ public class ElementImpl extends NodeImpl implements ElementAtExist {
         final int treeLevel = document.treeLevel[nodeNumber];
         while( ( ++nextNode < document.size ) && ( document.treeLevel[nextNode] > treeLevel ) ) {
             if( document.nodeKind[nextNode] == Node.ELEMENT_NODE ) {
-                final QName qn = document.nodeName[nextNode];
+                final QName qn = document.getQName(nextNode);
                 if( qn.getStringValue().equals( name ) ) {
                     nl.add( document.getNode( nextNode ) );
                 }
@@ -356,9 +356,9 @@ public class ElementImpl extends NodeImpl implements ElementAtExist {
         if( -1 < attr ) {
             QName name;
             while( ( attr < document.nextAttr ) && ( document.attrParent[attr] == nodeNumber ) ) {
-                name = document.attrName[attr];
+                name = document.getAttrQName(attr);
                 if( name.getLocalName().equals( localName ) && name.getNamespaceURI().equals( namespaceURI ) ) {
-                    return( document.attrValue[attr] );
+                    return( document.getAttrValue(attr) );
                 }
                 ++attr;
             }
@@ -400,7 +400,7 @@ public class ElementImpl extends NodeImpl implements ElementAtExist {
         if( -1 < attr ) {
             QName name;
             while( ( attr < document.nextAttr ) && ( document.attrParent[attr] == nodeNumber ) ) {
-                name = document.attrName[attr];
+                name = document.getAttrQName(attr);
                 if( name.getLocalName().equals( localName ) && name.getNamespaceURI().equals( namespaceURI ) ) {
                     return( new AttributeImpl( document, attr ) );
                 }
@@ -441,7 +441,7 @@ public class ElementImpl extends NodeImpl implements ElementAtExist {
         int          nextNode = nodeNumber;
         while( ++nextNode < document.size ) {
             if( document.nodeKind[nextNode] == Node.ELEMENT_NODE ) {
-                final QName qn = document.nodeName[nextNode];
+                final QName qn = document.getQName(nextNode);
                 if( qname.compareTo( qn ) == 0 ) {
                     nl.add( document.getNode( nextNode ) );
                 }
@@ -537,7 +537,7 @@ public class ElementImpl extends NodeImpl implements ElementAtExist {
         int attr = document.alpha[nodeNumber];
         if( -1 < attr ) {
             while( ( attr < document.nextAttr ) && ( document.attrParent[attr] == nodeNumber ) ) {
-            	final QName qname = document.attrName[attr];
+            	final QName qname = document.getAttrQName(attr);
             	if (qname.getPrefix() != null && !qname.getPrefix().isEmpty())
             		{map.put( qname.getPrefix(), qname.getNamespaceURI() );}
                 ++attr;
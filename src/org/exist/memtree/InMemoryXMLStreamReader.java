@@ -60,8 +60,7 @@ public class InMemoryXMLStreamReader implements ExtendedXMLStreamReader
             if( ( currentNode < 0 ) || ( currentNode >= doc.size ) ) {
                 return( null );
             }
-            doc.expand();
-            return( doc.nodeId[currentNode] );
+            return( doc.getNodeId( currentNode ) );
         }
         return( null );
     }
@@ -224,10 +223,10 @@ public class InMemoryXMLStreamReader implements ExtendedXMLStreamReader
         final int attrStart = doc.alpha[currentNode];
 
         for( int i = 0; i < attrCount; i++ ) {
-            final org.exist.dom.QName qname = doc.attrName[attrStart + i];
+            final org.exist.dom.QName qname = doc.getAttrQName(attrStart + i);
 
             if( (namespaceURI == null || namespaceURI.equals( qname.getNamespaceURI() )) && localName.equals( qname.getLocalName() ) ) {
-                return( doc.attrValue[attrStart + i] );
+                return( doc.getAttrValue(attrStart + i) );
             }
         }
         return( null );
@@ -253,7 +252,7 @@ public class InMemoryXMLStreamReader implements ExtendedXMLStreamReader
             throw( new ArrayIndexOutOfBoundsException( "bad attribute index" ) );
         }
         final int attr = doc.alpha[currentNode];
-        return( doc.attrName[attr + index] );
+        return( doc.getAttrQName(attr + index) );
     }
 
 
@@ -299,9 +298,10 @@ public class InMemoryXMLStreamReader implements ExtendedXMLStreamReader
         if( index > getAttributeCount() ) {
             throw( new ArrayIndexOutOfBoundsException( "bad attribute index" ) );
         }
+        // expands reference nodes, which may change alpha
         doc.expand();
         final int attr = doc.alpha[currentNode];
-        return( doc.attrNodeId[attr + index] );
+        return( doc.getAttributeNodeId( attr + index ) );
     }
 
 
@@ -348,7 +348,7 @@ public class InMemoryXMLStreamReader implements ExtendedXMLStreamReader
             throw( new ArrayIndexOutOfBoundsException( "bad attribute index" ) );
         }
         final int attr = doc.alpha[currentNode];
-        return( doc.attrValue[attr + index] );
+        return( doc.getAttrValue(attr + index) );
     }
 
 
@@ -407,7 +407,7 @@ public class InMemoryXMLStreamReader implements ExtendedXMLStreamReader
     public String getText()
     {
         if( ( state == CHARACTERS ) || ( state == COMMENT ) || ( state == CDATA ) ) {
-            return( new String( doc.characters, doc.alpha[currentNode], doc.alphaLen[currentNode] ) );
+            return( doc.getChars(currentNode) );
         }
         return( "" );
     }
@@ -416,7 +416,7 @@ public class InMemoryXMLStreamReader implements ExtendedXMLStreamReader
     public char[] getTextCharacters()
     {
         final char[] ch = new char[doc.alphaLen[currentNode]];
-        System.arraycopy( doc.characters, doc.alpha[currentNode], ch, 0, ch.length );
+        doc.characters.getChars( doc.alpha[currentNode], ch.length, ch, 0 );
         return( ch );
     }
 
@@ -460,7 +460,7 @@ public class InMemoryXMLStreamReader implements ExtendedXMLStreamReader
     public org.exist.dom.QName getQName()
     {
         if( ( state == START_ELEMENT ) || ( state == END_ELEMENT ) ) {
-            return( doc.nodeName[currentNode] );
+            return( doc.getQName(currentNode) );
         }
         throw( new IllegalStateException( "Cursor is not at an element" ) );
     }
@@ -522,13 +522,13 @@ public class InMemoryXMLStreamReader implements ExtendedXMLStreamReader
 
     public String getPITarget()
     {
-        final org.exist.dom.QName qn = doc.nodeName[currentNode];
+        final org.exist.dom.QName qn = doc.getQName(currentNode);
         return( ( qn != null ) ? qn.getLocalName() : null );
     }
 
 
     public String getPIData()
     {
-        return( new String( doc.characters, doc.alpha[currentNode], doc.alphaLen[currentNode] ) );
+        return( doc.getChars(currentNode) );
     }
 }
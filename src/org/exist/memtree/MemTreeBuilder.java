@@ -448,7 +448,7 @@ public class MemTreeBuilder
         final int    lastNode   = doc.getLastNode();
         boolean addNode = true;
         if (doc.nodeName != null) {
-            final QName  elemQN     = doc.nodeName[lastNode];
+            final QName  elemQN     = doc.getQName(lastNode);
             if (elemQN != null) {
                 final String elemPrefix = ( elemQN.getPrefix() == null ) ? "" : elemQN.getPrefix();
 
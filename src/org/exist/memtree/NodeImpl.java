@@ -114,11 +114,11 @@ public abstract class NodeImpl implements NodeAtExist, NodeValue {
                 return( "#document" );
             case Type.ELEMENT:
             case Type.PROCESSING_INSTRUCTION:
-                final QName qn = document.nodeName[nodeNumber];
+                final QName qn = document.getQName(nodeNumber);
                 //TODO : check !
                 return( qn.getStringValue() );
             case Type.ATTRIBUTE:
-                return( ( document.attrName[nodeNumber] ).getStringValue() );
+                return( ( document.getAttrQName(nodeNumber) ).getStringValue() );
             case Type.NAMESPACE:
                 return( ( document.namespaceCode[nodeNumber] ).getStringValue() );
             case Type.TEXT:
@@ -137,7 +137,7 @@ public abstract class NodeImpl implements NodeAtExist, NodeValue {
             case Node.ATTRIBUTE_NODE:
             case Node.ELEMENT_NODE:
             case Node.PROCESSING_INSTRUCTION_NODE:
-                final QName qn = document.nodeName[nodeNumber];
+                final QName qn = document.getQName(nodeNumber);
                 return( qn );
             case Node.DOCUMENT_NODE:
                 return( QName.EMPTY_QNAME );
@@ -153,8 +153,7 @@ public abstract class NodeImpl implements NodeAtExist, NodeValue {
     }
 
     public NodeId getNodeId() {
-        expand();
-        return( document.nodeId[nodeNumber] );
+        return( document.getNodeId( nodeNumber ) );
     }
 
     public void expand() throws DOMException {
@@ -520,7 +519,7 @@ public abstract class NodeImpl implements NodeAtExist, NodeValue {
             }
             ++next;
         }
-        return( ( len < 0 ) ? "" : new String( document.characters, startOffset, len ) );
+        return( ( len < 0 ) ? "" : document.characters.getString( startOffset, len ) );
     }
 
     private String getStringValueSlow() {
@@ -536,7 +535,7 @@ public abstract class NodeImpl implements NodeAtExist, NodeValue {
                     if( buf == null ) {
                         buf = new StringBuilder();
                     }
-                    buf.append( document.characters, document.alpha[next], document.alphaLen[next] );
+                    document.characters.appendTo( buf, document.alpha[next], document.alphaLen[next] );
                     break;
                 }
                 case REFERENCE_NODE: {
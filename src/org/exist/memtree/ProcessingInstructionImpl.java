@@ -52,7 +52,7 @@ public class ProcessingInstructionImpl extends NodeImpl implements ProcessingIns
      */
     public String getTarget()
     {
-        final QName qn = document.nodeName[nodeNumber];
+        final QName qn = document.getQName(nodeNumber);
         return( ( qn != null ) ? qn.getLocalName() : null );
     }
 
@@ -81,7 +81,7 @@ public class ProcessingInstructionImpl extends NodeImpl implements ProcessingIns
      */
     public String getData()
     {
-        return( new String( document.characters, document.alpha[nodeNumber], document.alphaLen[nodeNumber] ) );
+        return( document.getChars(nodeNumber) );
     }
 
     public String getNodeValue() throws DOMException {
@@ -65,7 +65,7 @@ public class TextImpl extends NodeImpl implements Text
      */
     public String getData() throws DOMException
     {
-        return( new String( document.characters, document.alpha[nodeNumber], document.alphaLen[nodeNumber] ) );
+        return( document.getChars(nodeNumber) );
     }
 
 
@@ -250,7 +250,7 @@ public class DLNBase {
      * @return the level id
      */
     public int getLevelId(int startBit) {
-        final int units = unitsUsed(startBit, bits);
+        final int units = unitsUsed(bits, 0, startBit);
         startBit += units;
         final int numBits = bitWidth(units);
         //System.err.println("startBit: " + startBit + "; bitIndex: " + bitIndex + 
@@ -289,14 +289,6 @@ public class DLNBase {
         return bits.length;
     }
 
-    private static int unitsUsed(int startBit, final byte[] bits) {
-        int units = 1;
-        while ((bits[startBit >> UNIT_SHIFT] & (1 << ((7 - startBit++) & 7))) != 0) {
-            ++units;
-        }
-        return units;
-    }
-
     public boolean isLevelSeparator(final int index) {
         return (bits[index >> UNIT_SHIFT] & (1 << ((7 - index) & 7))) == 0;
     }
@@ -308,21 +300,7 @@ public class DLNBase {
      * @return the number of levels in this id
      */
     public int getLevelCount(final int startOffset) {
-        int bit = startOffset;
-        int count = 0;
-        while (bit > -1 && bit <= bitIndex) {
-            final int units = unitsUsed(bit, bits);
-            bit += units;
-            bit += bitWidth(units);
-            if (bit < bitIndex) {
-                if ((bits[bit >> UNIT_SHIFT] & (1 << ((7 - bit++) & 7))) == LEVEL_SEPARATOR) {
-                    ++count;
-                }
-            } else {
-                ++count;
-            }
-        }
-        return count;
+        return getLevelCount(bits, 0, bitIndex + 1, startOffset);
     }
 
     /**
@@ -337,7 +315,7 @@ public class DLNBase {
         int bit = startOffset;
         int count = 0;
         while (bit > -1 && bit <= bitIndex) {
-            final int units = unitsUsed(bit, bits);
+            final int units = unitsUsed(bits, 0, bit);
             bit += units;
             bit += bitWidth(units);
             if (bit < bitIndex) {
@@ -374,21 +352,7 @@ public class DLNBase {
      * @return start-offset of the last level id.
      */
     public int lastLevelOffset() {
-        int bit = 0;
-        int lastOffset = 0;
-        while (bit <= bitIndex) {
-            // check if the next bit starts a new level or just a sub-level component
-            if (bit > 0) {
-                if ((bits[bit >> UNIT_SHIFT] & (1 << ((7 - bit) & 7))) == LEVEL_SEPARATOR) {
-                    lastOffset = bit + 1;
-                }
-                ++bit;
-            }
-            final int units = unitsUsed(bit, bits);
-            bit += units;
-            bit += bitWidth(units);
-        }
-        return lastOffset;
+        return lastLevelOffset(bits, 0, bitIndex + 1);
     }
 
     protected int lastFieldPosition() {
@@ -398,7 +362,7 @@ public class DLNBase {
             if (bit > 0) {
                 lastOffset = ++bit;
             }
-            final int units = unitsUsed(bit, bits);
+            final int units = unitsUsed(bits, 0, bit);
             bit += units;
             bit += bitWidth(units);
         }
@@ -525,17 +489,154 @@ public class DLNBase {
      * @param other
      */
     public boolean startsWith(final DLNBase other) {
-        if (other.bitIndex > bitIndex) {
+        return startsWith(bits, 0, bitIndex + 1, other.bits, 0, other.bitIndex + 1);
+    }
+
+    /*
+     * The following static methods work on node ids stored in a byte[], starting at
+     * offset and using the given number of bits (units), e.g. the node ids in the keys
+     * of an index or in a node set. They return the same results as the corresponding
+     * methods of DLN, but neither create a DLN nor allocate any memory.
+     */
+
+    private static boolean isBitSet(final byte[] data, final int offset, final int bit) {
+        return (data[offset + (bit >> UNIT_SHIFT)] & (1 << ((7 - bit) & 7))) != 0;
+    }
+
+    private static int unitsUsed(final byte[] data, final int offset, int startBit) {
+        int units = 1;
+        while (isBitSet(data, offset, startBit++)) {
+            ++units;
+        }
+        return units;
+    }
+
+    /**
+     * Compares two node ids in document order, like {@link DLN#compareTo(NodeId)}.
+     */
+    public static int compare(final byte[] data1, final int offset1, final int units1,
+            final byte[] data2, final int offset2, final int units2) {
+        final int len1 = (units1 + 7) >>> UNIT_SHIFT;
+        final int len2 = (units2 + 7) >>> UNIT_SHIFT;
+        final int limit = len1 <= len2 ? len1 : len2;
+        for (int i = 0; i < limit; i++) {
+            final byte b1 = data1[offset1 + i];
+            final byte b2 = data2[offset2 + i];
+            if (b1 != b2) {
+                return (b1 & 0xFF) - (b2 & 0xFF);
+            }
+        }
+        return len1 - len2;
+    }
+
+    /**
+     * Checks if the first node id starts with the bits of the second.
+     */
+    public static boolean startsWith(final byte[] data, final int offset, final int units,
+            final byte[] prefix, final int prefixOffset, final int prefixUnits) {
+        if (prefixUnits > units) {
             return false;
         }
-        final int bytes = other.bitIndex / 8;
-        final int remaining = other.bitIndex % 8;
+        final int lastBit = prefixUnits - 1;
+        final int bytes = lastBit >> UNIT_SHIFT;
         for (int i = 0; i < bytes; i++) {
-            if (bits[i] != other.bits[i]) {
+            if (data[offset + i] != prefix[prefixOffset + i]) {
                 return false;
             }
         }
-        return (bits[bytes] & BIT_MASK[remaining]) == (other.bits[bytes] & BIT_MASK[remaining]);
+        final int mask = BIT_MASK[lastBit & 7];
+        return (data[offset + bytes] & mask) == (prefix[prefixOffset + bytes] & mask);
+    }
+
+    /**
+     * Checks if the first node id is the same as the second or one of its descendants,
+     * like {@link DLN#isDescendantOrSelfOf(NodeId)}.
+     */
+    public static boolean isDescendantOrSelf(final byte[] data, final int offset, final int units,
+            final byte[] ancestor, final int ancestorOffset, final int ancestorUnits) {
+        return startsWith(data, offset, units, ancestor, ancestorOffset, ancestorUnits) &&
+            (units == ancestorUnits || !isBitSet(data, offset, ancestorUnits));
+    }
+
+    /**
+     * Checks if the first node id is a descendant of the second, like
+     * {@link DLN#isDescendantOf(NodeId)}.
+     */
+    public static boolean isDescendant(final byte[] data, final int offset, final int units,
+            final byte[] ancestor, final int ancestorOffset, final int ancestorUnits) {
+        return units > ancestorUnits &&
+            isDescendantOrSelf(data, offset, units, ancestor, ancestorOffset, ancestorUnits);
+    }
+
+    /**
+     * Checks if the first node id is a child of the second, i.e. if
+     * {@link DLN#computeRelation(NodeId)} returns {@link NodeId#IS_CHILD}.
+     */
+    public static boolean isChild(final byte[] data, final int offset, final int units,
+            final byte[] parent, final int parentOffset, final int parentUnits) {
+        return isDescendant(data, offset, units, parent, parentOffset, parentUnits) &&
+            getLevelCount(data, offset, units, parentUnits + 1) == 1;
+    }
+
+    /**
+     * Returns the number of levels in the node id, starting at bit startOffset.
+     */
+    public static int getLevelCount(final byte[] data, final int offset, final int units, final int startOffset) {
+        final int lastBit = units - 1;
+        int bit = startOffset;
+        int count = 0;
+        while (bit > -1 && bit <= lastBit) {
+            final int used = unitsUsed(data, offset, bit);
+            bit += used;
+            bit += bitWidth(used);
+            if (bit < lastBit) {
+                if (!isBitSet(data, offset, bit++)) {
+                    ++count;
+                }
+            } else {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the level within the document tree at which the node occurs,
+     * like {@link DLN#getTreeLevel()}.
+     */
+    public static int getTreeLevel(final byte[] data, final int offset, final int units) {
+        return getLevelCount(data, offset, units, 0);
+    }
+
+    /**
+     * Returns the start bit of the last level of the node id.
+     */
+    public static int lastLevelOffset(final byte[] data, final int offset, final int units) {
+        final int lastBit = units - 1;
+        int bit = 0;
+        int lastOffset = 0;
+        while (bit <= lastBit) {
+            // check if the next bit starts a new level or just a sub-level component
+            if (bit > 0) {
+                if (!isBitSet(data, offset, bit)) {
+                    lastOffset = bit + 1;
+                }
+                ++bit;
+            }
+            final int used = unitsUsed(data, offset, bit);
+            bit += used;
+            bit += bitWidth(used);
+        }
+        return lastOffset;
+    }
+
+    /**
+     * Returns the number of bits of the parent's node id, which is a prefix of the
+     * node id, or 0 if the parent is the document node. See {@link DLN#getParentId()}.
+     */
+    public static int getParentUnits(final byte[] data, final int offset, final int units) {
+        final int last = lastLevelOffset(data, offset, units);
+        return last == 0 ? 0 : last - 1;
     }
 
     public String debug() {
@@ -66,6 +66,7 @@ import org.exist.storage.lock.DeadlockDetection;
 import org.exist.storage.lock.FileLock;
 import org.exist.storage.lock.Lock;
 import org.exist.storage.lock.ReentrantReadWriteLock;
+import org.exist.storage.sync.BackgroundPageWriter;
 import org.exist.storage.sync.Sync;
 import org.exist.storage.sync.SyncTask;
 import org.exist.storage.txn.TransactionException;
@@ -160,6 +161,16 @@ public class BrokerPool implements Database {
     
 	public static final String DOC_ID_MODE_PROPERTY = "db-connection.doc-ids.mode";
 
+    /** Attribute of the xupdate element selecting the locking of updates, see {@link #isDocumentUpdateLocking()} */
+    public final static String XUPDATE_LOCKING_ATTRIBUTE = "locking";
+    public final static String PROPERTY_XUPDATE_LOCKING = "xupdate.locking";
+
+    /** All updates serialize on the global update lock while acquiring document locks. */
+    public final static String XUPDATE_LOCKING_GLOBAL = "global";
+
+    /** Updates only lock the documents they modify. */
+    public final static String XUPDATE_LOCKING_DOCUMENT = "document";
+
     //TODO : inline the class ? or... make it configurable ?
     // WM: inline. I don't think users need to be able to overwrite this.
     // They can register their own shutdown hooks any time.
@@ -516,6 +527,20 @@ public class BrokerPool implements Database {
     @ConfigurationFieldAsAttribute("sync-period")
 	private long majorSyncPeriod = DEFAULT_SYNCH_PERIOD;		//the period after which a major sync should occur		
 	private long lastMajorSync = System.currentTimeMillis();	//time the last major sync occurred
+
+	/**
+	 * Writes dirty pages to disk in the background, so a checkpoint has less to do.
+	 * Null if disabled.
+	 */
+    @ConfigurationFieldAsAttribute("page-writer-rate")
+	private int pageWriterRate = BackgroundPageWriter.DEFAULT_WRITE_RATE;
+	private BackgroundPageWriter pageWriter = null;
+
+	//checkpoint statistics, guarded by this
+	private long checkpoints = 0;
+	private long lastCheckpointTime = 0;
+	private long maxCheckpointTime = 0;
+	private long totalCheckpointTime = 0;
     
 	/**
 	 * The listener that is notified when the database instance shuts down.
@@ -589,6 +614,12 @@ public class BrokerPool implements Database {
     // WM: no, we need one lock per database instance. Otherwise we would lock another database.
 	private Lock globalXUpdateLock = new ReentrantReadWriteLock("xupdate");
 
+    /**
+     * If true, updates only lock the documents they modify instead of
+     * serializing on {@link #globalXUpdateLock}.
+     */
+    private boolean documentUpdateLocking = false;
+
     private Subject serviceModeUser = null;
     private boolean inServiceMode = false;
 
@@ -655,6 +686,12 @@ public class BrokerPool implements Database {
 		//TODO : sanity check : the synch period should be reasonable
 		LOG.info("database instance '" + instanceName + "' will be synchronized every " + nf.format(/*this.*/majorSyncPeriod) + " ms");
 
+		anInteger = (Integer) conf.getProperty(BackgroundPageWriter.PROPERTY_WRITE_RATE);
+		if (anInteger != null)
+			{pageWriterRate = anInteger.intValue();}
+		if (pageWriterRate > 0)
+			{LOG.info("database instance '" + instanceName + "' will write up to " + nf.format(pageWriterRate) + " dirty pages per second in the background");}
+
 		aLong = (Long) conf.getProperty(BrokerPool.PROPERTY_SHUTDOWN_DELAY);		
 		if (aLong != null) {
 			this.maxShutdownWait = aLong.longValue();			
@@ -668,6 +705,10 @@ public class BrokerPool implements Database {
         }
 		LOG.info("database instance '" + instanceName + "' is enabled for transactions : " + this.transactionsEnabled);
 
+		documentUpdateLocking = XUPDATE_LOCKING_DOCUMENT.equals(conf.getProperty(PROPERTY_XUPDATE_LOCKING));
+		LOG.info("database instance '" + instanceName + "' uses " +
+			(documentUpdateLocking ? "per document" : "global") + " locking for updates");
+
 		pageSize = conf.getInteger(PROPERTY_PAGE_SIZE);
 		if (pageSize < 0)
 			{pageSize = DEFAULT_PAGE_SIZE;}
@@ -994,6 +1035,11 @@ public class BrokerPool implements Database {
 
         					sync(broker, Sync.MAJOR_SYNC);
 
+        					if (pageWriterRate > 0 && !isReadOnly()) {
+        						pageWriter = new BackgroundPageWriter(this, pageWriterRate);
+        						pageWriter.start();
+        					}
+
         					//require to allow access by BrokerPool.getInstance();  
         					instances.put(instanceName, this);
 
@@ -1460,6 +1506,18 @@ public class BrokerPool implements Database {
     public Lock getGlobalUpdateLock() {
         return globalXUpdateLock;
     } 
+
+    /**
+     * Returns true if XUpdate and XQuery Update operations should only lock
+     * the documents they modify, without acquiring the global update lock.
+     * Document locks are always acquired in ascending order of document id,
+     * see {@link org.exist.dom.DocumentSet#lock(DBBroker, boolean, boolean)}.
+     *
+     * @return true if per document locking is enabled
+     */
+    public boolean isDocumentUpdateLocking() {
+        return documentUpdateLocking;
+    }
     
     /** Creates an inactive broker for the database instance.
      * @return The broker
@@ -1764,9 +1822,40 @@ public class BrokerPool implements Database {
 	{
 		return lastMajorSync;
 	}
+
+	/**
+	 * Returns the background page writer or null if it is disabled.
+	 */
+	public BackgroundPageWriter getPageWriter() {
+		return pageWriter;
+	}
+
+	/** Number of checkpoints (major syncs) done since startup. */
+	public synchronized long getCheckpointCount() {
+		return checkpoints;
+	}
+
+	/** Time needed for the last checkpoint, in milliseconds. */
+	public synchronized long getLastCheckpointTime() {
+		return lastCheckpointTime;
+	}
+
+	/** Longest time needed for a checkpoint, in milliseconds. */
+	public synchronized long getMaxCheckpointTime() {
+		return maxCheckpointTime;
+	}
+
+	/** Average time needed for a checkpoint, in milliseconds. */
+	public synchronized double getAverageCheckpointTime() {
+		return checkpoints == 0 ? 0.0 : (double) totalCheckpointTime / checkpoints;
+	}
 	
     /**
      * Executes a waiting cache synchronization for the database instance.
+     * A major sync is a full, blocking checkpoint: all dirty pages are written before
+     * the checkpoint record, and recovery starts at the last checkpoint record. The
+     * {@link BackgroundPageWriter}, if enabled, only reduces the number of pages left
+     * to write; it does not make checkpoints incremental.
 	 * @param broker A broker responsible for executing the job 
 	 * @param syncEvent One of {@link org.exist.storage.sync.Sync#MINOR_SYNC} or {@link org.exist.storage.sync.Sync#MINOR_SYNC}
 	 */
@@ -1777,6 +1866,7 @@ public class BrokerPool implements Database {
     // other brokers are active when it is called. That's why we don't need to synchronize here.
 	//TODO : make it protected ?
 	public void sync(DBBroker broker, int syncEvent) {
+		final long start = System.currentTimeMillis();
 		broker.sync(syncEvent);
 		final Subject user = broker.getSubject();
 		//TODO : strange that it is set *after* the sunc method has been called.
@@ -1795,8 +1885,18 @@ public class BrokerPool implements Database {
             	{pluginManager.sync(broker);}
             
             lastMajorSync = System.currentTimeMillis();
-            if (LOG.isDebugEnabled())
-            	{notificationService.debug();}
+            final long elapsed = lastMajorSync - start;
+            synchronized (this) {
+                checkpoints++;
+                lastCheckpointTime = elapsed;
+                totalCheckpointTime += elapsed;
+                if (elapsed > maxCheckpointTime)
+                    {maxCheckpointTime = elapsed;}
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Checkpoint took " + elapsed + "ms");
+            	notificationService.debug();
+            }
         } else {
             cacheManager.checkDistribution();
 //            LOG.debug("Minor sync");
@@ -1924,6 +2024,11 @@ public class BrokerPool implements Database {
                     catch(final InterruptedException e) {}
                 }
 
+                if (pageWriter != null) {
+                    pageWriter.shutdown();
+                    pageWriter = null;
+                }
+
                 //Notify all running XQueries that we are shutting down
                 processMonitor.killAll(500);
                 //TODO : close other objects using varying methods ? set them to null ?
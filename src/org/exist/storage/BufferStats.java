@@ -5,6 +5,9 @@
  */
 package org.exist.storage;
 
+import org.exist.storage.cache.Cache;
+import org.exist.storage.cache.TwoQueueCache;
+
 /**
  * @author wolf
  *
@@ -21,6 +24,9 @@ public class BufferStats {
 	private int used = 0;
 	private int pageFails = 0;
 	private int pageHits = 0;
+	private int evictions = 0;
+	private int thrashing = 0;
+	private int pollution = -1;
 	
 	/**
 	 * 
@@ -32,6 +38,14 @@ public class BufferStats {
 		this.pageFails = fails;
 	}
 
+	public BufferStats(Cache cache) {
+		this(cache.getBuffers(), cache.getUsedBuffers(), cache.getHits(), cache.getFails());
+		this.evictions = cache.getEvictions();
+		this.thrashing = cache.getThrashing();
+		if (cache instanceof TwoQueueCache)
+			{this.pollution = ((TwoQueueCache) cache).getPollution();}
+	}
+
 	/**
 	 * @return int
 	 */
@@ -60,4 +74,33 @@ public class BufferStats {
 		return used;
 	}
 
+	/**
+	 * @return the fraction of page requests served from the cache
+	 */
+	public double getHitRate() {
+		final int requests = pageHits + pageFails;
+		return requests == 0 ? 0.0 : (double) pageHits / requests;
+	}
+
+	/**
+	 * @return the number of pages removed to make room for other pages
+	 */
+	public int getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return the number of pages replaced and reloaded shortly after
+	 */
+	public int getThrashing() {
+		return thrashing;
+	}
+
+	/**
+	 * @return the number of pages evicted without being accessed again, or -1 if
+	 * the cache does not track it
+	 */
+	public int getPollution() {
+		return pollution;
+	}
 }
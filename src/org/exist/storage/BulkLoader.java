@@ -0,0 +1,395 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.storage;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.log4j.Logger;
+import org.exist.EXistException;
+import org.exist.Namespaces;
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.collections.triggers.TriggerException;
+import org.exist.memtree.SAXAdapter;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.util.LockException;
+import org.exist.util.MimeTable;
+import org.exist.util.MimeType;
+import org.exist.util.XMLReaderPool;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.util.URIUtils;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Loads a large number of XML documents from a directory or a ZIP file.
+ *
+ * Documents are parsed into in-memory trees by a pool of worker threads. A single
+ * thread, the caller of {@link #load(DBBroker, XmldbURI, File)}, stores them in the
+ * order in which they were found, so the pages of the documents are appended to
+ * dom.dbx one after the other.
+ *
+ * Documents are stored in batches of {@link #setBatchSize(int)} documents, each
+ * in a single transaction. While a batch is stored, writes to the structural and
+ * the value index are deferred (see {@link DBBroker#setDeferredIndexing(boolean)}):
+ * their entries are collected and written in key order when the batch is complete.
+ * All but the last transaction are committed without syncing the journal. Once all
+ * documents are stored, a checkpoint is scheduled. If a document cannot be stored,
+ * the transaction of its batch is aborted, the deferred index entries are dropped
+ * and the documents already stored by the batch are removed again.
+ *
+ * Subdirectories of the directory, or directories in the ZIP file, are loaded into
+ * subcollections of the target collection. Only files having an XML mime type are
+ * loaded, see {@link MimeTable}.
+ */
+public class BulkLoader {
+
+    private final static Logger LOG = Logger.getLogger(BulkLoader.class);
+
+    public final static int DEFAULT_BATCH_SIZE = 100;
+
+    private final BrokerPool pool;
+    private final int threads;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    private int documentCount = 0;
+    private long byteCount = 0;
+
+    /**
+     * @param pool the database instance
+     * @param threads the number of threads used to parse documents
+     */
+    public BulkLoader(BrokerPool pool, int threads) {
+        this.pool = pool;
+        this.threads = Math.max(1, threads);
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /** @return the number of documents stored by the last call to load */
+    public int getDocumentCount() {
+        return documentCount;
+    }
+
+    /** @return the size of the files stored by the last call to load */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * Load all XML documents in the given directory or ZIP file into the collection,
+     * which is created if it does not exist. Existing documents are replaced.
+     *
+     * @param broker the broker to use
+     * @param target the collection to load the documents into
+     * @param source a directory or a ZIP file
+     * @throws EXistException
+     * @throws PermissionDeniedException
+     * @throws IOException
+     * @throws SAXException if a document is not well-formed. The batches
+     *  committed before remain stored, the documents of the failed batch are removed.
+     * @throws LockException
+     * @throws TriggerException
+     */
+    public void load(DBBroker broker, XmldbURI target, File source) throws EXistException, PermissionDeniedException,
+            IOException, SAXException, LockException, TriggerException {
+        documentCount = 0;
+        byteCount = 0;
+        final long start = System.currentTimeMillis();
+        ZipFile zip = null;
+        final List<Resource> resources = new ArrayList<Resource>();
+        if (source.isDirectory())
+            {scan(source, target, resources);}
+        else {
+            zip = new ZipFile(source);
+            scan(zip, target, resources);
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new ParserThreadFactory());
+        try {
+            store(broker, resources, executor);
+        } finally {
+            executor.shutdownNow();
+            if (zip != null)
+                {zip.close();}
+        }
+        pool.triggerCheckpoint();
+        LOG.info("Loaded " + documentCount + " documents (" + (byteCount / 1024) + "KB) from " +
+            source.getAbsolutePath() + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private void store(DBBroker broker, List<Resource> resources, ExecutorService executor) throws EXistException,
+            PermissionDeniedException, IOException, SAXException, LockException, TriggerException {
+        final TransactionManager transact = pool.getTransactionManager();
+        final Map<XmldbURI, Collection> collections = new HashMap<XmldbURI, Collection>();
+        // documents parsed ahead of the writer, in load order
+        final LinkedList<Future<Document>> parsed = new LinkedList<Future<Document>>();
+        final int window = threads * 2;
+        int next = 0;
+        Txn transaction = null;
+        // documents stored by the current transaction
+        final List<Resource> batch = new ArrayList<Resource>();
+        broker.setDeferredIndexing(true);
+        try {
+            for (int i = 0; i < resources.size(); i++) {
+                while (next < resources.size() && parsed.size() < window) {
+                    parsed.add(executor.submit(new Parser(resources.get(next++))));
+                }
+                final Resource resource = resources.get(i);
+                final Document document = getParsed(parsed.removeFirst(), resource);
+
+                if (transaction == null)
+                    {transaction = transact.beginTransaction();}
+                Collection collection = collections.get(resource.collection);
+                if (collection == null) {
+                    collection = broker.getOrCreateCollection(transaction, resource.collection);
+                    broker.saveCollection(transaction, collection);
+                    collections.put(resource.collection, collection);
+                }
+                final IndexInfo info = collection.validateXMLResource(transaction, broker, resource.name, document);
+                batch.add(resource);
+                collection.store(transaction, broker, info, document, false);
+                documentCount++;
+                byteCount += resource.size;
+
+                final boolean last = i == resources.size() - 1;
+                if (batch.size() == batchSize || last) {
+                    broker.flushDeferredIndexes();
+                    // the commit of the last batch syncs the journal, including all previous commits
+                    transact.commit(transaction, last);
+                    transaction = null;
+                    batch.clear();
+                }
+            }
+        } finally {
+            if (transaction != null) {
+                // a batch failed: abort it, whatever the cause, and drop its documents and their index entries
+                transact.abort(transaction);
+                broker.discardDeferredIndexes();
+                remove(broker, collections, batch);
+            }
+            // writes the index entries of the batches committed before a failure
+            broker.setDeferredIndexing(false);
+        }
+    }
+
+    /**
+     * Remove the documents of an aborted batch. Failures are logged only, so they
+     * do not hide the exception which caused the abort.
+     */
+    private void remove(DBBroker broker, Map<XmldbURI, Collection> collections, List<Resource> resources) {
+        final TransactionManager transact = pool.getTransactionManager();
+        final Txn transaction = transact.beginTransaction();
+        try {
+            for (final Resource resource : resources) {
+                final Collection collection = collections.get(resource.collection);
+                if (collection.hasDocument(broker, resource.name)) {
+                    collection.removeXMLResource(transaction, broker, resource.name);
+                    documentCount--;
+                    byteCount -= resource.size;
+                }
+            }
+            transact.commit(transaction);
+        } catch (final Exception e) {
+            transact.abort(transaction);
+            LOG.error("Failed to remove the documents of an aborted batch: " + e.getMessage(), e);
+        }
+    }
+
+    private Document getParsed(Future<Document> future, Resource resource) throws EXistException, IOException, SAXException {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new EXistException("Interrupted while waiting for " + resource + " to be parsed");
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof SAXException)
+                {throw new SAXException("Failed to parse " + resource + ": " + cause.getMessage(), (SAXException) cause);}
+            if (cause instanceof IOException)
+                {throw (IOException) cause;}
+            throw new EXistException("Failed to parse " + resource + ": " + cause.getMessage(), cause);
+        }
+    }
+
+    private void scan(File directory, XmldbURI collection, List<Resource> resources) throws EXistException {
+        final File[] files = directory.listFiles();
+        if (files == null)
+            {return;}
+        Arrays.sort(files);
+        for (final File file : files) {
+            if (file.isDirectory())
+                {scan(file, collection.append(encode(file.getName())), resources);}
+            else if (isXML(file.getName()))
+                {resources.add(new FileResource(collection, encode(file.getName()), file));}
+        }
+    }
+
+    private void scan(ZipFile zip, XmldbURI collection, List<Resource> resources) throws EXistException {
+        for (final Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+            final ZipEntry entry = e.nextElement();
+            if (entry.isDirectory() || !isXML(entry.getName()))
+                {continue;}
+            final String[] path = entry.getName().split("/");
+            XmldbURI uri = collection;
+            for (int i = 0; i < path.length - 1; i++) {
+                if (path[i].length() > 0)
+                    {uri = uri.append(encode(path[i]));}
+            }
+            resources.add(new ZipResource(uri, encode(path[path.length - 1]), zip, entry));
+        }
+    }
+
+    private static boolean isXML(String name) {
+        final MimeType mime = MimeTable.getInstance().getContentTypeFor(name);
+        return mime != null && mime.isXMLType();
+    }
+
+    private static XmldbURI encode(String name) throws EXistException {
+        try {
+            return URIUtils.encodeXmldbUriFor(name);
+        } catch (final URISyntaxException e) {
+            throw new EXistException("Invalid name: " + name, e);
+        }
+    }
+
+    /**
+     * Parses a resource into an in-memory document.
+     */
+    private class Parser implements Callable<Document> {
+
+        private final Resource resource;
+
+        Parser(Resource resource) {
+            this.resource = resource;
+        }
+
+        public Document call() throws Exception {
+            final XMLReaderPool parserPool = pool.getParserPool();
+            final XMLReader reader = parserPool.borrowXMLReader();
+            final InputStream is = resource.open();
+            try {
+                final SAXAdapter adapter = new SAXAdapter();
+                reader.setContentHandler(adapter);
+                reader.setProperty(Namespaces.SAX_LEXICAL_HANDLER, adapter);
+                final InputSource src = new InputSource(is);
+                src.setSystemId(resource.toString());
+                reader.parse(src);
+                return adapter.getDocument();
+            } finally {
+                is.close();
+                parserPool.returnXMLReader(reader);
+            }
+        }
+    }
+
+    private abstract static class Resource {
+
+        final XmldbURI collection;
+        final XmldbURI name;
+        final long size;
+
+        Resource(XmldbURI collection, XmldbURI name, long size) {
+            this.collection = collection;
+            this.name = name;
+            this.size = size;
+        }
+
+        abstract InputStream open() throws IOException;
+    }
+
+    private static class FileResource extends Resource {
+
+        private final File file;
+
+        FileResource(XmldbURI collection, XmldbURI name, File file) {
+            super(collection, name, file.length());
+            this.file = file;
+        }
+
+        InputStream open() throws IOException {
+            return new BufferedInputStream(new FileInputStream(file));
+        }
+
+        public String toString() {
+            return file.getAbsolutePath();
+        }
+    }
+
+    private static class ZipResource extends Resource {
+
+        private final ZipFile zip;
+        private final ZipEntry entry;
+
+        ZipResource(XmldbURI collection, XmldbURI name, ZipFile zip, ZipEntry entry) {
+            super(collection, name, Math.max(0, entry.getSize()));
+            this.zip = zip;
+            this.entry = entry;
+        }
+
+        InputStream open() throws IOException {
+            // ZipFile allows concurrent reads of different entries
+            return new BufferedInputStream(zip.getInputStream(entry));
+        }
+
+        public String toString() {
+            return zip.getName() + "!/" + entry.getName();
+        }
+    }
+
+    private static class ParserThreadFactory implements ThreadFactory {
+
+        private int id = 0;
+
+        public synchronized Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "BulkLoader-" + id++);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -197,6 +197,32 @@ public abstract class DBBroker extends Observable {
         // do nothing
     }
 
+    /**
+     * Defer writing to the structural and value indexes when documents are
+     * {@link #flush() flushed}: the index entries of all documents are collected
+     * and written in key order by {@link #flushDeferredIndexes()}. Used for bulk loads.
+     *
+     * @param defer true to defer index writes, false to write the collected entries
+     * and return to normal operation
+     */
+    public void setDeferredIndexing(boolean defer) {
+        // do nothing
+    }
+
+    /** Write all index entries collected while indexing was deferred. */
+    public void flushDeferredIndexes() {
+        // do nothing
+    }
+
+    /**
+     * Drop all index entries collected while indexing was deferred, e.g. because the
+     * transaction storing the documents was aborted. Call before switching deferred
+     * indexing off, which would write them.
+     */
+    public void discardDeferredIndexes() {
+        // do nothing
+    }
+
     /** Observer Design Pattern: List of ContentLoadingObserver objects */
     protected List<ContentLoadingObserver> contentLoadingObservers = new ArrayList<ContentLoadingObserver>();	
 
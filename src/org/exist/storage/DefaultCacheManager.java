@@ -25,7 +25,10 @@ import org.apache.log4j.Logger;
 
 import org.exist.management.Agent;
 import org.exist.management.AgentFactory;
+import org.exist.storage.cache.BTreeCache;
 import org.exist.storage.cache.Cache;
+import org.exist.storage.cache.LRUCache;
+import org.exist.storage.cache.TwoQueueCache;
 import org.exist.util.DatabaseConfigurationException;
 
 import java.text.NumberFormat;
@@ -74,6 +77,11 @@ public class DefaultCacheManager implements CacheManager
     public static final String  SHRINK_THRESHOLD_ATTRIBUTE     		 	= "cacheShrinkThreshold";
     public static final String  SHRINK_THRESHOLD_PROPERTY      			= "db-connection.cache-shrink-threshold";
 
+    public static final String  CACHE_POLICY_ATTRIBUTE         			= "cachePolicy";
+    public static final String  PROPERTY_CACHE_POLICY          			= "db-connection.cache-policy";
+    public static final String  CACHE_POLICY_LRU               			= "lru";
+    public static final String  CACHE_POLICY_2Q                			= "2q";
+
     /** Caches maintained by this class. */
     private List<Cache>         caches                          = new ArrayList<Cache>();
 
@@ -105,6 +113,9 @@ public class DefaultCacheManager implements CacheManager
 
     private String              instanceName;
 
+    /** Use {@link TwoQueueCache} for the page caches of the db files? */
+    private boolean             scanResistant                   = false;
+
     public DefaultCacheManager( BrokerPool pool )
     {
         this.instanceName = pool.getId();
@@ -122,6 +133,9 @@ public class DefaultCacheManager implements CacheManager
 
         shrinkThreshold = pool.getConfiguration().getInteger( SHRINK_THRESHOLD_PROPERTY );
 
+        final String policy = (String)pool.getConfiguration().getProperty( PROPERTY_CACHE_POLICY );
+        scanResistant = CACHE_POLICY_2Q.equalsIgnoreCase( policy );
+
         totalMem        = cacheSize * 1024L * 1024L;
         
         final Boolean checkMaxCache = (Boolean)pool.getConfiguration().getProperty( PROPERTY_CACHE_CHECK_MAX_SIZE );
@@ -150,12 +164,41 @@ public class DefaultCacheManager implements CacheManager
         
         LOG.info( "Cache settings: " + nf.format( totalMem / 1024L ) + "k; totalPages: " + nf.format( totalPageCount ) + 
         	      "; maxCacheSize: " + nf.format( maxCacheSize ) + 
-        	      "; cacheShrinkThreshold: " + nf.format( shrinkThreshold ) 
+        	      "; cacheShrinkThreshold: " + nf.format( shrinkThreshold ) +
+        	      "; cachePolicy: " + ( scanResistant ? CACHE_POLICY_2Q : CACHE_POLICY_LRU )
         );
         
         registerMBean();
     }
 
+    /**
+     * Create a page cache for a db file, using the cache policy configured
+     * in conf.xml. The cache still needs to be registered via {@link #registerCache(Cache)}.
+     *
+     * @param  size             initial size of the cache in pages
+     * @param  growthFactor     factor by which the cache grows if it needs more memory
+     * @param  growthThreshold  amount of thrashing allowed before the cache requests more memory
+     * @param  type             one of the cache types defined in {@link CacheManager}
+     *
+     * @return  the new cache
+     */
+    public Cache createCache( int size, double growthFactor, double growthThreshold, String type )
+    {
+        if( scanResistant ) {
+            return( new TwoQueueCache( size, growthFactor, growthThreshold, type ) );
+        }
+
+        if( CacheManager.BTREE_CACHE.equals( type ) ) {
+            return( new BTreeCache( size, growthFactor, growthThreshold, type ) );
+        }
+        return( new LRUCache( size, growthFactor, growthThreshold, type ) );
+    }
+
+    public boolean isScanResistant()
+    {
+        return( scanResistant );
+    }
+
     @Override
     public void registerCache( Cache cache )
     {
@@ -91,6 +91,7 @@ import org.exist.storage.lock.Lock;
 import org.exist.storage.serializers.NativeSerializer;
 import org.exist.storage.serializers.Serializer;
 import org.exist.storage.sync.Sync;
+import org.exist.storage.structural.NativeStructuralIndexWorker;
 import org.exist.storage.txn.TransactionException;
 import org.exist.storage.txn.TransactionManager;
 import org.exist.storage.txn.Txn;
@@ -1795,27 +1796,69 @@ public class NativeBroker extends DBBroker {
         }
     }
 
+    /**
+     * Reindex the collection and its descendant collections.
+     *
+     * The indexes of all collections are dropped first. The documents are then
+     * reindexed with deferred indexing, see {@link #setDeferredIndexing(boolean)}:
+     * the keys of the structural and the value index are sorted and written once,
+     * which builds an empty index bottom-up. If a dba reindexes the root collection,
+     * the index files of the structural and the value index are truncated before,
+     * so they are empty and always built bottom-up.
+     */
     public void reindexCollection(Txn transaction, Collection collection, int mode) throws PermissionDeniedException {
         final CollectionCache collectionsCache = pool.getCollectionsCache();
         synchronized(collectionsCache) {
-            if (!collection.getPermissions().validate(getSubject(), Permission.WRITE))
-                {throw new PermissionDeniedException("Account "+getSubject().getName()+" have insufficient privileges on collection " + collection.getURI());}
-            LOG.debug("Reindexing collection " + collection.getURI());
-            if (mode == NodeProcessor.MODE_STORE)
-                {dropCollectionIndex(transaction, collection);}
-            for(final Iterator<DocumentImpl> i = collection.iterator(this); i.hasNext(); ) {
-                final DocumentImpl next = i.next();
-                reindexXMLResource(transaction, next, mode);
+            if (mode == NodeProcessor.MODE_STORE) {
+                if (collection.getURI().equals(XmldbURI.ROOT_COLLECTION_URI) && getSubject().hasDbaRole())
+                    {truncateIndexes();}
+                dropCollectionIndexes(transaction, collection);
+            }
+            final boolean deferred = valueIndex.isDeferred();
+            if (!deferred)
+                {setDeferredIndexing(true);}
+            try {
+                reindexCollectionTree(transaction, collection, mode);
+            } finally {
+                if (!deferred)
+                    {setDeferredIndexing(false);}
             }
-            for(final Iterator<XmldbURI> i = collection.collectionIterator(this); i.hasNext(); ) {
-                final XmldbURI next = i.next();
-                //TODO : resolve URIs !!! (collection.getURI().resolve(next))
-                final Collection child = getCollection(collection.getURI().append(next));
-                if(child == null)
-                    {LOG.warn("Collection '" + next + "' not found");}
-                else {
-                    reindexCollection(transaction, child, mode);
-                }
+        }
+    }
+
+    private void truncateIndexes() {
+        LOG.info("Truncating structural and value index files ...");
+        valueIndex.truncate();
+        final StructuralIndex structural = getStructuralIndex();
+        if (structural instanceof NativeStructuralIndexWorker)
+            {((NativeStructuralIndexWorker) structural).truncate();}
+    }
+
+    private void dropCollectionIndexes(Txn transaction, Collection collection) throws PermissionDeniedException {
+        dropCollectionIndex(transaction, collection);
+        for(final Iterator<XmldbURI> i = collection.collectionIterator(this); i.hasNext(); ) {
+            final Collection child = getCollection(collection.getURI().append(i.next()));
+            if(child != null)
+                {dropCollectionIndexes(transaction, child);}
+        }
+    }
+
+    private void reindexCollectionTree(Txn transaction, Collection collection, int mode) throws PermissionDeniedException {
+        if (!collection.getPermissions().validate(getSubject(), Permission.WRITE))
+            {throw new PermissionDeniedException("Account "+getSubject().getName()+" have insufficient privileges on collection " + collection.getURI());}
+        LOG.debug("Reindexing collection " + collection.getURI());
+        for(final Iterator<DocumentImpl> i = collection.iterator(this); i.hasNext(); ) {
+            final DocumentImpl next = i.next();
+            reindexXMLResource(transaction, next, mode);
+        }
+        for(final Iterator<XmldbURI> i = collection.collectionIterator(this); i.hasNext(); ) {
+            final XmldbURI next = i.next();
+            //TODO : resolve URIs !!! (collection.getURI().resolve(next))
+            final Collection child = getCollection(collection.getURI().append(next));
+            if(child == null)
+                {LOG.warn("Collection '" + next + "' not found");}
+            else {
+                reindexCollectionTree(transaction, child, mode);
             }
         }
     }
@@ -3637,6 +3680,30 @@ public class NativeBroker extends DBBroker {
         nodesCount = 0;
     }
 
+    @Override
+    public void setDeferredIndexing(boolean defer) {
+        valueIndex.setDeferred(defer);
+        final StructuralIndex structural = getStructuralIndex();
+        if (structural instanceof NativeStructuralIndexWorker)
+            {((NativeStructuralIndexWorker) structural).setDeferred(defer);}
+    }
+
+    @Override
+    public void flushDeferredIndexes() {
+        valueIndex.flushDeferred();
+        final StructuralIndex structural = getStructuralIndex();
+        if (structural instanceof NativeStructuralIndexWorker)
+            {((NativeStructuralIndexWorker) structural).flushDeferred();}
+    }
+
+    @Override
+    public void discardDeferredIndexes() {
+        valueIndex.discardDeferred();
+        final StructuralIndex structural = getStructuralIndex();
+        if (structural instanceof NativeStructuralIndexWorker)
+            {((NativeStructuralIndexWorker) structural).discardDeferred();}
+    }
+
     @Override
     public void sync(int syncEvent) {
         if (isReadOnly())
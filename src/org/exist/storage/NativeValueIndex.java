@@ -29,6 +29,7 @@ import org.exist.xquery.XQueryWatchDog;
 import org.w3c.dom.Node;
 
 import org.exist.EXistException;
+import org.exist.Indexer;
 import org.exist.collections.Collection;
 import org.exist.dom.*;
 import org.exist.indexing.AbstractStreamListener;
@@ -40,6 +41,7 @@ import org.exist.storage.btree.BTreeCallback;
 import org.exist.storage.btree.BTreeException;
 import org.exist.storage.btree.DBException;
 import org.exist.storage.btree.IndexQuery;
+import org.exist.storage.btree.KeySorter;
 import org.exist.storage.btree.Value;
 import org.exist.storage.index.BFile;
 import org.exist.storage.io.VariableByteArrayInput;
@@ -143,6 +145,16 @@ public class NativeValueIndex implements ContentLoadingObserver {
     //TODO : reconsider this. Case sensitivity have nothing to do with atomic values -pb
     protected boolean caseSensitive = true;
 
+    /**
+     * Entries of documents stored while indexing is deferred, see {@link #setDeferred(boolean)},
+     * or null. Maps the btree key to the chunks of all documents having this key,
+     * in the order in which the documents were flushed.
+     */
+    private KeySorter deferred = null;
+
+    /** Fill factor of the index pages if the index is built from the deferred entries */
+    private double bulkFillFactor = Indexer.DEFAULT_BULK_FILL_FACTOR;
+
     public NativeValueIndex(DBBroker broker, byte id, String dataDir,
         Configuration config ) throws DBException {
         this.broker = broker;
@@ -170,6 +182,10 @@ public class NativeValueIndex implements ContentLoadingObserver {
         if (caseOpt != null) {
             caseSensitive = caseOpt.booleanValue();
         }
+        final Double fillOpt = (Double)config.getProperty(Indexer.PROPERTY_BULK_FILL_FACTOR);
+        if (fillOpt != null) {
+            bulkFillFactor = fillOpt.doubleValue();
+        }
         broker.addContentLoadingObserver( getInstance() );
     }
 
@@ -436,16 +452,23 @@ public class NativeValueIndex implements ContentLoadingObserver {
                 //Write (variable) length of node IDs
                 os.writeFixedInt( nodeIDsLength, os.position() - nodeIDsLength - LENGTH_NODE_IDS );
 
+                if( deferred != null ) {
+                    try {
+                        deferred.add( getKey( section, collectionId, key ), os.toByteArray() );
+                    }
+                    catch( final EXistException e ) {
+                        LOG.error( e.getMessage(), e );
+                    }
+                    catch( final IOException e ) {
+                        LOG.error( e.getMessage(), e );
+                    }
+                    os.clear();
+                    continue;
+                }
+
                 try {
                     lock.acquire( Lock.WRITE_LOCK );
-                    Value v;
-
-                    if( section == IDX_GENERIC ) {
-                        v = new SimpleValue( collectionId, ( Indexable )key );
-                    } else {
-                        final QNameKey qnk = ( QNameKey )key;
-                        v = new QNameValue( collectionId, qnk.qname, qnk.value, broker.getBrokerPool().getSymbols() );
-                    }
+                    final Value v = getKey( section, collectionId, key );
 
                     if( dbValues.append( v, os.data() ) == BFile.UNKNOWN_ADDRESS ) {
                         LOG.warn( "Could not append index data for key '" + key + "'" );
@@ -479,11 +502,124 @@ public class NativeValueIndex implements ContentLoadingObserver {
     }
 
 
+    private Value getKey( byte section, int collectionId, Object key ) throws EXistException
+    {
+        if( section == IDX_GENERIC ) {
+            return( new SimpleValue( collectionId, ( Indexable )key ) );
+        }
+        final QNameKey qnk = ( QNameKey )key;
+        return( new QNameValue( collectionId, qnk.qname, qnk.value, broker.getBrokerPool().getSymbols() ) );
+    }
+
+
+    /**
+     * Defer writing to the index when {@link #flush() flushing} documents. Instead,
+     * the entries of all documents are collected and written by {@link #flushDeferred()},
+     * once per key and in key order. If there are too many entries to keep them in
+     * memory, they are sorted externally, see {@link KeySorter}. Used by bulk loads,
+     * reindexing and restore.
+     *
+     * Switching deferred indexing off writes the collected entries.
+     *
+     * @param  defer  true to defer writing to the index
+     */
+    public void setDeferred( boolean defer )
+    {
+        if( defer ) {
+
+            if( deferred == null ) {
+                deferred = new KeySorter( dbValues.getFile().getParentFile() );
+            }
+        } else {
+            flushDeferred();
+            deferred = null;
+        }
+    }
+
+
+    public boolean isDeferred()
+    {
+        return( deferred != null );
+    }
+
+
+    /**
+     * Write the entries collected while indexing was deferred, in key order.
+     * An empty index is built bottom-up, see {@link BFile#appendSorted(Txn, KeySorter, double)}.
+     */
+    public void flushDeferred()
+    {
+        if( ( deferred == null ) || deferred.isEmpty() ) {
+            return;
+        }
+        final Lock lock = dbValues.getLock();
+
+        try {
+            lock.acquire( Lock.WRITE_LOCK );
+            dbValues.appendSorted( null, deferred, bulkFillFactor );
+        }
+        catch( final LockException e ) {
+            LOG.warn( "Failed to acquire lock for '" + dbValues.getFile().getName() + "'", e );
+            return;
+        }
+        catch( final IOException e ) {
+            LOG.error( e.getMessage(), e );
+        }
+        catch( final BTreeException e ) {
+            LOG.error( e.getMessage(), e );
+        }
+        finally {
+            lock.release( Lock.WRITE_LOCK );
+        }
+        deferred.clear();
+    }
+
+
+    /**
+     * Drop the entries collected while indexing was deferred without writing them,
+     * e.g. if the transaction which stored the documents was aborted.
+     */
+    public void discardDeferred()
+    {
+        if( deferred != null ) {
+            deferred.clear();
+        }
+    }
+
+
+    /**
+     * Remove all entries of the index by truncating the index file, see
+     * {@link BFile#truncate()}. Used before the whole database is reindexed,
+     * so the index is built bottom-up afterwards.
+     */
+    public void truncate()
+    {
+        final Lock lock = dbValues.getLock();
+
+        try {
+            lock.acquire( Lock.WRITE_LOCK );
+            dbValues.truncate();
+        }
+        catch( final LockException e ) {
+            LOG.warn( "Failed to acquire lock for '" + dbValues.getFile().getName() + "'", e );
+        }
+        catch( final DBException e ) {
+            LOG.error( e.getMessage(), e );
+        }
+        finally {
+            lock.release( Lock.WRITE_LOCK );
+        }
+    }
+
+
     /* (non-Javadoc)
      * @see org.exist.storage.IndexGenerator#remove()
      */
     public void remove()
     {
+        //Entries of the document may still be deferred
+        flushDeferred();
+
         //TODO : return if doc == null? -pb
         final int keyCount = pending[IDX_GENERIC].size() + pending[IDX_QNAME].size();
 
@@ -637,6 +773,7 @@ public class NativeValueIndex implements ContentLoadingObserver {
      */
     public void dropIndex( Collection collection )
     {
+        flushDeferred();
         final Lock lock = dbValues.getLock();
 
         try {
@@ -672,6 +809,7 @@ public class NativeValueIndex implements ContentLoadingObserver {
     //TODO : note that this is *not* this.doc -pb
     public void dropIndex( DocumentImpl document ) throws ReadOnlyException
     {
+        flushDeferred();
         final int  collectionId = document.getCollection().getId();
         final Lock lock         = dbValues.getLock();
 
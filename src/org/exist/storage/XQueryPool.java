@@ -24,6 +24,11 @@ package org.exist.storage;
 
 import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.log4j.Logger;
 import org.exist.config.annotation.ConfigurationClass;
@@ -32,7 +37,6 @@ import org.exist.security.Permission;
 import org.exist.security.PermissionDeniedException;
 import org.exist.source.Source;
 import org.exist.util.Configuration;
-import org.exist.util.hashtable.Object2ObjectHashMap;
 import org.exist.xquery.*;
 
 /**
@@ -42,11 +46,21 @@ import org.exist.xquery.*;
  * {@link #MAX_STACK_SIZE} compiled expressions are kept in the pool. An XQuery
  * expression will be removed from the pool if it has not been used for a
  * pre-defined timeout. These settings can be configured in conf.xml.
- * 
+ *
+ * The pool does not synchronize on a global monitor: sources are mapped to
+ * their compiled expressions in a {@link ConcurrentHashMap}, and each source
+ * keeps its expressions on a lock-free stack. If the pool is full, the least
+ * recently used source is evicted to make room for a new one.
+ *
+ * Checking whether a source is still valid may require a database lookup.
+ * If a validation interval is configured, a source which has been validated
+ * less than that many milliseconds ago is not checked again. The default of 0
+ * checks the source on every borrow.
+ *
  * @author wolf
  */
 @ConfigurationClass("query-pool")
-public class XQueryPool extends Object2ObjectHashMap {
+public class XQueryPool {
 
 	public final static int MAX_POOL_SIZE = 128;
 
@@ -56,9 +70,11 @@ public class XQueryPool extends Object2ObjectHashMap {
 
 	public final static long TIMEOUT_CHECK_INTERVAL = 30000L;
 
+	public final static long VALIDATION_INTERVAL = 0L;
+
 	private final static Logger LOG = Logger.getLogger(XQueryPool.class);
 
-	private long lastTimeOutCheck;
+	private volatile long lastTimeOutCheck;
 
 	@ConfigurationFieldAsAttribute("size")
 	private int maxPoolSize;
@@ -72,28 +88,45 @@ public class XQueryPool extends Object2ObjectHashMap {
 	@ConfigurationFieldAsAttribute("timeout-check-interval")
 	private long timeoutCheckInterval;
 
+	@ConfigurationFieldAsAttribute("validation-interval")
+	private long validationInterval;
+
 	public static final String CONFIGURATION_ELEMENT_NAME = "query-pool";
 	public static final String MAX_STACK_SIZE_ATTRIBUTE = "max-stack-size";
 	public static final String POOL_SIZE_ATTTRIBUTE = "size";
 	public static final String TIMEOUT_ATTRIBUTE = "timeout";
 	public static final String TIMEOUT_CHECK_INTERVAL_ATTRIBUTE = "timeout-check-interval";
+	public static final String VALIDATION_INTERVAL_ATTRIBUTE = "validation-interval";
 
 	public static final String PROPERTY_MAX_STACK_SIZE = "db-connection.query-pool.max-stack-size";
 	public static final String PROPERTY_POOL_SIZE = "db-connection.query-pool.size";
 	public static final String PROPERTY_TIMEOUT = "db-connection.query-pool.timeout";
 	public static final String PROPERTY_TIMEOUT_CHECK_INTERVAL = "db-connection.query-pool.timeout-check-interval";
+	public static final String PROPERTY_VALIDATION_INTERVAL = "db-connection.query-pool.validation-interval";
+
+	private final ConcurrentHashMap<Source, Entry> pool = new ConcurrentHashMap<Source, Entry>(27);
+
+	/** Guards eviction and timeout runs, which are skipped if already running */
+	private final AtomicBoolean cleaning = new AtomicBoolean(false);
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong compilations = new AtomicLong();
+	private final AtomicLong compileTime = new AtomicLong();
 
 	/**
 	 * @param conf
 	 */
 	public XQueryPool(Configuration conf) {
-		super(27);
 		lastTimeOutCheck = System.currentTimeMillis();
 
 		final Integer maxStSz = (Integer) conf.getProperty(PROPERTY_MAX_STACK_SIZE);
 		final Integer maxPoolSz = (Integer) conf.getProperty(PROPERTY_POOL_SIZE);
 		final Long t = (Long) conf.getProperty(PROPERTY_TIMEOUT);
 		final Long tci = (Long) conf.getProperty(PROPERTY_TIMEOUT_CHECK_INTERVAL);
+		final Long vi = (Long) conf.getProperty(PROPERTY_VALIDATION_INTERVAL);
 		final NumberFormat nf = NumberFormat.getNumberInstance();
 
 		if (maxPoolSz != null)
@@ -117,11 +150,17 @@ public class XQueryPool extends Object2ObjectHashMap {
 		else
 			{timeoutCheckInterval = TIMEOUT_CHECK_INTERVAL;}
 
+		if (vi != null)
+			{validationInterval = vi.longValue();}
+		else
+			{validationInterval = VALIDATION_INTERVAL;}
+
 		LOG.info("QueryPool: " +
 			"size = " + nf.format(maxPoolSize) + "; " +
 			"maxStackSize = " + nf.format(maxStackSize) + "; " +
 			"timeout = " + nf.format(timeout) + "; " +
-			"timeoutCheckInterval = " + nf.format(timeoutCheckInterval));
+			"timeoutCheckInterval = " + nf.format(timeoutCheckInterval) + "; " +
+			"validationInterval = " + nf.format(validationInterval));
 	}
 
 	public void returnCompiledXQuery(Source source, CompiledXQuery xquery) {
@@ -142,61 +181,71 @@ public class XQueryPool extends Object2ObjectHashMap {
 		}
 	}
 
-	private synchronized void returnObject(Source source, Object o) {
-		if (size() >= maxPoolSize)
-			{timeoutCheck();}
-		if (size() < maxPoolSize) {
-			Stack stack = (Stack) get(source);
-			if (stack == null) {
-				stack = new Stack();
-				source.setCacheTimestamp(System.currentTimeMillis());
-				put(source, stack);
+	private void returnObject(Source source, Object o) {
+		final long now = System.currentTimeMillis();
+		Entry entry = pool.get(source);
+		if (entry == null) {
+			if (pool.size() >= maxPoolSize)
+				{cleanup(now);}
+			final Entry newEntry = new Entry(source, now);
+			entry = pool.putIfAbsent(source, newEntry);
+			if (entry == null) {
+				entry = newEntry;
+				source.setCacheTimestamp(now);
 			}
-			if (stack.size() < maxStackSize) {
-				for (int i = 0; i < stack.size(); i++) {
-					if (stack.get(i) == o)
-						// query already in pool. may happen for modules.
-						// don't add it a second time.
-						{return;}
-				}
-				stack.push(o);
-			}
-		}
+		} else if (timeoutCheckInterval >= 0L && now - lastTimeOutCheck >= timeoutCheckInterval)
+			{cleanup(now);}
+		entry.lastAccess = now;
+		entry.push(o, maxStackSize);
 	}
 
-	private synchronized Object borrowObject(DBBroker broker, Source source) {
-		final int idx = getIndex(source);
-		if (idx < 0) {
+	private Object borrowObject(DBBroker broker, Source source) {
+		final Entry entry = pool.get(source);
+		if (entry == null) {
+			misses.incrementAndGet();
 			return null;
 		}
-		final Source key = (Source) keys[idx];
-		int validity = key.isValid(broker);
-		if (validity == Source.UNKNOWN)
-			{validity = key.isValid(source);}
-		if (validity == Source.INVALID || validity == Source.UNKNOWN) {
-			keys[idx] = REMOVED;
-			values[idx] = null;
-			LOG.debug(source.getKey() + " is invalid");
-			return null;
+		final long now = System.currentTimeMillis();
+		entry.lastAccess = now;
+		final boolean validate = validationInterval <= 0 || now - entry.lastValidated >= validationInterval;
+		if (validate) {
+			final Source key = entry.source;
+			int validity = key.isValid(broker);
+			if (validity == Source.UNKNOWN)
+				{validity = key.isValid(source);}
+			if (validity == Source.INVALID || validity == Source.UNKNOWN) {
+				invalidate(entry);
+				LOG.debug(source.getKey() + " is invalid");
+				return null;
+			}
 		}
-		final Stack stack = (Stack) values[idx];
-		if (stack == null || stack.isEmpty())
-			{return null;}
-		// now check if the compiled expression is valid
-		// it might become invalid if an imported module has changed.
-		final CompiledXQuery query = (CompiledXQuery) stack.pop();
-		final XQueryContext context = query.getContext();
-		//context.setBroker(broker);
-		if (!query.isValid()) {
-			// the compiled query is no longer valid: one of the imported
-			// modules may have changed
-			remove(key);
+		final Object o = entry.pop();
+		if (o == null) {
+			misses.incrementAndGet();
 			return null;
-		} else
-			{return query;}
+		}
+		if (validate) {
+			// now check if the compiled expression is valid
+			// it might become invalid if an imported module has changed.
+			if (o instanceof CompiledXQuery && !((CompiledXQuery) o).isValid()) {
+				// the compiled query is no longer valid: one of the imported
+				// modules may have changed
+				invalidate(entry);
+				return null;
+			}
+			entry.lastValidated = now;
+		}
+		hits.incrementAndGet();
+		return o;
 	}
 
-	public synchronized CompiledXQuery borrowCompiledXQuery(DBBroker broker, Source source) throws PermissionDeniedException {
+	private void invalidate(Entry entry) {
+		pool.remove(entry.source, entry);
+		invalidations.incrementAndGet();
+		misses.incrementAndGet();
+	}
+
+	public CompiledXQuery borrowCompiledXQuery(DBBroker broker, Source source) throws PermissionDeniedException {
 		final CompiledXQuery query = (CompiledXQuery) borrowObject(broker, source);
 		if (query == null)
 			{return null;}
@@ -232,7 +281,7 @@ public class XQueryPool extends Object2ObjectHashMap {
 		// }
 	}
 
-	private synchronized boolean borrowModules(DBBroker broker, XQueryContext context) {
+	private boolean borrowModules(DBBroker broker, XQueryContext context) {
 		final Map<String, Module> borrowedModules = new TreeMap<String, Module>();
 		for (final Iterator<Module> it = context.getAllModules(); it.hasNext();) {
 			final Module module = it.next();
@@ -276,7 +325,7 @@ public class XQueryPool extends Object2ObjectHashMap {
 		return true;
 	}
 
-	public synchronized ExternalModule borrowModule(DBBroker broker, Source source, XQueryContext rootContext) {
+	public ExternalModule borrowModule(DBBroker broker, Source source, XQueryContext rootContext) {
 		final ExternalModule module = (ExternalModule) borrowObject(broker, source);
 		if (module == null)
 			{return null;}
@@ -284,7 +333,9 @@ public class XQueryPool extends Object2ObjectHashMap {
 		//context.setBroker(broker);
 		if (!module.moduleIsValid(broker)) {
 			LOG.debug("Module with URI " + module.getNamespaceURI() + " has changed and needs to be reloaded");
-			remove(source);
+			final Entry entry = pool.get(source);
+			if (entry != null)
+				{invalidate(entry);}
 			return null;
 		} else {
 			// check all modules imported by the borrowed module and update them
@@ -301,27 +352,178 @@ public class XQueryPool extends Object2ObjectHashMap {
 		}
 	}
 
-    public synchronized void clear() {
-        for (final Iterator i = iterator(); i.hasNext();) {
-            final Source next = (Source) i.next();
-            remove(next);
-        }
+    public void clear() {
+        pool.clear();
     }
 
-	private void timeoutCheck() {
-		final long currentTime = System.currentTimeMillis();
+	/**
+	 * Record the compilation of a query which could not be taken from the
+	 * pool.
+	 *
+	 * @param time the time spent compiling in milliseconds
+	 */
+	public void compiled(long time) {
+		compilations.incrementAndGet();
+		compileTime.addAndGet(time);
+	}
 
-		if (timeoutCheckInterval < 0L)
+	/**
+	 * Remove entries which have not been used for the configured timeout
+	 * and, if the pool is still full, the least recently used entries. Only
+	 * one thread cleans up at a time; others continue without waiting.
+	 */
+	private void cleanup(long currentTime) {
+		if (!cleaning.compareAndSet(false, true))
 			{return;}
+		try {
+			if (timeoutCheckInterval >= 0L && currentTime - lastTimeOutCheck >= timeoutCheckInterval) {
+				lastTimeOutCheck = currentTime;
+				for (final Entry entry : pool.values()) {
+					if (currentTime - entry.lastAccess > timeout && pool.remove(entry.source, entry))
+						{evictions.incrementAndGet();}
+				}
+			}
+			int excess = pool.size() - maxPoolSize + 1;
+			if (excess <= 0)
+				{return;}
+			final List<Candidate> candidates = new ArrayList<Candidate>(pool.size());
+			for (final Entry entry : pool.values()) {
+				candidates.add(new Candidate(entry));
+			}
+			Collections.sort(candidates);
+			for (int i = 0; i < candidates.size() && excess > 0; i++) {
+				final Entry entry = candidates.get(i).entry;
+				if (pool.remove(entry.source, entry)) {
+					evictions.incrementAndGet();
+					excess--;
+				}
+			}
+		} finally {
+			cleaning.set(false);
+		}
+	}
 
-		if (currentTime - lastTimeOutCheck < timeoutCheckInterval)
-			{return;}
+	/**
+	 * @return the number of sources in the pool
+	 */
+	public int getSize() {
+		return pool.size();
+	}
+
+	public int getMaxSize() {
+		return maxPoolSize;
+	}
+
+	/**
+	 * @return the number of compiled expressions currently in the pool
+	 */
+	public int getPooledInstances() {
+		int count = 0;
+		for (final Entry entry : pool.values()) {
+			count += entry.size.get();
+		}
+		return count;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getCompilations() {
+		return compilations.get();
+	}
+
+	public long getCompileTime() {
+		return compileTime.get();
+	}
 
-		for (final Iterator i = iterator(); i.hasNext();) {
-			final Source next = (Source) i.next();
-			if (currentTime - next.getCacheTimestamp() > timeout) {
-				remove(next);
+	/**
+	 * The compiled expressions kept for one source, on a lock-free stack.
+	 */
+	private final static class Entry {
+
+		final Source source;
+		final AtomicReference<Node> top = new AtomicReference<Node>();
+		final AtomicInteger size = new AtomicInteger();
+		volatile long lastAccess;
+		volatile long lastValidated;
+
+		Entry(Source source, long now) {
+			this.source = source;
+			this.lastAccess = now;
+			this.lastValidated = now;
+		}
+
+		void push(Object o, int maxSize) {
+			for (Node n = top.get(); n != null; n = n.next) {
+				if (n.item == o)
+					// query already in pool. may happen for modules.
+					// don't add it a second time.
+					{return;}
+			}
+			if (size.incrementAndGet() > maxSize) {
+				size.decrementAndGet();
+				return;
 			}
+			final Node node = new Node(o);
+			Node old;
+			do {
+				old = top.get();
+				node.next = old;
+			} while (!top.compareAndSet(old, node));
+		}
+
+		Object pop() {
+			Node old;
+			do {
+				old = top.get();
+				if (old == null)
+					{return null;}
+			} while (!top.compareAndSet(old, old.next));
+			size.decrementAndGet();
+			return old.item;
+		}
+	}
+
+	/**
+	 * Snapshot of an entry's last access time, so the eviction order does
+	 * not change while sorting.
+	 */
+	private final static class Candidate implements Comparable<Candidate> {
+
+		final Entry entry;
+		final long accessed;
+
+		Candidate(Entry entry) {
+			this.entry = entry;
+			this.accessed = entry.lastAccess;
+		}
+
+		@Override
+		public int compareTo(Candidate other) {
+			return accessed < other.accessed ? -1 : (accessed == other.accessed ? 0 : 1);
+		}
+	}
+
+	private final static class Node {
+
+		final Object item;
+		Node next;
+
+		Node(Object item) {
+			this.item = item;
 		}
 	}
 }
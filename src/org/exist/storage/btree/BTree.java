@@ -95,6 +95,8 @@ import java.io.IOException;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  *  A general purpose B+-tree which stores binary keys as instances of
@@ -230,8 +232,30 @@ public class BTree extends Paged {
         cacheManager.deregisterCache(cache);
     }
 
+    /**
+     * Remove all keys by truncating the file. This is much faster than removing
+     * the keys one by one and leaves an empty tree, which
+     * {@link #addSorted(Txn, KeySorter, double)} builds bottom-up.
+     *
+     * The truncation is not written to the journal, so it is only supported for
+     * files which are not transactional. The caller must hold the write lock
+     * on the file.
+     *
+     * @throws DBException
+     */
+    @Override
+    public void truncate() throws DBException {
+        if (isTransactional)
+            {throw new DBException("Cannot truncate transactional file " + getFile().getName());}
+        final short fixedKeyLen = fileHeader.getFixedKeyLen();
+        // drop the cached nodes without writing them
+        cacheManager.deregisterCache(cache);
+        super.truncate();
+        create(fixedKeyLen);
+    }
+
     protected void initCache() {
-        cache = new BTreeCache(cacheManager.getDefaultInitialSize(), 1.5,
+        cache = cacheManager.createCache(cacheManager.getDefaultInitialSize(), 1.5,
             0, CacheManager.BTREE_CACHE);
         cache.setFileName(getFile().getName());
         cacheManager.registerCache(cache);
@@ -263,6 +287,62 @@ public class BTree extends Paged {
         return getRootNode().addValue(transaction, value, pointer);
     }
 
+    /**
+     * @return true if the tree does not contain any keys
+     */
+    public boolean isEmpty() {
+        final BTreeNode root = getRootNode();
+        return root != null && root.pageHeader.getStatus() == LEAF && root.nKeys == 0;
+    }
+
+    /**
+     * Add all keys and pointers of the given sorter, see {@link KeySorter#add(Value, long)}.
+     * If a key was added more than once, the last pointer is stored, as if the keys had
+     * been added by {@link #addValue(Txn, Value, long)}.
+     *
+     * If the tree is empty, it is built bottom-up: the leaf pages are filled from left
+     * to right up to the given fill factor, and the branch pages are built on top of
+     * them, without splitting any page. Otherwise, the keys are added one by one in
+     * key order, so consecutive keys are added to the same pages.
+     *
+     * @param transaction
+     * @param sorter the keys and pointers to add
+     * @param fillFactor the fraction of each page filled by a bottom-up build,
+     *  greater than 0 and at most 1. Lower values leave room for later inserts.
+     * @throws IOException
+     * @throws BTreeException
+     */
+    public void addSorted(Txn transaction, KeySorter sorter, double fillFactor) throws IOException, BTreeException {
+        final KeySorter.Cursor cursor = sorter.cursor();
+        try {
+            if (isEmpty()) {
+                final BulkBuilder builder = createBulkBuilder(transaction, fillFactor);
+                while (cursor.next()) {
+                    builder.add(cursor.getKey(), cursor.getPointer());
+                }
+                builder.finish();
+            } else {
+                while (cursor.next()) {
+                    addValue(transaction, cursor.getKey(), cursor.getPointer());
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Create a builder adding sorted keys to this tree, which must be empty.
+     * See {@link #addSorted(Txn, KeySorter, double)}.
+     *
+     * @param transaction
+     * @param fillFactor the fraction of each page to fill
+     * @throws BTreeException if the tree is not empty
+     */
+    protected BulkBuilder createBulkBuilder(Txn transaction, double fillFactor) throws BTreeException {
+        return new BulkBuilder(transaction, fillFactor);
+    }
+
     /**
      *  removeValue removes a Value from the BTree and returns the associated
      *  pointer for it.
@@ -529,11 +609,54 @@ public class BTree extends Paged {
      * @return <code>true</code> if something had to be cleaned
      */
     public boolean flush() throws DBException {
-        boolean flushed = cache.flush();
+        boolean flushed;
+        beginWriteBatch();
+        try {
+            flushed = cache.flush();
+        } finally {
+            endWriteBatch();
+        }
         flushed = flushed | super.flush();
         return flushed;
     }
 
+    /**
+     * Write at most maxPages dirty pages to disk, leaving them in the
+     * cache. The journal is flushed first, so no page is written before
+     * the log records which modified it. Used to trickle dirty pages to
+     * disk in the background, so a checkpoint finds less work to do.
+     * The caller should hold the lock on the file.
+     *
+     * @param maxPages the maximum number of pages to write
+     * @return the number of pages written
+     * @throws DBException
+     */
+    public int flushDirtyPages(int maxPages) throws DBException {
+        if (getDirtyPages() == 0)
+            {return 0;}
+        if (isTransactional)
+            {logManager.flushToLog(true);}
+        beginWriteBatch();
+        try {
+            return cache.flush(maxPages);
+        } finally {
+            endWriteBatch();
+        }
+    }
+
+    @Override
+    protected void ensureJournalWritten(long lsn) {
+        if (isTransactional && lsn > logManager.lastWrittenLsn())
+            {logManager.flushToLog(true);}
+    }
+
+    /**
+     * Returns the number of dirty pages waiting to be written to disk.
+     */
+    public int getDirtyPages() {
+        return cache.getDirtyItems();
+    }
+
     /*
      * @see org.exist.storage.btree.Paged#close()
      */
@@ -2347,6 +2470,148 @@ public class BTree extends Paged {
         }
     }
 
+    /**
+     * Builds an empty tree bottom-up from keys added in ascending order.
+     *
+     * Keys are added to the rightmost leaf until it is filled up to the fill factor.
+     * Then a new leaf is started and its first key is added as separator to the
+     * rightmost branch on the level above, which in turn is completed when it is full.
+     * Only the rightmost node of each level is open; all other nodes are complete and
+     * written to disk without passing through the cache.
+     */
+    protected class BulkBuilder {
+
+        private final Txn transaction;
+        private final int maxDataLen;
+
+        /** the rightmost node of each level, starting with the leaf level */
+        private final List<BTreeNode> open = new ArrayList<BTreeNode>();
+
+        private Value lastKey = null;
+
+        private BulkBuilder(Txn transaction, double fillFactor) throws BTreeException {
+            if (fillFactor <= 0 || fillFactor > 1.0)
+                {throw new IllegalArgumentException("fill factor should be > 0 and <= 1");}
+            if (!isEmpty())
+                {throw new BTreeException("Bulk build requires an empty tree: " + getFile().getName());}
+            this.transaction = transaction;
+            this.maxDataLen = (int) (fileHeader.getWorkSize() * fillFactor);
+            open.add(getRootNode());
+        }
+
+        /**
+         * Add a key, which must not be less than the previous key. If it is equal, the
+         * pointer replaces the pointer of the previous key.
+         */
+        public void add(Value key, long pointer) throws IOException, BTreeException {
+            BTreeNode leaf = open.get(0);
+            if (lastKey != null) {
+                final int cmp = key.compareTo(lastKey);
+                if (cmp < 0)
+                    {throw new BTreeException("Keys are not sorted: " + key + " < " + lastKey);}
+                if (cmp == 0) {
+                    leaf.ptrs[leaf.nPtrs - 1] = pointer;
+                    return;
+                }
+            }
+            if (leaf.nKeys > 0 && leaf.getDataLen() + getLeafEntryLen(leaf, key) > maxDataLen) {
+                final BTreeNode next = createBTreeNode(transaction, LEAF, null, false);
+                if (transaction != null && isTransactional) {
+                    final Loggable log = new SetPageLinkLoggable(transaction, fileId,
+                        leaf.page.getPageNum(), next.page.getPageNum());
+                    writeToLog(log, leaf);
+                }
+                leaf.pageHeader.setNextPage(next.page.getPageNum());
+                addChild(1, key, leaf, next);
+                complete(leaf);
+                open.set(0, next);
+                leaf = next;
+            }
+            leaf.insertKey(key, leaf.nKeys);
+            leaf.insertPointer(pointer, leaf.nPtrs);
+            leaf.adjustDataLen(leaf.nKeys - 1);
+            lastKey = key;
+        }
+
+        /**
+         * Complete the rightmost nodes of all levels and make the top node the root.
+         */
+        public void finish() throws IOException {
+            for (final BTreeNode node : open) {
+                complete(node);
+            }
+            if (open.size() > 1)
+                {setRootNode(open.get(open.size() - 1));}
+            open.clear();
+        }
+
+        /**
+         * Add child to the rightmost branch on the given level. The separator is the
+         * first key below child, left is the node preceding child on its level.
+         */
+        private void addChild(int level, Value separator, BTreeNode left, BTreeNode child)
+                throws IOException, BTreeException {
+            if (level == open.size()) {
+                // left has been the root so far
+                final BTreeNode branch = createBTreeNode(transaction, BRANCH, null, false);
+                branch.insertPointer(left.page.getPageNum(), 0);
+                setParent(left, branch);
+                open.add(branch);
+            }
+            BTreeNode branch = open.get(level);
+            if (branch.nKeys > 0 && getBranchDataLen(branch, separator) > maxDataLen) {
+                final BTreeNode next = createBTreeNode(transaction, BRANCH, null, false);
+                // the separator moves up and separates branch from next
+                addChild(level + 1, separator, branch, next);
+                complete(branch);
+                open.set(level, next);
+                next.insertPointer(child.page.getPageNum(), 0);
+                next.recalculateDataLen();
+                branch = next;
+            } else {
+                branch.insertKey(separator, branch.nKeys);
+                branch.insertPointer(child.page.getPageNum(), branch.nPtrs);
+                branch.recalculateDataLen();
+            }
+            setParent(child, branch);
+        }
+
+        private void setParent(BTreeNode node, BTreeNode parent) {
+            if (transaction != null && isTransactional) {
+                final Loggable log = new SetParentLoggable(transaction, fileId,
+                    node.page.getPageNum(), parent.page.getPageNum());
+                writeToLog(log, node);
+            }
+            node.setParent(parent);
+        }
+
+        /** Write a node which will not change any more */
+        private void complete(BTreeNode node) throws IOException {
+            if (transaction != null && isTransactional) {
+                final Loggable log = new UpdatePageLoggable(transaction, fileId, node.page.getPageNum(),
+                    node.prefix, node.keys, node.nKeys, node.ptrs, node.nPtrs);
+                writeToLog(log, node);
+            }
+            node.write();
+        }
+
+        /** the space needed to add key to the end of leaf, see {@link BTreeNode#write()} */
+        private int getLeafEntryLen(BTreeNode leaf, Value key) {
+            int prefixLen = key.commonPrefix(leaf.keys[leaf.nKeys - 1]);
+            if (prefixLen < 0 || prefixLen > Byte.MAX_VALUE)
+                {prefixLen = 0;}
+            return key.getLength() - prefixLen + 1 + 8 + (fileHeader.getFixedKeyLen() < 0 ? 2 : 0);
+        }
+
+        /** the data length of branch after adding key, which may shorten the common prefix */
+        private int getBranchDataLen(BTreeNode branch, Value key) {
+            final int prefixLen = key.checkPrefix(branch.prefix);
+            final int shrink = branch.prefix.getLength() - prefixLen;
+            return branch.getDataLen() + shrink * branch.nKeys + key.getLength() - prefixLen + 8 +
+                (fileHeader.getFixedKeyLen() < 0 ? 2 : 0);
+        }
+    }
+
     /**
      * @see org.exist.storage.btree.Paged#createFileHeader(int pageSize)
      */
@@ -2362,11 +2627,7 @@ public class BTree extends Paged {
     }
 
     public BufferStats getIndexBufferStats() {
-        return new BufferStats(
-            cache.getBuffers(),
-            cache.getUsedBuffers(),
-            cache.getHits(),
-            cache.getFails());
+        return new BufferStats(cache);
     }
 
     public void printStatistics() {
@@ -2384,6 +2645,14 @@ public class BTree extends Paged {
             {buf.append("N/A");}
         else
             {buf.append(nf.format(cache.getHits() / (float)(cache.getFails() + cache.getHits())));}
+        if (getBatchWrites() > 0) {
+            final NumberFormat nf2 = NumberFormat.getInstance();
+            nf2.setMaximumFractionDigits(1);
+            buf.append(" Flushed pages : ").append(getBatchedPages());
+            buf.append(" in ").append(getBatchWrites()).append(" writes (");
+            buf.append(nf2.format(getBatchedPages() / (double) getBatchWrites())).append(" pages/write, ");
+            buf.append(nf2.format(getBatchedPages() * 1000.0 / Math.max(1, getBatchTime()))).append(" pages/s)");
+        }
         LOGSTATS.info(buf.toString());
     }
 
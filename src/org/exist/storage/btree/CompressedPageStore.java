@@ -0,0 +1,469 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *  $Id$
+ */
+package org.exist.storage.btree;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+
+import org.apache.log4j.Logger;
+import org.exist.util.ByteConversion;
+import org.exist.util.LZBlockCodec;
+
+/**
+ * Stores the pages of a {@link Paged} file in compressed form.
+ *
+ * Every page is compressed with {@link LZBlockCodec} and written into a slot of
+ * variable size, allocated in units of {@link #SLOT_UNIT} bytes after the file header.
+ * A page which is written again is stored into a new slot and the old slot is
+ * released afterwards (copy on write). A released slot is only reused after the
+ * next {@link #sync()}, which forces the new versions to disk: until then, the old
+ * version is the one a crash recovery may have to fall back to. Each slot starts
+ * with a header containing the page number, a write sequence number and a checksum.
+ *
+ * The mapping from page numbers to slots is kept in memory. On close, it is saved
+ * to a separate map file, which is removed again when the file is opened. If the
+ * map file is missing, e.g. after a crash, the mapping is rebuilt by scanning all
+ * slot headers: for every page, the valid slot with the highest sequence number
+ * is used. Pages which were not yet written at the time of the crash are then
+ * restored from the journal as usual.
+ *
+ * Like the other file operations of {@link Paged}, the methods of this class are not
+ * thread safe. The caller has to hold the lock on the file.
+ */
+final class CompressedPageStore {
+
+    private final static Logger LOG = Logger.getLogger(CompressedPageStore.class);
+
+    /** allocation unit for slots */
+    public final static int SLOT_UNIT = 512;
+
+    public final static String MAP_FILE_SUFFIX = ".map";
+
+    private final static int SLOT_MAGIC = 0x45584350;
+    private final static int MAP_MAGIC = 0x4558434D;
+
+    private final static int OFFSET_MAGIC = 0;
+    private final static int OFFSET_PAGE_NUM = 4;
+    private final static int OFFSET_SEQUENCE = 12;
+    private final static int OFFSET_LENGTH = 20;
+    private final static int OFFSET_CHECKSUM = 24;
+    private final static int OFFSET_FLAGS = 28;
+    private final static int SLOT_HEADER_LENGTH = 29;
+
+    private final static byte FLAG_COMPRESSED = 1;
+
+    /** number of slot units read at once while scanning the file */
+    private final static int SCAN_UNITS = 256;
+
+    private final RandomAccessFile raf;
+    private final String fileName;
+    private final File mapFile;
+    private final long dataStart;
+    private final int pageSize;
+    private final int maxUnits;
+    private final boolean readOnly;
+
+    private final LZBlockCodec codec = new LZBlockCodec();
+    private final Adler32 checksum = new Adler32();
+    private final byte[] buffer;
+
+    /** slot of every page, encoded as (first unit << 8 | number of units), 0 if the page has no slot */
+    private long[] slots = new long[256];
+
+    /** released slots by number of units */
+    private final long[][] freeSlots;
+    private final int[] freeCount;
+
+    /** slots released since the last sync, encoded like {@link #slots} */
+    private long[] pending = new long[64];
+    private int pendingCount = 0;
+
+    /** first unit after the last allocated slot */
+    private long endUnit = 0;
+
+    private long sequence = 1;
+
+    private long pagesWritten = 0;
+    private long bytesWritten = 0;
+    private long bytesStored = 0;
+
+    CompressedPageStore(RandomAccessFile raf, File file, long dataStart, int pageSize, boolean readOnly) {
+        this.raf = raf;
+        this.fileName = file.getName();
+        this.mapFile = new File(file.getParentFile(), file.getName() + MAP_FILE_SUFFIX);
+        this.dataStart = dataStart;
+        this.pageSize = pageSize;
+        this.readOnly = readOnly;
+        this.maxUnits = (SLOT_HEADER_LENGTH + pageSize + SLOT_UNIT - 1) / SLOT_UNIT;
+        if (maxUnits > 0xFF)
+            {throw new IllegalArgumentException("page size too large for compressed storage: " + pageSize);}
+        this.buffer = new byte[maxUnits * SLOT_UNIT];
+        this.freeSlots = new long[maxUnits + 1][];
+        this.freeCount = new int[maxUnits + 1];
+    }
+
+    /**
+     * Load the page mapping of an existing file, either from the map file
+     * written on close or by scanning the file.
+     *
+     * @param exists true if the file already existed
+     * @throws IOException
+     */
+    void open(boolean exists) throws IOException {
+        if (exists) {
+            if (!(mapFile.exists() && loadMap())) {
+                LOG.info("Rebuilding page map of compressed file " + fileName + " ...");
+                final long start = System.currentTimeMillis();
+                scan();
+                LOG.info("Page map rebuilt in " + (System.currentTimeMillis() - start) + "ms");
+            }
+        }
+        if (!readOnly)
+            {mapFile.delete();}
+        rebuildFreeSlots();
+    }
+
+    /**
+     * Save the page mapping to the map file.
+     *
+     * @throws IOException
+     */
+    void close() throws IOException {
+        if (readOnly)
+            {return;}
+        final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mapFile)));
+        try {
+            os.writeInt(MAP_MAGIC);
+            os.writeLong(raf.length());
+            os.writeLong(sequence);
+            int count = 0;
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i] != 0)
+                    {count++;}
+            }
+            os.writeInt(count);
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i] != 0) {
+                    os.writeLong(i);
+                    os.writeLong(slots[i]);
+                }
+            }
+        } finally {
+            os.close();
+        }
+    }
+
+    /** Remove the map file together with the data file. */
+    void remove() {
+        mapFile.delete();
+    }
+
+    /**
+     * Read a page into the given buffer. Bytes beyond the stored length are set to 0.
+     *
+     * @param pageNum the page number
+     * @param page buffer of page size
+     * @return false if the page has never been written
+     * @throws IOException if the page could not be read or is corrupt
+     */
+    boolean read(long pageNum, byte[] page) throws IOException {
+        final long slot = getSlot(pageNum);
+        if (slot == 0) {
+            Arrays.fill(page, (byte) 0);
+            return false;
+        }
+        final long unit = slot >>> 8;
+        raf.seek(dataStart + unit * SLOT_UNIT);
+        raf.readFully(buffer, 0, SLOT_HEADER_LENGTH);
+        final int length = ByteConversion.byteToIntH(buffer, OFFSET_LENGTH);
+        if (ByteConversion.byteToIntH(buffer, OFFSET_MAGIC) != SLOT_MAGIC ||
+                ByteConversion.byteToLong(buffer, OFFSET_PAGE_NUM) != pageNum ||
+                length < 0 || length > pageSize)
+            {throw new IOException("Corrupt slot for page " + pageNum + " at unit " + unit);}
+        raf.readFully(buffer, SLOT_HEADER_LENGTH, length);
+        if (!isValid(buffer, length))
+            {throw new IOException("Checksum error in slot for page " + pageNum + " at unit " + unit);}
+        final int dataLen;
+        if ((buffer[OFFSET_FLAGS] & FLAG_COMPRESSED) != 0)
+            {dataLen = codec.decompress(buffer, SLOT_HEADER_LENGTH, length, page, 0, page.length);}
+        else {
+            System.arraycopy(buffer, SLOT_HEADER_LENGTH, page, 0, length);
+            dataLen = length;
+        }
+        Arrays.fill(page, dataLen, page.length, (byte) 0);
+        return true;
+    }
+
+    /**
+     * Compress and write a page into a new slot.
+     *
+     * @param pageNum the page number
+     * @param page the page image
+     * @param length the number of bytes of the page image to store
+     * @throws IOException
+     */
+    void write(long pageNum, byte[] page, int length) throws IOException {
+        int stored = codec.compress(page, 0, length, buffer, SLOT_HEADER_LENGTH, length - 1);
+        byte flags = FLAG_COMPRESSED;
+        if (stored < 0) {
+            // not compressible: store the page as is
+            System.arraycopy(page, 0, buffer, SLOT_HEADER_LENGTH, length);
+            stored = length;
+            flags = 0;
+        }
+        ByteConversion.intToByteH(SLOT_MAGIC, buffer, OFFSET_MAGIC);
+        ByteConversion.longToByte(pageNum, buffer, OFFSET_PAGE_NUM);
+        ByteConversion.longToByte(sequence++, buffer, OFFSET_SEQUENCE);
+        ByteConversion.intToByteH(stored, buffer, OFFSET_LENGTH);
+        buffer[OFFSET_FLAGS] = flags;
+        ByteConversion.intToByteH(computeChecksum(buffer, stored), buffer, OFFSET_CHECKSUM);
+
+        final int units = (SLOT_HEADER_LENGTH + stored + SLOT_UNIT - 1) / SLOT_UNIT;
+        final long unit = allocate(units);
+        raf.seek(dataStart + unit * SLOT_UNIT);
+        raf.write(buffer, 0, SLOT_HEADER_LENGTH + stored);
+
+        // the old slot is reused once the new version is synced to disk
+        final long oldSlot = getSlot(pageNum);
+        setSlot(pageNum, (unit << 8) | units);
+        if (oldSlot != 0) {
+            if (pendingCount == pending.length)
+                {pending = Arrays.copyOf(pending, pending.length * 2);}
+            pending[pendingCount++] = oldSlot;
+        }
+
+        pagesWritten++;
+        bytesWritten += length;
+        bytesStored += units * SLOT_UNIT;
+    }
+
+    /**
+     * Force the pages written so far to disk and make the slots released by them
+     * available for new writes.
+     *
+     * @throws IOException
+     */
+    void sync() throws IOException {
+        if (readOnly || pendingCount == 0)
+            {return;}
+        raf.getFD().sync();
+        for (int i = 0; i < pendingCount; i++) {
+            release(pending[i] >>> 8, (int) (pending[i] & 0xFF));
+        }
+        pendingCount = 0;
+    }
+
+    /** Number of pages written since the file was opened. */
+    long getPagesWritten() {
+        return pagesWritten;
+    }
+
+    /** Uncompressed size of the pages written since the file was opened. */
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /** Size of the slots allocated for the pages written since the file was opened. */
+    long getBytesStored() {
+        return bytesStored;
+    }
+
+    /** Size of the data area of the file, including released slots. */
+    long getDataSize() {
+        return endUnit * SLOT_UNIT;
+    }
+
+    private long allocate(int units) {
+        if (freeCount[units] > 0)
+            {return freeSlots[units][--freeCount[units]];}
+        // split a larger slot
+        for (int i = units + 1; i <= maxUnits; i++) {
+            if (freeCount[i] > 0) {
+                final long unit = freeSlots[i][--freeCount[i]];
+                release(unit + units, i - units);
+                return unit;
+            }
+        }
+        final long unit = endUnit;
+        endUnit += units;
+        return unit;
+    }
+
+    private void release(long unit, int units) {
+        long[] list = freeSlots[units];
+        if (list == null) {
+            list = new long[16];
+            freeSlots[units] = list;
+        } else if (freeCount[units] == list.length) {
+            list = Arrays.copyOf(list, list.length * 2);
+            freeSlots[units] = list;
+        }
+        list[freeCount[units]++] = unit;
+    }
+
+    /**
+     * Compute end of the data area and the released slots from the
+     * slots in use.
+     */
+    private void rebuildFreeSlots() {
+        Arrays.fill(freeCount, 0);
+        pendingCount = 0;
+        int count = 0;
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] != 0)
+                {count++;}
+        }
+        final long[] used = new long[count];
+        count = 0;
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] != 0)
+                {used[count++] = slots[i];}
+        }
+        // the first unit is stored in the upper bits, so this sorts by position
+        Arrays.sort(used);
+        long next = 0;
+        for (int i = 0; i < used.length; i++) {
+            final long unit = used[i] >>> 8;
+            if (unit > next)
+                {releaseRange(next, unit - next);}
+            next = Math.max(next, unit + (used[i] & 0xFF));
+        }
+        endUnit = next;
+    }
+
+    private void releaseRange(long unit, long units) {
+        while (units > 0) {
+            final int size = (int) Math.min(units, maxUnits);
+            release(unit, size);
+            unit += size;
+            units -= size;
+        }
+    }
+
+    private boolean loadMap() {
+        try {
+            final DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(mapFile)));
+            try {
+                if (is.readInt() != MAP_MAGIC || is.readLong() != raf.length()) {
+                    LOG.warn("Page map " + mapFile.getName() + " does not match the data file. Ignoring it.");
+                    return false;
+                }
+                sequence = is.readLong();
+                final int count = is.readInt();
+                for (int i = 0; i < count; i++) {
+                    final long pageNum = is.readLong();
+                    setSlot(pageNum, is.readLong());
+                }
+                return true;
+            } finally {
+                is.close();
+            }
+        } catch (final IOException e) {
+            LOG.warn("Failed to read page map " + mapFile.getName() + ": " + e.getMessage(), e);
+            Arrays.fill(slots, 0);
+            return false;
+        }
+    }
+
+    /**
+     * Rebuild the page mapping from the slot headers. Every unit is checked for
+     * a slot header, as released slots may be partially overwritten.
+     */
+    private void scan() throws IOException {
+        Arrays.fill(slots, 0);
+        long[] sequences = new long[slots.length];
+        long maxSequence = 0;
+        final long fileLength = raf.length();
+        final byte[] chunk = new byte[SCAN_UNITS * SLOT_UNIT];
+        for (long first = 0; dataStart + first * SLOT_UNIT < fileLength; first += SCAN_UNITS) {
+            final long position = dataStart + first * SLOT_UNIT;
+            final int length = (int) Math.min(chunk.length, fileLength - position);
+            raf.seek(position);
+            raf.readFully(chunk, 0, length);
+            for (int i = 0; i * SLOT_UNIT + SLOT_HEADER_LENGTH <= length; i++) {
+                final int offset = i * SLOT_UNIT;
+                if (ByteConversion.byteToIntH(chunk, offset + OFFSET_MAGIC) != SLOT_MAGIC)
+                    {continue;}
+                final long unit = first + i;
+                final long pageNum = ByteConversion.byteToLong(chunk, offset + OFFSET_PAGE_NUM);
+                final long slotSequence = ByteConversion.byteToLong(chunk, offset + OFFSET_SEQUENCE);
+                final int stored = ByteConversion.byteToIntH(chunk, offset + OFFSET_LENGTH);
+                if (pageNum < 0 || pageNum >= Integer.MAX_VALUE || stored < 0 || stored > pageSize ||
+                        !isValidSlot(unit, stored))
+                    {continue;}
+                if (slotSequence > maxSequence)
+                    {maxSequence = slotSequence;}
+                if (pageNum >= sequences.length)
+                    {sequences = Arrays.copyOf(sequences, (int) Math.max(sequences.length * 2, pageNum + 1));}
+                if (slotSequence > sequences[(int) pageNum]) {
+                    sequences[(int) pageNum] = slotSequence;
+                    setSlot(pageNum, (unit << 8) | ((SLOT_HEADER_LENGTH + stored + SLOT_UNIT - 1) / SLOT_UNIT));
+                }
+            }
+        }
+        sequence = maxSequence + 1;
+    }
+
+    private boolean isValidSlot(long unit, int stored) throws IOException {
+        final long position = dataStart + unit * SLOT_UNIT;
+        if (position + SLOT_HEADER_LENGTH + stored > raf.length())
+            {return false;}
+        raf.seek(position);
+        raf.readFully(buffer, 0, SLOT_HEADER_LENGTH + stored);
+        return isValid(buffer, stored);
+    }
+
+    private boolean isValid(byte[] slot, int stored) {
+        return ByteConversion.byteToIntH(slot, OFFSET_CHECKSUM) == computeChecksum(slot, stored);
+    }
+
+    /** Checksum of slot header and data, computed with the checksum field set to 0. */
+    private int computeChecksum(byte[] slot, int stored) {
+        checksum.reset();
+        checksum.update(slot, 0, OFFSET_CHECKSUM);
+        checksum.update(0);
+        checksum.update(0);
+        checksum.update(0);
+        checksum.update(0);
+        checksum.update(slot, OFFSET_FLAGS, SLOT_HEADER_LENGTH - OFFSET_FLAGS + stored);
+        return (int) checksum.getValue();
+    }
+
+    private long getSlot(long pageNum) {
+        return pageNum < slots.length ? slots[(int) pageNum] : 0;
+    }
+
+    private void setSlot(long pageNum, long slot) {
+        if (pageNum >= slots.length)
+            {slots = Arrays.copyOf(slots, (int) Math.max(slots.length * 2, pageNum + 1));}
+        slots[(int) pageNum] = slot;
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.storage.btree;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.log4j.Logger;
+import org.exist.util.ByteConversion;
+
+/**
+ * Sorts keys and their data with an external merge sort, as input for
+ * {@link BTree#addSorted(org.exist.storage.txn.Txn, KeySorter, double)} and
+ * {@link org.exist.storage.index.BFile#appendSorted(org.exist.storage.txn.Txn, KeySorter, double)}.
+ *
+ * Entries are collected in memory. If their size exceeds the memory limit, they
+ * are sorted and written to a temporary file (a run). {@link #cursor()} merges the
+ * runs and the entries still in memory. The sort is stable: entries with equal keys
+ * are returned in the order in which they were added.
+ *
+ * The data of an entry is either a pointer ({@link #add(Value, long)}) or an
+ * arbitrary byte array ({@link #add(Value, byte[])}).
+ */
+public class KeySorter {
+
+    private final static Logger LOG = Logger.getLogger(KeySorter.class);
+
+    /** Default amount of memory used before entries are written to a run */
+    public final static long DEFAULT_MEMORY_LIMIT = 16 * 1024 * 1024;
+
+    /** Estimated memory used by an entry in addition to its key and data */
+    private final static int ENTRY_OVERHEAD = 64;
+
+    private final static Comparator<Entry> COMPARATOR = new Comparator<Entry>() {
+        public int compare(Entry e1, Entry e2) {
+            return e1.key.compareTo(e2.key);
+        }
+    };
+
+    private final File tempDir;
+    private final long memoryLimit;
+
+    private List<Entry> entries = new ArrayList<Entry>();
+    private long memory = 0;
+    private final List<File> runs = new ArrayList<File>();
+    private long size = 0;
+
+    /**
+     * @param tempDir the directory for temporary files
+     * @param memoryLimit the amount of memory entries may use before they are written
+     *  to a temporary file
+     */
+    public KeySorter(File tempDir, long memoryLimit) {
+        this.tempDir = tempDir;
+        this.memoryLimit = memoryLimit;
+    }
+
+    public KeySorter(File tempDir) {
+        this(tempDir, DEFAULT_MEMORY_LIMIT);
+    }
+
+    public void add(Value key, long pointer) throws IOException {
+        final byte[] data = new byte[8];
+        ByteConversion.longToByte(pointer, data, 0);
+        add(key, data);
+    }
+
+    public void add(Value key, byte[] data) throws IOException {
+        entries.add(new Entry(key, data));
+        size++;
+        memory += key.getLength() + data.length + ENTRY_OVERHEAD;
+        if (memory > memoryLimit)
+            {spill();}
+    }
+
+    /** @return the number of entries added */
+    public long size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** @return the number of runs written to temporary files */
+    public int getRunCount() {
+        return runs.size();
+    }
+
+    /**
+     * Returns a cursor over all entries in key order. No entries may be
+     * added while the cursor is in use. The sorter is cleared by {@link #clear()}.
+     *
+     * @throws IOException
+     */
+    public Cursor cursor() throws IOException {
+        Collections.sort(entries, COMPARATOR);
+        final List<Source> sources = new ArrayList<Source>(runs.size() + 1);
+        for (final File run : runs) {
+            sources.add(new RunSource(sources.size(), run));
+        }
+        sources.add(new MemorySource(sources.size(), entries));
+        return new Cursor(sources);
+    }
+
+    /**
+     * Remove all entries and delete the temporary files.
+     */
+    public void clear() {
+        entries = new ArrayList<Entry>();
+        memory = 0;
+        size = 0;
+        for (final File run : runs) {
+            if (!run.delete())
+                {LOG.warn("Failed to delete temporary file " + run.getAbsolutePath());}
+        }
+        runs.clear();
+    }
+
+    private void spill() throws IOException {
+        Collections.sort(entries, COMPARATOR);
+        final File run = File.createTempFile("sort", ".run", tempDir);
+        run.deleteOnExit();
+        final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 65536));
+        try {
+            for (final Entry entry : entries) {
+                os.writeShort(entry.key.getLength());
+                os.write(entry.key.data(), entry.key.start(), entry.key.getLength());
+                os.writeInt(entry.data.length);
+                os.write(entry.data);
+            }
+        } finally {
+            os.close();
+        }
+        runs.add(run);
+        if (LOG.isDebugEnabled())
+            {LOG.debug("Wrote " + entries.size() + " entries to " + run.getName());}
+        entries = new ArrayList<Entry>();
+        memory = 0;
+    }
+
+    private static class Entry {
+
+        final Value key;
+        final byte[] data;
+
+        Entry(Value key, byte[] data) {
+            this.key = key;
+            this.data = data;
+        }
+    }
+
+    /**
+     * A sorted sequence of entries: a run or the entries in memory.
+     */
+    private abstract static class Source {
+
+        /** sources written earlier have a lower index */
+        final int index;
+        Entry current;
+
+        Source(int index) {
+            this.index = index;
+        }
+
+        /** Move to the next entry, returns false at the end */
+        abstract boolean next() throws IOException;
+
+        void close() throws IOException {
+            // nothing to do
+        }
+    }
+
+    private static class MemorySource extends Source {
+
+        private final List<Entry> entries;
+        private int pos = 0;
+
+        MemorySource(int index, List<Entry> entries) {
+            super(index);
+            this.entries = entries;
+        }
+
+        boolean next() {
+            if (pos == entries.size())
+                {return false;}
+            current = entries.get(pos++);
+            return true;
+        }
+    }
+
+    private static class RunSource extends Source {
+
+        private final DataInputStream is;
+
+        RunSource(int index, File run) throws IOException {
+            super(index);
+            this.is = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 65536));
+        }
+
+        boolean next() throws IOException {
+            final int keyLen;
+            try {
+                keyLen = is.readUnsignedShort();
+            } catch (final EOFException e) {
+                return false;
+            }
+            final byte[] key = new byte[keyLen];
+            is.readFully(key);
+            final byte[] data = new byte[is.readInt()];
+            is.readFully(data);
+            current = new Entry(new Value(key), data);
+            return true;
+        }
+
+        void close() throws IOException {
+            is.close();
+        }
+    }
+
+    /**
+     * Iterates over the entries of the sorter in key order.
+     */
+    public static class Cursor {
+
+        private final List<Source> sources;
+        private final PriorityQueue<Source> queue;
+        private Entry current = null;
+
+        private Cursor(List<Source> sources) throws IOException {
+            this.sources = sources;
+            this.queue = new PriorityQueue<Source>(Math.max(1, sources.size()), new Comparator<Source>() {
+                public int compare(Source s1, Source s2) {
+                    final int cmp = s1.current.key.compareTo(s2.current.key);
+                    // keep the order in which entries with equal keys were added
+                    return cmp != 0 ? cmp : s1.index - s2.index;
+                }
+            });
+            for (final Source source : sources) {
+                if (source.next())
+                    {queue.add(source);}
+            }
+        }
+
+        /**
+         * Move to the next entry.
+         *
+         * @return false if there are no more entries
+         * @throws IOException
+         */
+        public boolean next() throws IOException {
+            final Source source = queue.poll();
+            if (source == null) {
+                current = null;
+                return false;
+            }
+            current = source.current;
+            if (source.next())
+                {queue.add(source);}
+            return true;
+        }
+
+        /** @return the key of the current entry */
+        public Value getKey() {
+            return current.key;
+        }
+
+        /** @return the data of the current entry */
+        public byte[] getData() {
+            return current.data;
+        }
+
+        /** @return the data of the current entry, if it was added as a pointer */
+        public long getPointer() {
+            return ByteConversion.byteToLong(current.data, 0);
+        }
+
+        /**
+         * Close the temporary files. Does not delete them.
+         *
+         * @throws IOException
+         */
+        public void close() throws IOException {
+            for (final Source source : sources) {
+                source.close();
+            }
+        }
+    }
+}
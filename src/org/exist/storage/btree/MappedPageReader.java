@@ -0,0 +1,117 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *  $Id$
+ */
+package org.exist.storage.btree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Provides read access to the pages of a {@link Paged} file through memory
+ * mapped segments. Page reads are served from the OS page cache without a
+ * seek and read system call.
+ *
+ * The file is mapped in segments of fixed size. Only segments which are completely
+ * contained in the file are mapped, so the file is never extended by the mapping.
+ * New segments are mapped as the file grows. Pages which are located in the last,
+ * incomplete segment or which span a segment boundary are not available
+ * and have to be read through the normal file access path.
+ *
+ * Writes still go through the {@link java.io.RandomAccessFile}. The mapping is
+ * shared with the OS page cache, so written pages are immediately visible
+ * to the mapped read path.
+ */
+final class MappedPageReader {
+
+    /** default size of a mapped segment: 32 megabytes */
+    public final static int DEFAULT_SEGMENT_SIZE = 32 * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final int segmentSize;
+
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    MappedPageReader(FileChannel channel) {
+        this(channel, DEFAULT_SEGMENT_SIZE);
+    }
+
+    MappedPageReader(FileChannel channel, int segmentSize) {
+        this.channel = channel;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Returns a buffer positioned at the start of the page at the given file
+     * offset, or null if the page is not (yet) covered by a mapped segment.
+     *
+     * @param offset the offset of the page in the file
+     * @param length the length of the page
+     * @return a buffer positioned at the start of the page or null
+     * @throws IOException if a new segment could not be mapped
+     */
+    ByteBuffer getPage(long offset, int length) throws IOException {
+        final int segment = (int) (offset / segmentSize);
+        final int inSegment = (int) (offset % segmentSize);
+        if (inSegment + length > segmentSize)
+            {return null;}
+        MappedByteBuffer[] mapped = segments;
+        if (segment >= mapped.length) {
+            mapped = mapSegments(segment);
+            if (segment >= mapped.length)
+                {return null;}
+        }
+        final ByteBuffer buf = mapped[segment].duplicate();
+        buf.position(inSegment);
+        return buf;
+    }
+
+    /**
+     * Returns the number of bytes currently covered by mapped segments.
+     */
+    long getMappedLength() {
+        return (long) segments.length * segmentSize;
+    }
+
+    /**
+     * Drop all mapped segments. The mappings are released once the buffers
+     * are garbage collected.
+     */
+    synchronized void close() {
+        segments = new MappedByteBuffer[0];
+    }
+
+    private synchronized MappedByteBuffer[] mapSegments(int segment) throws IOException {
+        if (segment < segments.length || !channel.isOpen())
+            {return segments;}
+        final int available = (int) (channel.size() / segmentSize);
+        if (available <= segments.length)
+            {return segments;}
+        final MappedByteBuffer[] newSegments = Arrays.copyOf(segments, available);
+        for (int i = segments.length; i < available; i++) {
+            newSegments[i] = channel.map(FileChannel.MapMode.READ_ONLY, (long) i * segmentSize, segmentSize);
+        }
+        segments = newSegments;
+        return newSegments;
+    }
+}
@@ -82,10 +82,16 @@ import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.channels.NonWritableChannelException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
 
 /**
  *  Paged is a paged file foundation that is used by the BTree class and
@@ -119,6 +125,14 @@ public abstract class Paged {
 
     protected final static Logger LOG = Logger.getLogger(Paged.class);
 
+    /**
+     * Attribute of the db-connection element in conf.xml: a list of file names
+     * (e.g. "dom.dbx collections.dbx") which should be read through memory
+     * mapped segments. Use "*" to map all files.
+     */
+    public final static String MEMORY_MAPPED_ATTRIBUTE = "memory-mapped";
+    public final static String PROPERTY_MEMORY_MAPPED = "db-connection.memory-mapped";
+
     protected final static byte DELETED = 127;
     protected final static byte OVERFLOW = 126;
     protected final static byte UNUSED = 0;
@@ -133,11 +147,42 @@ public abstract class Paged {
 
     private byte[] tempPageData = null;
     private byte[] tempHeaderData = null;
+
+    /** the files to be memory mapped as configured in conf.xml, may be null */
+    private String mappedFiles = null;
+
+    /** read access through memory mapped segments, null if disabled */
+    private MappedPageReader mappedReader = null;
+
+    /** storage for compressed pages, null if the file is not compressed */
+    private CompressedPageStore compressedStore = null;
+
+    /** maximum number of pages collected by a write batch before they are written */
+    private final static int MAX_BATCH_PAGES = 1024;
+
+    /**
+     * page images collected by the current write batch, sorted by page number.
+     * Null if no batch is active.
+     */
+    private TreeMap<Long, byte[]> writeBatch = null;
+
+    /** nesting level of {@link #beginWriteBatch()} calls */
+    private int writeBatchDepth = 0;
+
+    /** highest LSN of all pages in the current write batch */
+    private long writeBatchLsn = Lsn.LSN_INVALID;
+
+    // write batch statistics
+    private long batchedPages = 0;
+    private long batchWrites = 0;
+    private long batchTime = 0;
 	
     public Paged(BrokerPool pool) {
         fileHeader = createFileHeader(pool.getPageSize());
         tempPageData = new byte[fileHeader.pageSize];
         tempHeaderData = new byte[fileHeader.pageHeaderSize];
+        if (pool.getConfiguration() != null)
+            {mappedFiles = (String) pool.getConfiguration().getProperty(PROPERTY_MEMORY_MAPPED);}
     }
 
     public abstract short getFileVersion();
@@ -154,6 +199,53 @@ public abstract class Paged {
         return readOnly;
     }
 
+    /**
+     * Returns true if pages of this file are read through
+     * memory mapped segments.
+     */
+    public final boolean isMemoryMapped() {
+        return mappedReader != null;
+    }
+
+    /**
+     * Store the pages of this file in compressed form, see {@link CompressedPageStore}.
+     * Must be called after {@link #setFile(File)} and before the file is opened or
+     * created. The file header is updated to the version returned by
+     * {@link #getFileVersion()}, so subclasses should return a distinct version for
+     * compressed files: the file format is not compatible with uncompressed files.
+     * Compressed files cannot be memory mapped.
+     */
+    protected final void enableCompression() {
+        if (mappedReader != null) {
+            mappedReader.close();
+            mappedReader = null;
+        }
+        compressedStore = new CompressedPageStore(raf, file, fileHeader.headerSize, fileHeader.pageSize, readOnly);
+        fileHeader.versionId = getFileVersion();
+    }
+
+    /**
+     * Returns true if the pages of this file are stored in compressed form.
+     */
+    public final boolean isCompressed() {
+        return compressedStore != null;
+    }
+
+    /** Number of compressed pages written since the file was opened. */
+    public long getCompressedPages() {
+        return compressedStore == null ? 0 : compressedStore.getPagesWritten();
+    }
+
+    /**
+     * Ratio between the space used on disk and the uncompressed size of the pages
+     * written since the file was opened, 1 if the file is not compressed.
+     */
+    public double getCompressionRatio() {
+        if (compressedStore == null || compressedStore.getBytesWritten() == 0)
+            {return 1;}
+        return compressedStore.getBytesStored() / (double) compressedStore.getBytesWritten();
+    }
+
     /**
      * Close the underlying files.
      * 
@@ -162,6 +254,10 @@ public abstract class Paged {
      */
     public boolean close() throws DBException {
         try {
+            if (mappedReader != null)
+                {mappedReader.close();}
+            if (compressedStore != null)
+                {compressedStore.close();}
             raf.close();
         } catch (final IOException e) {
             throw new DBException("an error occurred while closing database file: " + e.getMessage());
@@ -172,6 +268,8 @@ public abstract class Paged {
     public boolean create() throws DBException {
         try {
             fileHeader.write();
+            if (compressedStore != null)
+                {compressedStore.open(false);}
             return true;
         } catch (final Exception e) {
             e.printStackTrace();
@@ -214,9 +312,114 @@ public abstract class Paged {
             LOG.warn("report me");
             //TODO : this exception is *silently* ignored ?
         }
+        if (compressedStore != null) {
+            try {
+                compressedStore.sync();
+            } catch (final IOException e) {
+                throw new DBException("Failed to sync compressed file " + file.getName() + ": " + e.getMessage());
+            }
+        }
         return flushed;
     }
 
+    /**
+     * Start collecting page writes instead of writing each page immediately.
+     * Pages written until {@link #endWriteBatch()} is called are sorted by page
+     * number, and runs of adjacent pages are written with a single gathering
+     * write. Used when flushing caches, which write pages in cache order.
+     * The caller must hold the lock on the file until the batch has ended.
+     * Calls may be nested: the pages are written when the outermost batch ends.
+     */
+    protected final void beginWriteBatch() {
+        writeBatchDepth++;
+        if (writeBatch == null)
+            {writeBatch = new TreeMap<Long, byte[]>();}
+    }
+
+    /**
+     * Write all pages collected since {@link #beginWriteBatch()} and
+     * return to writing pages immediately.
+     *
+     * @throws DBException if the pages could not be written
+     */
+    protected final void endWriteBatch() throws DBException {
+        if (writeBatch == null || --writeBatchDepth > 0)
+            {return;}
+        try {
+            writeBatchPages();
+        } catch (final IOException e) {
+            LOG.warn("Error while writing pages to " + getFile().getName() + ": " + e.getMessage(), e);
+            throw new DBException("Error while writing pages to " + getFile().getName() + ": " + e.getMessage());
+        } finally {
+            writeBatch = null;
+            writeBatchDepth = 0;
+            writeBatchLsn = Lsn.LSN_INVALID;
+        }
+    }
+
+    /**
+     * Called before the pages of a write batch are written to disk. Subclasses
+     * which log their changes to the journal have to make sure the journal has
+     * been written up to the given LSN (write-ahead logging).
+     *
+     * @param lsn the highest LSN of all pages to be written
+     */
+    protected void ensureJournalWritten(long lsn) {
+        //Nothing to do
+    }
+
+    private void writeBatchPages() throws IOException {
+        if (writeBatch.isEmpty())
+            {return;}
+        final long start = System.currentTimeMillis();
+        ensureJournalWritten(writeBatchLsn);
+        final FileChannel channel = raf.getChannel();
+        final List<ByteBuffer> run = new ArrayList<ByteBuffer>();
+        long firstPage = Page.NO_PAGE;
+        long nextPage = Page.NO_PAGE;
+        for (final Map.Entry<Long, byte[]> entry : writeBatch.entrySet()) {
+            final long pageNum = entry.getKey().longValue();
+            if (pageNum != nextPage && !run.isEmpty()) {
+                writeRun(channel, firstPage, run);
+                run.clear();
+            }
+            if (run.isEmpty())
+                {firstPage = pageNum;}
+            run.add(ByteBuffer.wrap(entry.getValue()));
+            nextPage = pageNum + 1;
+        }
+        writeRun(channel, firstPage, run);
+        batchedPages += writeBatch.size();
+        batchTime += System.currentTimeMillis() - start;
+        writeBatch.clear();
+        writeBatchLsn = Lsn.LSN_INVALID;
+    }
+
+    private void writeRun(FileChannel channel, long firstPage, List<ByteBuffer> pages) throws IOException {
+        final ByteBuffer[] buffers = pages.toArray(new ByteBuffer[pages.size()]);
+        long remaining = (long) buffers.length * fileHeader.pageSize;
+        channel.position(fileHeader.headerSize + (firstPage * fileHeader.pageSize));
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+        batchWrites++;
+    }
+
+    /** Number of pages written through write batches. */
+    public long getBatchedPages() {
+        return batchedPages;
+    }
+
+    /** Number of write calls needed for the pages written through write batches. */
+    public long getBatchWrites() {
+        return batchWrites;
+    }
+
+    /** Time spent writing batched pages, in milliseconds. */
+    public long getBatchTime() {
+        return batchTime;
+    }
+
     /**
      * Backup the entire contents of the underlying file to 
      * an output stream.
@@ -258,12 +461,44 @@ public abstract class Paged {
      */
     public void closeAndRemove() {
         try {
+            if (mappedReader != null)
+                {mappedReader.close();}
             raf.close();
         } catch (final IOException e) {
             //TODO : forward the exception ? -pb
             LOG.error("Failed to close data file: " + file.getAbsolutePath());
         }
         file.delete();
+        if (compressedStore != null)
+            {compressedStore.remove();}
+    }
+
+    /**
+     * Discard all pages and reset the file header, leaving a file without any
+     * pages. Subclasses must drop their cached pages before and call
+     * {@link #create()} afterwards.
+     *
+     * @throws DBException
+     */
+    protected void truncate() throws DBException {
+        if (readOnly)
+            {throw new DBException("Cannot truncate read-only file " + file.getName());}
+        try {
+            if (mappedReader != null)
+                {mappedReader.close();}
+            raf.setLength(0);
+            if (mappedReader != null)
+                {mappedReader = new MappedPageReader(raf.getChannel());}
+            if (compressedStore != null)
+                {compressedStore = new CompressedPageStore(raf, file, fileHeader.headerSize, fileHeader.pageSize, readOnly);}
+        } catch (final IOException e) {
+            throw new DBException("Failed to truncate " + file.getName() + ": " + e.getMessage());
+        }
+        fileHeader.setFirstFreePage(Page.NO_PAGE);
+        fileHeader.setLastFreePage(Page.NO_PAGE);
+        fileHeader.setPageCount(0);
+        fileHeader.setTotalCount(0);
+        fileHeader.setRecordCount(0);
     }
 
     protected final Page getFreePage() throws IOException {
@@ -345,6 +580,8 @@ public abstract class Paged {
                         "Please follow the instructions for the version you installed." + 
                         "File version is: " + expectedVersion +
                         "; db expects version " + fileHeader.getVersion());}
+                if (compressedStore != null)
+                    {compressedStore.open(true);}
                 return true;
             } else {
                 return false;
@@ -401,12 +638,29 @@ public abstract class Paged {
                 readOnly = true;
                 raf = new RandomAccessFile(file, "r");
             }
+            if (raf != null && isMappingConfigured(file.getName())) {
+                mappedReader = new MappedPageReader(raf.getChannel());
+                if (LOG.isDebugEnabled())
+                    {LOG.debug("Using memory mapped read access for " + file.getName());}
+            }
         } catch (final IOException e) {
             LOG.warn("An exception occured while opening database file " +
                 file.getAbsolutePath() + ": " + e.getMessage(), e);
         }
     }
 
+    private boolean isMappingConfigured(String fileName) {
+        if (mappedFiles == null)
+            {return false;}
+        final StringTokenizer tok = new StringTokenizer(mappedFiles, ", ");
+        while (tok.hasMoreTokens()) {
+            final String next = tok.nextToken();
+            if ("*".equals(next) || next.equals(fileName))
+                {return true;}
+        }
+        return false;
+    }
+
     /**
      *  Unlinks a set of pages starting at the specified page.
      *
@@ -917,6 +1171,30 @@ public abstract class Paged {
 
         public byte[] read() throws IOException {
             try {
+                final byte[] batched = writeBatch == null ? null : writeBatch.get(pageNum);
+                if (batched != null) {
+                    // written in the current batch, but not yet on disk
+                    header.read(batched, 0);
+                    final byte[] workData = new byte[header.dataLen];
+                    System.arraycopy(batched, fileHeader.pageHeaderSize, workData, 0, header.dataLen);
+                    return workData;
+                }
+                if (compressedStore != null) {
+                    compressedStore.read(pageNum, tempPageData);
+                    header.read(tempPageData, 0);
+                    final byte[] workData = new byte[header.dataLen];
+                    System.arraycopy(tempPageData, fileHeader.pageHeaderSize, workData, 0, header.dataLen);
+                    return workData;
+                }
+                final ByteBuffer mapped = mappedReader == null ? null :
+                    mappedReader.getPage(offset, fileHeader.pageSize);
+                if (mapped != null) {
+                    mapped.get(tempHeaderData);
+                    header.read(tempHeaderData, 0);
+                    final byte[] workData = new byte[header.dataLen];
+                    mapped.get(workData);
+                    return workData;
+                }
                 if (raf.getFilePointer() != offset) {
                     raf.seek(offset);
                 }
@@ -960,6 +1238,20 @@ public abstract class Paged {
                     System.arraycopy(data, 0, tempPageData, fileHeader.pageHeaderSize, data.length);
                 }
             }
+            if (compressedStore != null) {
+                // pages are not written in place, so there is nothing to gain from batching
+                compressedStore.write(pageNum, tempPageData,
+                    fileHeader.pageHeaderSize + Math.min(Math.max(header.dataLen, 0), fileHeader.workSize));
+                return;
+            }
+            if (writeBatch != null) {
+                writeBatch.put(pageNum, Arrays.copyOf(tempPageData, tempPageData.length));
+                if (header.getLsn() > writeBatchLsn)
+                    {writeBatchLsn = header.getLsn();}
+                if (writeBatch.size() >= MAX_BATCH_PAGES)
+                    {writeBatchPages();}
+                return;
+            }
             if (raf.getFilePointer() != offset)
                 {raf.seek(offset);}
             raf.write(tempPageData);
@@ -985,10 +1277,14 @@ public abstract class Paged {
         }
 
         public void dumpPage() throws IOException {
-            if (raf.getFilePointer() != offset)
-                {raf.seek(offset);}
             final byte[] data = new byte[fileHeader.pageSize];
-            raf.read(data);
+            if (compressedStore != null)
+                {compressedStore.read(pageNum, data);}
+            else {
+                if (raf.getFilePointer() != offset)
+                    {raf.seek(offset);}
+                raf.read(data);
+            }
             LOG.debug("Contents of page " + pageNum + ": " + hexDump(data));
         }
     }
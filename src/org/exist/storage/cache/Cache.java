@@ -97,6 +97,22 @@ public interface Cache {
      */
     public boolean flush();
 
+    /**
+     * Write at most maxItems dirty items to disk, starting with
+     * the items which are least likely to be accessed again soon.
+     * The items remain in the cache.
+     *
+     * @param maxItems the maximum number of items to write
+     * @return the number of items written
+     */
+    public int flush(int maxItems);
+
+    /**
+     * Get the number of dirty items which have not yet been
+     * written to disk.
+     */
+    public int getDirtyItems();
+
     /**
      * Get the size of this cache.
      * 
@@ -157,6 +173,20 @@ public interface Cache {
 
     public int getLoad();
 
+    /**
+     * Get the number of items which were removed from the
+     * cache to make room for other items.
+     */
+    public int getEvictions();
+
+    /**
+     * Get the number of pages which were replaced and reloaded shortly
+     * after during the current check period.
+     *
+     * @see Accounting#getThrashing()
+     */
+    public int getThrashing();
+
     public void setFileName(String fileName);
 
     public String getFileName();
@@ -133,6 +133,35 @@ public class GClockCache implements Cache {
 		return flushed;
 	}
 
+	/**
+	 * Writes dirty items with a low reference count first. A second
+	 * pass handles the remaining items if the limit has not been
+	 * reached yet.
+	 *
+	 * @see org.exist.storage.cache.Cache#flush(int)
+	 */
+	public int flush(int maxItems) {
+		int written = 0;
+		for (int pass = 0; pass < 2 && written < maxItems; pass++) {
+			for (int i = 0; i < count && written < maxItems; i++) {
+				final Cacheable item = items[i];
+				if (item != null && item.isDirty() &&
+						(pass == 1 || item.getReferenceCount() <= 1) && item.sync(false))
+					{++written;}
+			}
+		}
+		return written;
+	}
+
+	public int getDirtyItems() {
+		int dirty = 0;
+		for (int i = 0; i < count; i++) {
+			if (items[i] != null && items[i].isDirty())
+				{dirty++;}
+		}
+		return dirty;
+	}
+
 	public boolean hasDirtyItems() {
 	    for(int i = 0; i < count; i++) {
 			if(items[i] != null && items[i].isDirty())
@@ -204,6 +233,10 @@ public class GClockCache implements Cache {
     public int getThrashing() {
         return accounting.getThrashing();
     }
+
+    public int getEvictions() {
+        return accounting.getReplaced();
+    }
     
     public void setCacheManager(CacheManager manager) {
         this.cacheManager = manager;
@@ -124,7 +124,38 @@ public class LRUCache implements Cache {
 		return flushed;
 	}
 
-	
+	/* (non-Javadoc)
+	 * @see org.exist.storage.cache.Cache#flush(int)
+	 */
+	public int flush(int maxItems) {
+		int written = 0;
+		Cacheable cacheable;
+		SequencedLongHashMap.Entry<Cacheable> next = map.getFirstEntry();
+		while(next != null && written < maxItems) {
+			cacheable = next.getValue();
+			if(cacheable.isDirty() && cacheable.sync(false)) {
+				written++;
+			}
+			next = next.getNext();
+		}
+		return written;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.exist.storage.cache.Cache#getDirtyItems()
+	 */
+	public int getDirtyItems() {
+		int dirty = 0;
+		SequencedLongHashMap.Entry<Cacheable> next = map.getFirstEntry();
+		while(next != null) {
+			if(next.getValue().isDirty())
+				{dirty++;}
+			next = next.getNext();
+		}
+		return dirty;
+	}
+
+
     /* (non-Javadoc)
      * @see org.exist.storage.cache.Cache#hasDirtyItems()
      */
@@ -171,6 +202,10 @@ public class LRUCache implements Cache {
     public int getThrashing() {
         return accounting.getThrashing();
     }
+
+    public int getEvictions() {
+        return accounting.getReplaced();
+    }
     
 	/* (non-Javadoc)
 	 * @see org.exist.storage.cache.Cache#setFileName(java.lang.String)
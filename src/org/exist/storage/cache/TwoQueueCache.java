@@ -0,0 +1,473 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *  $Id$
+ */
+package org.exist.storage.cache;
+
+import org.exist.storage.CacheManager;
+import org.exist.util.hashtable.SequencedLongHashMap;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A scan resistant cache implementing the 2Q replacement policy. Items
+ * enter the cache through a small FIFO queue (probation). If an item is evicted
+ * from probation, its key is remembered in a ghost queue. Only items which are
+ * requested again while their key is still in the ghost queue are admitted to
+ * the main queue (protected). The protected queue is managed with a
+ * second-chance (clock) algorithm approximating LRU.
+ *
+ * Pages which are read only once, e.g. by a full collection scan, thus pass
+ * through the probation queue without evicting the working set from the
+ * protected queue. Inner pages of a B+-tree ({@link BTreeCacheable#isInnerPage()})
+ * are admitted to the protected queue directly.
+ *
+ * {@link #get(long)} does not acquire any lock: the item is looked up in a
+ * concurrent hash map and a reference flag is set. All other operations synchronize
+ * on the cache. Like {@link LRUCache}, items are only removed if
+ * {@link Cacheable#allowUnload()} returns true. The cache grows through
+ * {@link org.exist.storage.CacheManager#requestMem(Cache)} if it detects
+ * thrashing.
+ */
+public class TwoQueueCache implements Cache {
+
+    private final static Object DUMMY = new Object();
+
+    /** Share of the cache reserved for the probation queue */
+    public final static double PROBATION_SHARE = 0.25;
+
+    /** Size of the ghost queue relative to the cache size */
+    public final static double GHOST_SHARE = 0.5;
+
+    private int max;
+
+    private final ConcurrentHashMap<Long, Entry> map;
+
+    private final Queue probation = new Queue();
+    private final Queue protectedQueue = new Queue();
+
+    /** keys of items recently evicted from probation, guarded by this */
+    private SequencedLongHashMap<Object> ghosts;
+
+    private final Accounting accounting;
+
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    // guarded by this
+    private int evictions = 0;
+    private int pollution = 0;
+    private int ghostHits = 0;
+
+    private int hitsOld = -1;
+
+    private final double growthFactor;
+
+    private String fileName;
+
+    private CacheManager cacheManager = null;
+
+    private final String type;
+
+    public TwoQueueCache(int size, double growthFactor, double growthThreshold, String type) {
+        this.max = size;
+        this.growthFactor = growthFactor;
+        this.map = new ConcurrentHashMap<Long, Entry>(size * 2, 0.75f, 16);
+        this.ghosts = new SequencedLongHashMap<Object>(ghostSize() * 2);
+        this.accounting = new Accounting(growthThreshold);
+        accounting.setTotalSize(max);
+        this.type = type;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    /* (non-Javadoc)
+     * @see org.exist.storage.cache.Cache#add(org.exist.storage.cache.Cacheable, int)
+     */
+    public void add(Cacheable item, int initialRefCount) {
+        add(item);
+    }
+
+    /* (non-Javadoc)
+     * @see org.exist.storage.cache.Cache#add(org.exist.storage.cache.Cacheable)
+     */
+    public synchronized void add(Cacheable item) {
+        final long key = item.getKey();
+        Entry entry = map.get(key);
+        if (entry != null) {
+            entry.item = item;
+            entry.referenced = true;
+            return;
+        }
+        final boolean ghost = ghosts.remove(key) != null;
+        if (ghost)
+            {ghostHits++;}
+        if (map.size() >= max)
+            {removeOne(item);}
+        entry = new Entry(item);
+        if (ghost || (item instanceof BTreeCacheable && ((BTreeCacheable) item).isInnerPage())) {
+            entry.isProtected = true;
+            protectedQueue.append(entry);
+        } else
+            {probation.append(entry);}
+        map.put(key, entry);
+    }
+
+    /* (non-Javadoc)
+     * @see org.exist.storage.cache.Cache#get(org.exist.storage.cache.Cacheable)
+     */
+    public Cacheable get(Cacheable item) {
+        return get(item.getKey());
+    }
+
+    /* (non-Javadoc)
+     * @see org.exist.storage.cache.Cache#get(long)
+     */
+    public Cacheable get(long key) {
+        final Entry entry = map.get(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        entry.referenced = true;
+        return entry.item;
+    }
+
+    /* (non-Javadoc)
+     * @see org.exist.storage.cache.Cache#remove(org.exist.storage.cache.Cacheable)
+     */
+    public synchronized void remove(Cacheable item) {
+        final Entry entry = map.remove(item.getKey());
+        if (entry != null)
+            {queueOf(entry).unlink(entry);}
+    }
+
+    /* (non-Javadoc)
+     * @see org.exist.storage.cache.Cache#flush()
+     */
+    public synchronized boolean flush() {
+        boolean flushed = false;
+        for (final Entry entry : map.values()) {
+            final Cacheable cacheable = entry.item;
+            if (cacheable.isDirty())
+                {flushed = flushed | cacheable.sync(false);}
+        }
+        return flushed;
+    }
+
+    /**
+     * Writes dirty pages from the head of the probation queue first, then
+     * from the protected queue, i.e. the pages which would be evicted next.
+     *
+     * @see org.exist.storage.cache.Cache#flush(int)
+     */
+    public synchronized int flush(int maxItems) {
+        int written = flushQueue(probation, maxItems);
+        if (written < maxItems)
+            {written += flushQueue(protectedQueue, maxItems - written);}
+        return written;
+    }
+
+    private int flushQueue(Queue queue, int maxItems) {
+        int written = 0;
+        for (Entry entry = queue.head; entry != null && written < maxItems; entry = entry.next) {
+            if (entry.item.isDirty() && entry.item.sync(false))
+                {written++;}
+        }
+        return written;
+    }
+
+    /* (non-Javadoc)
+     * @see org.exist.storage.cache.Cache#getDirtyItems()
+     */
+    public synchronized int getDirtyItems() {
+        int dirty = 0;
+        for (final Entry entry : map.values()) {
+            if (entry.item.isDirty())
+                {dirty++;}
+        }
+        return dirty;
+    }
+
+    /* (non-Javadoc)
+     * @see org.exist.storage.cache.Cache#hasDirtyItems()
+     */
+    public synchronized boolean hasDirtyItems() {
+        for (final Entry entry : map.values()) {
+            if (entry.item.isDirty())
+                {return true;}
+        }
+        return false;
+    }
+
+    /**
+     * Remove one item to make room for the new item. Try the probation queue
+     * first unless it is below its share, then the protected queue.
+     */
+    private void removeOne(Cacheable item) {
+        final boolean fromProbation = probation.size > probationSize() || protectedQueue.size == 0;
+        boolean removed;
+        if (fromProbation)
+            {removed = evictFromProbation(item.getKey()) || evictFromProtected(item.getKey());}
+        else
+            {removed = evictFromProtected(item.getKey()) || evictFromProbation(item.getKey());}
+        if (!removed) {
+            // all items are in use: temporarily exceed the cache size instead of spinning
+            LOG.debug("Unable to remove entry from cache " + fileName);
+            return;
+        }
+        evictions++;
+        accounting.replacedPage(item);
+        if (growthFactor > 1.0 && cacheManager != null && accounting.resizeNeeded()) {
+            cacheManager.requestMem(this);
+        }
+    }
+
+    private boolean evictFromProbation(long newKey) {
+        Entry entry = probation.head;
+        while (entry != null) {
+            final Entry next = entry.next;
+            if (entry.item.getKey() != newKey && entry.item.allowUnload()) {
+                if (!entry.referenced)
+                    {pollution++;}
+                evict(entry, probation);
+                if (ghosts.size() >= ghostSize())
+                    {ghosts.removeFirst();}
+                ghosts.put(entry.item.getKey(), DUMMY);
+                return true;
+            }
+            entry = next;
+        }
+        return false;
+    }
+
+    private boolean evictFromProtected(long newKey) {
+        // every entry gets at most one second chance
+        int remaining = protectedQueue.size * 2;
+        while (remaining-- > 0 && protectedQueue.head != null) {
+            final Entry entry = protectedQueue.head;
+            if (entry.referenced || entry.item.getKey() == newKey || !entry.item.allowUnload()) {
+                entry.referenced = false;
+                protectedQueue.unlink(entry);
+                protectedQueue.append(entry);
+            } else {
+                evict(entry, protectedQueue);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void evict(Entry entry, Queue queue) {
+        entry.item.sync(true);
+        queue.unlink(entry);
+        map.remove(entry.item.getKey());
+    }
+
+    private Queue queueOf(Entry entry) {
+        return entry.isProtected ? protectedQueue : probation;
+    }
+
+    private int probationSize() {
+        return Math.max(1, (int) (max * PROBATION_SHARE));
+    }
+
+    private int ghostSize() {
+        return Math.max(1, (int) (max * GHOST_SHARE));
+    }
+
+    /* (non-Javadoc)
+     * @see org.exist.storage.cache.Cache#getBuffers()
+     */
+    public int getBuffers() {
+        return max;
+    }
+
+    /* (non-Javadoc)
+     * @see org.exist.storage.cache.Cache#getUsedBuffers()
+     */
+    public int getUsedBuffers() {
+        return map.size();
+    }
+
+    /* (non-Javadoc)
+     * @see org.exist.storage.cache.Cache#getHits()
+     */
+    public int getHits() {
+        return hits.get();
+    }
+
+    /* (non-Javadoc)
+     * @see org.exist.storage.cache.Cache#getFails()
+     */
+    public int getFails() {
+        return misses.get();
+    }
+
+    public synchronized int getThrashing() {
+        return accounting.getThrashing();
+    }
+
+    public synchronized int getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of items which were evicted from the
+     * probation queue without being accessed again after they had been
+     * loaded, i.e. pages which were used only once.
+     */
+    public synchronized int getPollution() {
+        return pollution;
+    }
+
+    /**
+     * Returns the number of items which were admitted to the protected
+     * queue because they were requested again shortly after eviction.
+     */
+    public synchronized int getGhostHits() {
+        return ghostHits;
+    }
+
+    /**
+     * Returns the number of items in the protected queue.
+     */
+    public synchronized int getProtectedBuffers() {
+        return protectedQueue.size;
+    }
+
+    /* (non-Javadoc)
+     * @see org.exist.storage.cache.Cache#setFileName(java.lang.String)
+     */
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    /* (non-Javadoc)
+     * @see org.exist.storage.cache.Cache#getGrowthFactor()
+     */
+    public double getGrowthFactor() {
+        return growthFactor;
+    }
+
+    /* (non-Javadoc)
+     * @see org.exist.storage.cache.Cache#setCacheManager(org.exist.storage.CacheManager)
+     */
+    public void setCacheManager(CacheManager manager) {
+        this.cacheManager = manager;
+    }
+
+    /* (non-Javadoc)
+     * @see org.exist.storage.cache.Cache#resize(int)
+     */
+    public synchronized void resize(int newSize) {
+        final int oldSize = max;
+        max = newSize;
+        if (newSize < oldSize) {
+            while (map.size() > max) {
+                if (!evictFromProbation(-1) && !evictFromProtected(-1))
+                    {break;}
+                evictions++;
+            }
+        }
+        final SequencedLongHashMap<Object> newGhosts = new SequencedLongHashMap<Object>(ghostSize() * 2);
+        SequencedLongHashMap.Entry<Object> next = ghosts.getFirstEntry();
+        while (next != null) {
+            if (newGhosts.size() >= ghostSize())
+                {newGhosts.removeFirst();}
+            newGhosts.put(next.getKey(), DUMMY);
+            next = next.getNext();
+        }
+        ghosts = newGhosts;
+        accounting.reset();
+        accounting.setTotalSize(max);
+    }
+
+    public synchronized int getLoad() {
+        final int current = hits.get();
+        if (hitsOld == 0) {
+            hitsOld = current;
+            return Integer.MAX_VALUE;
+        }
+        final int load = current - hitsOld;
+        hitsOld = current;
+        return load;
+    }
+
+    private final static class Entry {
+
+        volatile Cacheable item;
+
+        /** set by readers without holding the lock */
+        volatile boolean referenced = false;
+
+        boolean isProtected = false;
+
+        Entry prev = null;
+        Entry next = null;
+
+        Entry(Cacheable item) {
+            this.item = item;
+        }
+    }
+
+    /**
+     * Doubly linked list of entries, guarded by the cache.
+     */
+    private final static class Queue {
+
+        Entry head = null;
+        Entry tail = null;
+        int size = 0;
+
+        void append(Entry entry) {
+            entry.next = null;
+            entry.prev = tail;
+            if (tail == null)
+                {head = entry;}
+            else
+                {tail.next = entry;}
+            tail = entry;
+            size++;
+        }
+
+        void unlink(Entry entry) {
+            if (entry.prev == null)
+                {head = entry.next;}
+            else
+                {entry.prev.next = entry.next;}
+            if (entry.next == null)
+                {tail = entry.prev;}
+            else
+                {entry.next.prev = entry.prev;}
+            entry.prev = null;
+            entry.next = null;
+            size--;
+        }
+    }
+}
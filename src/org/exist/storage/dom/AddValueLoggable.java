@@ -27,10 +27,11 @@ import java.nio.ByteBuffer;
 import org.exist.storage.DBBroker;
 import org.exist.storage.NativeBroker;
 import org.exist.storage.journal.AbstractLoggable;
+import org.exist.storage.journal.FileLoggable;
 import org.exist.storage.journal.LogException;
 import org.exist.storage.txn.Txn;
 
-public class AddValueLoggable extends AbstractLoggable {
+public class AddValueLoggable extends AbstractLoggable implements FileLoggable {
 
 	protected DOMFile domDb;
 	protected long pageNum;
@@ -86,6 +87,10 @@ public class AddValueLoggable extends AbstractLoggable {
 		return 8 + value.length;
 	}
 
+    public byte getFileId() {
+        return NativeBroker.DOM_DBX_ID;
+    }
+
     public void redo() throws LogException {
         domDb.redoAddValue(this);
     }
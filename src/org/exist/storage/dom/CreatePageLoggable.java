@@ -26,13 +26,14 @@ import java.nio.ByteBuffer;
 import org.exist.storage.DBBroker;
 import org.exist.storage.NativeBroker;
 import org.exist.storage.journal.AbstractLoggable;
+import org.exist.storage.journal.FileLoggable;
 import org.exist.storage.journal.LogException;
 import org.exist.storage.txn.Txn;
 
 /**
  * @author wolf
  */
-public class CreatePageLoggable extends AbstractLoggable {
+public class CreatePageLoggable extends AbstractLoggable implements FileLoggable {
  
 	protected long prevPage;
 	protected long newPage;
@@ -84,6 +85,10 @@ public class CreatePageLoggable extends AbstractLoggable {
         return 14;
     }
 	
+    public byte getFileId() {
+        return NativeBroker.DOM_DBX_ID;
+    }
+
     public void redo() throws LogException {
         domDb.redoCreatePage(this);
     }
@@ -59,7 +59,6 @@ import org.exist.storage.btree.IndexQuery;
 import org.exist.storage.btree.Value;
 import org.exist.storage.cache.Cache;
 import org.exist.storage.cache.Cacheable;
-import org.exist.storage.cache.LRUCache;
 import org.exist.storage.journal.LogEntryTypes;
 import org.exist.storage.journal.Loggable;
 import org.exist.storage.journal.Lsn;
@@ -165,6 +164,17 @@ public class DOMFile extends BTree implements Lockable {
 
     public final static short FILE_FORMAT_VERSION_ID = 9;
 
+    /** file version used if pages are stored in compressed form */
+    public final static short FILE_FORMAT_VERSION_ID_COMPRESSED = 10;
+
+    /**
+     * Attribute of the db-connection element in conf.xml: if set to "yes",
+     * the pages of dom.dbx are stored in compressed form. The setting can only be
+     * changed by a backup and restore into an empty data directory.
+     */
+    public final static String COMPRESSION_ATTRIBUTE = "dom-compression";
+    public final static String PROPERTY_COMPRESSION = "db-connection.dom-compression";
+
     //Page types
     public final static byte LOB = 21;
     public final static byte RECORD = 20;
@@ -187,17 +197,26 @@ public class DOMFile extends BTree implements Lockable {
 
     private final AddValueLoggable addValueLog = new AddValueLoggable();
 
+    private boolean compressed = false;
+
     public DOMFile(BrokerPool pool, byte id, String dataDir, Configuration config) throws DBException {
         super(pool, id, true, pool.getCacheManager(), 0.01);
         lock = new ReentrantReadWriteLock(getFileName());
         fileHeader = (BTreeFileHeader)getFileHeader();
         fileHeader.setPageCount(0);
         fileHeader.setTotalCount(0);
-        dataCache = new LRUCache(256, 0.0, 1.0, CacheManager.DATA_CACHE);
+        dataCache = cacheManager.createCache(256, 0.0, 1.0, CacheManager.DATA_CACHE);
         dataCache.setFileName(getFileName());
         cacheManager.registerCache(dataCache);
         final File file = new File(dataDir + File.separatorChar + getFileName());
         setFile(file);
+        final Boolean compression = (Boolean) config.getProperty(PROPERTY_COMPRESSION);
+        if (compression != null && compression.booleanValue()) {
+            compressed = true;
+            enableCompression();
+            if (LOG.isDebugEnabled())
+                {LOG.debug("Storing pages of " + file.getName() + " in compressed form");}
+        }
         if (exists()) {
             open();
         } else {
@@ -263,7 +282,18 @@ public class DOMFile extends BTree implements Lockable {
      * @exception DBException   Description of the Exception
      */
     public boolean open() throws DBException {
-        return super.open(FILE_FORMAT_VERSION_ID);
+        try {
+            return super.open(getFileVersion());
+        } catch (final DBException e) {
+            final short version = getFileHeader().getVersion();
+            if (version == FILE_FORMAT_VERSION_ID || version == FILE_FORMAT_VERSION_ID_COMPRESSED)
+                {throw new DBException("Database file " + getFile().getName() + " was created " +
+                    (version == FILE_FORMAT_VERSION_ID ? "without" : "with") + " page compression, but " +
+                    COMPRESSION_ATTRIBUTE + " is " + (compressed ? "enabled" : "disabled") + " in the " +
+                    "configuration. To change the setting, create a backup, clean the data directory, " +
+                    "change the setting and restore the backup.");}
+            throw e;
+        }
     }
 
     public void closeDocument() {
@@ -292,7 +322,7 @@ public class DOMFile extends BTree implements Lockable {
      * @return file version.
      */
     public short getFileVersion() {
-        return FILE_FORMAT_VERSION_ID;
+        return compressed ? FILE_FORMAT_VERSION_ID_COMPRESSED : FILE_FORMAT_VERSION_ID;
     }
 
     public boolean create() throws DBException {
@@ -1343,12 +1373,39 @@ public class DOMFile extends BTree implements Lockable {
         if (isTransactional)
             {logManager.flushToLog(true);}
         if (!BrokerPool.FORCE_CORRUPTION) {
-            flushed = flushed | super.flush();
-            flushed = flushed | dataCache.flush();
+            beginWriteBatch();
+            try {
+                flushed = flushed | super.flush();
+                flushed = flushed | dataCache.flush();
+            } finally {
+                endWriteBatch();
+            }
         }
         return flushed;
     }
 
+    @Override
+    public int flushDirtyPages(int maxPages) throws DBException {
+        if (BrokerPool.FORCE_CORRUPTION || getDirtyPages() == 0)
+            {return 0;}
+        if (isTransactional)
+            {logManager.flushToLog(true);}
+        beginWriteBatch();
+        try {
+            int written = dataCache.flush(maxPages);
+            if (written < maxPages)
+                {written += cache.flush(maxPages - written);}
+            return written;
+        } finally {
+            endWriteBatch();
+        }
+    }
+
+    @Override
+    public int getDirtyPages() {
+        return super.getDirtyPages() + dataCache.getDirtyItems();
+    }
+
     public void printStatistics() {
         super.printStatistics();
         final NumberFormat nf1 = NumberFormat.getPercentInstance();
@@ -1366,12 +1423,15 @@ public class DOMFile extends BTree implements Lockable {
         {buf.append("N/A");}
         else
         {buf.append(nf1.format(dataCache.getHits()/(float)(dataCache.getFails() + dataCache.getHits())));}
+        if (isCompressed()) {
+            buf.append(" Compressed pages written : ").append(nf2.format(getCompressedPages()));
+            buf.append(" (").append(nf1.format(getCompressionRatio())).append(" of uncompressed size)");
+        }
         LOGSTATS.info(buf.toString());
 }
 
     public BufferStats getDataBufferStats() {
-        return new BufferStats(dataCache.getBuffers(), dataCache.getUsedBuffers(), 
-            dataCache.getHits(), dataCache.getFails());
+        return new BufferStats(dataCache);
     }
 
 
@@ -26,15 +26,15 @@ import java.nio.ByteBuffer;
 import org.exist.storage.DBBroker;
 import org.exist.storage.NativeBroker;
 import org.exist.storage.journal.AbstractLoggable;
+import org.exist.storage.journal.FileLoggable;
 import org.exist.storage.journal.LogException;
-import org.exist.storage.journal.Loggable;
 import org.exist.storage.txn.Txn;
 
 /**
  * @author wolf
  *
  */
-public class SplitPageLoggable extends AbstractLoggable implements Loggable {
+public class SplitPageLoggable extends AbstractLoggable implements FileLoggable {
 
     protected long pageNum;
     protected int splitOffset;
@@ -89,6 +89,10 @@ public class SplitPageLoggable extends AbstractLoggable implements Loggable {
         return 10 + oldLen;
     }
     
+    public byte getFileId() {
+        return NativeBroker.DOM_DBX_ID;
+    }
+
     public void redo() throws LogException {
         domDb.redoSplitPage(this);
     }
@@ -26,6 +26,7 @@ import java.nio.ByteBuffer;
 import org.exist.storage.DBBroker;
 import org.exist.storage.NativeBroker;
 import org.exist.storage.journal.AbstractLoggable;
+import org.exist.storage.journal.FileLoggable;
 import org.exist.storage.journal.LogException;
 import org.exist.storage.txn.Txn;
 
@@ -33,7 +34,7 @@ import org.exist.storage.txn.Txn;
  * @author wolf
  *
  */
-public class UpdateHeaderLoggable extends AbstractLoggable {
+public class UpdateHeaderLoggable extends AbstractLoggable implements FileLoggable {
 
     protected long pageNum;
     protected long nextPage;
@@ -96,6 +97,10 @@ public class UpdateHeaderLoggable extends AbstractLoggable {
         return 20;
     }
 
+    public byte getFileId() {
+        return NativeBroker.DOM_DBX_ID;
+    }
+
     public void redo() throws LogException {
         domDb.redoUpdateHeader(this);
     }
@@ -28,6 +28,7 @@ import org.exist.storage.DBBroker;
 import org.exist.storage.NativeBroker;
 import org.exist.storage.btree.Value;
 import org.exist.storage.journal.AbstractLoggable;
+import org.exist.storage.journal.FileLoggable;
 import org.exist.storage.journal.LogException;
 import org.exist.storage.txn.Txn;
 
@@ -35,7 +36,7 @@ import org.exist.storage.txn.Txn;
  * @author wolf
  *
  */
-public class WriteOverflowPageLoggable extends AbstractLoggable {
+public class WriteOverflowPageLoggable extends AbstractLoggable implements FileLoggable {
 
 	protected long pageNum;
 	protected long nextPage;
@@ -91,6 +92,10 @@ public class WriteOverflowPageLoggable extends AbstractLoggable {
 		return 10 + value.getLength();
 	}
 
+	public byte getFileId() {
+	    return NativeBroker.DOM_DBX_ID;
+	}
+
 	public void redo() throws LogException {
 		domDb.redoWriteOverflow(this);
 	}
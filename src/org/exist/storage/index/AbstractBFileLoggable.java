@@ -26,13 +26,14 @@ import java.nio.ByteBuffer;
 import org.exist.storage.DBBroker;
 import org.exist.storage.NativeBroker;
 import org.exist.storage.journal.AbstractLoggable;
+import org.exist.storage.journal.FileLoggable;
 import org.exist.storage.txn.Txn;
 
 /**
  * @author wolf
  *
  */
-public abstract class AbstractBFileLoggable extends AbstractLoggable {
+public abstract class AbstractBFileLoggable extends AbstractLoggable implements FileLoggable {
 
     protected NativeBroker broker;
     protected byte fileId;
@@ -54,6 +55,10 @@ public abstract class AbstractBFileLoggable extends AbstractLoggable {
         this.broker = (NativeBroker) broker;
     }
     
+    public byte getFileId() {
+        return fileId;
+    }
+
     /* (non-Javadoc)
      * @see org.exist.storage.log.Loggable#write(java.nio.ByteBuffer)
      */
@@ -33,10 +33,10 @@ import org.exist.storage.btree.BTreeCallback;
 import org.exist.storage.btree.BTreeException;
 import org.exist.storage.btree.DBException;
 import org.exist.storage.btree.IndexQuery;
+import org.exist.storage.btree.KeySorter;
 import org.exist.storage.btree.Value;
 import org.exist.storage.cache.Cache;
 import org.exist.storage.cache.Cacheable;
-import org.exist.storage.cache.LRUCache;
 import org.exist.storage.io.VariableByteArrayInput;
 import org.exist.storage.io.VariableByteInput;
 import org.exist.storage.io.VariableByteOutputStream;
@@ -52,6 +52,7 @@ import org.exist.util.ByteConversion;
 import org.exist.util.FixedByteArray;
 import org.exist.util.IndexCallback;
 import org.exist.util.LockException;
+import org.exist.util.Lockable;
 import org.exist.util.ReadOnlyException;
 import org.exist.util.sanity.SanityCheck;
 import org.exist.xquery.Constants;
@@ -84,7 +85,7 @@ import java.util.Arrays;
  * 
  * @author Wolfgang Meier <wolfgang@exist-db.org>
  */
-public class BFile extends BTree {
+public class BFile extends BTree implements Lockable {
 
     protected final static Logger LOGSTATS = Logger.getLogger( NativeBroker.EXIST_STATISTICS_LOGGER );
 
@@ -143,6 +144,10 @@ public class BFile extends BTree {
     protected int minFree;
 
     protected Cache dataCache = null;
+
+    private final double dataCacheGrowth;
+
+    private final double dataCacheThreshold;
     
     protected Lock lock = null;
 
@@ -154,9 +159,9 @@ public class BFile extends BTree {
             double cacheGrowth, double thresholdBTree, double thresholdData) throws DBException {
         super(pool, fileId, transactional, cacheManager, file, thresholdBTree);
         fileHeader = (BFileHeader) getFileHeader();
-        dataCache = new LRUCache(64, cacheGrowth, thresholdData, CacheManager.DATA_CACHE);
-        dataCache.setFileName(file.getName());
-        cacheManager.registerCache(dataCache);
+        dataCacheGrowth = cacheGrowth;
+        dataCacheThreshold = thresholdData;
+        initDataCache();
         minFree = PAGE_MIN_FREE;
         lock = new ReentrantReadWriteLock(file.getName());
         maxValueSize = fileHeader.getWorkSize() / 2;
@@ -188,6 +193,28 @@ public class BFile extends BTree {
         return lock;
     }
 
+    private void initDataCache() {
+        dataCache = cacheManager.createCache(64, dataCacheGrowth, dataCacheThreshold, CacheManager.DATA_CACHE);
+        dataCache.setFileName(getFile().getName());
+        cacheManager.registerCache(dataCache);
+    }
+
+    /**
+     * Remove all keys and values by truncating the file, see {@link BTree#truncate()}.
+     * If the file is filled by {@link #appendSorted(Txn, KeySorter, double)} afterwards,
+     * the tree is built bottom-up.
+     *
+     * @throws DBException
+     */
+    @Override
+    public void truncate() throws DBException {
+        // drop the cached data pages without writing them
+        cacheManager.deregisterCache(dataCache);
+        fileHeader.freeList = new FreeList();
+        super.truncate();
+        initDataCache();
+    }
+
     protected long getDataSyncPeriod() {
         return DATA_SYNC_PERIOD;
     }
@@ -264,6 +291,52 @@ public class BFile extends BTree {
         return UNKNOWN_ADDRESS;
     }
 
+    /**
+     * Append the data of all entries of the given sorter, see {@link KeySorter#add(Value, byte[])}.
+     * The data of entries with equal keys is concatenated in the order in which they were
+     * added, so the result is the same as calling {@link #append(Txn, Value, ByteArray)}
+     * for every entry.
+     *
+     * If the file is empty, values are stored in key order and the tree is built
+     * bottom-up, see {@link BTree#addSorted(Txn, KeySorter, double)}.
+     *
+     * @param transaction
+     * @param sorter the entries to append
+     * @param fillFactor the fraction of each tree page filled by a bottom-up build
+     * @throws IOException
+     * @throws BTreeException
+     */
+    public void appendSorted(Txn transaction, KeySorter sorter, double fillFactor) throws IOException, BTreeException {
+        final BulkBuilder builder = isEmpty() ? createBulkBuilder(transaction, fillFactor) : null;
+        final KeySorter.Cursor cursor = sorter.cursor();
+        try {
+            final ByteArrayOutputStream data = new ByteArrayOutputStream();
+            Value key = null;
+            while (true) {
+                final boolean more = cursor.next();
+                if (key != null && (!more || !cursor.getKey().equals(key))) {
+                    // all entries for key have been read
+                    final ByteArray value = new FixedByteArray(data.toByteArray());
+                    if (key.getLength() > fileHeader.getMaxKeySize())
+                        {LOG.warn("Key length exceeds page size! Skipping key ...");}
+                    else if (builder == null)
+                        {append(transaction, key, value);}
+                    else
+                        {builder.add(key, storeValue(transaction, value));}
+                    data.reset();
+                }
+                if (!more)
+                    {break;}
+                key = cursor.getKey();
+                data.write(cursor.getData());
+            }
+            if (builder != null)
+                {builder.finish();}
+        } finally {
+            cursor.close();
+        }
+    }
+
     /**
      * Close the BFile.
      * 
@@ -398,16 +471,42 @@ public class BFile extends BTree {
         //TODO : consider log operation as a flush ?
         if (isTransactional)
             {logManager.flushToLog(true);}
-        flushed = flushed | dataCache.flush();
-        flushed = flushed | super.flush();
+        beginWriteBatch();
+        try {
+            flushed = flushed | dataCache.flush();
+            flushed = flushed | super.flush();
+        } finally {
+            endWriteBatch();
+        }
         return flushed;
     }
 
+    @Override
+    public int flushDirtyPages(int maxPages) throws DBException {
+        if (getDirtyPages() == 0)
+            {return 0;}
+        if (isTransactional)
+            {logManager.flushToLog(true);}
+        beginWriteBatch();
+        try {
+            int written = dataCache.flush(maxPages);
+            if (written < maxPages)
+                {written += cache.flush(maxPages - written);}
+            return written;
+        } finally {
+            endWriteBatch();
+        }
+    }
+
+    @Override
+    public int getDirtyPages() {
+        return super.getDirtyPages() + dataCache.getDirtyItems();
+    }
+
     public BufferStats getDataBufferStats() {
         if (dataCache == null)
             {return null;}
-        return new BufferStats(dataCache.getBuffers(), dataCache.getUsedBuffers(), 
-            dataCache.getHits(), dataCache.getFails());
+        return new BufferStats(dataCache);
     }
 
     @Override
@@ -0,0 +1,37 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *  $Id$
+ */
+package org.exist.storage.journal;
+
+/**
+ * Implemented by log entries whose redo and undo operations only touch
+ * a single database file. Recovery uses the file id to replay the entries
+ * for different files in parallel. Entries for the same file are always
+ * replayed in log order.
+ */
+public interface FileLoggable extends Loggable {
+
+    /**
+     * Returns the id of the database file modified by this entry, as
+     * returned by {@link org.exist.storage.NativeBroker#getStorage(byte)}.
+     */
+    public byte getFileId();
+}
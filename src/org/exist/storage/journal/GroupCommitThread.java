@@ -0,0 +1,230 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *  $Id$
+ */
+package org.exist.storage.journal;
+
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Log writer thread used if group commits are enabled. Committing transactions
+ * append their commit record to the journal buffer and then call {@link #waitFor(long)}
+ * instead of flushing the journal themselves. This thread drains the buffer to the
+ * journal file and syncs it. All transactions whose commit record was written before
+ * the sync started are acknowledged together, so many commits share a single
+ * fsync.
+ *
+ * While a sync is in progress, other threads can continue to append records to the
+ * journal buffer. They will be picked up by the next round.
+ *
+ * If the journal cannot be written or synced, the transactions waiting for the sync
+ * are not acknowledged: {@link #waitFor(long)} throws an IOException instead.
+ */
+public class GroupCommitThread extends Thread {
+
+    private static final Logger LOG = Logger.getLogger(GroupCommitThread.class);
+
+    private final Journal journal;
+
+    // guarded by this
+    private long requestedLsn = Lsn.LSN_INVALID;
+
+    // guarded by this: the journal has been written and synced up to this LSN
+    private long durableLsn = Lsn.LSN_INVALID;
+
+    // guarded by this: the last LSN for which a sync was attempted, successful or not
+    private long processedLsn = Lsn.LSN_INVALID;
+
+    // guarded by this: the error raised by the last failed sync
+    private IOException lastError = null;
+
+    // guarded by this: set when the thread has terminated
+    private boolean stopped = false;
+
+    // guarded by this: number of commits waiting for the next sync
+    private int pendingCommits = 0;
+
+    // used as termination flag, volatile semantics are sufficient
+    private volatile boolean shutdown = false;
+
+    // statistics, guarded by this
+    private long commits = 0;
+    private long syncs = 0;
+    private int maxBatchSize = 0;
+    private long totalSyncTime = 0;
+    private long maxSyncTime = 0;
+
+    public GroupCommitThread(Journal journal) {
+        super("exist-journal-group-commit");
+        this.journal = journal;
+        setDaemon(true);
+    }
+
+    /**
+     * Block the calling thread until the journal has been written (and synced)
+     * up to the given LSN.
+     *
+     * @param lsn the LSN of the commit record
+     * @throws IOException if the journal could not be written or synced up to
+     * the given LSN, or if the thread was stopped before
+     */
+    public synchronized void waitFor(long lsn) throws IOException {
+        if (lsn <= durableLsn)
+            {return;}
+        if (stopped)
+            {throw new IOException("Journal writer has been stopped before LSN " + Lsn.dump(lsn) + " was synced");}
+        if (lsn > requestedLsn)
+            {requestedLsn = lsn;}
+        pendingCommits++;
+        notifyAll();
+        while (lsn > processedLsn && !stopped) {
+            try {
+                wait();
+            } catch (final InterruptedException e) {
+                //Nothing to do
+            }
+        }
+        if (lsn > durableLsn) {
+            throw new IOException("Journal could not be written up to LSN " + Lsn.dump(lsn) +
+                (lastError == null ? "" : ": " + lastError.getMessage()), lastError);
+        }
+    }
+
+    /**
+     * Shutdown the thread. Any pending commits will be synced before the
+     * thread exits.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            notifyAll();
+        }
+        try {
+            join();
+        } catch (final InterruptedException e) {
+            //Nothing to do
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            final int batchSize;
+            final long target;
+            synchronized (this) {
+                while (!shutdown && requestedLsn <= processedLsn) {
+                    try {
+                        wait();
+                    } catch (final InterruptedException e) {
+                        //Nothing to do
+                    }
+                }
+                if (shutdown && requestedLsn <= processedLsn)
+                    {break;}
+                batchSize = pendingCommits;
+                target = requestedLsn;
+                pendingCommits = 0;
+            }
+            final long start = System.nanoTime();
+            long lsn;
+            IOException error = null;
+            try {
+                lsn = sync();
+            } catch (final IOException e) {
+                lsn = Lsn.LSN_INVALID;
+                error = e;
+            }
+            final long elapsed = System.nanoTime() - start;
+            synchronized (this) {
+                if (error == null && lsn < target) {
+                    // the commit records were already in the buffer when the sync
+                    // started, so this only happens if the journal could not be written
+                    // (e.g. during shutdown)
+                    error = new IOException("Journal was only written up to LSN " + Lsn.dump(lsn));
+                }
+                if (error != null) {
+                    // the waiting commits fail; durableLsn is not advanced
+                    LOG.error("Journal could not be written up to LSN " + Lsn.dump(target) + ": " +
+                        error.getMessage(), error);
+                    lastError = error;
+                } else if (lsn > durableLsn)
+                    {durableLsn = lsn;}
+                if (target > processedLsn)
+                    {processedLsn = target;}
+                commits += batchSize;
+                syncs++;
+                if (batchSize > maxBatchSize)
+                    {maxBatchSize = batchSize;}
+                totalSyncTime += elapsed;
+                if (elapsed > maxSyncTime)
+                    {maxSyncTime = elapsed;}
+                notifyAll();
+            }
+        }
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+        }
+        if (LOG.isDebugEnabled())
+            {LOG.debug("Group commit thread stopped. Commits: " + commits + "; syncs: " + syncs);}
+    }
+
+    /**
+     * Write the journal buffer to the file and sync it.
+     *
+     * @return the last LSN written to the journal file
+     * @throws IOException if the journal file could not be synced
+     */
+    protected long sync() throws IOException {
+        return journal.syncForGroupCommit();
+    }
+
+    /** Number of commits acknowledged through a group sync. */
+    public synchronized long getCommitCount() {
+        return commits;
+    }
+
+    /** Number of syncs done by this thread. */
+    public synchronized long getSyncCount() {
+        return syncs;
+    }
+
+    /** Average number of commits acknowledged by a single sync. */
+    public synchronized double getAverageBatchSize() {
+        return syncs == 0 ? 0.0 : (double) commits / syncs;
+    }
+
+    /** Largest number of commits acknowledged by a single sync. */
+    public synchronized int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /** Average time needed to write and sync the journal, in milliseconds. */
+    public synchronized double getAverageSyncTime() {
+        return syncs == 0 ? 0.0 : totalSyncTime / (syncs * 1000000.0);
+    }
+
+    /** Longest time needed to write and sync the journal, in milliseconds. */
+    public synchronized double getMaxSyncTime() {
+        return maxSyncTime / 1000000.0;
+    }
+}
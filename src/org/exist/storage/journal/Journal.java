@@ -116,6 +116,9 @@ public class Journal {
     /** Synching the journal is done by a background thread */
     private FileSyncThread syncThread;
 
+    /** Log writer thread for group commits. Null unless group commits are enabled. */
+    private GroupCommitThread groupCommitThread = null;
+
     /** latch used to synchronize writes to the channel */
     private Object latch = new Object();
 
@@ -249,6 +252,87 @@ public class Journal {
         pool.getTransactionManager().trackOperation(loggable.getTransactionId());
     }
 
+    /**
+     * Enable or disable group commits. If enabled, committing transactions
+     * do not flush the journal themselves, but wait in {@link #waitForCommit(long)}
+     * until a background log writer thread has written and synced their commit record.
+     * Concurrent commits are thus acknowledged by a single sync.
+     *
+     * @param groupCommit
+     */
+    public void setGroupCommit(boolean groupCommit) {
+        if (groupCommit && groupCommitThread == null) {
+            groupCommitThread = new GroupCommitThread(this);
+            groupCommitThread.start();
+        } else if (!groupCommit && groupCommitThread != null) {
+            groupCommitThread.shutdown();
+            groupCommitThread = null;
+        }
+    }
+
+    /**
+     * Returns the log writer thread used for group commits, or null
+     * if group commits are disabled.
+     */
+    public GroupCommitThread getGroupCommitThread() {
+        return groupCommitThread;
+    }
+
+    /**
+     * Make sure the log record with the given LSN has been written to the journal
+     * and - if sync-on-commit is enabled - synced to disk. With group commits enabled,
+     * the calling thread blocks until the log writer thread has processed the record.
+     * The caller should not hold any locks which could prevent other transactions
+     * from committing. Otherwise, the journal is flushed directly.
+     *
+     * @param lsn the LSN of the commit record
+     * @throws IOException if the log writer thread failed to write or sync the
+     * journal up to the given LSN
+     */
+    public void waitForCommit(long lsn) throws IOException {
+        final GroupCommitThread writer = groupCommitThread;
+        if (writer == null || inRecovery)
+            {flushToLog(true);}
+        else
+            {writer.waitFor(lsn);}
+    }
+
+    /**
+     * Called by the {@link GroupCommitThread}: write the current buffer to the
+     * journal and sync the file if sync-on-commit is enabled. Other threads can
+     * continue to write log entries while the sync is running.
+     *
+     * @return the last LSN written to the journal file
+     * @throws IOException if the journal file could not be synced
+     */
+    long syncForGroupCommit() throws IOException {
+        final long lsn;
+        synchronized (this) {
+            if (currentBuffer == null)
+                {return lastLsnWritten;}
+            flushBuffer();
+            lsn = lastLsnWritten;
+            try {
+                if (channel != null && channel.size() >= journalSizeLimit)
+                    {pool.triggerCheckpoint();}
+            } catch (final IOException e) {
+                LOG.warn("Failed to trigger checkpoint!", e);
+            }
+        }
+        if (syncOnCommit) {
+            synchronized (latch) {
+                if (channel == null || !channel.isOpen())
+                    {throw new IOException("Journal file has been closed");}
+                channel.force(false);
+            }
+            synchronized (this) {
+                if (lsn > lastSyncLsn)
+                    {lastSyncLsn = lsn;}
+            }
+        }
+        return lsn;
+    }
+
     /**
      * Returns the last LSN physically written to the journal.
      * 
@@ -490,6 +574,10 @@ public class Journal {
             }
             flushBuffer();
         }
+        if (groupCommitThread != null) {
+            groupCommitThread.shutdown();
+            groupCommitThread = null;
+        }
         fileLock.release();
         syncThread.shutdown();
         try {
@@ -0,0 +1,419 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2013 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ *  $Id$
+ */
+package org.exist.storage.lock;
+
+import org.apache.log4j.Logger;
+import org.exist.util.DeadlockException;
+import org.exist.util.LockException;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A reentrant read/write lock for read-mostly workloads. It has the same semantics
+ * as {@link MultiReadReentrantLock}: multiple readers, reentrant read and write locks,
+ * read locks within a write lock and upgrades from read to write if all read locks are
+ * held by the upgrading thread. It participates in {@link DeadlockDetection} in the
+ * same way.
+ *
+ * Read locks are tracked per thread in a {@link ConcurrentHashMap}, whose entries are
+ * striped, so acquiring or releasing a read lock does not take the monitor of the lock
+ * as long as there's no writer. Only writers and readers which have to wait for a writer
+ * synchronize on the lock object.
+ *
+ * A writer first announces itself as the pending writer, then checks for active readers,
+ * and only sets the write-locked thread if there are none. A reader first registers itself,
+ * then checks for a pending or active writer. One of the two will thus always see the other
+ * and back off.
+ */
+public class ConcurrentReadWriteLock implements Lock {
+
+    private final static Logger LOG = Logger.getLogger(ConcurrentReadWriteLock.class);
+
+    private final Object id;
+
+    private final String lockType;
+
+    /**
+     * Read locks held per thread. A count object is only modified by the thread
+     * it belongs to. Threads without read locks have no entry.
+     */
+    private final ConcurrentHashMap<Thread, ReadCount> readers = new ConcurrentHashMap<Thread, ReadCount>(8, 0.75f, 16);
+
+    /**
+     * The thread that has the write lock or null. Only changed while holding the monitor.
+     */
+    private volatile Thread writeLockedThread = null;
+
+    /**
+     * The thread which checks for readers before it is granted the write lock, see
+     * {@link #grantWriteLock(Thread)}. Only set while holding the monitor.
+     */
+    private volatile Thread pendingWriter = null;
+
+    /**
+     * The number of (nested) write locks held by writeLockedThread.
+     */
+    private int outstandingWriteLocks = 0;
+
+    /**
+     * Incremented whenever the write lock is granted or finally released.
+     */
+    private volatile long writeVersion = 0;
+
+    /**
+     * Number of threads waiting for a write lock. Read by releasing readers
+     * without holding the monitor.
+     */
+    private volatile int waitingForWrite = 0;
+
+    /**
+     * Number of threads waiting to read. Guarded by this.
+     */
+    private int waitingForReadLock = 0;
+
+    /**
+     * Threads waiting to get a write lock. Guarded by this.
+     */
+    private final List<WaitingThread> waitingForWriteLock = new ArrayList<WaitingThread>(3);
+
+    public ConcurrentReadWriteLock(Object id) {
+        this(id, LockInfo.RESOURCE_LOCK);
+    }
+
+    /**
+     * @param id the id of the lock, e.g. the path of the resource
+     * @param lockType the lock type reported in {@link LockInfo}, either
+     *  {@link LockInfo#RESOURCE_LOCK} or {@link LockInfo#COLLECTION_LOCK}
+     */
+    public ConcurrentReadWriteLock(Object id, String lockType) {
+        this.id = id;
+        this.lockType = lockType;
+    }
+
+    public String getId() {
+        return id.toString();
+    }
+
+    /* @deprecated Use other method
+    * @see org.exist.storage.lock.Lock#acquire()
+    */
+    public boolean acquire() throws LockException {
+        return acquire(Lock.READ_LOCK);
+    }
+
+    public boolean acquire(int mode) throws LockException {
+        if (mode == Lock.NO_LOCK) {
+            LOG.warn("acquired with no lock !");
+            return true;
+        }
+        switch (mode) {
+            case Lock.WRITE_LOCK:
+                return writeLock(true);
+            default:
+                return readLock(true);
+        }
+    }
+
+    public boolean attempt(int mode) {
+        try {
+            switch (mode) {
+            case Lock.WRITE_LOCK:
+                return writeLock(false);
+            default:
+                return readLock(false);
+            }
+        } catch (final LockException e) {
+            return false;
+        }
+    }
+
+    private boolean readLock(boolean waitIfNecessary) throws LockException {
+        final Thread thisThread = Thread.currentThread();
+        final ReadCount count = readers.get(thisThread);
+        if (count != null) {
+            // nested read lock: never blocks
+            count.count++;
+            return true;
+        }
+        final Thread writer = writeLockedThread;
+        if (writer == thisThread) {
+            readers.put(thisThread, new ReadCount());
+            return true;
+        }
+        if (writer == null) {
+            readers.put(thisThread, new ReadCount());
+            // the pending writer is cleared after the write lock is granted, so check it first
+            if (pendingWriter == null && writeLockedThread == null)
+                {return true;}
+            // a writer came in between: back off and wait
+            readers.remove(thisThread);
+            signalWriters();
+        }
+        return readLockWait(thisThread, waitIfNecessary);
+    }
+
+    private synchronized boolean readLockWait(Thread thisThread, boolean waitIfNecessary) throws LockException {
+        deadlockCheck();
+        if (writeLockedThread != null && writeLockedThread != thisThread) {
+            if (!waitIfNecessary)
+                {return false;}
+            waitingForReadLock++;
+            final WaitingThread waiter = new WaitingThread(thisThread, this, this, Lock.READ_LOCK);
+            DeadlockDetection.addResourceWaiter(thisThread, waiter);
+            try {
+                while (writeLockedThread != null && writeLockedThread != thisThread) {
+                    waiter.doWait();
+                }
+            } finally {
+                DeadlockDetection.clearResourceWaiter(thisThread);
+                waitingForReadLock--;
+            }
+        }
+        // writers are only granted while holding the monitor, so it is safe to register now
+        readers.put(thisThread, new ReadCount());
+        return true;
+    }
+
+    private boolean writeLock(boolean waitIfNecessary) throws LockException {
+        final Thread thisThread = Thread.currentThread();
+        if (writeLockedThread == thisThread) {
+            outstandingWriteLocks++;
+            return true;
+        }
+        List<WaitingThread> deadlockedThreads = null;
+        LockException exceptionCaught = null;
+        synchronized (this) {
+            if (grantWriteLock(thisThread))
+                {return true;}
+            if (!waitIfNecessary)
+                {return false;}
+            deadlockCheck();
+            final WaitingThread waiter = new WaitingThread(thisThread, this, this, Lock.WRITE_LOCK);
+            waitingForWriteLock.add(waiter);
+            waitingForWrite++;
+            DeadlockDetection.addResourceWaiter(thisThread, waiter);
+            try {
+                while (!grantWriteLock(thisThread)) {
+                    deadlockedThreads = checkForDeadlock(thisThread);
+                    if (deadlockedThreads != null)
+                        {break;}
+                    waiter.doWait();
+                }
+            } catch (final LockException e) {
+                //Don't throw the exception now, clean up first
+                exceptionCaught = e;
+            } finally {
+                DeadlockDetection.clearResourceWaiter(thisThread);
+                waitingForWriteLock.remove(waiter);
+                waitingForWrite--;
+            }
+        }
+        if (exceptionCaught != null)
+            {throw exceptionCaught;}
+        if (deadlockedThreads != null) {
+            for (final WaitingThread wt : deadlockedThreads) {
+                wt.signalDeadlock();
+            }
+            throw new DeadlockException();
+        }
+        return true;
+    }
+
+    /**
+     * Try to grant the write lock to the given thread. Must be called
+     * while holding the monitor. The write lock can be granted if there are no
+     * read locks, the read locks belong to the current thread or the threads
+     * holding them are blocked by a lock owned by the current thread.
+     */
+    private boolean grantWriteLock(Thread thisThread) {
+        if (writeLockedThread != null)
+            {return false;}
+        // announce the writer: readers arriving from now on will back off
+        pendingWriter = thisThread;
+        for (final Thread reader : readers.keySet()) {
+            if (reader != thisThread && !DeadlockDetection.isBlockedBy(thisThread, reader)) {
+                pendingWriter = null;
+                if (waitingForReadLock > 0)
+                    {notifyAll();}
+                return false;
+            }
+        }
+        writeLockedThread = thisThread;
+        pendingWriter = null;
+        outstandingWriteLocks = 1;
+        writeVersion++;
+        return true;
+    }
+
+    private void signalWriters() {
+        if (waitingForWrite > 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /* @deprecated : use other method
+     * @see org.exist.storage.lock.Lock#release()
+     */
+    public void release() {
+        release(Lock.READ_LOCK);
+    }
+
+    public void release(int mode) {
+        release(mode, 1);
+    }
+
+    public void release(int mode, int count) {
+        switch (mode) {
+        case Lock.NO_LOCK:
+            break;
+        case Lock.WRITE_LOCK:
+            releaseWrite(count);
+            break;
+        default:
+            releaseRead(count);
+            break;
+        }
+    }
+
+    private synchronized void releaseWrite(int count) {
+        if (Thread.currentThread() != writeLockedThread) {
+            LOG.warn("Possible lock problem: a thread released a write lock it didn't hold. Either the " +
+                "thread was interrupted or it never acquired the lock.", new Throwable());
+            return;
+        }
+        outstandingWriteLocks -= count;
+        if (outstandingWriteLocks > 0)
+            {return;}
+        outstandingWriteLocks = 0;
+        writeLockedThread = null;
+        writeVersion++;
+        // wake up waiting readers and writers. Waiting writers threads wait on
+        // this as well, as they are woken up by releasing readers.
+        notifyAll();
+    }
+
+    private void releaseRead(int count) {
+        final Thread thisThread = Thread.currentThread();
+        final ReadCount holds = readers.get(thisThread);
+        if (holds == null) {
+            LOG.warn("Possible lock problem: thread " + thisThread.getName() +
+                " released a read lock it didn't hold. Either the " +
+                "thread was interrupted or it never acquired the lock. " +
+                "Write lock: " + (writeLockedThread != null ? writeLockedThread.getName() : "null"),
+                new Throwable());
+            return;
+        }
+        holds.count -= count;
+        if (holds.count <= 0) {
+            readers.remove(thisThread);
+            signalWriters();
+        }
+    }
+
+    public boolean isLockedForWrite() {
+        return writeLockedThread != null || waitingForWrite > 0;
+    }
+
+    public boolean hasLock() {
+        return !readers.isEmpty() || isLockedForWrite();
+    }
+
+    public boolean isLockedForRead(Thread owner) {
+        return readers.containsKey(owner);
+    }
+
+    public boolean hasLock(Thread owner) {
+        return writeLockedThread == owner || readers.containsKey(owner);
+    }
+
+    public long getWriteVersion() {
+        return writeVersion;
+    }
+
+    public Thread getWriteLockedThread() {
+        return writeLockedThread;
+    }
+
+    public synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    private void deadlockCheck() throws DeadlockException {
+        for (final Thread reader : readers.keySet()) {
+            final Lock lock = DeadlockDetection.isWaitingFor(reader);
+            if (lock != null)
+                {lock.wakeUp();}
+        }
+    }
+
+    /**
+     * Detect circular wait on different resources, see
+     * {@link MultiReadReentrantLock}.
+     */
+    private List<WaitingThread> checkForDeadlock(Thread waiter) {
+        final Thread writer = writeLockedThread;
+        if (writer == null)
+            {return null;}
+        final ArrayList<WaitingThread> waiters = new ArrayList<WaitingThread>(10);
+        if (DeadlockDetection.wouldDeadlock(waiter, writer, waiters)) {
+            LOG.warn("Potential deadlock detected on lock " + getId() + "; killing threads: " + waiters.size());
+            return waiters.size() > 0 ? waiters : null;
+        }
+        return null;
+    }
+
+    public synchronized LockInfo getLockInfo() {
+        final List<String> readerNames = new ArrayList<String>(readers.size());
+        for (final Thread reader : readers.keySet()) {
+            readerNames.add(reader.getName());
+        }
+        final String[] readLocks = readerNames.toArray(new String[readerNames.size()]);
+        LockInfo info;
+        final Thread writer = writeLockedThread;
+        if (writer != null) {
+            info = new LockInfo(lockType, LockInfo.WRITE_LOCK, getId(), new String[] { writer.getName() });
+            info.setReadLocks(readLocks);
+        } else {
+            info = new LockInfo(lockType, LockInfo.READ_LOCK, getId(), readLocks);
+        }
+        final String waitingWrite[] = new String[waitingForWriteLock.size()];
+        for (int i = 0; i < waitingForWriteLock.size(); i++) {
+            waitingWrite[i] = waitingForWriteLock.get(i).getThread().getName();
+        }
+        info.setWaitingForWrite(waitingWrite);
+        return info;
+    }
+
+    @Override
+    public void debug(PrintStream out) {
+        getLockInfo().debug(out);
+    }
+
+    private final static class ReadCount {
+        int count = 1;
+    }
+}
@@ -60,6 +60,16 @@ public class DeadlockDetection {
     private final static Map<Thread, WaitingThread> waitForResource = new HashMap<Thread, WaitingThread>();
     private final static Map<Thread, Lock> waitForCollection = new HashMap<Thread, Lock>();
 
+    private static Thread getWriteLockedThread(Lock lock) {
+        if (lock instanceof MultiReadReentrantLock)
+            {return ((MultiReadReentrantLock) lock).getWriteLockedThread();}
+        if (lock instanceof ConcurrentReadWriteLock)
+            {return ((ConcurrentReadWriteLock) lock).getWriteLockedThread();}
+        if (lock instanceof ReentrantReadWriteLock)
+            {return ((ReentrantReadWriteLock) lock).getOwner();}
+        return null;
+    }
+
     /**
      * Register a thread as waiting for a resource lock.
      *
@@ -147,7 +157,7 @@ public class DeadlockDetection {
                 }
                 waiters.add(wt);
                 final Lock l = wt.getLock();
-                final Thread t = ((MultiReadReentrantLock) l).getWriteLockedThread();
+                final Thread t = getWriteLockedThread(l);
                 if (t == owner) {
                     return false;
                 }
@@ -160,7 +170,7 @@ public class DeadlockDetection {
             }
             final Lock l = waitForCollection.get(owner);
             if (l != null) {
-                final Thread t = ((ReentrantReadWriteLock) l).getOwner();
+                final Thread t = getWriteLockedThread(l);
                 if (t == owner) {
                     return false;
                 }
@@ -0,0 +1,176 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.storage.lock;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.exist.collections.Collection;
+import org.exist.dom.DefaultDocumentSet;
+import org.exist.dom.DocumentImpl;
+import org.exist.dom.DocumentSet;
+import org.exist.dom.MutableDocumentSet;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.DBBroker;
+import org.exist.util.LockException;
+import org.exist.xmldb.XmldbURI;
+
+/**
+ * Detects modifications of the documents in a set of collections without
+ * holding locks on them.
+ *
+ * {@link #begin(DBBroker)} records the {@link Lock#getWriteVersion() write version}
+ * of the lock of every collection below the given collections and of every document
+ * they contain. {@link #isValid(DBBroker)} checks that none of these locks has been
+ * acquired for write since and that no documents or collections were added or
+ * removed. Documents and collections are only modified while holding a write lock,
+ * so if the snapshot is still valid, a read-only operation running in between saw
+ * a consistent state of the documents.
+ *
+ * This allows read-only queries to run without blocking writers: instead of
+ * locking all documents for the duration of the query (see {@link LockedDocumentMap}),
+ * the query is repeated if the snapshot became invalid.
+ */
+public class DocumentSnapshot {
+
+    private final static Logger LOG = Logger.getLogger(DocumentSnapshot.class);
+
+    private final XmldbURI[] collections;
+
+    /** write version of every lock recorded by begin */
+    private final Map<Lock, Long> versions = new IdentityHashMap<Lock, Long>();
+
+    private int missingCollections = 0;
+
+    public DocumentSnapshot(XmldbURI[] collections) {
+        this.collections = collections;
+    }
+
+    public XmldbURI[] getCollections() {
+        return collections;
+    }
+
+    /**
+     * Record the current write versions of all collections and documents.
+     *
+     * @param broker the broker to use
+     * @return false if one of the collections or documents is currently being
+     * modified, in which case the snapshot will not become valid
+     * @throws PermissionDeniedException
+     */
+    public boolean begin(DBBroker broker) throws PermissionDeniedException {
+        versions.clear();
+        final DocumentSet docs = getDocuments(broker);
+        missingCollections = countMissing(broker);
+        boolean clean = true;
+        for (final Iterator<Collection> i = docs.getCollectionIterator(); i.hasNext(); ) {
+            clean &= record(i.next().getLock());
+        }
+        for (final Iterator<DocumentImpl> i = docs.getDocumentIterator(); i.hasNext(); ) {
+            clean &= record(i.next().getUpdateLock());
+        }
+        return clean;
+    }
+
+    /**
+     * Check if any of the collections or documents may have been modified since
+     * {@link #begin(DBBroker)} was called.
+     *
+     * @param broker the broker to use
+     * @return true if there were no modifications
+     * @throws PermissionDeniedException
+     */
+    public boolean isValid(DBBroker broker) throws PermissionDeniedException {
+        final DocumentSet docs = getDocuments(broker);
+        if (countMissing(broker) != missingCollections)
+            {return false;}
+        int count = 0;
+        for (final Iterator<Collection> i = docs.getCollectionIterator(); i.hasNext(); count++) {
+            if (!isUnchanged(i.next().getLock()))
+                {return false;}
+        }
+        for (final Iterator<DocumentImpl> i = docs.getDocumentIterator(); i.hasNext(); count++) {
+            if (!isUnchanged(i.next().getUpdateLock()))
+                {return false;}
+        }
+        return count == versions.size();
+    }
+
+    /**
+     * Lock all documents for write, as done for queries running in protected mode.
+     * Used if a query could not complete without concurrent modifications.
+     * The caller has to unlock the returned map.
+     *
+     * @param broker the broker to use
+     * @return the locked documents
+     * @throws PermissionDeniedException
+     */
+    public LockedDocumentMap lockDocuments(DBBroker broker) throws PermissionDeniedException {
+        while (true) {
+            final LockedDocumentMap lockedDocuments = new LockedDocumentMap();
+            try {
+                for (final XmldbURI uri : collections) {
+                    final Collection collection = broker.openCollection(uri, Lock.NO_LOCK);
+                    if (collection != null)
+                        {collection.allDocs(broker, new DefaultDocumentSet(), true, lockedDocuments, Lock.WRITE_LOCK);}
+                }
+                return lockedDocuments;
+            } catch (final LockException e) {
+                LOG.debug("Deadlock detected. Starting over again. Locked: " + lockedDocuments.size());
+                lockedDocuments.unlock();
+            }
+        }
+    }
+
+    private DocumentSet getDocuments(DBBroker broker) throws PermissionDeniedException {
+        final MutableDocumentSet docs = new DefaultDocumentSet();
+        for (final XmldbURI uri : collections) {
+            final Collection collection = broker.openCollection(uri, Lock.NO_LOCK);
+            if (collection != null)
+                {collection.allDocs(broker, docs, true, null);}
+        }
+        return docs;
+    }
+
+    private int countMissing(DBBroker broker) throws PermissionDeniedException {
+        int missing = 0;
+        for (final XmldbURI uri : collections) {
+            if (broker.openCollection(uri, Lock.NO_LOCK) == null)
+                {missing++;}
+        }
+        return missing;
+    }
+
+    private boolean record(Lock lock) {
+        final long version = lock.getWriteVersion();
+        versions.put(lock, Long.valueOf(version));
+        return (version & 1) == 0;
+    }
+
+    private boolean isUnchanged(Lock lock) {
+        final Long version = versions.get(lock);
+        return version != null && version.longValue() == lock.getWriteVersion() &&
+            (version.longValue() & 1) == 0;
+    }
+}
@@ -103,6 +103,17 @@ public interface Lock extends Debuggable {
 
     public String getId();
 
+    /**
+     * Returns a counter which is incremented whenever a write lock is granted
+     * and whenever it is finally released, so the value is odd while a thread
+     * holds the write lock. Comparing the value before and after an operation
+     * tells if the locked resource may have been modified in between, without
+     * holding a lock. See {@link DocumentSnapshot}.
+     *
+     * @return the write version of the lock
+     */
+    public long getWriteVersion();
+
     /**
      * Create a LockInfo entry for the given lock.
      * 
@@ -0,0 +1,61 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2013 The eXist Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ *  $Id$
+ */
+package org.exist.storage.lock;
+
+import org.exist.util.Configuration;
+
+/**
+ * Creates the update locks of documents, depending on the lock-mode
+ * configured in the db-connection element of conf.xml. Collection locks
+ * are always exclusive {@link ReentrantReadWriteLock}s.
+ */
+public class LockFactory {
+
+    public final static String LOCK_MODE_ATTRIBUTE = "lock-mode";
+    public final static String PROPERTY_LOCK_MODE = "db-connection.lock-mode";
+
+    public final static String LOCK_MODE_DEFAULT = "default";
+    public final static String LOCK_MODE_CONCURRENT = "concurrent";
+
+    private LockFactory() {
+        //Utility class
+    }
+
+    public static boolean isConcurrent(Configuration config) {
+        if (config == null)
+            {return false;}
+        final Object mode = config.getProperty(PROPERTY_LOCK_MODE);
+        return mode != null && LOCK_MODE_CONCURRENT.equalsIgnoreCase(mode.toString().trim());
+    }
+
+    /**
+     * Create the update lock for a document.
+     *
+     * @param config the database configuration, may be null
+     * @param id the id of the lock
+     */
+    public static Lock createDocumentLock(Configuration config, Object id) {
+        if (isConcurrent(config))
+            {return new ConcurrentReadWriteLock(id, LockInfo.RESOURCE_LOCK);}
+        return new MultiReadReentrantLock(id);
+    }
+}
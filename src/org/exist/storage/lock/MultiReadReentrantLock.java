@@ -79,6 +79,11 @@ public class MultiReadReentrantLock implements Lock {
      */
     private int outstandingWriteLocks = 0;
 
+    /**
+     * Incremented whenever writeLockedThread is set or cleared.
+     */
+    private volatile long writeVersion = 0;
+
     /**
      * Threads waiting to get a write lock are tracked in this ArrayList to
      * ensure that write locks are issued in the same order they are requested.
@@ -180,6 +185,7 @@ public class MultiReadReentrantLock implements Lock {
             }
             if (writeLockedThread == null && grantWriteLock()) {
                 writeLockedThread = thisThread;
+                writeVersion++;
                 outstandingWriteLocks++;
                 return true;
             }
@@ -297,11 +303,14 @@ public class MultiReadReentrantLock implements Lock {
                 removeWaitingWrite(waiter);
                 DeadlockDetection.clearResourceWaiter(waiter.getThread());
                 writeLockedThread = waiter.getThread();
+                // released and granted again
+                writeVersion += 2;
                 synchronized (writeLockedThread) {
                     writeLockedThread.notifyAll();
                 }
             } else {
                 writeLockedThread = null;
+                writeVersion++;
                 if (waitingForReadLock > 0) {
                     //Wake up pending read locks
                     notifyAll();
@@ -329,6 +338,7 @@ public class MultiReadReentrantLock implements Lock {
                 removeWaitingWrite(waiter);
                 DeadlockDetection.clearResourceWaiter(waiter.getThread());
                 writeLockedThread = waiter.getThread();
+                writeVersion++;
                 synchronized (writeLockedThread) {
                     writeLockedThread.notifyAll();
                 }
@@ -463,6 +473,10 @@ public class MultiReadReentrantLock implements Lock {
         return false;
     }
 
+    public long getWriteVersion() {
+        return writeVersion;
+    }
+
     public Thread getWriteLockedThread() {
         return writeLockedThread;
     }
@@ -73,6 +73,8 @@ public class ReentrantReadWriteLock implements Lock {
     public int mode_ = Lock.NO_LOCK;
     private Stack<Integer> modeStack = new Stack<Integer>();
     private int writeLocks = 0;
+    /** incremented when the first write lock is acquired and when the last is released */
+    private volatile long writeVersion = 0;
     private boolean DEBUG = false;
     private Stack<StackTraceElement[]> seStack;
     private LockListener listener = null;
@@ -108,7 +110,7 @@ public class ReentrantReadWriteLock implements Lock {
                 ++holds_;
                 modeStack.push(Integer.valueOf(mode));
                 if (mode == Lock.WRITE_LOCK)
-                    {writeLocks++;}
+                    {incWriteLocks();}
                 if (DEBUG) {
                     final Throwable t = new Throwable();
                     seStack.push(t.getStackTrace());
@@ -120,7 +122,7 @@ public class ReentrantReadWriteLock implements Lock {
                 holds_ = 1;
                 modeStack.push(Integer.valueOf(mode));
                 if (mode== Lock.WRITE_LOCK)
-                    {writeLocks++;}
+                    {incWriteLocks();}
                 if (DEBUG) {
                     final Throwable t = new Throwable();
                     seStack.push(t.getStackTrace());
@@ -136,7 +138,7 @@ public class ReentrantReadWriteLock implements Lock {
                 holds_ = 1;
                 modeStack.push(Integer.valueOf(mode));
                 if (mode== Lock.WRITE_LOCK)
-                    {writeLocks++;}
+                    {incWriteLocks();}
                 mode_ = mode;
                 listener = waitingOnResource;
                 return true;
@@ -153,7 +155,7 @@ public class ReentrantReadWriteLock implements Lock {
                             holds_ = 1;
                             modeStack.push(Integer.valueOf(mode));
                             if (mode== Lock.WRITE_LOCK)
-                                {writeLocks++;}
+                                {incWriteLocks();}
                             mode_ = mode;
                             listener = waitingOnResource;
                             DeadlockDetection.clearCollectionWaiter(owner_);
@@ -162,7 +164,7 @@ public class ReentrantReadWriteLock implements Lock {
                             ++holds_;
                             modeStack.push(Integer.valueOf(mode));
                             if (mode == Lock.WRITE_LOCK)
-                                {writeLocks++;}
+                                {incWriteLocks();}
                             if (DEBUG) {
                                 final Throwable t = new Throwable();
                                 seStack.push(t.getStackTrace());
@@ -175,7 +177,7 @@ public class ReentrantReadWriteLock implements Lock {
                             holds_ = 1;
                             modeStack.push(Integer.valueOf(mode));
                             if (mode == Lock.WRITE_LOCK)
-                                {writeLocks++;}
+                                {incWriteLocks();}
                             if (DEBUG) {
                                 final Throwable t = new Throwable();
                                 seStack.push(t.getStackTrace());
@@ -204,7 +206,7 @@ public class ReentrantReadWriteLock implements Lock {
                 ++holds_;
                 modeStack.push(Integer.valueOf(mode));
                 if (mode == Lock.WRITE_LOCK)
-                    {writeLocks++;}
+                    {incWriteLocks();}
                 if (DEBUG) {
                     final Throwable t = new Throwable();
                     seStack.push(t.getStackTrace());
@@ -216,7 +218,7 @@ public class ReentrantReadWriteLock implements Lock {
                 holds_ = 1;
                 modeStack.push(Integer.valueOf(mode));
                 if (mode == Lock.WRITE_LOCK)
-                    {writeLocks++;}
+                    {incWriteLocks();}
                 if (DEBUG) {
                     final Throwable t = new Throwable();
                     seStack.push(t.getStackTrace());
@@ -229,6 +231,20 @@ public class ReentrantReadWriteLock implements Lock {
         }
     }
 
+    private void incWriteLocks() {
+        if (writeLocks++ == 0)
+            {writeVersion++;}
+    }
+
+    private void decWriteLocks() {
+        if (--writeLocks == 0)
+            {writeVersion++;}
+    }
+
+    public long getWriteVersion() {
+        return writeVersion;
+    }
+
     /* (non-Javadoc)
      * @see org.exist.util.Lock#isLockedForWrite()
      */
@@ -284,7 +300,7 @@ public class ReentrantReadWriteLock implements Lock {
                 " got " + mode, new Throwable());
         }      	
         if (mode_ == Lock.WRITE_LOCK) {
-            writeLocks--;
+            decWriteLocks();
         }
         if (DEBUG) {
             seStack.pop();
@@ -34,7 +34,7 @@ public class WaitingThread implements LockListener {
     private final static Logger LOG = Logger.getLogger(WaitingThread.class);
     
     private Object monitor;
-    private MultiReadReentrantLock lock;
+    private Lock lock;
 
     private int lockType;
 
@@ -44,7 +44,7 @@ public class WaitingThread implements LockListener {
 
     private boolean deadlocked = false;
 
-    public WaitingThread(Thread thread, Object monitor, MultiReadReentrantLock lock, int lockType) {
+    public WaitingThread(Thread thread, Object monitor, Lock lock, int lockType) {
         this.monitor = monitor;
         this.lock = lock;
         this.thread = thread;
@@ -0,0 +1,286 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *  $Id$
+ */
+package org.exist.storage.recovery;
+
+import org.apache.log4j.Logger;
+import org.exist.storage.journal.FileLoggable;
+import org.exist.storage.journal.LogEntryTypes;
+import org.exist.storage.journal.LogException;
+import org.exist.storage.journal.Loggable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Replays the redo pass of a recovery run on several threads. Log entries
+ * are partitioned by the database file they modify ({@link FileLoggable#getFileId()}).
+ * All entries for one file are handled by the same worker, in log order, so the
+ * file's pages, page cache and free space information are only ever touched by
+ * a single thread. Entries for different files are redone in parallel.
+ *
+ * Transaction records are handled by the calling thread. Any other entry
+ * which does not belong to a single file is run by the calling thread after all
+ * previously queued entries have been redone (see {@link #barrier()}).
+ */
+class ParallelRedo {
+
+    private final static Logger LOG = Logger.getLogger(ParallelRedo.class);
+
+    /** Entries are handed over to a worker in batches of this size */
+    private final static int BATCH_SIZE = 256;
+
+    /** Batches queued per worker before the reader blocks */
+    private final static int QUEUE_SIZE = 64;
+
+    private final static List<Loggable> SHUTDOWN = new ArrayList<Loggable>(0);
+
+    private final Worker[] workers;
+
+    /** maps a file id to a worker */
+    private final int[] partitions = new int[256];
+
+    private int nextWorker = 0;
+
+    // statistics, only accessed by the reading thread
+    private int scheduled = 0;
+    private int barriers = 0;
+
+    private volatile Throwable failure = null;
+    private volatile Loggable failedEntry = null;
+
+    ParallelRedo(int threads) {
+        workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(i);
+            workers[i].start();
+        }
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = -1;
+        }
+    }
+
+    /**
+     * Schedule the redo operation of the given entry.
+     *
+     * @throws LogException if a previous entry failed. Recovery should be
+     *  aborted.
+     */
+    void redo(Loggable loggable) throws LogException {
+        checkFailure();
+        if (loggable instanceof FileLoggable) {
+            final int fileId = ((FileLoggable) loggable).getFileId() & 0xFF;
+            if (partitions[fileId] < 0) {
+                partitions[fileId] = nextWorker;
+                nextWorker = (nextWorker + 1) % workers.length;
+            }
+            workers[partitions[fileId]].schedule(loggable);
+            scheduled++;
+        } else if (isTxnEntry(loggable)) {
+            // transaction records do not modify any file
+            loggable.redo();
+        } else {
+            barrier();
+            loggable.redo();
+        }
+    }
+
+    /**
+     * Wait until all queued entries have been redone.
+     *
+     * @throws LogException if an entry failed
+     */
+    void barrier() throws LogException {
+        barriers++;
+        final CountDownLatch latch = new CountDownLatch(workers.length);
+        final Marker marker = new Marker(latch);
+        for (final Worker worker : workers) {
+            worker.schedule(marker);
+            worker.flush();
+        }
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (final InterruptedException e) {
+                //Nothing to do
+            }
+        }
+        checkFailure();
+    }
+
+    /**
+     * Stop all worker threads. Entries still queued are discarded if a
+     * failure occurred, otherwise they are redone before the workers exit.
+     */
+    void shutdown() {
+        for (final Worker worker : workers) {
+            worker.flush();
+            worker.add(SHUTDOWN);
+        }
+        for (final Worker worker : workers) {
+            try {
+                worker.join();
+            } catch (final InterruptedException e) {
+                //Nothing to do
+            }
+        }
+        if (LOG.isInfoEnabled())
+            {LOG.info("Parallel redo: " + scheduled + " entries redone by " + workers.length +
+                " threads; " + barriers + " synchronization points.");}
+    }
+
+    /**
+     * Returns the entry which caused the redo to fail, or null.
+     */
+    Loggable getFailedEntry() {
+        return failedEntry;
+    }
+
+    private static boolean isTxnEntry(Loggable loggable) {
+        final byte type = loggable.getLogType();
+        return type == LogEntryTypes.TXN_START || type == LogEntryTypes.TXN_COMMIT ||
+            type == LogEntryTypes.TXN_ABORT;
+    }
+
+    private void checkFailure() throws LogException {
+        if (failure != null)
+            {throw new LogException("Redo failed: " + failure.getMessage(), failure);}
+    }
+
+    private class Worker extends Thread {
+
+        private final BlockingQueue<List<Loggable>> queue = new ArrayBlockingQueue<List<Loggable>>(QUEUE_SIZE);
+
+        /** entries not yet handed over to the worker. Only accessed by the reading thread. */
+        private List<Loggable> pending = new ArrayList<Loggable>(BATCH_SIZE);
+
+        Worker(int id) {
+            super("exist-recovery-redo-" + id);
+            setDaemon(true);
+        }
+
+        void schedule(Loggable loggable) {
+            pending.add(loggable);
+            if (pending.size() == BATCH_SIZE)
+                {flush();}
+        }
+
+        void flush() {
+            if (pending.isEmpty())
+                {return;}
+            add(pending);
+            pending = new ArrayList<Loggable>(BATCH_SIZE);
+        }
+
+        private void add(List<Loggable> batch) {
+            while (true) {
+                try {
+                    queue.put(batch);
+                    return;
+                } catch (final InterruptedException e) {
+                    //Nothing to do
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final List<Loggable> batch;
+                try {
+                    batch = queue.take();
+                } catch (final InterruptedException e) {
+                    continue;
+                }
+                if (batch == SHUTDOWN)
+                    {break;}
+                for (final Loggable next : batch) {
+                    if (next instanceof Marker) {
+                        ((Marker) next).latch.countDown();
+                        continue;
+                    }
+                    // after a failure, only drain the queue
+                    if (failure != null)
+                        {continue;}
+                    try {
+                        next.redo();
+                    } catch (final Throwable e) {
+                        LOG.warn("Redo of log entry " + next.dump() + " failed: " + e.getMessage(), e);
+                        failedEntry = next;
+                        failure = e;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Queued to synchronize with the workers. Never redone.
+     */
+    private final static class Marker implements Loggable {
+
+        private final CountDownLatch latch;
+
+        Marker(CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        public byte getLogType() {
+            return 0;
+        }
+
+        public long getTransactionId() {
+            return -1;
+        }
+
+        public long getLsn() {
+            return -1;
+        }
+
+        public void setLsn(long lsn) {
+        }
+
+        public void write(ByteBuffer out) {
+        }
+
+        public void read(ByteBuffer in) {
+        }
+
+        public int getLogSize() {
+            return 0;
+        }
+
+        public void redo() throws LogException {
+        }
+
+        public void undo() throws LogException {
+        }
+
+        public String dump() {
+            return "marker";
+        }
+    }
+}
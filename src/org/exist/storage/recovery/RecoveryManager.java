@@ -56,11 +56,21 @@ public class RecoveryManager {
 	private Journal logManager;
 	private DBBroker broker;
     private boolean restartOnError;
+    private int redoThreads;
 
 	public RecoveryManager(DBBroker broker, Journal log, boolean restartOnError) {
+        this(broker, log, restartOnError, 1);
+	}
+
+	/**
+	 * @param redoThreads number of threads used to redo log entries. If greater than 1,
+	 * entries for different db files are redone in parallel (see {@link ParallelRedo}).
+	 */
+	public RecoveryManager(DBBroker broker, Journal log, boolean restartOnError, int redoThreads) {
         this.broker = broker;
 		this.logManager = log;
         this.restartOnError = restartOnError;
+        this.redoThreads = redoThreads;
 	}
 	
 	/**
@@ -199,10 +209,13 @@ public class RecoveryManager {
 
             // ------- REDO ---------
             if (LOG.isInfoEnabled())
-                {LOG.info("First pass: redoing " + txnCount + " transactions...");}
+                {LOG.info("First pass: redoing " + txnCount + " transactions" +
+                    (redoThreads > 1 ? " using " + redoThreads + " threads..." : "..."));}
             final ProgressBar progress = new ProgressBar("Redo ", last.length());
             Loggable next = null;
             int redoCnt = 0;
+            final long start = System.currentTimeMillis();
+            final ParallelRedo parallelRedo = redoThreads > 1 ? new ParallelRedo(redoThreads) : null;
             try {
                 while ((next = reader.nextEntry()) != null) {
                     SanityCheck.ASSERT(next.getLogType() != LogEntryTypes.CHECKPOINT,
@@ -220,19 +233,30 @@ public class RecoveryManager {
                     }
         //            LOG.debug("Redo: " + next.dump());
                     // redo the log entry
-                    next.redo();
+                    if (parallelRedo == null)
+                        {next.redo();}
+                    else
+                        {parallelRedo.redo(next);}
                     progress.set(Lsn.getOffset(next.getLsn()));
                     if (next.getLsn() == lastLsn)
                         {break;} // last readable entry reached. Stop here.
                 }
+                // wait for all entries to be redone before starting the undo pass
+                if (parallelRedo != null)
+                    {parallelRedo.barrier();}
             } catch (final Exception e) {
                 LOG.error("Exception caught while redoing transactions. Aborting recovery to avoid possible damage. " +
                     "Before starting again, make sure to run a check via the emergency export tool.", e);
+                if (parallelRedo != null && parallelRedo.getFailedEntry() != null)
+                    {next = parallelRedo.getFailedEntry();}
                 if (next != null)
                     {LOG.info("Log entry that caused the exception: " + next.dump());}
                 throw new LogException("Recovery aborted. ");
             } finally {
-                LOG.info("Redo processed " + redoCnt + " out of " + txnCount + " transactions.");
+                if (parallelRedo != null)
+                    {parallelRedo.shutdown();}
+                LOG.info("Redo processed " + redoCnt + " out of " + txnCount + " transactions in " +
+                    (System.currentTimeMillis() - start) + "ms.");
             }
 
             // ------- UNDO ---------
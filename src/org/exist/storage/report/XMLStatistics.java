@@ -115,6 +115,10 @@ public class XMLStatistics {
         addValue("used", String.valueOf(index.getUsed()));
         addValue("hits", String.valueOf(index.getPageHits()));
         addValue("fails", String.valueOf(index.getPageFails()));
+        addValue("evictions", String.valueOf(index.getEvictions()));
+        addValue("thrashing", String.valueOf(index.getThrashing()));
+        if (index.getPollution() > -1)
+            {addValue("pollution", String.valueOf(index.getPollution()));}
         this.contentHandler.endElement(NAMESPACE, "buffer", PREFIX + ":buffer");
         atts.addAttribute("", "type", "type", "CDATA", "data");
         this.contentHandler.startElement(NAMESPACE, "buffer", PREFIX + ":buffer", atts);
@@ -123,6 +127,10 @@ public class XMLStatistics {
         addValue("used", String.valueOf(data.getUsed()));
         addValue("hits", String.valueOf(data.getPageHits()));
         addValue("fails", String.valueOf(data.getPageFails()));
+        addValue("evictions", String.valueOf(data.getEvictions()));
+        addValue("thrashing", String.valueOf(data.getThrashing()));
+        if (data.getPollution() > -1)
+            {addValue("pollution", String.valueOf(data.getPollution()));}
         this.contentHandler.endElement(NAMESPACE, "buffer", PREFIX + ":buffer");
         this.contentHandler.endElement(NAMESPACE, "file", PREFIX + ":file");
     }
@@ -23,6 +23,8 @@
 package org.exist.storage.serializers;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.net.URI;
@@ -48,6 +50,7 @@ import javax.xml.transform.stream.StreamSource;
 
 import org.apache.log4j.Logger;
 import org.exist.Namespaces;
+import org.exist.dom.DefaultDocumentSet;
 import org.exist.dom.DocumentImpl;
 import org.exist.dom.NodeProxy;
 import org.exist.dom.ProcessingInstructionImpl;
@@ -64,6 +67,8 @@ import org.exist.security.Permission;
 import org.exist.security.PermissionDeniedException;
 import org.exist.security.Subject;
 import org.exist.storage.DBBroker;
+import org.exist.storage.ElementValue;
+import org.exist.storage.NativeBroker;
 import org.exist.util.Configuration;
 import org.exist.util.MimeType;
 import org.exist.util.serializer.AttrList;
@@ -191,6 +196,7 @@ public abstract class Serializer implements XMLReader {
     protected SAXSerializer xmlout = null;
     protected LexicalHandler lexicalHandler = null;
     protected Subject user = null;
+    protected UTF8StreamSerializer streamSerializer = null;
     
     protected HttpContext httpContext = null;
     public class HttpContext
@@ -472,22 +478,7 @@ public abstract class Serializer implements XMLReader {
 		if (templates != null)
 			{applyXSLHandler(writer);}
 		else {
-			//looking for serializer properties in <?exist-serialize?> 
-	    	final NodeList children = doc.getChildNodes();
-	    	for (int i = 0; i < children.getLength(); i++) {
-	    		final StoredNode node = (StoredNode) children.item(i);
-	    		if (node.getNodeType() == Node.PROCESSING_INSTRUCTION_NODE 
-	    				&& "exist-serialize".equals(node.getNodeName())) {
-
-	                final String params[] = ((ProcessingInstructionImpl)node).getData().split(" ");
-	                for(final String param : params) {
-	                    final String opt[] = Option.parseKeyValuePair(param);
-	                    if (opt != null)
-	                    	{outputProperties.setProperty(opt[0], opt[1]);}
-	                }
-	    		}
-	    	}
-
+			setPropertiesFromPI(doc);
 			setPrettyPrinter(writer, "no".equals(outputProperties.getProperty(OutputKeys.OMIT_XML_DECLARATION, "yes")),
                     null, true); //setPrettyPrinter(writer, false);
 		}
@@ -496,6 +487,140 @@ public abstract class Serializer implements XMLReader {
 		releasePrettyPrinter();
 	}
 
+	/**
+	 * Serialize a document to the supplied output stream. The document is streamed
+	 * directly from its stored UTF-8 representation if possible, see
+	 * {@link #toOutputStream(DocumentImpl, OutputStream)}. Otherwise the output is
+	 * encoded with the encoding set in the output properties.
+	 * 
+	 * @param doc the document
+	 * @param os the output stream. It is flushed, but not closed.
+	 */
+	public void serialize(DocumentImpl doc, OutputStream os) throws SAXException, IOException {
+		try {
+			prepareStylesheets(doc);
+		} catch (final TransformerConfigurationException e) {
+			throw new SAXException(e.getMessage(), e);
+		}
+		if (templates == null) {
+			setPropertiesFromPI(doc);
+			if (toOutputStream(doc, os))
+				{return;}
+		}
+		final Writer writer = new OutputStreamWriter(os, getProperty(OutputKeys.ENCODING, encoding));
+		serialize(doc, writer, false);
+		writer.flush();
+	}
+
+	/**
+	 * Serialize a single node to the supplied output stream. Elements are streamed
+	 * directly from their stored UTF-8 representation if possible, see
+	 * {@link #toOutputStream(NodeProxy, OutputStream)}.
+	 * 
+	 * @param p the node
+	 * @param os the output stream. It is flushed, but not closed.
+	 */
+	public void serialize(NodeProxy p, OutputStream os) throws SAXException, IOException {
+		if (toOutputStream(p, os))
+			{return;}
+		final Writer writer = new OutputStreamWriter(os, getProperty(OutputKeys.ENCODING, encoding));
+		serialize(p, writer);
+		writer.flush();
+	}
+
+	/**
+	 * Stream the document to the output stream, bypassing SAX events, if the current
+	 * output properties allow it: the output method is xml with UTF-8 encoding, no
+	 * stylesheet is applied, XInclude expansion is disabled or the document does not
+	 * contain XInclude elements, and no exist:id attributes or custom match listeners
+	 * are used. Nothing is written if this method returns false.
+	 * 
+	 * @param doc the document
+	 * @param os the output stream. It is flushed, but not closed.
+	 * @return true if the document was written
+	 */
+	public boolean toOutputStream(DocumentImpl doc, OutputStream os) throws SAXException, IOException {
+		if (!isStreamable(doc) || customMatchListeners.getFirst() != null || hasXSLPi(doc) != null)
+			{return false;}
+		final long start = System.currentTimeMillis();
+		getStreamSerializer().serialize(doc, outputProperties, os);
+		if (LOG.isDebugEnabled())
+			{LOG.debug("streaming document " + doc.getDocId() + " (" + doc.getURI() + ")"
+				+ " took " + (System.currentTimeMillis() - start) + " msec");}
+		return true;
+	}
+
+	/**
+	 * Stream the element referenced by the proxy and its descendants to the output
+	 * stream, if the current output properties allow it, see
+	 * {@link #toOutputStream(DocumentImpl, OutputStream)}. In addition, the node
+	 * must not have any matches to be highlighted. Nothing is written if this method
+	 * returns false.
+	 * 
+	 * @param p the node
+	 * @param os the output stream. It is flushed, but not closed.
+	 * @return true if the node was written
+	 */
+	public boolean toOutputStream(NodeProxy p, OutputStream os) throws SAXException, IOException {
+		if (p.getNodeId() == NodeId.DOCUMENT_NODE)
+			{return toOutputStream(p.getDocument(), os);}
+		if (p.getNodeType() != Node.ELEMENT_NODE || !isStreamable(p.getDocument()) ||
+				(p.getMatches() != null && getHighlightingMode() != TAG_NONE))
+			{return false;}
+		getStreamSerializer().serialize(p, outputProperties, os);
+		return true;
+	}
+
+	protected boolean isStreamable(DocumentImpl doc) {
+		if (templates != null || showId != EXIST_ID_NONE || !(broker instanceof NativeBroker))
+			{return false;}
+		if (!"xml".equalsIgnoreCase(getProperty(OutputKeys.METHOD, "xml")) ||
+				!"UTF-8".equalsIgnoreCase(getProperty(OutputKeys.ENCODING, "UTF-8")) ||
+				"yes".equalsIgnoreCase(getProperty(EXistOutputKeys.ENFORCE_XHTML, "no")))
+			{return false;}
+		return !("yes".equals(getProperty(EXistOutputKeys.EXPAND_XINCLUDES, "yes")) && hasXIncludes(doc));
+	}
+
+	/**
+	 * Check if the document contains XInclude elements. Uses the structural index
+	 * unless the XInclude namespace is not used by any stored node.
+	 */
+	private boolean hasXIncludes(DocumentImpl doc) {
+		if (!broker.getBrokerPool().getSymbols().hasNamespace(XIncludeFilter.XINCLUDE_NS))
+			{return false;}
+		final DefaultDocumentSet docs = new DefaultDocumentSet(1);
+		docs.add(doc);
+		return !broker.getStructuralIndex().findElementsByTagName(ElementValue.ELEMENT, docs,
+			new QName("include", XIncludeFilter.XINCLUDE_NS), null).isEmpty();
+	}
+
+	protected UTF8StreamSerializer getStreamSerializer() {
+		if (streamSerializer == null)
+			{streamSerializer = new UTF8StreamSerializer(broker);}
+		return streamSerializer;
+	}
+
+	/**
+	 * Look for serializer properties in &lt;?exist-serialize?&gt;
+	 * processing instructions.
+	 */
+	protected void setPropertiesFromPI(DocumentImpl doc) {
+		final NodeList children = doc.getChildNodes();
+		for (int i = 0; i < children.getLength(); i++) {
+			final StoredNode node = (StoredNode) children.item(i);
+			if (node.getNodeType() == Node.PROCESSING_INSTRUCTION_NODE
+					&& "exist-serialize".equals(node.getNodeName())) {
+
+				final String params[] = ((ProcessingInstructionImpl)node).getData().split(" ");
+				for(final String param : params) {
+					final String opt[] = Option.parseKeyValuePair(param);
+					if (opt != null)
+						{outputProperties.setProperty(opt[0], opt[1]);}
+				}
+			}
+		}
+	}
+
 	public String serialize(NodeValue n) throws SAXException {
 		final StringWriter out = new StringWriter();
 		serialize(n,out);
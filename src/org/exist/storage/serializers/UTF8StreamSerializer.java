@@ -0,0 +1,670 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2014 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ *  $Id$
+ */
+package org.exist.storage.serializers;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Properties;
+
+import javax.xml.transform.OutputKeys;
+
+import org.exist.Namespaces;
+import org.exist.dom.DocumentImpl;
+import org.exist.dom.DocumentTypeImpl;
+import org.exist.dom.ElementImpl;
+import org.exist.dom.NodeProxy;
+import org.exist.dom.StoredNode;
+import org.exist.dom.SymbolTable;
+import org.exist.numbering.NodeId;
+import org.exist.numbering.NodeIdFactory;
+import org.exist.storage.DBBroker;
+import org.exist.storage.NativeBroker;
+import org.exist.storage.Signatures;
+import org.exist.storage.btree.Value;
+import org.exist.storage.dom.RawNodeIterator;
+import org.exist.util.hashtable.Int2ObjectHashMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.helpers.NamespaceSupport;
+
+/**
+ * Serializes stored documents and element subtrees directly to an
+ * {@link OutputStream}, bypassing SAX events, {@link StoredNode} objects
+ * and the char based {@link org.exist.util.serializer.XMLWriter}.
+ *
+ * Text, attribute values and prefixes are already stored as UTF-8 in the node
+ * records of dom.dbx. They are copied from the pages returned by the
+ * {@link RawNodeIterator} into the output buffer and escaped on the fly. Local names
+ * and namespace URIs are read from the {@link SymbolTable} once and cached in
+ * their encoded form.
+ *
+ * The output is equivalent to the one of {@link NativeSerializer} with the xml
+ * output method and UTF-8 encoding, including indentation. Namespace
+ * declarations are written where a prefix is first used or rebound, so their
+ * order within a start tag may differ. The caller is responsible for checking
+ * that no stylesheet, XInclude expansion, match highlighting or other filter
+ * needs to see the events, see {@link Serializer#toOutputStream(DocumentImpl, OutputStream)}.
+ *
+ * Instances are not thread safe. Each {@link Serializer} keeps its own.
+ */
+public class UTF8StreamSerializer {
+
+    private final static int BUFFER_SIZE = 8192;
+
+    private final static byte[][] TEXT_ESCAPES = new byte[128][];
+    private final static byte[][] ATTR_ESCAPES = new byte[128][];
+    private final static byte[][] NO_ESCAPES = new byte[128][];
+    private final static byte[] NBSP_ESCAPE = encode("&#160;");
+    private final static byte[] CDATA_START = encode("<![CDATA[");
+    private final static byte[] CDATA_END = encode("]]>");
+    private final static byte[] COMMENT_START = encode("<!--");
+    private final static byte[] COMMENT_END = encode("-->");
+    private final static byte[] PI_START = encode("<?");
+    private final static byte[] PI_END = encode("?>");
+    private final static byte[] END_TAG_START = encode("</");
+    private final static byte[] EMPTY_TAG_END = encode("/>");
+    private final static byte[] ATTR_START = encode("=\"");
+    private final static byte[] XMLNS = encode(" xmlns");
+
+    static {
+        TEXT_ESCAPES['<'] = encode("&lt;");
+        TEXT_ESCAPES['>'] = encode("&gt;");
+        TEXT_ESCAPES['&'] = encode("&amp;");
+
+        ATTR_ESCAPES['<'] = TEXT_ESCAPES['<'];
+        ATTR_ESCAPES['>'] = TEXT_ESCAPES['>'];
+        ATTR_ESCAPES['&'] = TEXT_ESCAPES['&'];
+        ATTR_ESCAPES['\r'] = encode("&#xD;");
+        ATTR_ESCAPES['\n'] = encode("&#xA;");
+        ATTR_ESCAPES['\t'] = encode("&#x9;");
+        ATTR_ESCAPES['"'] = encode("&#34;");
+    }
+
+    private final DBBroker broker;
+    private final SymbolTable symbols;
+    private final NodeIdFactory nodeFactory;
+
+    /** Encoded names by local name and namespace symbol, see {@link #getName(short, short, byte[], int, int)} */
+    private final Int2ObjectHashMap<Name> names = new Int2ObjectHashMap<Name>(128);
+    private final Int2ObjectHashMap<String> namespaces = new Int2ObjectHashMap<String>(16);
+
+    private final NamespaceSupport nsSupport = new NamespaceSupport();
+
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int len = 0;
+    private OutputStream os = null;
+
+    private RawNodeIterator iterator = null;
+
+    private Properties outputProperties;
+    private boolean indent = false;
+    private int indentAmount = 4;
+
+    private boolean tagIsOpen = false;
+    private boolean doctypeWritten = false;
+    private int level = 0;
+    private boolean afterTag = false;
+    private boolean sameline = false;
+
+    public UTF8StreamSerializer(DBBroker broker) {
+        this.broker = broker;
+        this.symbols = broker.getBrokerPool().getSymbols();
+        this.nodeFactory = broker.getBrokerPool().getNodeFactory();
+    }
+
+    /**
+     * Serialize the given document to the output stream.
+     *
+     * @param doc the document
+     * @param properties the output properties
+     * @param os the output stream. It is flushed, but not closed.
+     * @throws IOException
+     */
+    public void serialize(DocumentImpl doc, Properties properties, OutputStream os) throws IOException {
+        start(properties, os);
+        try {
+            if (doc.getDoctype() != null && "yes".equals(outputProperties.getProperty(EXistOutputKeys.OUTPUT_DOCTYPE, "no"))) {
+                final DocumentTypeImpl doctype = (DocumentTypeImpl) doc.getDoctype();
+                documentType(doctype.getName(), doctype.getPublicId(), doctype.getSystemId());
+            }
+            final NodeList children = doc.getChildNodes();
+            for (int i = 0; i < children.getLength(); i++) {
+                writeNode(seek((StoredNode) children.item(i)));
+            }
+            flushBuffer();
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * Serialize the element referenced by the given proxy, including
+     * all its descendants, to the output stream.
+     *
+     * @param p a proxy pointing to an element
+     * @param properties the output properties
+     * @param os the output stream. It is flushed, but not closed.
+     * @throws IOException
+     */
+    public void serialize(NodeProxy p, Properties properties, OutputStream os) throws IOException {
+        start(properties, os);
+        try {
+            final Value value = seek(p);
+            if (Signatures.getType(value.data()[value.start()]) != Node.ELEMENT_NODE)
+                {throw new IOException("Node " + p.getNodeId() + " is not an element");}
+            writeNode(value);
+            flushBuffer();
+        } finally {
+            end();
+        }
+    }
+
+    private void start(Properties properties, OutputStream os) throws IOException {
+        this.os = os;
+        this.outputProperties = properties;
+        len = 0;
+        tagIsOpen = false;
+        doctypeWritten = false;
+        level = 0;
+        afterTag = false;
+        sameline = false;
+        nsSupport.reset();
+        indent = "yes".equals(properties.getProperty(OutputKeys.INDENT, "no"));
+        try {
+            indentAmount = Integer.parseInt(properties.getProperty(EXistOutputKeys.INDENT_SPACES, "4"));
+        } catch (final NumberFormatException e) {
+            indentAmount = 4;
+        }
+        writeDeclaration();
+    }
+
+    private void end() {
+        os = null;
+        outputProperties = null;
+        if (iterator != null) {
+            iterator.closeDocument();
+        }
+    }
+
+    private Value seek(StoredNode node) throws IOException {
+        if (iterator == null) {
+            iterator = new RawNodeIterator(broker, ((NativeBroker) broker).getDOMFile(), node);
+        } else {
+            iterator.seek(node);
+        }
+        final Value value = iterator.next();
+        if (value == null)
+            {throw new IOException("Node " + node.getNodeId() + " not found in document " + node.getDocId());}
+        return value;
+    }
+
+    private Value seek(NodeProxy p) throws IOException {
+        final Value value = seek(new StoredNode(p));
+        // the address may be outdated: check that we found the right node
+        final NodeId nodeId = readNodeId(value);
+        if (!nodeId.equals(p.getNodeId())) {
+            final StoredNode node = new StoredNode(p);
+            node.setInternalAddress(StoredNode.UNKNOWN_NODE_IMPL_ADDRESS);
+            return seek(node);
+        }
+        return value;
+    }
+
+    private Value next() throws IOException {
+        final Value value = iterator.next();
+        if (value == null)
+            {throw new IOException("Unexpected end of document while serializing");}
+        return value;
+    }
+
+    private NodeId readNodeId(Value value) {
+        final byte[] data = value.data();
+        int pos = value.start() + StoredNode.LENGTH_SIGNATURE_LENGTH;
+        if (Signatures.getType(data[value.start()]) == Node.ELEMENT_NODE)
+            {pos += ElementImpl.LENGTH_ELEMENT_CHILD_COUNT;}
+        final int units = readShort(data, pos);
+        return nodeFactory.createFromData(units, data, pos + NodeId.LENGTH_NODE_ID_UNITS);
+    }
+
+    /**
+     * Returns the offset of the first byte following the node id
+     * in a node record. The node id is stored at the given position.
+     */
+    private int skipNodeId(byte[] data, int pos) {
+        final int units = readShort(data, pos);
+        pos += NodeId.LENGTH_NODE_ID_UNITS;
+        return pos + nodeFactory.lengthInBytes(units, data, pos);
+    }
+
+    /**
+     * Read a short from a node record. Node records store numbers with the lowest
+     * byte first, see {@link ElementImpl#serialize()}.
+     */
+    private static short readShort(byte[] data, int pos) {
+        return (short) (((data[pos + 1] & 0xff) << 8) | (data[pos] & 0xff));
+    }
+
+    /**
+     * Read an int from a node record, lowest byte first.
+     */
+    private static int readInt(byte[] data, int pos) {
+        return (data[pos] & 0xff) | ((data[pos + 1] & 0xff) << 8) |
+            ((data[pos + 2] & 0xff) << 16) | ((data[pos + 3] & 0xff) << 24);
+    }
+
+    private void writeNode(Value value) throws IOException {
+        final byte[] data = value.data();
+        final int start = value.start();
+        final int end = start + value.getLength();
+        switch (Signatures.getType(data[start])) {
+            case Node.ELEMENT_NODE:
+                writeElement(data, start, end);
+                break;
+            case Node.TEXT_NODE:
+                characters(data, skipNodeId(data, start + StoredNode.LENGTH_SIGNATURE_LENGTH), end);
+                break;
+            case Node.CDATA_SECTION_NODE:
+                closeStartTag(false);
+                write(CDATA_START);
+                writeEscaped(data, skipNodeId(data, start + StoredNode.LENGTH_SIGNATURE_LENGTH), end, NO_ESCAPES, false);
+                write(CDATA_END);
+                break;
+            case Node.COMMENT_NODE:
+                closeStartTag(false);
+                write(COMMENT_START);
+                writeEscaped(data, skipNodeId(data, start + StoredNode.LENGTH_SIGNATURE_LENGTH), end, NO_ESCAPES, false);
+                write(COMMENT_END);
+                afterTag = true;
+                break;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                int pos = skipNodeId(data, start + StoredNode.LENGTH_SIGNATURE_LENGTH);
+                final int targetLen = readInt(data, pos);
+                pos += 4;
+                closeStartTag(false);
+                write(PI_START);
+                writeEscaped(data, pos, pos + targetLen, NO_ESCAPES, false);
+                pos += targetLen;
+                if (pos < end) {
+                    write((byte) ' ');
+                    writeEscaped(data, pos, end, NO_ESCAPES, false);
+                }
+                write(PI_END);
+                afterTag = true;
+                break;
+            default:
+                throw new IOException("Unexpected node type in element content: " +
+                    Signatures.getType(data[start]));
+        }
+    }
+
+    private void writeElement(byte[] data, int start, int end) throws IOException {
+        final byte signature = data[start];
+        final int idSizeType = signature & 0x03;
+        final boolean hasNamespace = (signature & 0x10) == 0x10;
+        int pos = start + StoredNode.LENGTH_SIGNATURE_LENGTH;
+        final int children = readInt(data, pos);
+        pos += ElementImpl.LENGTH_ELEMENT_CHILD_COUNT;
+        pos = skipNodeId(data, pos);
+        final int attribs = readShort(data, pos);
+        pos += ElementImpl.LENGTH_ATTRIBUTES_COUNT;
+        final short id = (short) Signatures.read(idSizeType, data, pos);
+        pos += Signatures.getLength(idSizeType);
+        short nsId = 0;
+        int prefixStart = pos;
+        int prefixLen = 0;
+        if (hasNamespace) {
+            nsId = readShort(data, pos);
+            pos += ElementImpl.LENGTH_NS_ID;
+            prefixLen = readShort(data, pos);
+            pos += ElementImpl.LENGTH_PREFIX_LENGTH;
+            prefixStart = pos;
+            pos += prefixLen;
+        }
+        final Name name = getName(id, nsId, data, prefixStart, prefixLen);
+
+        startElement(name);
+        nsSupport.pushContext();
+        if (pos < end) {
+            // namespace prefixes declared on this element
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, pos, end - pos));
+            final int count = in.readShort();
+            for (int i = 0; i < count; i++) {
+                final String prefix = in.readUTF();
+                namespace(prefix, getNamespace(in.readShort()));
+            }
+        }
+        namespace(name.prefix, name.namespaceURI);
+        for (int i = 0; i < attribs; i++) {
+            writeAttribute(next());
+        }
+        for (int i = attribs; i < children; i++) {
+            writeNode(next());
+        }
+        endElement(name);
+        nsSupport.popContext();
+    }
+
+    private void writeAttribute(Value value) throws IOException {
+        final byte[] data = value.data();
+        final int start = value.start();
+        final int end = start + value.getLength();
+        if (Signatures.getType(data[start]) != Node.ATTRIBUTE_NODE)
+            {throw new IOException("Expected an attribute node");}
+        final int idSizeType = data[start] & 0x03;
+        final boolean hasNamespace = (data[start] & 0x10) == 0x10;
+        int pos = skipNodeId(data, start + StoredNode.LENGTH_SIGNATURE_LENGTH);
+        final short id = (short) Signatures.read(idSizeType, data, pos);
+        pos += Signatures.getLength(idSizeType);
+        short nsId = 0;
+        int prefixStart = pos;
+        int prefixLen = 0;
+        if (hasNamespace) {
+            nsId = readShort(data, pos);
+            pos += ElementImpl.LENGTH_NS_ID;
+            prefixLen = readShort(data, pos);
+            pos += ElementImpl.LENGTH_PREFIX_LENGTH;
+            prefixStart = pos;
+            pos += prefixLen;
+        }
+        final Name name = getName(id, nsId, data, prefixStart, prefixLen);
+        if (prefixLen > 0)
+            {namespace(name.prefix, name.namespaceURI);}
+        write((byte) ' ');
+        write(name.qname);
+        write(ATTR_START);
+        writeEscaped(data, pos, end, ATTR_ESCAPES, true);
+        write((byte) '"');
+    }
+
+    /**
+     * Returns the encoded name for the given local name and namespace
+     * symbols and prefix. Names are cached by symbols, with a list
+     * of entries for different prefixes.
+     */
+    private Name getName(short id, short nsId, byte[] data, int prefixStart, int prefixLen)
+            throws UnsupportedEncodingException {
+        final int key = (id << 16) | (nsId & 0xFFFF);
+        final Name first = names.get(key);
+        for (Name next = first; next != null; next = next.next) {
+            if (next.matchesPrefix(data, prefixStart, prefixLen))
+                {return next;}
+        }
+        final String localName = symbols.getName(id);
+        if (localName == null)
+            {throw new UnsupportedEncodingException("no symbol for id " + id);}
+        final String prefix = prefixLen == 0 ? "" : new String(data, prefixStart, prefixLen, "UTF-8");
+        final Name name = new Name(prefix, nsId == 0 ? "" : getNamespace(nsId), localName);
+        name.next = first;
+        names.put(key, name);
+        return name;
+    }
+
+    private String getNamespace(short nsId) {
+        String ns = namespaces.get(nsId);
+        if (ns == null) {
+            ns = symbols.getNamespace(nsId);
+            namespaces.put(nsId, ns);
+        }
+        return ns;
+    }
+
+    private void startElement(Name name) throws IOException {
+        if (afterTag)
+            {indent();}
+        if (!doctypeWritten)
+            {writeDoctype(name);}
+        closeStartTag(false);
+        write((byte) '<');
+        write(name.qname);
+        tagIsOpen = true;
+        level++;
+        afterTag = true;
+        sameline = true;
+    }
+
+    private void endElement(Name name) throws IOException {
+        level--;
+        if (afterTag && !sameline)
+            {indent();}
+        if (tagIsOpen)
+            {closeStartTag(true);}
+        else {
+            write(END_TAG_START);
+            write(name.qname);
+            write((byte) '>');
+        }
+        sameline = false;
+        afterTag = true;
+    }
+
+    /**
+     * Declare the namespace if the prefix is not yet bound to it.
+     */
+    private void namespace(String prefix, String namespaceURI) throws IOException {
+        if (Namespaces.XML_NS.equals(namespaceURI))
+            {return;}
+        String current = nsSupport.getURI(prefix);
+        if (current == null && prefix.length() == 0)
+            {current = "";}
+        if (namespaceURI.equals(current))
+            {return;}
+        nsSupport.declarePrefix(prefix, namespaceURI);
+        write(XMLNS);
+        if (prefix.length() > 0) {
+            write((byte) ':');
+            write(encode(prefix));
+        }
+        write(ATTR_START);
+        final byte[] uri = encode(namespaceURI);
+        writeEscaped(uri, 0, uri.length, ATTR_ESCAPES, true);
+        write((byte) '"');
+    }
+
+    private void characters(byte[] data, int start, int end) throws IOException {
+        if (start == end)
+            {return;}
+        for (int i = start; i < end; i++) {
+            if (data[i] == '\n') {
+                sameline = false;
+                break;
+            }
+        }
+        afterTag = false;
+        closeStartTag(false);
+        writeEscaped(data, start, end, TEXT_ESCAPES, true);
+    }
+
+    private void closeStartTag(boolean isEmpty) throws IOException {
+        if (tagIsOpen) {
+            if (isEmpty)
+                {write(EMPTY_TAG_END);}
+            else
+                {write((byte) '>');}
+            tagIsOpen = false;
+        }
+    }
+
+    private void indent() throws IOException {
+        if (!indent)
+            {return;}
+        closeStartTag(false);
+        write((byte) '\n');
+        for (int i = indentAmount * level; i > 0; i--) {
+            write((byte) ' ');
+        }
+        sameline = false;
+    }
+
+    private void writeDeclaration() throws IOException {
+        if (!"no".equals(outputProperties.getProperty(OutputKeys.OMIT_XML_DECLARATION, "yes")))
+            {return;}
+        final StringBuilder decl = new StringBuilder("<?xml version=\"");
+        decl.append(outputProperties.getProperty(OutputKeys.VERSION, "1.0"));
+        decl.append("\" encoding=\"");
+        decl.append(outputProperties.getProperty(OutputKeys.ENCODING, "UTF-8"));
+        decl.append('"');
+        final String standalone = outputProperties.getProperty(OutputKeys.STANDALONE);
+        if (standalone != null)
+            {decl.append(" standalone=\"").append(standalone).append('"');}
+        decl.append("?>\n");
+        write(encode(decl.toString()));
+    }
+
+    private void writeDoctype(Name rootElement) throws IOException {
+        final String publicId = outputProperties.getProperty(OutputKeys.DOCTYPE_PUBLIC);
+        final String systemId = outputProperties.getProperty(OutputKeys.DOCTYPE_SYSTEM);
+        if (publicId != null || systemId != null)
+            {documentType(rootElement.getStringValue(), publicId, systemId);}
+        doctypeWritten = true;
+    }
+
+    private void documentType(String name, String publicId, String systemId) throws IOException {
+        final StringBuilder doctype = new StringBuilder("<!DOCTYPE ");
+        doctype.append(name);
+        if (publicId != null)
+            {doctype.append(" PUBLIC \"").append(publicId.replaceAll("&#160;", " ")).append('"');}
+        if (systemId != null) {
+            if (publicId == null)
+                {doctype.append(" SYSTEM");}
+            doctype.append(" \"").append(systemId).append('"');
+        }
+        doctype.append(">\n");
+        write(encode(doctype.toString()));
+        doctypeWritten = true;
+        sameline = false;
+    }
+
+    /**
+     * Write the UTF-8 encoded characters in data, replacing the special
+     * characters in the escapes table and, if requested, the non-breaking
+     * space by character references. Characters outside the BMP are stored
+     * as two separately encoded surrogates and are combined into a single
+     * four byte sequence here.
+     */
+    private void writeEscaped(byte[] data, int start, int end, byte[][] escapes, boolean escapeNbsp)
+            throws IOException {
+        int run = start;
+        for (int i = start; i < end; i++) {
+            final byte b = data[i];
+            if (b >= 0) {
+                if (escapes[b] != null) {
+                    write(data, run, i);
+                    write(escapes[b]);
+                    run = i + 1;
+                }
+            } else if (b == (byte) 0xC2) {
+                if (escapeNbsp && i + 1 < end && data[i + 1] == (byte) 0xA0) {
+                    write(data, run, i);
+                    write(NBSP_ESCAPE);
+                    run = ++i + 1;
+                }
+            } else if (b == (byte) 0xED && i + 5 < end && (data[i + 1] & 0xF0) == 0xA0) {
+                write(data, run, i);
+                final int high = ((data[i + 1] & 0x0F) << 6) | (data[i + 2] & 0x3F);
+                final int low = ((data[i + 4] & 0x0F) << 6) | (data[i + 5] & 0x3F);
+                final int cp = 0x10000 + (high << 10) + low;
+                write((byte) (0xF0 | (cp >> 18)));
+                write((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                write((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                write((byte) (0x80 | (cp & 0x3F)));
+                i += 5;
+                run = i + 1;
+            }
+        }
+        write(data, run, end);
+    }
+
+    private void write(byte b) throws IOException {
+        if (len == buf.length)
+            {flushBuffer();}
+        buf[len++] = b;
+    }
+
+    private void write(byte[] data) throws IOException {
+        write(data, 0, data.length);
+    }
+
+    private void write(byte[] data, int start, int end) throws IOException {
+        final int count = end - start;
+        if (count > buf.length - len) {
+            flushBuffer();
+            if (count > buf.length) {
+                os.write(data, start, count);
+                return;
+            }
+        }
+        System.arraycopy(data, start, buf, len, count);
+        len += count;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (len > 0) {
+            os.write(buf, 0, len);
+            len = 0;
+        }
+        os.flush();
+    }
+
+    private static byte[] encode(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A node name with its prefix and the encoded qualified name.
+     */
+    private final static class Name {
+
+        final String prefix;
+        final String namespaceURI;
+        final byte[] prefixBytes;
+        final byte[] qname;
+        Name next = null;
+
+        Name(String prefix, String namespaceURI, String localName) {
+            this.prefix = prefix;
+            this.namespaceURI = namespaceURI;
+            this.prefixBytes = encode(prefix);
+            this.qname = encode(prefix.length() == 0 ? localName : prefix + ':' + localName);
+        }
+
+        boolean matchesPrefix(byte[] data, int start, int len) {
+            if (len != prefixBytes.length)
+                {return false;}
+            for (int i = 0; i < len; i++) {
+                if (prefixBytes[i] != data[start + i])
+                    {return false;}
+            }
+            return true;
+        }
+
+        String getStringValue() throws UnsupportedEncodingException {
+            return new String(qname, "UTF-8");
+        }
+    }
+}
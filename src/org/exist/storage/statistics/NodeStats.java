@@ -118,6 +118,16 @@ class NodeStats {
         }
     }
 
+    protected int getNodeCount(QName name) {
+        int count = qname != null && qname.equalsSimple(name) ? nodeCount : 0;
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                count += children[i].getNodeCount(name);
+            }
+        }
+        return count;
+    }
+
     protected void write(ByteBuffer buffer, SymbolTable symbols) {
         buffer.putShort(symbols.getNSSymbol(qname.getNamespaceURI()));
         buffer.putShort(symbols.getSymbol(qname.getLocalName()));
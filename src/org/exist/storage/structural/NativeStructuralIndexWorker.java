@@ -1,12 +1,15 @@
 package org.exist.storage.structural;
 
+import org.exist.Indexer;
 import org.exist.collections.Collection;
 import org.exist.dom.*;
 import org.exist.indexing.*;
+import org.exist.numbering.DLNBase;
 import org.exist.numbering.NodeId;
 import org.exist.storage.*;
 import org.exist.storage.btree.BTreeCallback;
 import org.exist.storage.btree.IndexQuery;
+import org.exist.storage.btree.KeySorter;
 import org.exist.storage.btree.Value;
 import org.exist.storage.lock.Lock;
 import org.exist.storage.txn.Txn;
@@ -19,6 +22,7 @@ import org.exist.xquery.NodeTest;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import java.io.IOException;
 import java.util.*;
 import org.exist.security.PermissionDeniedException;
 
@@ -34,6 +38,12 @@ public class NativeStructuralIndexWorker implements IndexWorker, StructuralIndex
     private DocumentImpl document;
     private Map<QName, List<NodeProxy>> pending = new TreeMap<QName, List<NodeProxy>>();
 
+    /**
+     * Keys and values of the documents stored while indexing is deferred, see {@link #setDeferred(boolean)}.
+     * Sorted in btree order, so they can be inserted in one pass.
+     */
+    private KeySorter deferred = null;
+
     public NativeStructuralIndexWorker(NativeStructuralIndex index) {
         this.index = index;
     }
@@ -62,7 +72,7 @@ public class NativeStructuralIndexWorker implements IndexWorker, StructuralIndex
      */
     public NodeSet findElementsByTagName(byte type, DocumentSet docs, QName qname, NodeSelector selector) {
         final Lock lock = index.btree.getLock();
-        final NewArrayNodeSet result = new NewArrayNodeSet(docs.getDocumentCount(), 256);
+        final ColumnarNodeSet result = new ColumnarNodeSet(256);
         final FindElementsCallback callback = new FindElementsCallback(type, result, docs, selector);
         // scan the document set to find document id ranges to query
         final List<Range> ranges = new ArrayList<Range>();
@@ -125,7 +135,7 @@ public class NativeStructuralIndexWorker implements IndexWorker, StructuralIndex
      */
     public NodeSet findDescendantsByTagName(byte type, QName qname, int axis, DocumentSet docs, NodeSet contextSet, int contextId) {
         final Lock lock = index.btree.getLock();
-        final NewArrayNodeSet result = new NewArrayNodeSet(docs.getDocumentCount(), 256);
+        final ColumnarNodeSet result = new ColumnarNodeSet(256);
         final FindDescendantsCallback callback = new FindDescendantsCallback(type, axis, contextId, result);
         try {
             lock.acquire(Lock.READ_LOCK);
@@ -153,14 +163,92 @@ public class NativeStructuralIndexWorker implements IndexWorker, StructuralIndex
         } finally {
             lock.release(Lock.READ_LOCK);
         }
-        result.updateNoSort();
+        // overlapping ancestors may produce duplicates
+        result.sort(true);
+        return result;
+    }
+
+    /**
+     * Find all descendants (or children) of the specified node set matching the given QName,
+     * using a merge join between the index and the context set.
+     *
+     * The index is scanned once for every range of document ids in contextSet. Matches are
+     * returned in document order, so the context nodes are sorted the same way and kept on a
+     * stack of nested ancestors while walking through the matches. This implementation is
+     * preferable to {@link #findDescendantsByTagName(byte, QName, int, DocumentSet, NodeSet, int)}
+     * if contextSet is large compared to the number of nodes matching the QName.
+     */
+    public NodeSet joinDescendantsByTagName(byte type, QName qname, int axis, DocumentSet docs, NodeSet contextSet, int contextId) {
+        final NodeProxy[] contextNodes = sortedNodes(contextSet);
+        final Lock lock = index.btree.getLock();
+        final ColumnarNodeSet result = new ColumnarNodeSet(256);
+        final JoinDescendantsCallback callback = new JoinDescendantsCallback(type, axis, contextId, contextNodes, result);
+        // the document id ranges to query follow from the sorted context nodes
+        final List<Range> ranges = new ArrayList<Range>();
+        Range next = null;
+        for (int i = 0; i < contextNodes.length; i++) {
+            final int docId = contextNodes[i].getDocument().getDocId();
+            if (next == null)
+                {next = new Range(docId);}
+            else if (next.end + 1 >= docId)
+                {next.end = docId;}
+            else {
+                ranges.add(next);
+                next = new Range(docId);
+            }
+        }
+        if (next != null)
+            {ranges.add(next);}
+        try {
+            lock.acquire(Lock.READ_LOCK);
+            for (final Range range : ranges) {
+                final byte[] fromKey = computeKey(type, qname, range.start);
+                final byte[] toKey = computeKey(type, qname, range.end + 1);
+                final IndexQuery query = new IndexQuery(IndexQuery.RANGE, new Value(fromKey), new Value(toKey));
+                try {
+                    index.btree.query(query, callback);
+                } catch (final Exception e) {
+                    NativeStructuralIndex.LOG.error("Error while searching structural index: " + e.getMessage(), e);
+                }
+            }
+        } catch (final LockException e) {
+            NativeStructuralIndex.LOG.warn("Lock problem while searching structural index: " + e.getMessage(), e);
+        } finally {
+            lock.release(Lock.READ_LOCK);
+        }
+        // nested ancestors produce duplicates
+        result.sort(true);
         return result;
     }
 
+    /**
+     * Returns the nodes of the set in document order.
+     */
+    private static NodeProxy[] sortedNodes(NodeSet nodes) {
+        final NodeProxy[] sorted = new NodeProxy[nodes.getLength()];
+        int count = 0;
+        boolean isSorted = true;
+        for (final NodeProxy p : nodes) {
+            if (count == sorted.length)
+                {break;}
+            if (count > 0 && isSorted && sorted[count - 1].compareTo(p) > 0)
+                {isSorted = false;}
+            sorted[count++] = p;
+        }
+        if (!isSorted)
+            {Arrays.sort(sorted, 0, count);}
+        if (count < sorted.length) {
+            final NodeProxy[] nodesFound = new NodeProxy[count];
+            System.arraycopy(sorted, 0, nodesFound, 0, count);
+            return nodesFound;
+        }
+        return sorted;
+    }
+
     public NodeSet findAncestorsByTagName(byte type, QName qname, int axis, DocumentSet docs, NodeSet contextSet,
                                           int contextId) {
         final Lock lock = index.btree.getLock();
-        final NewArrayNodeSet result = new NewArrayNodeSet(docs.getDocumentCount(), 256);
+        final ColumnarNodeSet result = new ColumnarNodeSet(256);
         try {
             lock.acquire(Lock.READ_LOCK);
             for (final NodeProxy descendant : contextSet) {
@@ -174,15 +262,21 @@ public class NativeStructuralIndexWorker implements IndexWorker, StructuralIndex
                     final byte[] key = computeKey(type, qname, doc.getDocId(), parentId);
                     final long address = index.btree.findValue(new Value(key));
                     if (address != -1) {
-                        final NodeProxy storedNode = new NodeProxy(doc, parentId,
-                            type == ElementValue.ATTRIBUTE ? Node.ATTRIBUTE_NODE : Node.ELEMENT_NODE, address);
-                        result.add(storedNode);
-                        if (Expression.NO_CONTEXT_ID != contextId) {
-                            storedNode.deepCopyContext(descendant, contextId);
-                        } else
-                            {storedNode.copyContext(descendant);}
-                        if (contextSet.getTrackMatches())
-                        	{storedNode.addMatches(descendant);}
+                        final short nodeType = type == ElementValue.ATTRIBUTE ? Node.ATTRIBUTE_NODE : Node.ELEMENT_NODE;
+                        if (Expression.NO_CONTEXT_ID == contextId && descendant.getContext() == null &&
+                                (!contextSet.getTrackMatches() || descendant.getMatches() == null)) {
+                            // nothing to copy from the descendant
+                            result.add(doc, parentId, nodeType, address);
+                        } else {
+                            final NodeProxy storedNode = new NodeProxy(doc, parentId, nodeType, address);
+                            result.add(storedNode);
+                            if (Expression.NO_CONTEXT_ID != contextId) {
+                                storedNode.deepCopyContext(descendant, contextId);
+                            } else
+                                {storedNode.copyContext(descendant);}
+                            if (contextSet.getTrackMatches())
+                            	{storedNode.addMatches(descendant);}
+                        }
                     }
                     // stop after first iteration if we are on the self axis
                     if (axis == Constants.SELF_AXIS || axis == Constants.PARENT_AXIS)
@@ -205,7 +299,7 @@ public class NativeStructuralIndexWorker implements IndexWorker, StructuralIndex
     public NodeSet scanByType(byte type, int axis, NodeTest test, boolean useSelfAsContext, DocumentSet docs, 
     		NodeSet contextSet, int contextId) {
         final Lock lock = index.btree.getLock();
-        final NewArrayNodeSet result = new NewArrayNodeSet(docs.getDocumentCount(), 256);
+        final ColumnarNodeSet result = new ColumnarNodeSet(256);
         final FindDescendantsCallback callback = new FindDescendantsCallback(type, axis, contextId, useSelfAsContext, result);
         for (final NodeProxy ancestor : contextSet) {
             final DocumentImpl doc = ancestor.getDocument();
@@ -245,10 +339,10 @@ public class NativeStructuralIndexWorker implements IndexWorker, StructuralIndex
     private class FindElementsCallback implements BTreeCallback {
         byte type;
         DocumentSet docs;
-        NewArrayNodeSet result;
+        ColumnarNodeSet result;
         NodeSelector selector;
 
-        FindElementsCallback(byte type, NewArrayNodeSet result, DocumentSet docs, NodeSelector selector) {
+        FindElementsCallback(byte type, ColumnarNodeSet result, DocumentSet docs, NodeSelector selector) {
             this.type = type;
             this.result = result;
             this.docs = docs;
@@ -257,15 +351,14 @@ public class NativeStructuralIndexWorker implements IndexWorker, StructuralIndex
 
         public boolean indexInfo(Value value, long pointer) throws TerminatedException {
             final byte[] key = value.getData();
-            final NodeId nodeId = readNodeId(key, pointer);
             final DocumentImpl doc = docs.getDoc(readDocId(key));
             if (doc != null) {
                 if (selector == null) {
-                    final NodeProxy storedNode = new NodeProxy(doc, nodeId,
+                    // copy the node id from the key, no need to create a NodeId or NodeProxy
+                    result.add(doc, key, 9, readNodeIdUnits(key, pointer),
                         type == ElementValue.ATTRIBUTE ? Node.ATTRIBUTE_NODE : Node.ELEMENT_NODE, pointer);
-                    result.add(storedNode);
                 } else {
-                    final NodeProxy storedNode = selector.match(doc, nodeId);
+                    final NodeProxy storedNode = selector.match(doc, readNodeId(key, pointer));
                     if (storedNode != null) {
                         storedNode.setNodeType(type == ElementValue.ATTRIBUTE ? Node.ATTRIBUTE_NODE : Node.ELEMENT_NODE);
                         storedNode.setInternalAddress(pointer);
@@ -283,14 +376,17 @@ public class NativeStructuralIndexWorker implements IndexWorker, StructuralIndex
         NodeProxy ancestor;
         DocumentImpl doc;
         int contextId;
-        NewArrayNodeSet result;
+        ColumnarNodeSet result;
         boolean selfAsContext = false;
+        // the serialized node id of the ancestor, null for the document node
+        byte[] ancestorData = null;
+        int ancestorUnits = 0;
 
-        FindDescendantsCallback(byte type, int axis, int contextId, NewArrayNodeSet result) {
+        FindDescendantsCallback(byte type, int axis, int contextId, ColumnarNodeSet result) {
         	this(type, axis, contextId, false, result);
         };
         
-        FindDescendantsCallback(byte type, int axis, int contextId, boolean selfAsContext, NewArrayNodeSet result) {
+        FindDescendantsCallback(byte type, int axis, int contextId, boolean selfAsContext, ColumnarNodeSet result) {
             this.type = type;
             this.axis = axis;
             this.contextId = contextId;
@@ -300,34 +396,183 @@ public class NativeStructuralIndexWorker implements IndexWorker, StructuralIndex
 
         void setAncestor(DocumentImpl doc, NodeProxy ancestor) {
             this.doc = doc;
+            if (this.ancestor == null || this.ancestor.getNodeId() != ancestor.getNodeId()) {
+                final NodeId ancestorId = ancestor.getNodeId();
+                if (ancestorId == NodeId.DOCUMENT_NODE)
+                    {ancestorData = null;}
+                else {
+                    ancestorData = serialize(ancestorId);
+                    ancestorUnits = ancestorId.units();
+                }
+            }
             this.ancestor = ancestor;
         }
 
         public boolean indexInfo(Value value, long pointer) throws TerminatedException {
-            final NodeId nodeId = readNodeId(value.getData(), pointer);
+            final byte[] key = value.getData();
+            final int units = readNodeIdUnits(key, pointer);
+            // compare the node id in the key with the ancestor, without creating a NodeId
+            boolean match;
+            switch (axis) {
+                case Constants.DESCENDANT_SELF_AXIS:
+                case Constants.DESCENDANT_ATTRIBUTE_AXIS:
+                    match = true;
+                    break;
+                case Constants.DESCENDANT_AXIS:
+                    match = ancestorData == null || DLNBase.isDescendant(key, 9, units, ancestorData, 0, ancestorUnits);
+                    break;
+                case Constants.CHILD_AXIS:
+                case Constants.ATTRIBUTE_AXIS:
+                    if (ancestorData == null)
+                        {match = DLNBase.getTreeLevel(key, 9, units) == 1;}
+                    else
+                        {match = DLNBase.isChild(key, 9, units, ancestorData, 0, ancestorUnits);}
+                    break;
+                default:
+                    match = false;
+            }
+            if (match)
+                {addDescendant(result, doc, key, units, null, pointer, type, ancestor, contextId, selfAsContext);}
+            return true;
+        }
+    }
+
+    /**
+     * Internal helper class used by
+     * {@link NativeStructuralIndexWorker#joinDescendantsByTagName(byte, QName, int, DocumentSet, NodeSet, int)}.
+     * Expects the index entries in key order, i.e. sorted by document and node id.
+     */
+    private class JoinDescendantsCallback implements BTreeCallback {
+        int axis;
+        byte type;
+        int contextId;
+        ColumnarNodeSet result;
+        NodeProxy[] contextNodes;
+        // the serialized node ids of the context nodes, null for a document node
+        byte[][] contextData;
+        int[] contextUnits;
+        // the next context node to be pushed
+        int next = 0;
+        // the positions of the context nodes containing the current index entry, outermost first
+        int[] stack = new int[16];
+        int top = -1;
+        int currentDoc = -1;
 
-            boolean match = axis == Constants.DESCENDANT_SELF_AXIS || axis == Constants.DESCENDANT_ATTRIBUTE_AXIS;
-            if (!match) {
-                final int relation = nodeId.computeRelation(ancestor.getNodeId());
-                match = (((axis == Constants.CHILD_AXIS) || (axis == Constants.ATTRIBUTE_AXIS)) && (relation == NodeId.IS_CHILD)) ||
-                    ((axis == Constants.DESCENDANT_AXIS) && ((relation == NodeId.IS_DESCENDANT) || (relation == NodeId.IS_CHILD)));
+        JoinDescendantsCallback(byte type, int axis, int contextId, NodeProxy[] contextNodes, ColumnarNodeSet result) {
+            this.type = type;
+            this.axis = axis;
+            this.contextId = contextId;
+            this.contextNodes = contextNodes;
+            this.result = result;
+            contextData = new byte[contextNodes.length][];
+            contextUnits = new int[contextNodes.length];
+            for (int i = 0; i < contextNodes.length; i++) {
+                final NodeId nodeId = contextNodes[i].getNodeId();
+                if (nodeId != NodeId.DOCUMENT_NODE) {
+                    contextData[i] = serialize(nodeId);
+                    contextUnits[i] = nodeId.units();
+                }
             }
-            if (match) {
-                final NodeProxy storedNode =
-                    new NodeProxy(doc, nodeId, type == ElementValue.ATTRIBUTE ? Node.ATTRIBUTE_NODE : Node.ELEMENT_NODE, pointer);
-                result.add(storedNode);
-                if (Expression.NO_CONTEXT_ID != contextId) {
-                	if (selfAsContext)
-                		{storedNode.addContextNode(contextId, storedNode);}
-                	else
-                		{storedNode.deepCopyContext(ancestor, contextId);}
-                } else {
-            		storedNode.copyContext(ancestor);
+        }
+
+        public boolean indexInfo(Value value, long pointer) throws TerminatedException {
+            final byte[] key = value.getData();
+            final int docId = readDocId(key);
+            if (docId != currentDoc) {
+                currentDoc = docId;
+                top = -1;
+                while (next < contextNodes.length && contextNodes[next].getDocument().getDocId() < docId) {
+                    next++;
                 }
-                storedNode.addMatches(ancestor);
+            }
+            if (top < 0 && (next == contextNodes.length || contextNodes[next].getDocument().getDocId() != docId))
+                // no context node contains this entry
+                {return true;}
+            final int units = readNodeIdUnits(key, pointer);
+            // push all context nodes starting at or before the current entry
+            while (next < contextNodes.length) {
+                if (contextNodes[next].getDocument().getDocId() != docId ||
+                        (contextData[next] != null &&
+                        DLNBase.compare(contextData[next], 0, contextUnits[next], key, 9, units) > 0))
+                    {break;}
+                popUntilAncestorOf(contextData[next], 0, contextUnits[next]);
+                push(next);
+                next++;
+            }
+            popUntilAncestorOf(key, 9, units);
+            for (int i = 0; i <= top; i++) {
+                if (isMatch(key, units, stack[i]))
+                    {addDescendant(result, contextNodes[stack[i]].getDocument(), key, units, null, pointer, type,
+                        contextNodes[stack[i]], contextId, false);}
             }
             return true;
         }
+
+        private boolean isMatch(byte[] key, int units, int ancestor) {
+            final byte[] ancestorData = contextData[ancestor];
+            switch (axis) {
+                case Constants.DESCENDANT_SELF_AXIS:
+                case Constants.DESCENDANT_ATTRIBUTE_AXIS:
+                    return true;
+                case Constants.DESCENDANT_AXIS:
+                    // the entry is a descendant or self of all context nodes on the stack
+                    return ancestorData == null || units != contextUnits[ancestor];
+                case Constants.CHILD_AXIS:
+                case Constants.ATTRIBUTE_AXIS:
+                    if (ancestorData == null)
+                        {return DLNBase.getTreeLevel(key, 9, units) == 1;}
+                    return DLNBase.isChild(key, 9, units, ancestorData, 0, contextUnits[ancestor]);
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * Pop all context nodes which do not contain the given node id. A null data
+         * array stands for the document node.
+         */
+        private void popUntilAncestorOf(byte[] data, int offset, int units) {
+            while (top >= 0 && contextData[stack[top]] != null && (data == null ||
+                    !DLNBase.isDescendantOrSelf(data, offset, units, contextData[stack[top]], 0, contextUnits[stack[top]]))) {
+                top--;
+            }
+        }
+
+        private void push(int contextNode) {
+            if (++top == stack.length) {
+                final int[] newStack = new int[stack.length * 2];
+                System.arraycopy(stack, 0, newStack, 0, stack.length);
+                stack = newStack;
+            }
+            stack[top] = contextNode;
+        }
+    }
+
+    /**
+     * Add the node read from an index key to the result of a descendant lookup and copy the
+     * context and matches of its ancestor. The node id is created on demand if nodeId is null.
+     */
+    private void addDescendant(ColumnarNodeSet result, DocumentImpl doc, byte[] key, int units, NodeId nodeId,
+            long pointer, byte type, NodeProxy ancestor, int contextId, boolean selfAsContext) {
+        final short nodeType = type == ElementValue.ATTRIBUTE ? Node.ATTRIBUTE_NODE : Node.ELEMENT_NODE;
+        if (Expression.NO_CONTEXT_ID == contextId && ancestor.getContext() == null && ancestor.getMatches() == null) {
+            // nothing to copy from the ancestor: store the node without creating a proxy
+            result.add(doc, key, 9, units, nodeType, pointer);
+            return;
+        }
+        if (nodeId == null)
+            {nodeId = index.getBrokerPool().getNodeFactory().createFromData(units, key, 9);}
+        final NodeProxy storedNode = new NodeProxy(doc, nodeId, nodeType, pointer);
+        result.add(storedNode);
+        if (Expression.NO_CONTEXT_ID != contextId) {
+            if (selfAsContext)
+                {storedNode.addContextNode(contextId, storedNode);}
+            else
+                {storedNode.deepCopyContext(ancestor, contextId);}
+        } else {
+            storedNode.copyContext(ancestor);
+        }
+        storedNode.addMatches(ancestor);
     }
     
     public String getIndexId() {
@@ -384,13 +629,91 @@ public class NativeStructuralIndexWorker implements IndexWorker, StructuralIndex
                 processPending();
                 break;
             case StreamListener.REMOVE_ALL_NODES:
+                flushDeferred();
                 removeDocument(document);
                 break;
             case StreamListener.REMOVE_SOME_NODES:
+                flushDeferred();
                 removeSome();
         }
     }
 
+    /**
+     * Defer writing to the btree when flushing stored documents. Instead, the keys of
+     * all documents are collected and inserted in key order by {@link #flushDeferred()}.
+     * Keys which do not fit into memory are sorted externally, see {@link KeySorter}.
+     * Used by bulk loads, reindexing and restore. Switching deferred indexing off writes
+     * the collected keys.
+     *
+     * @param defer true to defer writing to the btree
+     */
+    public void setDeferred(boolean defer) {
+        if (defer) {
+            if (deferred == null)
+                {deferred = new KeySorter(index.btree.getFile().getParentFile());}
+        } else {
+            flushDeferred();
+            deferred = null;
+        }
+    }
+
+    public boolean isDeferred() {
+        return deferred != null;
+    }
+
+    /**
+     * Insert the keys collected while indexing was deferred, in key order. An empty
+     * btree is built bottom-up, see {@link org.exist.storage.btree.BTree#addSorted(Txn, KeySorter, double)}.
+     */
+    public void flushDeferred() {
+        if (deferred == null || deferred.isEmpty())
+            {return;}
+        final Lock lock = index.btree.getLock();
+        try {
+            lock.acquire(Lock.WRITE_LOCK);
+            index.btree.addSorted(null, deferred, getBulkFillFactor());
+        } catch (final LockException e) {
+            NativeStructuralIndex.LOG.warn("Failed to lock structural index: " + e.getMessage(), e);
+        } catch (final Exception e) {
+            NativeStructuralIndex.LOG.warn("Exception caught while writing to structural index: " + e.getMessage(), e);
+        } finally {
+            lock.release(Lock.WRITE_LOCK);
+            deferred.clear();
+        }
+    }
+
+    /**
+     * Drop the keys collected while indexing was deferred without inserting them.
+     */
+    public void discardDeferred() {
+        if (deferred != null)
+            {deferred.clear();}
+    }
+
+    /**
+     * Remove all keys of the index by truncating the btree, see
+     * {@link org.exist.storage.btree.BTree#truncate()}. Used before the whole
+     * database is reindexed, so the btree is built bottom-up afterwards.
+     */
+    public void truncate() {
+        final Lock lock = index.btree.getLock();
+        try {
+            lock.acquire(Lock.WRITE_LOCK);
+            index.btree.truncate();
+        } catch (final LockException e) {
+            NativeStructuralIndex.LOG.warn("Failed to lock structural index: " + e.getMessage(), e);
+        } catch (final Exception e) {
+            NativeStructuralIndex.LOG.warn("Exception caught while truncating structural index: " + e.getMessage(), e);
+        } finally {
+            lock.release(Lock.WRITE_LOCK);
+        }
+    }
+
+    private double getBulkFillFactor() {
+        final Double fillFactor = (Double) index.getBrokerPool().getConfiguration().getProperty(Indexer.PROPERTY_BULK_FILL_FACTOR);
+        return fillFactor == null ? Indexer.DEFAULT_BULK_FILL_FACTOR : fillFactor.doubleValue();
+    }
+
     protected void removeSome() {
         if (pending.size() == 0)
             {return;}
@@ -492,6 +815,7 @@ public class NativeStructuralIndexWorker implements IndexWorker, StructuralIndex
 
     @Override
     public void removeCollection(Collection collection, DBBroker broker) throws PermissionDeniedException {
+        flushDeferred();
         for (final Iterator<DocumentImpl> i = collection.iterator(broker); i.hasNext(); ) {
             final DocumentImpl doc = i.next();
             removeDocument(doc);
@@ -534,6 +858,24 @@ public class NativeStructuralIndexWorker implements IndexWorker, StructuralIndex
         if (pending.size() == 0)
             {return;}
 
+        if (deferred != null) {
+            try {
+                for (final Map.Entry<QName,List<NodeProxy>> entry: pending.entrySet()) {
+                    final QName qname = entry.getKey();
+                    for (final NodeProxy proxy : entry.getValue()) {
+                        final byte[] key = computeKey(qname.getNameType(), qname, document.getDocId(), proxy.getNodeId());
+                        deferred.add(new Value(key), computeValue(proxy));
+                    }
+                    deferred.add(new Value(computeDocKey(qname.getNameType(), document.getDocId(), qname)), 0);
+                }
+            } catch (final IOException e) {
+                NativeStructuralIndex.LOG.warn("Failed to sort keys for structural index: " + e.getMessage(), e);
+            } finally {
+                pending.clear();
+            }
+            return;
+        }
+
         try {
             final Lock lock = index.btree.getLock();
             for (final Map.Entry<QName,List<NodeProxy>> entry: pending.entrySet()) {
@@ -635,14 +977,23 @@ public class NativeStructuralIndexWorker implements IndexWorker, StructuralIndex
         return ByteConversion.byteToIntH(key, 5);
     }
 
+    private static byte[] serialize(NodeId nodeId) {
+        final byte[] data = new byte[nodeId.size()];
+        nodeId.serialize(data, 0);
+        return data;
+    }
+
     private NodeId readNodeId(byte[] key, long value) {
+        return index.getBrokerPool().getNodeFactory().createFromData(readNodeIdUnits(key, value), key, 9);
+    }
+
+    private static int readNodeIdUnits(byte[] key, long value) {
         // extra number of bits of the node id is encoded in the long address
         short bits = (short)((value >>> 24) & 0xFFL);
         if (bits == 0)
             {bits = 8;}
         // compute total number of bits for node id
-        final int units = (key.length - 10) * 8 + bits;
-        return index.getBrokerPool().getNodeFactory().createFromData(units, key, 9);
+        return (key.length - 10) * 8 + bits;
     }
 
     private QName readQName(byte[] key) {
@@ -0,0 +1,224 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.storage.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.NativeValueIndex;
+import org.exist.storage.btree.BTree;
+import org.exist.storage.btree.DBException;
+import org.exist.storage.dom.DOMFile;
+import org.exist.storage.index.CollectionStore;
+import org.exist.storage.lock.Lock;
+import org.exist.util.Configuration;
+import org.exist.util.LockException;
+import org.exist.util.Lockable;
+
+/**
+ * Writes dirty pages of the core database files to disk in the background,
+ * at a bounded rate. Without it, all pages modified since the last checkpoint
+ * are written by the checkpoint itself, which blocks the database for as long
+ * as the writes take. With the page writer running, the checkpoint only
+ * finds the pages modified during the last few rounds.
+ *
+ * The writer never blocks a transaction: it only tries to acquire the lock
+ * on a file and skips the file if it is busy. Before any page is written, the
+ * journal is flushed, so the write-ahead rule is preserved.
+ *
+ * This is a background page writer only, not a fuzzy checkpoint. The checkpoint
+ * itself is unchanged: it still runs while no other broker is active, writes all
+ * remaining dirty pages of every file and then the checkpoint record. No record
+ * moves the redo start point forward between checkpoints, so recovery still
+ * redoes the journal from the last checkpoint. The page writer only reduces the
+ * number of pages left for the checkpoint to write.
+ */
+public class BackgroundPageWriter extends Thread {
+
+    private final static Logger LOG = Logger.getLogger(BackgroundPageWriter.class);
+
+    public final static String WRITE_RATE_ATTRIBUTE = "page-writer-rate";
+    public final static String PROPERTY_WRITE_RATE = "db-connection.pool.page-writer-rate";
+
+    /** Default number of pages written per second: 0, the writer is only started if configured. */
+    public final static int DEFAULT_WRITE_RATE = 0;
+
+    /** Time between two rounds, in milliseconds. */
+    private final static long INTERVAL = 250;
+
+    private final static String[] FILE_KEYS = {
+        DOMFile.CONFIG_KEY_FOR_FILE,
+        CollectionStore.FILE_KEY_IN_CONFIG,
+        NativeValueIndex.FILE_KEY_IN_CONFIG
+    };
+
+    private final BrokerPool pool;
+
+    private final int pagesPerRound;
+
+    // used as termination flag, volatile semantics are sufficient
+    private volatile boolean shutdown = false;
+
+    // the file to start with in the next round, so a busy file does
+    // not always take the whole quota
+    private int nextFile = 0;
+
+    // statistics, guarded by this
+    private long pagesWritten = 0;
+    private long rounds = 0;
+    private long skipped = 0;
+
+    public BackgroundPageWriter(BrokerPool pool, int pagesPerSecond) {
+        super("exist-page-writer");
+        this.pool = pool;
+        this.pagesPerRound = Math.max(1, (int) (pagesPerSecond * INTERVAL / 1000));
+        setDaemon(true);
+    }
+
+    /**
+     * Stop the thread and wait for the current round to complete.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            notifyAll();
+        }
+        try {
+            join();
+        } catch (final InterruptedException e) {
+            //Nothing to do
+        }
+    }
+
+    @Override
+    public void run() {
+        LOG.info("Page writer started. Writing up to " + pagesPerRound + " pages every " + INTERVAL + "ms");
+        while (!shutdown) {
+            synchronized (this) {
+                try {
+                    wait(INTERVAL);
+                } catch (final InterruptedException e) {
+                    //Nothing to do
+                }
+            }
+            if (shutdown)
+                {break;}
+            if (pool.isReadOnly() || BrokerPool.FORCE_CORRUPTION)
+                {continue;}
+            writeDirtyPages(pagesPerRound);
+        }
+        if (LOG.isDebugEnabled())
+            {LOG.debug("Page writer stopped. Pages written: " + pagesWritten + "; rounds: " + rounds);}
+    }
+
+    /**
+     * Write up to maxPages dirty pages, distributed over the database files.
+     * Files which are currently locked by another thread are skipped.
+     *
+     * @param maxPages the maximum number of pages to write
+     * @return the number of pages written
+     */
+    public int writeDirtyPages(int maxPages) {
+        final List<BTree> files = getFiles(pool.getConfiguration());
+        if (files.isEmpty())
+            {return 0;}
+        int written = 0;
+        int busy = 0;
+        final int start = nextFile++ % files.size();
+        for (int i = 0; i < files.size() && written < maxPages; i++) {
+            final BTree file = files.get((start + i) % files.size());
+            final Lock lock = ((Lockable) file).getLock();
+            if (!lock.attempt(Lock.WRITE_LOCK)) {
+                busy++;
+                continue;
+            }
+            try {
+                written += file.flushDirtyPages(maxPages - written);
+            } catch (final DBException e) {
+                LOG.warn("Error while writing pages of " + file.getFile().getName() + ": " + e.getMessage(), e);
+            } finally {
+                lock.release(Lock.WRITE_LOCK);
+            }
+        }
+        synchronized (this) {
+            pagesWritten += written;
+            skipped += busy;
+            rounds++;
+        }
+        return written;
+    }
+
+    /**
+     * Returns the number of dirty pages in the core database files
+     * which have not yet been written to disk. Each file is locked while
+     * its pages are counted.
+     *
+     * @param config the database configuration
+     */
+    public static int getDirtyPages(Configuration config) {
+        int dirty = 0;
+        for (final BTree file : getFiles(config)) {
+            final Lock lock = ((Lockable) file).getLock();
+            try {
+                lock.acquire(Lock.READ_LOCK);
+                dirty += file.getDirtyPages();
+            } catch (final LockException e) {
+                LOG.warn("Failed to acquire lock on " + file.getFile().getName(), e);
+            } finally {
+                lock.release(Lock.READ_LOCK);
+            }
+        }
+        return dirty;
+    }
+
+    private static List<BTree> getFiles(Configuration config) {
+        final List<BTree> files = new ArrayList<BTree>(FILE_KEYS.length);
+        for (final String key : FILE_KEYS) {
+            final Object file = config.getProperty(key);
+            if (file instanceof BTree && file instanceof Lockable)
+                {files.add((BTree) file);}
+        }
+        return files;
+    }
+
+    /** Number of pages written by this thread. */
+    public synchronized long getPagesWritten() {
+        return pagesWritten;
+    }
+
+    /** Number of rounds completed by this thread. */
+    public synchronized long getRounds() {
+        return rounds;
+    }
+
+    /** Number of times a file was skipped because it was locked. */
+    public synchronized long getSkipped() {
+        return skipped;
+    }
+
+    /** Maximum number of pages written per second. */
+    public int getWriteRate() {
+        return (int) (pagesPerRound * 1000 / INTERVAL);
+    }
+}
@@ -37,6 +37,7 @@ import org.exist.util.ReadOnlyException;
 import org.exist.xmldb.XmldbURI;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.HashMap;
 import java.util.Map;
@@ -60,6 +61,8 @@ public class TransactionManager {
 	public final static String PROPERTY_RECOVERY_GROUP_COMMIT = "db-connection.recovery.group-commit";
     public final static String RECOVERY_FORCE_RESTART_ATTRIBUTE = "force-restart";
     public final static String PROPERTY_RECOVERY_FORCE_RESTART = "db-connection.recovery.force-restart";
+    public final static String RECOVERY_REDO_THREADS_ATTRIBUTE = "redo-threads";
+    public final static String PROPERTY_RECOVERY_REDO_THREADS = "db-connection.recovery.redo-threads";
 
     /**
      * Timeout for inactive transactions. A transaction which has not processed
@@ -85,6 +88,9 @@ public class TransactionManager {
     @ConfigurationFieldAsAttribute("force-restart")
     private boolean forceRestart = false;
 
+    @ConfigurationFieldAsAttribute("redo-threads")
+    private int redoThreads = 1;
+
     private Map<Long, TxnCounter> transactions = new HashMap<Long, TxnCounter>();
 
     private Lock lock = new ReentrantLock();
@@ -113,12 +119,20 @@ public class TransactionManager {
             if (LOG.isDebugEnabled())
                 {LOG.debug("GroupCommits = " + groupCommit);}
         }
+        if (enabled)
+            {journal.setGroupCommit(groupCommit);}
         final Boolean restartOpt = (Boolean) pool.getConfiguration().getProperty(PROPERTY_RECOVERY_FORCE_RESTART);
         if (restartOpt != null) {
             forceRestart = restartOpt.booleanValue();
             if (LOG.isDebugEnabled())
                 {LOG.debug("ForceRestart = " + forceRestart);}
         }
+        final Integer redoOpt = (Integer) pool.getConfiguration().getProperty(PROPERTY_RECOVERY_REDO_THREADS);
+        if (redoOpt != null) {
+            redoThreads = redoOpt.intValue();
+            if (LOG.isDebugEnabled())
+                {LOG.debug("RedoThreads = " + redoThreads);}
+        }
         taskManager = new SystemTaskManager(pool);
     }
     
@@ -140,7 +154,7 @@ public class TransactionManager {
      * @throws EXistException
      */
 	public boolean runRecovery(DBBroker broker) throws EXistException {
-		final RecoveryManager recovery = new RecoveryManager(broker, journal, forceRestart);
+		final RecoveryManager recovery = new RecoveryManager(broker, journal, forceRestart, redoThreads);
 		return recovery.recover();
 	}
 	
@@ -173,23 +187,50 @@ public class TransactionManager {
     /**
      * Commit a transaction.
      * 
+     * If group commits are enabled, the commit record is written while holding
+     * the transaction manager lock, but the calling thread waits for the journal
+     * to be synced only after the lock has been released. Concurrent commits
+     * are then acknowledged by a single sync of the journal.
+     * 
      * @param txn
      * @throws TransactionException
      */
     public void commit(final Txn txn) throws TransactionException {
+        commit(txn, true);
+    }
+
+    /**
+     * Commit a transaction, optionally without waiting for the journal to be synced.
+     * 
+     * A transaction committed with durable set to false is written to the journal buffer
+     * only. It may be lost if the database crashes before the journal is flushed by a later
+     * commit or a checkpoint. Bulk loads use this for all but the last transaction and
+     * finish with a checkpoint.
+     * 
+     * @param txn
+     * @param durable if false, do not sync the journal
+     * @throws TransactionException
+     */
+    public void commit(final Txn txn, final boolean durable) throws TransactionException {
         if (!enabled || txn.getState() != Txn.State.STARTED) {
             return;
         }
 
-        new RunWithLock<Object>() {
-        	public Object execute() {
+        final TxnCommit commit = new TxnCommit(txn.getId());
+        // the error if the commit record could not be written, rethrown for durable commits
+        final TransactionException[] failure = new TransactionException[1];
+        final Boolean logged = new RunWithLock<Boolean>() {
+        	public Boolean execute() {
+                boolean written = false;
                 if (enabled) {
                     try {
-						journal.writeToLog(new TxnCommit(txn.getId()));
+						journal.writeToLog(commit);
+						written = true;
 					} catch (final TransactionException e) {
 						LOG.error("transaction manager caught exception while committing", e);
+						failure[0] = e;
 					}
-                    if (!groupCommit)
+                    if (durable && !groupCommit)
                         {journal.flushToLog(true);}
                 }
                 txn.signalCommit();
@@ -197,9 +238,21 @@ public class TransactionManager {
                 transactions.remove(txn.getId());
                 processSystemTasks();
                 LOG.debug("Committed transaction: " + txn.getId());
-                return null;
+                return Boolean.valueOf(written);
         	}
         }.run();
+        if (durable && failure[0] != null) {
+            throw new TransactionException("Transaction " + txn.getId() +
+                " could not be written to the journal: " + failure[0].getMessage(), failure[0]);
+        }
+        if (durable && groupCommit && logged != null && logged.booleanValue()) {
+            try {
+                journal.waitForCommit(commit.getLsn());
+            } catch (final IOException e) {
+                throw new TransactionException("Transaction " + txn.getId() +
+                    " could not be written to the journal: " + e.getMessage(), e);
+            }
+        }
     }
 	
     public void abort(final Txn txn) {
@@ -279,6 +332,10 @@ public class TransactionManager {
 	public Journal getJournal() {
 		return journal;
 	}
+
+	public boolean isGroupCommit() {
+		return enabled && groupCommit;
+	}
     
     public void reindex(DBBroker broker) {
     	final Subject currentUser = broker.getSubject();
@@ -54,9 +54,13 @@ import org.exist.storage.NativeBroker;
 import org.exist.storage.NativeValueIndex;
 import org.exist.storage.TextSearchEngine;
 import org.exist.storage.XQueryPool;
+import org.exist.storage.btree.Paged;
+import org.exist.storage.dom.DOMFile;
 import org.exist.storage.journal.Journal;
+import org.exist.storage.lock.LockFactory;
 import org.exist.storage.serializers.CustomMatchListenerFactory;
 import org.exist.storage.serializers.Serializer;
+import org.exist.storage.sync.BackgroundPageWriter;
 import org.exist.storage.txn.TransactionManager;
 import org.exist.validation.GrammarPool;
 import org.exist.validation.resolver.eXistXMLCatalogResolver;
@@ -327,6 +331,25 @@ public class Configuration implements ErrorHandler
         	config.put( XQueryContext.PROPERTY_ENFORCE_INDEX_USE, enforceIndexUse );
         }
         
+        final String sortSpillThreshold = getConfigAttributeValue( xquery, XQueryContext.SORT_SPILL_THRESHOLD_ATTRIBUTE );
+
+        if( ( sortSpillThreshold != null ) && ( sortSpillThreshold.length() > 0 ) ) {
+
+            try {
+                final int threshold = Integer.parseInt( sortSpillThreshold );
+
+                if( threshold < 0 ) {
+                    LOG.warn( "parameter " + XQueryContext.SORT_SPILL_THRESHOLD_ATTRIBUTE + " should be >= 0" );
+                } else {
+                    config.put( XQueryContext.PROPERTY_SORT_SPILL_THRESHOLD, Integer.valueOf( threshold ) );
+                    LOG.debug( XQueryContext.PROPERTY_SORT_SPILL_THRESHOLD + ": " + config.get( XQueryContext.PROPERTY_SORT_SPILL_THRESHOLD ) );
+                }
+            }
+            catch( final NumberFormatException nfe ) {
+                LOG.warn( "parameter " + XQueryContext.SORT_SPILL_THRESHOLD_ATTRIBUTE + " should be an integer: " + sortSpillThreshold );
+            }
+        }
+
         final String backwardCompatible = getConfigAttributeValue( xquery, XQueryContext.XQUERY_BACKWARD_COMPATIBLE_ATTRIBUTE );
 
         if( ( backwardCompatible != null ) && ( backwardCompatible.length() > 0 ) ) {
@@ -501,6 +524,18 @@ public class Configuration implements ErrorHandler
             config.put( DBBroker.PROPERTY_XUPDATE_CONSISTENCY_CHECKS, parseBoolean( consistencyCheck, false ) );
             LOG.debug( DBBroker.PROPERTY_XUPDATE_CONSISTENCY_CHECKS + ": " + config.get( DBBroker.PROPERTY_XUPDATE_CONSISTENCY_CHECKS ) );
         }
+
+        final String locking = getConfigAttributeValue( xupdate, BrokerPool.XUPDATE_LOCKING_ATTRIBUTE );
+
+        if( locking != null ) {
+
+            if( BrokerPool.XUPDATE_LOCKING_GLOBAL.equals( locking ) || BrokerPool.XUPDATE_LOCKING_DOCUMENT.equals( locking ) ) {
+                config.put( BrokerPool.PROPERTY_XUPDATE_LOCKING, locking );
+                LOG.debug( BrokerPool.PROPERTY_XUPDATE_LOCKING + ": " + config.get( BrokerPool.PROPERTY_XUPDATE_LOCKING ) );
+            } else {
+                LOG.warn( "Unknown value for " + BrokerPool.XUPDATE_LOCKING_ATTRIBUTE + ": " + locking + ". Using " + BrokerPool.XUPDATE_LOCKING_GLOBAL );
+            }
+        }
     }
 
 
@@ -814,6 +849,13 @@ public class Configuration implements ErrorHandler
             }
         }
 
+        final String cachePolicy = getConfigAttributeValue( con, DefaultCacheManager.CACHE_POLICY_ATTRIBUTE );
+
+        if( ( cachePolicy != null ) && ( cachePolicy.length() > 0 ) ) {
+            config.put( DefaultCacheManager.PROPERTY_CACHE_POLICY, cachePolicy );
+            LOG.debug( DefaultCacheManager.PROPERTY_CACHE_POLICY + ": " + config.get( DefaultCacheManager.PROPERTY_CACHE_POLICY ) );
+        }
+
         String collectionCache = getConfigAttributeValue( con, CollectionCacheManager.CACHE_SIZE_ATTRIBUTE );
 
         if( collectionCache != null ) {
@@ -872,6 +914,27 @@ public class Configuration implements ErrorHandler
             }
         }
 
+        final String mappedFiles = getConfigAttributeValue( con, Paged.MEMORY_MAPPED_ATTRIBUTE );
+
+        if( ( mappedFiles != null ) && ( mappedFiles.length() > 0 ) ) {
+            config.put( Paged.PROPERTY_MEMORY_MAPPED, mappedFiles );
+            LOG.debug( Paged.PROPERTY_MEMORY_MAPPED + ": " + config.get( Paged.PROPERTY_MEMORY_MAPPED ) );
+        }
+
+        final String domCompression = getConfigAttributeValue( con, DOMFile.COMPRESSION_ATTRIBUTE );
+
+        if( ( domCompression != null ) && ( domCompression.length() > 0 ) ) {
+            config.put( DOMFile.PROPERTY_COMPRESSION, parseBoolean( domCompression, false ) );
+            LOG.debug( DOMFile.PROPERTY_COMPRESSION + ": " + config.get( DOMFile.PROPERTY_COMPRESSION ) );
+        }
+
+        final String lockMode = getConfigAttributeValue( con, LockFactory.LOCK_MODE_ATTRIBUTE );
+
+        if( ( lockMode != null ) && ( lockMode.length() > 0 ) ) {
+            config.put( LockFactory.PROPERTY_LOCK_MODE, lockMode );
+            LOG.debug( LockFactory.PROPERTY_LOCK_MODE + ": " + config.get( LockFactory.PROPERTY_LOCK_MODE ) );
+        }
+
         final String docIds = con.getAttribute(BrokerPool.DOC_ID_MODE_ATTRIBUTE);
         if (docIds != null) {
         	config.put(BrokerPool.DOC_ID_MODE_PROPERTY, docIds);
@@ -1081,6 +1144,20 @@ public class Configuration implements ErrorHandler
         setProperty( TransactionManager.PROPERTY_RECOVERY_FORCE_RESTART, new Boolean( value ) );
         LOG.debug( TransactionManager.PROPERTY_RECOVERY_FORCE_RESTART + ": " + config.get( TransactionManager.PROPERTY_RECOVERY_FORCE_RESTART ) );
 
+        option = getConfigAttributeValue( recovery, TransactionManager.RECOVERY_REDO_THREADS_ATTRIBUTE );
+
+        if( option != null ) {
+
+            try {
+                int threads = "auto".equals( option ) ? Runtime.getRuntime().availableProcessors() : Integer.parseInt( option );
+                setProperty( TransactionManager.PROPERTY_RECOVERY_REDO_THREADS, Integer.valueOf( Math.max( 1, threads ) ) );
+                LOG.debug( TransactionManager.PROPERTY_RECOVERY_REDO_THREADS + ": " + config.get( TransactionManager.PROPERTY_RECOVERY_REDO_THREADS ) );
+            }
+            catch( final NumberFormatException e ) {
+                throw( new DatabaseConfigurationException( "redo-threads attribute in recovery section needs to be a number or \"auto\"" ) );
+            }
+        }
+
         option = getConfigAttributeValue( recovery, BrokerPool.RECOVERY_POST_RECOVERY_CHECK );
         value  = false;
 
@@ -1184,6 +1261,19 @@ public class Configuration implements ErrorHandler
                 LOG.warn( e );
             }
         }
+
+        final String validationInterval = getConfigAttributeValue( queryPool, XQueryPool.VALIDATION_INTERVAL_ATTRIBUTE );
+
+        if( validationInterval != null ) {
+
+            try {
+                config.put( XQueryPool.PROPERTY_VALIDATION_INTERVAL, Long.valueOf(validationInterval) );
+                LOG.debug( XQueryPool.PROPERTY_VALIDATION_INTERVAL + ": " + config.get( XQueryPool.PROPERTY_VALIDATION_INTERVAL ) );
+            }
+            catch( final NumberFormatException e ) {
+                LOG.warn( e );
+            }
+        }
     }
     
     public class StartupTriggerConfig {
@@ -1316,6 +1406,19 @@ public class Configuration implements ErrorHandler
             }
         }
 
+        final String pageWriterRate = getConfigAttributeValue( pool, BackgroundPageWriter.WRITE_RATE_ATTRIBUTE );
+
+        if( pageWriterRate != null ) {
+
+            try {
+                config.put( BackgroundPageWriter.PROPERTY_WRITE_RATE, Integer.valueOf(pageWriterRate) );
+                LOG.debug( BackgroundPageWriter.PROPERTY_WRITE_RATE + ": " + config.get( BackgroundPageWriter.PROPERTY_WRITE_RATE ) );
+            }
+            catch( final NumberFormatException e ) {
+                LOG.warn( e );
+            }
+        }
+
         final String maxShutdownWait = getConfigAttributeValue( pool, BrokerPool.SHUTDOWN_DELAY_ATTRIBUTE );
 
         if( maxShutdownWait != null ) {
@@ -1415,6 +1518,32 @@ public class Configuration implements ErrorHandler
             LOG.debug( Indexer.PROPERTY_PRESERVE_WS_MIXED_CONTENT + ": " + config.get( Indexer.PROPERTY_PRESERVE_WS_MIXED_CONTENT ) );
         }
 
+        final String singlePass = getConfigAttributeValue( indexer, Indexer.SINGLE_PASS_ATTRIBUTE );
+
+        if( singlePass != null ) {
+            config.put( Indexer.PROPERTY_SINGLE_PASS, parseBoolean( singlePass, false ) );
+            LOG.debug( Indexer.PROPERTY_SINGLE_PASS + ": " + config.get( Indexer.PROPERTY_SINGLE_PASS ) );
+        }
+
+        final String fillFactor = getConfigAttributeValue( indexer, Indexer.BULK_FILL_FACTOR_ATTRIBUTE );
+
+        if( fillFactor != null ) {
+
+            try {
+                final double fill = Double.parseDouble( fillFactor );
+
+                if( fill <= 0 || fill > 1 ) {
+                    LOG.warn( "parameter " + Indexer.BULK_FILL_FACTOR_ATTRIBUTE + " should be > 0 and <= 1" );
+                } else {
+                    config.put( Indexer.PROPERTY_BULK_FILL_FACTOR, Double.valueOf( fill ) );
+                    LOG.debug( Indexer.PROPERTY_BULK_FILL_FACTOR + ": " + config.get( Indexer.PROPERTY_BULK_FILL_FACTOR ) );
+                }
+            }
+            catch( final NumberFormatException e ) {
+                LOG.warn( e );
+            }
+        }
+
         // index settings
         final NodeList cl = doc.getElementsByTagName( Indexer.CONFIGURATION_INDEX_ELEMENT_NAME );
 
@@ -0,0 +1,232 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A fast block compressor in the style of LZ4, used to compress single
+ * database pages. It trades compression ratio for speed: matches are found
+ * through a small hash table of 4 byte sequences, there is no entropy coding.
+ *
+ * A compressed block is a list of sequences. Each sequence starts with a token
+ * byte: the high 4 bits are the number of literals, the low 4 bits the match
+ * length minus 4. A value of 15 means that more length bytes follow, each adding
+ * up to 255. The literals come next, followed by the match offset (2 bytes,
+ * little endian) and any extra match length bytes. The last sequence consists of
+ * literals only and ends the block.
+ *
+ * Instances keep the hash table between calls and are not thread safe.
+ */
+public class LZBlockCodec {
+
+    private final static int MIN_MATCH = 4;
+    private final static int MAX_OFFSET = 0xFFFF;
+
+    /** the last bytes of a block are always stored as literals */
+    private final static int LAST_LITERALS = 5;
+
+    /** no match may start within this distance from the end of the block */
+    private final static int MATCH_FIND_LIMIT = 12;
+
+    private final static int HASH_BITS = 12;
+
+    private final int[] hashTable = new int[1 << HASH_BITS];
+
+    /**
+     * Returns the maximum size of the compressed form of a block of the
+     * given length, which is reached if the data cannot be compressed.
+     *
+     * @param length the length of the uncompressed data
+     * @return the size of a buffer that can hold any compressed block
+     */
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compress a block of data.
+     *
+     * @param src the data to compress
+     * @param srcOff start of the data
+     * @param srcLen length of the data
+     * @param dest buffer for the compressed block
+     * @param destOff start offset in dest
+     * @param destLen space available in dest
+     * @return the length of the compressed block, or -1 if it did not fit
+     *  into destLen bytes
+     */
+    public int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int destLen) {
+        final int srcEnd = srcOff + srcLen;
+        final int destEnd = destOff + destLen;
+        int anchor = srcOff;
+        int op = destOff;
+        if (srcLen > MATCH_FIND_LIMIT) {
+            Arrays.fill(hashTable, -1);
+            final int findLimit = srcEnd - MATCH_FIND_LIMIT;
+            final int matchLimit = srcEnd - LAST_LITERALS;
+            int ip = srcOff;
+            while (ip < findLimit) {
+                final int sequence = readInt(src, ip);
+                final int hash = hash(sequence);
+                int ref = hashTable[hash];
+                hashTable[hash] = ip;
+                if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                    ip++;
+                    continue;
+                }
+                // extend the match backwards into the pending literals
+                while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLen = MIN_MATCH;
+                while (ip + matchLen < matchLimit && src[ip + matchLen] == src[ref + matchLen]) {
+                    matchLen++;
+                }
+                op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLen, dest, op, destEnd);
+                if (op < 0)
+                    {return -1;}
+                ip += matchLen;
+                anchor = ip;
+                if (ip - 2 < findLimit)
+                    {hashTable[hash(readInt(src, ip - 2))] = ip - 2;}
+            }
+        }
+        op = writeSequence(src, anchor, srcEnd - anchor, 0, 0, dest, op, destEnd);
+        if (op < 0)
+            {return -1;}
+        return op - destOff;
+    }
+
+    /**
+     * Decompress a block created by {@link #compress(byte[], int, int, byte[], int, int)}.
+     *
+     * @param src the compressed block
+     * @param srcOff start of the block
+     * @param srcLen length of the block
+     * @param dest buffer for the uncompressed data
+     * @param destOff start offset in dest
+     * @param destLen space available in dest
+     * @return the length of the uncompressed data
+     * @throws IOException if the block is corrupt or does not fit into destLen bytes
+     */
+    public int decompress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int destLen)
+            throws IOException {
+        final int srcEnd = srcOff + srcLen;
+        final int destEnd = destOff + destLen;
+        int ip = srcOff;
+        int op = destOff;
+        try {
+            while (true) {
+                final int token = src[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                if (ip + literals > srcEnd || op + literals > destEnd)
+                    {throw new IOException("corrupt block: literals exceed block boundaries");}
+                System.arraycopy(src, ip, dest, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip == srcEnd)
+                    {break;}
+                final int offset = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+                ip += 2;
+                int matchLen = token & 0x0F;
+                if (matchLen == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        matchLen += b;
+                    } while (b == 255);
+                }
+                matchLen += MIN_MATCH;
+                int ref = op - offset;
+                if (offset == 0 || ref < destOff || op + matchLen > destEnd)
+                    {throw new IOException("corrupt block: invalid match at offset " + (ip - srcOff));}
+                if (offset >= matchLen) {
+                    System.arraycopy(dest, ref, dest, op, matchLen);
+                    op += matchLen;
+                } else {
+                    // overlapping match: copy byte by byte to repeat the pattern
+                    for (int i = 0; i < matchLen; i++) {
+                        dest[op++] = dest[ref++];
+                    }
+                }
+            }
+        } catch (final ArrayIndexOutOfBoundsException e) {
+            throw new IOException("corrupt block: unexpected end of data");
+        }
+        return op - destOff;
+    }
+
+    private static int writeSequence(byte[] src, int literalStart, int literals, int offset, int matchLen,
+            byte[] dest, int op, int destEnd) {
+        if (op + 1 + literals + literals / 255 + 1 + 2 + matchLen / 255 + 1 > destEnd)
+            {return -1;}
+        final int tokenPos = op++;
+        int token;
+        if (literals >= 15) {
+            token = 15 << 4;
+            op = writeLength(literals - 15, dest, op);
+        } else
+            {token = literals << 4;}
+        System.arraycopy(src, literalStart, dest, op, literals);
+        op += literals;
+        if (matchLen > 0) {
+            dest[op++] = (byte) offset;
+            dest[op++] = (byte) (offset >>> 8);
+            final int len = matchLen - MIN_MATCH;
+            if (len >= 15) {
+                token |= 15;
+                op = writeLength(len - 15, dest, op);
+            } else
+                {token |= len;}
+        }
+        dest[tokenPos] = (byte) token;
+        return op;
+    }
+
+    private static int writeLength(int length, byte[] dest, int op) {
+        while (length >= 255) {
+            dest[op++] = (byte) 255;
+            length -= 255;
+        }
+        dest[op++] = (byte) length;
+        return op;
+    }
+
+    private static int readInt(byte[] data, int pos) {
+        return (data[pos] & 0xFF) | ((data[pos + 1] & 0xFF) << 8) |
+            ((data[pos + 2] & 0xFF) << 16) | ((data[pos + 3] & 0xFF) << 24);
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_BITS);
+    }
+}
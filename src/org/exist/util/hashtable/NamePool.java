@@ -26,15 +26,63 @@ import java.util.concurrent.ConcurrentMap;
 import org.exist.dom.QName;
 
 /**
+ * Shares QName instances between documents. Names can also be interned to an
+ * int code, which is stable for the lifetime of the pool and can be mapped back to
+ * the shared QName with {@link #getName(int)}.
+ *
  * @author Pieter Deelen
  */
 public class NamePool {
 
+    private final static int INITIAL_SIZE = 64;
+
     private ConcurrentMap<QName, QName> pool;
 
+    private final ConcurrentMap<QName, Integer> codes = new ConcurrentHashMap<QName, Integer>();
+
+    private volatile QName[] names = new QName[INITIAL_SIZE];
+
+    private int nextCode = 0;
+
     public NamePool() {
         pool = new ConcurrentHashMap<QName, QName>();
     }
+
+    /**
+     * Returns the code of the given name, adding the name to the pool
+     * if it is not yet known.
+     */
+    public int getCode(QName name) {
+        final Integer code = codes.get(name);
+        if (code != null)
+            {return code.intValue();}
+        return addCode(name);
+    }
+
+    private synchronized int addCode(QName name) {
+        final Integer code = codes.get(name);
+        if (code != null)
+            {return code.intValue();}
+        final QName sharedName = getSharedName(name);
+        QName[] n = names;
+        if (nextCode == n.length) {
+            final QName[] newNames = new QName[(n.length * 3) / 2];
+            System.arraycopy(n, 0, newNames, 0, n.length);
+            n = newNames;
+        }
+        n[nextCode] = sharedName;
+        // publish the array before the code
+        names = n;
+        codes.put(sharedName, Integer.valueOf(nextCode));
+        return nextCode++;
+    }
+
+    /**
+     * Returns the shared name for a code returned by {@link #getCode(QName)}.
+     */
+    public QName getName(int code) {
+        return names[code];
+    }
     
     public QName getSharedName(QName name) {
         final QName sharedName = (QName)pool.putIfAbsent(name, name);
@@ -1,12 +1,18 @@
 package org.exist.xmlrpc;
 
 import java.io.IOException;
+import org.exist.source.Source;
+import org.exist.storage.XQueryPool;
+import org.exist.xquery.CompiledXQuery;
+import org.exist.xquery.LazySequence;
 import org.exist.xquery.XPathException;
 import org.exist.xquery.value.Sequence;
 
+import java.util.List;
 import java.util.Properties;
 import org.apache.log4j.Logger;
 import org.exist.xquery.value.BinaryValue;
+import org.exist.xquery.value.OrderedValueSequence;
 
 /**
  * Simple container for the results of a query. Used to cache
@@ -22,6 +28,12 @@ public class QueryResult extends AbstractCachedResult {
     protected Properties serialization = null;
     // set upon failure
     protected XPathException exception = null;
+    // sorted sequences of the query whose temporary files are deleted by free()
+    protected List<OrderedValueSequence> sortedSequences = null;
+    // the query evaluating a lazy result, returned to the pool by free()
+    private XQueryPool pool = null;
+    private Source source = null;
+    private CompiledXQuery compiled = null;
 
     public QueryResult(Sequence result, Properties outputProperties) {
         this(result, outputProperties, 0);
@@ -45,6 +57,16 @@ public class QueryResult extends AbstractCachedResult {
         return exception;
     }
 
+    /**
+     * Keep the compiled query, which evaluates the items of a lazy result,
+     * until the result is freed. It is then returned to the pool.
+     */
+    public void keepQuery(XQueryPool pool, Source source, CompiledXQuery compiled) {
+        this.pool = pool;
+        this.source = source;
+        this.compiled = compiled;
+    }
+
     /**
      * @return Returns the result.
      */
@@ -57,6 +79,11 @@ public class QueryResult extends AbstractCachedResult {
     public void free() {
         if(result != null) {
 
+            //reset the context of a lazily evaluated result
+            if(result instanceof LazySequence) {
+                ((LazySequence) result).close();
+            }
+
             //cleanup any binary values
             if(result instanceof BinaryValue) {
                 try {
@@ -68,5 +95,15 @@ public class QueryResult extends AbstractCachedResult {
 
             result = null;
         }
+        if(sortedSequences != null) {
+            for(final OrderedValueSequence sorted : sortedSequences) {
+                sorted.close();
+            }
+            sortedSequences = null;
+        }
+        if(compiled != null) {
+            pool.returnCompiledXQuery(source, compiled);
+            compiled = null;
+        }
     }
 }
@@ -23,6 +23,7 @@ package org.exist.xmlrpc;
 
 import java.io.*;
 import java.net.URISyntaxException;
+import java.nio.charset.Charset;
 import java.util.*;
 import java.util.zip.DeflaterOutputStream;
 import javax.xml.parsers.ParserConfigurationException;
@@ -130,7 +131,9 @@ public class RpcConnection implements RpcAPI {
         
         else {
             //System.out.println(e.getClass().getName());
-            throw new EXistException(e);
+            // query errors raised while the result is read are wrapped into runtime exceptions
+            final XPathException xpe = XPathException.unwrap(e);
+            throw new EXistException(xpe != null ? xpe : e);
         }
     }
     
@@ -319,6 +322,18 @@ public class RpcConnection implements RpcAPI {
     protected QueryResult doQuery(DBBroker broker, CompiledXQuery compiled,
             NodeSet contextSet, HashMap<String, Object> parameters)
             throws Exception {
+        return doQuery(broker, compiled, contextSet, parameters, false);
+    }
+
+    /**
+     * Execute the query. If lazy is true, the caller reads only some items of the
+     * result, which may then be a {@link LazySequence}, see
+     * {@link XQuery#executeLazy(CompiledXQuery, Sequence, Properties)}. The caller
+     * must not return the query to the pool before the sequence is closed.
+     */
+    protected QueryResult doQuery(DBBroker broker, CompiledXQuery compiled,
+            NodeSet contextSet, HashMap<String, Object> parameters, boolean lazy)
+            throws Exception {
         final XQuery xquery = broker.getXQueryService();
         final XQueryPool pool = xquery.getXQueryPool();
         
@@ -330,7 +345,9 @@ public class RpcConnection implements RpcAPI {
             if (lockedDocuments != null)
                 {compiled.getContext().setProtectedDocs(lockedDocuments);}
             final Properties outputProperties = new Properties();
-            final Sequence result = xquery.execute(compiled, contextSet, outputProperties);
+            final Sequence result = lazy ?
+                xquery.executeLazy(compiled, contextSet, outputProperties) :
+                xquery.execute(compiled, contextSet, outputProperties);
             // pass last modified date to the HTTP response
             HTTPUtils.addLastModifiedHeader( result, compiled.getContext() );
             LOG.info("query took " + (System.currentTimeMillis() - start) + "ms.");
@@ -511,16 +528,27 @@ public class RpcConnection implements RpcAPI {
         DBBroker broker = null;
         Source source = null;
         CompiledXQuery compiled = null;
+        QueryResult result = null;
+        boolean cached = false;
         try {
             source = new StringSource(xpath);
             broker = factory.getBrokerPool().get(user);
             compiled = compile(broker, source, parameters);
-            final QueryResult result = doQuery(broker, compiled, null,
-                    parameters);
+            // the client retrieves the items one by one, so evaluate them lazily if possible
+            result = doQuery(broker, compiled, null,
+                    parameters, true);
             if(result.hasErrors())
                 {throw result.getException();}
             result.queryTime = System.currentTimeMillis() - startTime;
-            return factory.resultSets.add(result);
+            // the cleanup tasks must not delete the files of the result
+            result.sortedSequences = compiled.getContext().detachSortedSequences();
+            // a lazy result still needs the compiled query, which is returned to the
+            // pool when the result is released
+            if(result.result instanceof LazySequence)
+                {result.keepQuery(broker.getXQueryService().getXQueryPool(), source, compiled);}
+            final int handle = factory.resultSets.add(result);
+            cached = true;
+            return handle;
 
         } catch (final Throwable e) {
             handleException(e);
@@ -528,7 +556,12 @@ public class RpcConnection implements RpcAPI {
         } finally {
             if(compiled != null) {
                 compiled.getContext().runCleanupTasks();
-                broker.getXQueryService().getXQueryPool().returnCompiledXQuery(source, compiled);
+                if (result != null && result.result instanceof LazySequence) {
+                    // closes the sequence and returns the query
+                    if (!cached)
+                        {result.free();}
+                } else
+                    {broker.getXQueryService().getXQueryPool().returnCompiledXQuery(source, compiled);}
             }
             factory.getBrokerPool().release(broker);
         }
@@ -818,26 +851,18 @@ public class RpcConnection implements RpcAPI {
         }
 
         try {
-            final String xml = getDocumentAsString(name, parametri);
-            if (xml == null)
+            if (!Charset.isSupported(encoding)) {
+                LOG.warn("Unsupported encoding: " + encoding);
+                parametri.put(OutputKeys.ENCODING, DEFAULT_ENCODING);
+            }
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            if (!writeDocument(XmldbURI.xmldbUriFor(name), parametri, os))
                 {throw new EXistException("document " + name + " not found!");}
-            try {
-                if ("no".equals(compression)) {
-                    return xml.getBytes(encoding);
-                } else {
-                    LOG.debug("getdocument with compression");
-                    return Compressor.compress(xml.getBytes(encoding));
-                }
-
-            } catch (final UnsupportedEncodingException uee) {
-                LOG.warn(uee);
-                if ("no".equals(compression)) {
-                    return xml.getBytes();
-                } else {
-                    LOG.debug("getdocument with compression");
-                    return Compressor.compress(xml.getBytes());
-                }
-
+            if ("no".equals(compression)) {
+                return os.toByteArray();
+            } else {
+                LOG.debug("getdocument with compression");
+                return Compressor.compress(os.toByteArray());
             }
         } catch (final Throwable e) {
             handleException(e);
@@ -875,6 +900,52 @@ public class RpcConnection implements RpcAPI {
      */
     private String getDocumentAsString(XmldbURI docUri, HashMap<String, Object> parametri)
     throws Exception {
+        try {
+            return withReadableDocument(docUri, parametri, new DocumentOperation<String>() {
+                @Override
+                public String withDocument(Serializer serializer, DocumentImpl doc) throws Exception {
+                    return serializer.serialize(doc);
+                }
+            });
+        } catch (final NoSuchMethodError nsme) {
+            LOG.error(nsme.getMessage(), nsme);
+            return null;
+        }
+    }
+    
+    /**
+     * Serialize the document to the output stream. The document is streamed
+     * directly from storage if the parameters allow it.
+     *
+     * @param docUri a <code>XmldbURI</code> value
+     * @param parametri a <code>HashMap</code> value
+     * @param os the output stream
+     * @return false if the collection was not found
+     * @exception Exception if an error occurs
+     */
+    private boolean writeDocument(XmldbURI docUri, HashMap<String, Object> parametri, final OutputStream os)
+    throws Exception {
+        return withReadableDocument(docUri, parametri, new DocumentOperation<Boolean>() {
+            @Override
+            public Boolean withDocument(Serializer serializer, DocumentImpl doc) throws Exception {
+                serializer.serialize(doc, os);
+                return Boolean.TRUE;
+            }
+        }) != null;
+    }
+
+    private interface DocumentOperation<R> {
+        public R withDocument(Serializer serializer, DocumentImpl doc) throws Exception;
+    }
+
+    /**
+     * Read lock the document, check the user may read it and pass it to the
+     * operation, together with a serializer configured with the parameters.
+     *
+     * @return the result of the operation or null if the collection was not found
+     */
+    private <R> R withReadableDocument(XmldbURI docUri, HashMap<String, Object> parametri,
+            DocumentOperation<R> operation) throws Exception {
         DBBroker broker = null;
         
         Collection collection = null;
@@ -899,12 +970,7 @@ public class RpcConnection implements RpcAPI {
                 {throw new PermissionDeniedException("Insufficient privileges to read resource " + docUri);}
             final Serializer serializer = broker.getSerializer();
             serializer.setProperties(parametri);
-            final String xml = serializer.serialize(doc);
-            
-            return xml;
-        } catch (final NoSuchMethodError nsme) {
-            LOG.error(nsme.getMessage(), nsme);
-            return null;
+            return operation.withDocument(serializer, doc);
         } finally {
             if(collection != null)
                 {collection.releaseDocument(doc, Lock.READ_LOCK);}
@@ -965,16 +1031,10 @@ public class RpcConnection implements RpcAPI {
                     vtempFile.setTempPostfix(".xml");
                     final Serializer serializer = broker.getSerializer();
                     serializer.setProperties(parameters);
-
-                    Writer writer = null;
-                    try {
-                        writer = new OutputStreamWriter(vtempFile, encoding);
-                        serializer.serialize(doc, writer);
-                    } finally {
-                        if(writer != null) {
-                            writer.close();
-                        }
+                    if(!parameters.containsKey(OutputKeys.ENCODING)) {
+                        serializer.setProperty(OutputKeys.ENCODING, encoding);
                     }
+                    serializer.serialize(doc, vtempFile);
                 } else {
                     vtempFile.setTempPostfix(".bin");
                     broker.readBinaryResource((BinaryDocument)doc, vtempFile);
@@ -2750,11 +2810,13 @@ public class RpcConnection implements RpcAPI {
         DBBroker broker = null;
         Source source = null;
         CompiledXQuery compiled = null;
+        QueryResult qr = null;
         try {
             broker = factory.getBrokerPool().get(user);
             source = new StringSource(xpath);
             compiled = compile(broker, source, parameters);
-            final QueryResult qr = doQuery(broker, compiled, null, parameters);
+            // only the requested items are printed, so evaluate them lazily if possible
+            qr = doQuery(broker, compiled, null, parameters, true);
             if (qr == null)
                 {return "<?xml version=\"1.0\"?>\n"
                         + "<exist:result xmlns:exist=\"" + Namespaces.EXIST_NS + "\" "
@@ -2769,6 +2831,8 @@ public class RpcConnection implements RpcAPI {
             handleException(e);
 
         } finally {
+            if(qr != null && qr.result instanceof LazySequence)
+                {((LazySequence) qr.result).close();}
             if(compiled != null) {
                 compiled.getContext().runCleanupTasks();
                 broker.getXQueryService().getXQueryPool().returnCompiledXQuery(source, compiled);
@@ -2960,6 +3024,8 @@ public class RpcConnection implements RpcAPI {
                 return ret;
             }
             resultSeq = queryResult.result;
+            // the result is cached: the cleanup tasks must not delete its files
+            queryResult.sortedSequences = compiled.getContext().detachSortedSequences();
             if (LOG.isDebugEnabled()) {
             	LOG.debug("found " + resultSeq.getItemCount());
             }
@@ -83,6 +83,8 @@ public abstract class AbstractInternalModule implements InternalModule {
      * returns a module parameter
      */
     protected List<? extends Object> getParameter(String paramName) {
+        if (parameters == null)
+            {return null;}
         return parameters.get(paramName);
     }
 
@@ -0,0 +1,318 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.xquery;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.exist.dom.QName;
+import org.exist.storage.ElementValue;
+import org.exist.storage.statistics.IndexStatistics;
+import org.exist.xquery.functions.fn.ExtFulltext;
+import org.exist.xquery.functions.fn.FunLast;
+import org.exist.xquery.functions.fn.FunPosition;
+import org.exist.xquery.value.Type;
+
+/**
+ * Estimates cardinalities and costs for the query optimizer. Element counts are
+ * taken from the {@link org.exist.storage.statistics.DataGuide} collected by the
+ * index-stats module, if it is configured in conf.xml. Without statistics, only the
+ * default selectivities below are used.
+ *
+ * The estimates are used to evaluate the most selective predicates of a step first
+ * (see {@link #orderPredicates(List, double)}), to choose between a range index
+ * lookup and comparing the nodes one by one in {@link GeneralComparison} and to
+ * choose between a lookup per context node and a merge join in {@link LocationStep}.
+ */
+public class CostModel {
+
+    public final static double UNKNOWN = -1.0;
+
+    /**
+     * Estimated cost of a single index lookup, compared to reading one
+     * entry while scanning an index.
+     */
+    public final static double INDEX_LOOKUP_COST = 8.0;
+
+    /**
+     * Estimated cost of loading the value of a node to compare it,
+     * compared to reading one entry from an index.
+     */
+    public final static double NODE_COMPARE_COST = 4.0;
+
+    public final static double EQUALITY_SELECTIVITY = 0.1;
+    public final static double RANGE_SELECTIVITY = 1.0 / 3.0;
+    public final static double INEQUALITY_SELECTIVITY = 0.9;
+    public final static double INDEX_FUNCTION_SELECTIVITY = 0.1;
+    public final static double DEFAULT_SELECTIVITY = 0.5;
+
+    private final IndexStatistics statistics;
+
+    public CostModel(XQueryContext context) {
+        statistics = (IndexStatistics) context.getBroker().getBrokerPool().getIndexManager()
+            .getIndexById(IndexStatistics.ID);
+    }
+
+    /**
+     * @return true if element counts are available
+     */
+    public boolean hasStatistics() {
+        return statistics != null;
+    }
+
+    /**
+     * Returns the number of elements with the given name in the database or
+     * {@link #UNKNOWN} if there are no statistics for it.
+     */
+    public double getNodeCount(QName qname) {
+        if (statistics == null || qname == null || qname.getNameType() != ElementValue.ELEMENT)
+            {return UNKNOWN;}
+        return statistics.getNodeCount(qname);
+    }
+
+    /**
+     * Estimates the number of nodes selected by a location step or a path, ignoring its
+     * context. For a path, the first step is used.
+     */
+    public double estimateCount(Expression expr) {
+        if (expr instanceof LocationStep) {
+            final LocationStep step = (LocationStep) expr;
+            final NodeTest test = step.getTest();
+            if (test.isWildcardTest() || test.getType() != Type.ELEMENT)
+                {return UNKNOWN;}
+            switch (step.getAxis()) {
+                case Constants.CHILD_AXIS:
+                case Constants.DESCENDANT_AXIS:
+                case Constants.DESCENDANT_SELF_AXIS:
+                case Constants.SELF_AXIS:
+                    return getNodeCount(test.getName());
+                default:
+                    return UNKNOWN;
+            }
+        }
+        if (expr instanceof PathExpr && !(expr instanceof BinaryOp) && ((PathExpr) expr).getLength() > 0)
+            {return estimateCount(((PathExpr) expr).getExpression(0));}
+        return UNKNOWN;
+    }
+
+    /**
+     * Estimates the fraction of context items for which a predicate expression is true.
+     *
+     * @param expr the predicate expression
+     * @param contextCount the estimated size of the context, or {@link #UNKNOWN}
+     * @return a value between 0 and 1
+     */
+    public double estimateSelectivity(Expression expr, double contextCount) {
+        if (expr instanceof GeneralComparison) {
+            final GeneralComparison comparison = (GeneralComparison) expr;
+            return getComparisonSelectivity(comparison.getRelation(), comparison.getTruncation());
+        }
+        if (expr instanceof OpAnd) {
+            final OpAnd and = (OpAnd) expr;
+            return estimateSelectivity(and.getLeft(), contextCount) * estimateSelectivity(and.getRight(), contextCount);
+        }
+        if (expr instanceof OpOr) {
+            final OpOr or = (OpOr) expr;
+            final double left = estimateSelectivity(or.getLeft(), contextCount);
+            final double right = estimateSelectivity(or.getRight(), contextCount);
+            return left + right - left * right;
+        }
+        if (expr instanceof Optimizable)
+            {return INDEX_FUNCTION_SELECTIVITY;}
+        if (expr instanceof PathExpr && !(expr instanceof BinaryOp) && ((PathExpr) expr).getLength() == 1)
+            {return estimateSelectivity(((PathExpr) expr).getExpression(0), contextCount);}
+        if (Type.subTypeOf(expr.returnsType(), Type.NODE) && contextCount > 0) {
+            // existence test: at most one context node per selected node
+            final double count = estimateCount(expr);
+            if (count != UNKNOWN)
+                {return Math.min(1.0, count / contextCount);}
+        }
+        return DEFAULT_SELECTIVITY;
+    }
+
+    public double getComparisonSelectivity(int relation, int truncation) {
+        if (truncation != Constants.TRUNC_NONE)
+            {return EQUALITY_SELECTIVITY;}
+        switch (relation) {
+            case Constants.EQ:
+                return EQUALITY_SELECTIVITY;
+            case Constants.NEQ:
+                return INEQUALITY_SELECTIVITY;
+            case Constants.LT:
+            case Constants.GT:
+            case Constants.LTEQ:
+            case Constants.GTEQ:
+                return RANGE_SELECTIVITY;
+            default:
+                return DEFAULT_SELECTIVITY;
+        }
+    }
+
+    /**
+     * Decide if a comparison should look up its keys in the range index or compare
+     * the given number of nodes one by one.
+     *
+     * @param qname the name of the compared nodes, may be null
+     * @param relation the comparison operator
+     * @param truncation the truncation type
+     * @param keys the number of keys to look up
+     * @param nodes the number of nodes to compare
+     * @return true if the index should be used
+     */
+    public boolean useRangeIndex(QName qname, int relation, int truncation, int keys, int nodes) {
+        final double count = getNodeCount(qname);
+        if (count == UNKNOWN)
+            {return true;}
+        final double hits = count * getComparisonSelectivity(relation, truncation) * keys;
+        return INDEX_LOOKUP_COST * keys + hits <= nodes * NODE_COMPARE_COST;
+    }
+
+    /**
+     * Decide if descendants or children of a context set should be found by a merge
+     * join instead of a lookup for every context node.
+     *
+     * @param qname the name of the nodes to find
+     * @param contextSize the size of the context set
+     * @param threshold the size of the context set above which a merge join is used
+     *  if there are no statistics
+     */
+    public boolean useMergeJoin(QName qname, int contextSize, int threshold) {
+        final double count = getNodeCount(qname);
+        if (count == UNKNOWN)
+            {return contextSize >= threshold;}
+        return contextSize * INDEX_LOOKUP_COST >= count;
+    }
+
+    /**
+     * Checks if a predicate filters its context independently of the position of the
+     * context item and of the other predicates, i.e. if it can be moved.
+     */
+    public static boolean canReorder(Predicate predicate) {
+        if (predicate.getLength() == 0)
+            {return false;}
+        final Expression inner = predicate.getLength() == 1 ? predicate.getExpression(0) : predicate;
+        final int type = inner.returnsType();
+        if (!(Type.subTypeOf(type, Type.NODE) || type == Type.BOOLEAN))
+            {return false;}
+        final PositionalVisitor visitor = new PositionalVisitor();
+        inner.accept(visitor);
+        return !visitor.positional;
+    }
+
+    /**
+     * Looks for calls to position() or last() anywhere in an expression. Expressions
+     * whose operands cannot be inspected are assumed to depend on the position.
+     */
+    private static class PositionalVisitor extends DefaultExpressionVisitor {
+
+        boolean positional = false;
+
+        public void visit(Expression expression) {
+            if (expression instanceof LiteralValue || expression instanceof RootNode)
+                {return;}
+            if (expression.getSubExpressionCount() == 0 && !(expression instanceof PathExpr))
+                {positional = true;}
+            else
+                {visitSubExpressions(expression);}
+        }
+
+        public void visitBuiltinFunction(Function function) {
+            if (function instanceof FunPosition || function instanceof FunLast)
+                {positional = true;}
+            else
+                {super.visitBuiltinFunction(function);}
+        }
+
+        public void visitUserFunction(UserDefinedFunction function) {
+            // the body of a function has no context item, only the arguments matter
+        }
+
+        public void visitGeneralComparison(GeneralComparison comparison) {
+            visitSubExpressions(comparison);
+        }
+
+        public void visitAndExpr(OpAnd and) {
+            visitSubExpressions(and);
+        }
+
+        public void visitOrExpr(OpOr or) {
+            visitSubExpressions(or);
+        }
+
+        public void visitCastExpr(CastExpression expression) {
+            expression.getInnerExpression().accept(this);
+        }
+
+        public void visitFilteredExpr(FilteredExpression filtered) {
+            // the predicates have their own context position
+            filtered.getExpression().accept(this);
+        }
+
+        public void visitLocationStep(LocationStep locationStep) {
+            // the predicates have their own context position
+        }
+
+        public void visitFtExpression(ExtFulltext fulltext) {
+            positional = true;
+        }
+
+        private void visitSubExpressions(Expression expression) {
+            for (int i = 0; i < expression.getSubExpressionCount() && !positional; i++) {
+                expression.getSubExpression(i).accept(this);
+            }
+        }
+    }
+
+    /**
+     * Sort the predicates of a step by their estimated selectivity, most selective first.
+     * Predicates which cannot be moved split the list into runs, which are sorted separately.
+     * The sort is stable, so predicates with equal estimates keep their order.
+     *
+     * @param predicates the predicates in the order given in the query
+     * @param contextCount the estimated size of the context, or {@link #UNKNOWN}
+     * @return the predicates in the order in which they should be evaluated
+     */
+    public List<Predicate> orderPredicates(List<Predicate> predicates, double contextCount) {
+        final List<Predicate> ordered = new ArrayList<Predicate>(predicates.size());
+        final List<Predicate> run = new ArrayList<Predicate>();
+        final List<Double> selectivities = new ArrayList<Double>();
+        for (final Predicate predicate : predicates) {
+            if (canReorder(predicate)) {
+                final double selectivity = estimateSelectivity(predicate, contextCount);
+                // insertion sort, runs are short
+                int i = run.size();
+                while (i > 0 && selectivities.get(i - 1).doubleValue() > selectivity) {
+                    i--;
+                }
+                run.add(i, predicate);
+                selectivities.add(i, Double.valueOf(selectivity));
+            } else {
+                ordered.addAll(run);
+                run.clear();
+                selectivities.clear();
+                ordered.add(predicate);
+            }
+        }
+        ordered.addAll(run);
+        return ordered;
+    }
+}
@@ -50,6 +50,10 @@ public class ExtensionExpression extends AbstractExpression {
         this.innerExpression = inner;
     }
 
+    public Expression getExpression() {
+        return innerExpression;
+    }
+
     public void addPragma(Pragma pragma) {
         pragmas.add(pragma);
     }
@@ -99,9 +103,12 @@ public class ExtensionExpression extends AbstractExpression {
 
     public void analyze(AnalyzeContextInfo contextInfo) throws XPathException {
         final AnalyzeContextInfo newContext = new AnalyzeContextInfo(contextInfo);
+        // pragmas may access the inner expression through the parent
+        newContext.setParent(this);
         for (final Pragma pragma : pragmas) {
             pragma.analyze(newContext);
         }
+        newContext.setParent(contextInfo.getParent());
         innerExpression.analyze(newContext);
     }
 
@@ -22,6 +22,7 @@
  */
 package org.exist.xquery;
 
+import org.exist.dom.DocumentSet;
 import org.exist.dom.NodeProxy;
 import org.exist.dom.NodeSet;
 import org.exist.dom.QName;
@@ -48,6 +49,16 @@ public class ForExpr extends BindingExpression {
 
     private String positionalVariable = null;
 
+    private ParallelFor parallel = null;
+
+    private HashJoin join = null;
+
+    /** see {@link #setOrderLimit(int)} */
+    private int orderLimit = 0;
+
+    /** see {@link #setLazy(boolean)} */
+    private boolean lazy = false;
+
     public ForExpr(XQueryContext context) {
         super(context);
     }
@@ -62,6 +73,10 @@ public class ForExpr extends BindingExpression {
         positionalVariable = var;
     }
 
+    public String getPositionalVariable() {
+        return positionalVariable;
+    }
+
     public void analyze(AnalyzeContextInfo contextInfo, OrderSpec orderBy[]) throws XPathException { 
         analyze(contextInfo, orderBy, null); 
     } 
@@ -159,6 +174,10 @@ public class ForExpr extends BindingExpression {
     public Sequence eval(Sequence contextSequence, Item contextItem,
             Sequence resultSequence, GroupedValueSequenceTable groupedSequence) 
             throws XPathException {
+        final int limit = orderLimit;
+        orderLimit = 0;
+        final boolean lazyResult = lazy;
+        lazy = false;
         if (context.getProfiler().isEnabled()) {
             context.getProfiler().start(this);
             context.getProfiler().message(this, Profiler.DEPENDENCIES,
@@ -174,6 +193,7 @@ public class ForExpr extends BindingExpression {
                 "RESULT SEQUENCE", resultSequence);}
         }
         context.expressionStart(this);
+        final boolean nested = resultSequence != null || groupedSequence != null;
         // bv - Declare grouping variables and initiate grouped sequence
         LocalVariable groupKeyVar[] = null; 
         if (groupSpecs != null){ 
@@ -193,8 +213,12 @@ public class ForExpr extends BindingExpression {
         // Save the local variable stack
         LocalVariable mark = context.markLocalVariables(false);
         try {
-            // Evaluate the "in" expression
-            in = inputSequence.eval(contextSequence, null);
+            // Evaluate the "in" expression. If the where clause is evaluated as a
+            // hash join, only the items matching the outer variables are returned
+            in = join == null ? null : join.eval(contextSequence);
+            final boolean joined = in != null;
+            if (!joined)
+                {in = inputSequence.eval(contextSequence, null);}
             clearContext(getExpressionId(), in);
             // Declare the iteration variable
             var = new LocalVariable(QName.parse(context, varName, null));
@@ -223,13 +247,15 @@ public class ForExpr extends BindingExpression {
             // calling the where expression for each item in the input sequence)
             // This is possible if the input sequence is a node set and has no
             // dependencies on the current context item.
-            boolean fastExec = 
-                whereExpr != null && at == null &&
+            // The items returned by a hash join may already satisfy the where clause
+            final boolean whereApplied = joined && join.isExact();
+            final boolean fastExec = 
+                whereExpr != null && at == null && (whereApplied ||
                 !Dependency.dependsOn(whereExpr, Dependency.CONTEXT_ITEM) &&
                 in.isPersistentSet() &&
-                Type.subTypeOf(in.getItemType(), Type.NODE);
+                Type.subTypeOf(in.getItemType(), Type.NODE));
             // If possible, apply the where expression ahead of the iteration
-            if (fastExec) {
+            if (fastExec && !whereApplied) {
                 if (!in.isCached()) {
                     setContext(getExpressionId(), in);
                     if (whereExpr != null)
@@ -244,22 +270,33 @@ public class ForExpr extends BindingExpression {
             if (fastOrderBy) {
                 in = new PreorderedValueSequence(orderSpecs, in, getExpressionId());
             }
+            // The return clause of the query body may be evaluated when the items
+            // of the result are read, see LazySequence
+            final boolean evalLazy = lazyResult && !nested && groupSpecs == null &&
+                orderSpecs == null && sequenceType == null && parallel == null &&
+                (whereExpr == null || fastExec || positionalVariable == null) &&
+                !context.inProtectedMode() && context.getSnapshot() == null &&
+                LazySequence.isSupported(returnExpr);
+            if (evalLazy) {
+                // only the where clause is evaluated for every item
+                if (whereExpr != null && !fastExec)
+                    {in = filter(in, var);}
+                resultSequence = new LazySequence(this, in, var.getContextDocs(), context);
+            }
             // Otherwise, if there's an order by clause, wrap the result into
             // an OrderedValueSequence. OrderedValueSequence will compute
             // order expressions for every item when it is added to the result sequence.
             if (resultSequence == null) {
                 if (orderSpecs != null && !fastOrderBy) {
-                    resultSequence = new OrderedValueSequence(orderSpecs, in.getItemCount());
+                    resultSequence = new OrderedValueSequence(orderSpecs, in.getItemCount(),
+                        limit, context);
                 } else {
                     resultSequence = new ValueSequence();
                     ((ValueSequence)resultSequence).keepUnOrdered(unordered);
                 }
             }
-            Sequence val = null;
-            int p = 1;
-            final IntegerValue atVal = new IntegerValue(1);
             if(positionalVariable != null)
-                {at.setValue(atVal);}
+                {at.setValue(new IntegerValue(1));}
             //Type.EMPTY is *not* a subtype of other types ;
             //the tests below would fail without this prior cardinality check
             if (in.isEmpty() && sequenceType != null &&
@@ -270,58 +307,14 @@ public class ForExpr extends BindingExpression {
                     ". Expected " + Cardinality.getDescription(sequenceType.getCardinality()) + 
                     ", got " + Cardinality.getDescription(in.getCardinality()));
             }
-            // Loop through each variable binding
-            p = 0;
-            for (final SequenceIterator i = in.iterate(); i.hasNext(); p++) {
-                context.proceed(this);
-                contextItem = i.nextItem();
-                context.setContextSequencePosition(p, in);
-                if (positionalVariable != null)
-                    {at.setValue(new IntegerValue(p + 1));}
-                contextSequence = contextItem.toSequence();
-                // set variable value to current item
-                var.setValue(contextSequence);
-                if (sequenceType == null)
-                    {var.checkType();} //because it makes some conversions ! 
-                val = contextSequence;
-                // check optional where clause
-                if (whereExpr != null && (!fastExec)) {
-                    if (contextItem instanceof NodeProxy)
-                        {((NodeProxy)contextItem).addContextNode(getExpressionId(), (NodeProxy)contextItem);}
-                    final Sequence bool = applyWhereExpression(null);
-                    if (contextItem instanceof NodeProxy)
-                        {((NodeProxy)contextItem).clearContext(getExpressionId());}
-                    // if where returned false, continue
-                    if (!bool.effectiveBooleanValue())
-                        {continue;}
-                } else {
-                    val = contextItem.toSequence();
-                }
-                //Reset the context position
-                context.setContextSequencePosition(0, null);
-                if (groupedSequence==null) {
-                    if (returnExpr instanceof BindingExpression) {
-                        ((BindingExpression)returnExpr).eval(null, null, resultSequence, null);
-                    // otherwise call the return expression and add results to resultSequence 
-                    } else {
-                        val = returnExpr.eval(null);
-                        resultSequence.addAll(val);
-                    } 
-                } else {
-                    /* bv : special processing for groupby :
-                    if returnExpr is a Binding expression, pass the groupedSequence.  
-                    Else, add item to groupedSequence and don't evaluate here !  
-                     */
-                    if (returnExpr instanceof BindingExpression){ 
-                        ((BindingExpression)returnExpr).eval(null, null, resultSequence, groupedSequence);
-                    } else {
-                        final Sequence toGroupSequence = context.resolveVariable(groupedSequence.getToGroupVarName()).getValue();
-                        groupedSequence.addAll(toGroupSequence);
-                    }
-                }
-                // free resources
-                var.destroy(context, resultSequence);
-            }
+            // Loop through each variable binding, in parallel if requested
+            // and this is the outermost binding expression
+            if (evalLazy)
+                {LOG.debug("Evaluating the return clause for the items read");}
+            else if (parallel != null && !nested && parallel.isEnabled(in))
+                {parallel.eval(in, fastExec, var, at, resultSequence, groupedSequence);}
+            else
+                {iterate(in, 0, var, at, fastExec, resultSequence, groupedSequence);}
         } finally {
             // restore the local variable stack 
             context.popLocalVariables(mark, resultSequence);
@@ -383,6 +376,203 @@ public class ForExpr extends BindingExpression {
         return resultSequence;
     }
 
+    /**
+     * Evaluate the where and return clauses for every item of the input sequence.
+     *
+     * @param in the input sequence
+     * @param offset the position of the first item in the whole input sequence
+     */
+    private void iterate(Sequence in, int offset, LocalVariable var, LocalVariable at,
+            boolean fastExec, Sequence resultSequence, GroupedValueSequenceTable groupedSequence)
+            throws XPathException {
+        Sequence val = null;
+        int p = 0;
+        for (final SequenceIterator i = in.iterate(); i.hasNext(); p++) {
+            context.proceed(this);
+            final Item contextItem = i.nextItem();
+            context.setContextSequencePosition(p, in);
+            if (positionalVariable != null)
+                {at.setValue(new IntegerValue(offset + p + 1));}
+            final Sequence contextSequence = contextItem.toSequence();
+            // set variable value to current item
+            var.setValue(contextSequence);
+            if (sequenceType == null)
+                {var.checkType();} //because it makes some conversions ! 
+            val = contextSequence;
+            // check optional where clause
+            if (whereExpr != null && (!fastExec)) {
+                if (contextItem instanceof NodeProxy)
+                    {((NodeProxy)contextItem).addContextNode(getExpressionId(), (NodeProxy)contextItem);}
+                final Sequence bool = applyWhereExpression(null);
+                if (contextItem instanceof NodeProxy)
+                    {((NodeProxy)contextItem).clearContext(getExpressionId());}
+                // if where returned false, continue
+                if (!bool.effectiveBooleanValue())
+                    {continue;}
+            } else {
+                val = contextItem.toSequence();
+            }
+            //Reset the context position
+            context.setContextSequencePosition(0, null);
+            if (groupedSequence==null) {
+                if (returnExpr instanceof BindingExpression) {
+                    ((BindingExpression)returnExpr).eval(null, null, resultSequence, null);
+                // otherwise call the return expression and add results to resultSequence 
+                } else {
+                    val = returnExpr.eval(null);
+                    resultSequence.addAll(val);
+                } 
+            } else {
+                /* bv : special processing for groupby :
+                if returnExpr is a Binding expression, pass the groupedSequence.  
+                Else, add item to groupedSequence and don't evaluate here !  
+                 */
+                if (returnExpr instanceof BindingExpression){ 
+                    ((BindingExpression)returnExpr).eval(null, null, resultSequence, groupedSequence);
+                } else {
+                    final Sequence toGroupSequence = context.resolveVariable(groupedSequence.getToGroupVarName()).getValue();
+                    groupedSequence.addAll(toGroupSequence);
+                }
+            }
+            // free resources
+            var.destroy(context, resultSequence);
+        }
+    }
+
+    /**
+     * Returns the items of the input sequence for which the where clause is true.
+     */
+    private Sequence filter(Sequence in, LocalVariable var) throws XPathException {
+        final ValueSequence filtered = new ValueSequence();
+        int p = 0;
+        for (final SequenceIterator i = in.iterate(); i.hasNext(); p++) {
+            context.proceed(this);
+            final Item contextItem = i.nextItem();
+            context.setContextSequencePosition(p, in);
+            var.setValue(contextItem.toSequence());
+            var.checkType();
+            if (contextItem instanceof NodeProxy)
+                {((NodeProxy)contextItem).addContextNode(getExpressionId(), (NodeProxy)contextItem);}
+            final Sequence bool = applyWhereExpression(null);
+            if (contextItem instanceof NodeProxy)
+                {((NodeProxy)contextItem).clearContext(getExpressionId());}
+            if (bool.effectiveBooleanValue())
+                {filtered.add(contextItem);}
+            var.destroy(context, filtered);
+        }
+        context.setContextSequencePosition(0, null);
+        return filtered;
+    }
+
+    void setParallel(ParallelFor parallel) {
+        this.parallel = parallel;
+    }
+
+    ParallelFor getParallel() {
+        return parallel;
+    }
+
+    /**
+     * Keep only the first items of the result in the order of the "order by" clause
+     * when this expression is evaluated next, e.g. for fn:subsequence. Applies to the
+     * next evaluation only.
+     *
+     * @param limit the number of items to keep
+     */
+    public void setOrderLimit(int limit) {
+        this.orderLimit = limit;
+    }
+
+    /**
+     * Return a {@link LazySequence} if the result of this expression is only partially
+     * read, e.g. by paging, and the return clause can be evaluated lazily. Only set for
+     * the body of a query, see {@link XQuery#executeLazy(CompiledXQuery, Sequence, java.util.Properties)}.
+     * Applies to the next evaluation only.
+     */
+    void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
+
+    /**
+     * Evaluate the return clause for the item at the given position of the input
+     * sequence, see {@link LazySequence}. The item is constructed in a new in-memory
+     * document.
+     */
+    Item evalLazy(Sequence in, int pos, DocumentSet contextDocs) throws XPathException {
+        final LocalVariable mark = context.markLocalVariables(false);
+        context.pushDocumentContext();
+        Sequence result = null;
+        try {
+            final LocalVariable var = new LocalVariable(QName.parse(context, varName, null));
+            var.setContextDocs(contextDocs);
+            context.declareVariableBinding(var);
+            if (positionalVariable != null) {
+                final LocalVariable at = new LocalVariable(QName.parse(context, positionalVariable, null));
+                at.setSequenceType(POSITIONAL_VAR_TYPE);
+                context.declareVariableBinding(at);
+                at.setValue(new IntegerValue(pos + 1));
+            }
+            var.setValue(in.itemAt(pos).toSequence());
+            var.checkType();
+            result = returnExpr.eval(null);
+            if (!result.hasOne())
+                {throw new XPathException(this, "Internal error: the return clause returned " +
+                    result.getItemCount() + " items instead of one");}
+            return result.itemAt(0);
+        } finally {
+            context.popDocumentContext();
+            context.popLocalVariables(mark, result);
+        }
+    }
+
+    /**
+     * Evaluate the where clause as a hash join, see {@link HashJoin}.
+     */
+    public void setHashJoin(HashJoin join) {
+        this.join = join;
+    }
+
+    /**
+     * Evaluate a chunk of the input sequence in a copy of the query, see {@link ParallelFor}.
+     * Declares the iteration variables in the context of the copy.
+     */
+    void evalChunk(ParallelFor.Chunk chunk, boolean fastExec, DocumentSet contextDocs) throws XPathException {
+        final LocalVariable mark = context.markLocalVariables(false);
+        try {
+            final LocalVariable var = new LocalVariable(QName.parse(context, varName, null));
+            var.setSequenceType(sequenceType);
+            var.setContextDocs(contextDocs);
+            context.declareVariableBinding(var);
+            LocalVariable at = null;
+            if (positionalVariable != null) {
+                at = new LocalVariable(QName.parse(context, positionalVariable, null));
+                at.setSequenceType(POSITIONAL_VAR_TYPE);
+                context.declareVariableBinding(at);
+            }
+            evalChunk(chunk, var, at, fastExec);
+        } finally {
+            context.popLocalVariables(mark, chunk.result);
+        }
+    }
+
+    /**
+     * Evaluate a chunk of the input sequence with the given iteration variables. The
+     * results are stored in the chunk.
+     */
+    void evalChunk(ParallelFor.Chunk chunk, LocalVariable var, LocalVariable at, boolean fastExec)
+            throws XPathException {
+        if (orderSpecs != null)
+            {chunk.result = new OrderedValueSequence(orderSpecs, chunk.items.getItemCount(),
+                chunk.limit, context);}
+        else {
+            chunk.result = new ValueSequence();
+            ((ValueSequence)chunk.result).keepUnOrdered(unordered);
+        }
+        if (groupSpecs != null)
+            {chunk.groups = new GroupedValueSequenceTable(groupSpecs, varName, context);}
+        iterate(chunk.items, chunk.offset, var, at, fastExec, chunk.result, chunk.groups);
+    }
+
     /* (non-Javadoc)
      * @see org.exist.xquery.Expression#returnsType()
      */
@@ -502,6 +692,11 @@ public class ForExpr extends BindingExpression {
     */
     public void resetState(boolean postOptimization) {
         super.resetState(postOptimization);
+        if (parallel != null)
+            {parallel.reset();}
+        if (join != null && !postOptimization)
+            {join.reset();}
+        orderLimit = 0;
     }
 
     public void accept(ExpressionVisitor visitor) {
@@ -47,6 +47,7 @@ import org.exist.xquery.value.Type;
 
 import java.text.Collator;
 
+import java.util.BitSet;
 import java.util.Iterator;
 import java.util.List;
 
@@ -99,6 +100,9 @@ public class GeneralComparison extends BinaryOp implements Optimizable, IndexUse
 
     private IndexFlags     idxflags         = new IndexFlags();
 
+    /** Set by the {@link Optimizer}: compare node sets without a usable index by a hash join. */
+    private boolean        hashJoin         = false;
+
     public GeneralComparison( XQueryContext context, int relation )
     {
         this( context, relation, Constants.TRUNC_NONE );
@@ -259,6 +263,18 @@ public class GeneralComparison extends BinaryOp implements Optimizable, IndexUse
     }
 
 
+    /**
+     * Returns the name of the nodes whose values are compared, if it is known
+     * from the left operand. Used to look up a range index by QName.
+     *
+     * @return  the name or null
+     */
+    public QName getContextQName()
+    {
+        return( contextQName );
+    }
+
+
     public int getOptimizeAxis()
     {
         return( axis );
@@ -654,6 +670,94 @@ public class GeneralComparison extends BinaryOp implements Optimizable, IndexUse
     }
 
 
+    /**
+     * Fallback of {@link #quickNodeSetCompare(Sequence)} if no index can be used. If the right operand has more than one item, evaluates the
+     * comparison as a hash join if enabled by the {@link Optimizer}.
+     *
+     * @param   nodes            the nodes of the left operand
+     * @param   rightSeq         the evaluated right operand, which does not depend on the context item
+     * @param   contextSequence  the context sequence
+     *
+     * @return  the nodes of the left operand matching the right operand
+     *
+     * @throws  XPathException
+     */
+    private Sequence nodeSetCompare( NodeSet nodes, Sequence rightSeq, Sequence contextSequence ) throws XPathException
+    {
+        if( hashJoin && ( relation == Constants.EQ ) && ( truncation == Constants.TRUNC_NONE ) && ( rightSeq.getItemCount() > 1 ) ) {
+            return( hashJoin( nodes, rightSeq, contextSequence ) );
+        }
+        return( nodeSetCompare( nodes, contextSequence ) );
+    }
+
+
+    /**
+     * Compares the nodes of the left operand with the items of the right operand by building a {@link JoinTable} on the smaller side and looking
+     * up the items of the other. Unlike {@link #nodeSetCompare(NodeSet, Sequence)}, which compares every node with every item, this takes
+     * linear time.
+     *
+     * @param   nodes            the nodes of the left operand
+     * @param   rightSeq         the evaluated right operand
+     * @param   contextSequence  the context sequence
+     *
+     * @return  the nodes of the left operand which are equal to an item of the right operand
+     *
+     * @throws  XPathException
+     */
+    protected Sequence hashJoin( NodeSet nodes, Sequence rightSeq, Sequence contextSequence ) throws XPathException
+    {
+        if( context.getProfiler().isEnabled() ) {
+            context.getProfiler().message( this, Profiler.OPTIMIZATION_FLAGS, "OPTIMIZATION CHOICE", "hashJoin" );
+        }
+        final long     start    = System.currentTimeMillis();
+        final NodeSet  result   = new NewArrayNodeSet();
+        final Collator collator = getCollator( contextSequence );
+
+        if( ( nodes instanceof VirtualNodeSet ) || ( rightSeq.getItemCount() <= nodes.getLength() ) ) {
+
+            // build the table on the right operand and look up the nodes
+            final JoinTable table = new JoinTable( this, collator, false );
+            int             p     = 0;
+
+            for( final SequenceIterator i = rightSeq.iterate(); i.hasNext(); p++ ) {
+                table.add( i.nextItem().atomize(), p );
+            }
+
+            for( final NodeProxy item : nodes ) {
+
+                if( table.contains( item.atomize() ) ) {
+                    result.add( item );
+                }
+            }
+        } else {
+
+            // build the table on the nodes and look up the items of the right operand
+            final JoinTable   table = new JoinTable( this, collator, true );
+            final NodeProxy[] items = new NodeProxy[nodes.getLength()];
+            int               p     = 0;
+
+            for( final NodeProxy item : nodes ) {
+                items[p] = item;
+                table.add( item.atomize(), p++ );
+            }
+            final BitSet matches = new BitSet( p );
+
+            for( final SequenceIterator i = rightSeq.iterate(); i.hasNext(); ) {
+                table.lookup( i.nextItem().atomize(), matches );
+            }
+
+            for( p = matches.nextSetBit( 0 ); p >= 0; p = matches.nextSetBit( p + 1 ) ) {
+                result.add( items[p] );
+            }
+        }
+
+        if( context.getProfiler().traceFunctions() ) {
+            context.getProfiler().traceIndexUsage( context, PerformanceStats.RANGE_IDX_TYPE, this, PerformanceStats.NO_INDEX, System.currentTimeMillis() - start );
+        }
+        return( result );
+    }
+
+
     /**
      * Optimized implementation: first checks if a range index is defined on the nodes in the left argument. If that fails, check if we can use the
      * fulltext index to speed up the search. Otherwise, fall back to {@link #nodeSetCompare(NodeSet, Sequence)}.
@@ -710,6 +814,17 @@ public class GeneralComparison extends BinaryOp implements Optimizable, IndexUse
         //get the type of a possible index
         final int indexType = nodes.getIndexType();
 
+        //comparing a few nodes one by one may be cheaper than looking up the keys in the index,
+        //but only a string index compares string keys the same way as the nodes are compared
+        if( ( indexType == Type.STRING ) && !( nodes instanceof VirtualNodeSet ) && isStringSequence( rightSeq ) &&
+                !context.getCostModel().useRangeIndex( contextQName, relation, truncation, rightSeq.getItemCount(), nodes.getLength() ) ) {
+
+            if( context.getProfiler().isEnabled() ) {
+                context.getProfiler().message( this, Profiler.OPTIMIZATION_FLAGS, "OPTIMIZATION CHOICE", "nodeSetCompare (estimated to be cheaper than the range index)" );
+            }
+            return( nodeSetCompare( nodes, rightSeq, contextSequence ) );
+        }
+
         //See if we have a range index defined on the nodes in this sequence
         //remember that Type.ITEM means... no index ;-)
         if( indexType != Type.ITEM ) {
@@ -749,7 +864,7 @@ public class GeneralComparison extends BinaryOp implements Optimizable, IndexUse
                     // else use range index defined on path by default
                 }
             } else {
-                return( nodeSetCompare( nodes, contextSequence ) );
+                return( nodeSetCompare( nodes, rightSeq, contextSequence ) );
             }
 
             //Get the documents from the node set
@@ -794,7 +909,7 @@ public class GeneralComparison extends BinaryOp implements Optimizable, IndexUse
                             LOG.trace( "Cannot convert key: " + Type.getTypeName( key.getType() ) + " to required index type: " + Type.getTypeName( indexType ) );
                         }
 
-                        return( nodeSetCompare( nodes, contextSequence ) );
+                        return( nodeSetCompare( nodes, rightSeq, contextSequence ) );
                     }
                 }
 
@@ -881,7 +996,7 @@ public class GeneralComparison extends BinaryOp implements Optimizable, IndexUse
                             LOG.trace( "Cannot use range index: key is of type: " + Type.getTypeName( key.getType() ) + ") whereas index is of type '" + Type.getTypeName( indexType ) );
                         }
 
-                        return( nodeSetCompare( nodes, contextSequence ) );
+                        return( nodeSetCompare( nodes, rightSeq, contextSequence ) );
                     }
                 } else {
 
@@ -894,7 +1009,7 @@ public class GeneralComparison extends BinaryOp implements Optimizable, IndexUse
                         LOG.trace( "Cannot use key which is of type '" + key.getClass().getName() );
                     }
 
-                    return( nodeSetCompare( nodes, contextSequence ) );
+                    return( nodeSetCompare( nodes, rightSeq, contextSequence ) );
 
                 }
             }
@@ -914,7 +1029,7 @@ public class GeneralComparison extends BinaryOp implements Optimizable, IndexUse
                 context.getProfiler().message( this, Profiler.OPTIMIZATION_FLAGS, "OPTIMIZATION FALLBACK", "falling back to nodeSetCompare (no index available)" );
             }
 
-            return( nodeSetCompare( nodes, contextSequence ) );
+            return( nodeSetCompare( nodes, rightSeq, contextSequence ) );
         }
     }
 
@@ -1095,6 +1210,23 @@ public class GeneralComparison extends BinaryOp implements Optimizable, IndexUse
     }
 
 
+    /**
+     * Compare two atomic values for equality as done by this comparison. Used by {@link JoinTable}.
+     *
+     * @param   collator  the collator to use for strings
+     * @param   lv        the value of the left operand
+     * @param   rv        the value of the right operand
+     *
+     * @return  true if the values are equal
+     *
+     * @throws  XPathException  if the values cannot be compared
+     */
+    boolean joinCompare( Collator collator, AtomicValue lv, AtomicValue rv ) throws XPathException
+    {
+        return( compareAtomic( collator, lv, rv ) );
+    }
+
+
     /**
      * DOCUMENT ME!
      *
@@ -1117,6 +1249,28 @@ public class GeneralComparison extends BinaryOp implements Optimizable, IndexUse
     }
 
 
+    /**
+     * Checks if all items in the sequence are strings, so comparing them to
+     * the nodes gives the same result as a lookup in a string index.
+     *
+     * @param   seq
+     *
+     * @return  Whether or not all items in <code>seq</code> are of type xs:string
+     *
+     * @throws  XPathException
+     */
+    private static boolean isStringSequence( Sequence seq ) throws XPathException
+    {
+        for( final SequenceIterator i = seq.iterate(); i.hasNext(); ) {
+
+            if( i.nextItem().getType() != Type.STRING ) {
+                return( false );
+            }
+        }
+        return( true );
+    }
+
+
     public boolean hasUsedIndex()
     {
         return( hasUsedIndex );
@@ -1231,6 +1385,18 @@ public class GeneralComparison extends BinaryOp implements Optimizable, IndexUse
     }
 
 
+    /**
+     * Evaluate the comparison as a hash join if the left operand is a node set, no index can be used and the right operand does not depend on
+     * the context item. Only applies to equality comparisons without truncation.
+     *
+     * @param  hashJoin
+     */
+    public void setHashJoin( boolean hashJoin )
+    {
+        this.hashJoin = hashJoin;
+    }
+
+
     public void setCollation( Object collationArg )
     {
         this.collationArg = collationArg;
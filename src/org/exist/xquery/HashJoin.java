@@ -0,0 +1,382 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.xquery;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.exist.dom.DocumentImpl;
+import org.exist.dom.NewArrayNodeSet;
+import org.exist.dom.NodeProxy;
+import org.exist.dom.NodeSet;
+import org.exist.dom.QName;
+import org.exist.dom.StoredNode;
+import org.exist.numbering.NodeId;
+import org.exist.storage.UpdateListener;
+import org.exist.xquery.functions.fn.ExtFulltext;
+import org.exist.xquery.util.ExpressionDumper;
+import org.exist.xquery.value.Item;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceIterator;
+import org.exist.xquery.value.Type;
+import org.exist.xquery.value.ValueSequence;
+
+/**
+ * Evaluates the where clause of a "for" expression as a hash join. Applies if the where
+ * clause contains an equality comparison between an expression depending on the bound
+ * variable and an expression which does not, e.g.:
+ *
+ * <pre>
+ * for $a in //closed_auction, $p in //person
+ * where $p/@id = $a/buyer/@person
+ * return ...
+ * </pre>
+ *
+ * Without a join, the inner "for" clause evaluates its input sequence and the where clause
+ * for every auction. Instead, the input sequence is evaluated once and its items are
+ * stored in a {@link JoinTable}, keyed by the values of $p/@id. For every auction, the
+ * persons matching $a/buyer/@person are looked up in the table and returned in input order.
+ *
+ * The input sequence and the key may only reference global variables, so they
+ * evaluate to the same values every time. Joins are detected by the {@link Optimizer}.
+ * The table is built the second time the expression is evaluated, so an expression
+ * evaluated once does not pay for it, and dropped if a document is updated.
+ */
+public class HashJoin implements UpdateListener {
+
+    private final static Logger LOG = Logger.getLogger(HashJoin.class);
+
+    private final XQueryContext context;
+    private final ForExpr forExpr;
+    private final GeneralComparison comparison;
+
+    /** the operand of the comparison which depends on the bound variable */
+    private final Expression key;
+    /** the other operand */
+    private final Expression probe;
+    private final boolean keyIsLeft;
+
+    /** true if the where clause consists of the comparison only */
+    private final boolean exact;
+
+    /** the variables referenced by the input sequence and the key, except the bound variable */
+    private final Set<QName> variables;
+
+    private int evaluations = 0;
+    private boolean disabled = false;
+    private boolean listening = false;
+
+    /** dropped by the update listener, which may be called by another thread */
+    private volatile Table table = null;
+
+    private HashJoin(XQueryContext context, ForExpr forExpr, GeneralComparison comparison,
+            boolean keyIsLeft, boolean exact, Set<QName> variables) {
+        this.context = context;
+        this.forExpr = forExpr;
+        this.comparison = comparison;
+        this.keyIsLeft = keyIsLeft;
+        this.key = keyIsLeft ? comparison.getLeft() : comparison.getRight();
+        this.probe = keyIsLeft ? comparison.getRight() : comparison.getLeft();
+        this.exact = exact;
+        this.variables = variables;
+    }
+
+    /**
+     * Check if the where clause of the given "for" expression can be evaluated as a
+     * hash join.
+     *
+     * @return the join or null if it does not apply
+     */
+    public static HashJoin create(XQueryContext context, ForExpr forExpr) {
+        final Expression where = unwrap(forExpr.getWhereExpression());
+        // the positional variable refers to the whole input sequence, and a declared
+        // type is also checked if no item matches
+        if (where == null || forExpr.getPositionalVariable() != null || forExpr.sequenceType != null)
+            {return null;}
+        try {
+            final QName var = QName.parse(context, forExpr.getVariable(), null);
+            final Set<QName> inputVars = VariableCollector.collect(context, forExpr.getInputSequence());
+            if (inputVars == null || !isGlobal(context, inputVars))
+                {return null;}
+            return create(context, forExpr, where, var, inputVars, true);
+        } catch (final XPathException e) {
+            LOG.debug("Failed to analyze where clause: " + e.getMessage(), e);
+        }
+        return null;
+    }
+
+    private static HashJoin create(XQueryContext context, ForExpr forExpr, Expression expr,
+            QName var, Set<QName> inputVars, boolean exact) throws XPathException {
+        if (expr instanceof GeneralComparison)
+            {return create(context, forExpr, (GeneralComparison) expr, var, inputVars, exact);}
+        if (expr instanceof OpAnd) {
+            // use the first suitable comparison in a chain of "and" operators
+            final HashJoin join = create(context, forExpr, unwrap(((OpAnd) expr).getLeft()), var, inputVars, false);
+            if (join != null)
+                {return join;}
+            return create(context, forExpr, unwrap(((OpAnd) expr).getRight()), var, inputVars, false);
+        }
+        return null;
+    }
+
+    private static HashJoin create(XQueryContext context, ForExpr forExpr, GeneralComparison comparison,
+            QName var, Set<QName> inputVars, boolean exact) throws XPathException {
+        if (comparison.getRelation() != Constants.EQ || comparison.getTruncation() != Constants.TRUNC_NONE)
+            {return null;}
+        final Set<QName> left = VariableCollector.collect(context, comparison.getLeft());
+        final Set<QName> right = VariableCollector.collect(context, comparison.getRight());
+        if (left == null || right == null || left.contains(var) == right.contains(var))
+            {return null;}
+        final boolean keyIsLeft = left.contains(var);
+        final Set<QName> variables = new HashSet<QName>(keyIsLeft ? left : right);
+        variables.remove(var);
+        if (!isGlobal(context, variables))
+            {return null;}
+        variables.addAll(inputVars);
+        return new HashJoin(context, forExpr, comparison, keyIsLeft, exact, variables);
+    }
+
+    private static Expression unwrap(Expression expr) {
+        while (true) {
+            if (expr instanceof DebuggableExpression)
+                {expr = ((DebuggableExpression) expr).getFirst();}
+            else if (expr != null && expr.getClass() == PathExpr.class && expr.getSubExpressionCount() == 1)
+                {expr = expr.getSubExpression(0);}
+            else
+                {return expr;}
+        }
+    }
+
+    private static boolean isGlobal(XQueryContext context, Set<QName> variables) {
+        for (final QName qname : variables) {
+            if (!context.isVarDeclared(qname))
+                {return false;}
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the items returned by {@link #eval(Sequence)} satisfy the
+     * where clause, so it need not be evaluated again.
+     */
+    public boolean isExact() {
+        return exact;
+    }
+
+    /**
+     * Returns the items of the input sequence matching the current value of the
+     * other operand of the comparison, in input order. Returns null if the join
+     * cannot be used and the "for" expression should be evaluated as usual.
+     */
+    public Sequence eval(Sequence contextSequence) throws XPathException {
+        // the input sequence is always evaluated without context by nested
+        // "for" clauses, the typical case for a join
+        if (disabled || contextSequence != null)
+            {return null;}
+        Table current = table;
+        if (current == null) {
+            if (++evaluations < 2)
+                {return null;}
+            current = build();
+            if (current == null) {
+                disabled = true;
+                return null;
+            }
+            table = current;
+        }
+        return current.lookup(probe.eval(null));
+    }
+
+    private Table build() throws XPathException {
+        // a global variable may be hidden by a local one
+        for (final QName qname : variables) {
+            if (context.resolveLocalVariable(qname) != null)
+                {return null;}
+        }
+        final Sequence in = forExpr.getInputSequence().eval(null, null);
+        final Table newTable = new Table(in.getItemCount(), in.isPersistentSet() && Type.subTypeOf(in.getItemType(), Type.NODE),
+            new JoinTable(comparison, comparison.getCollator(null), keyIsLeft));
+        final LocalVariable mark = context.markLocalVariables(false);
+        try {
+            final LocalVariable var = new LocalVariable(QName.parse(context, forExpr.getVariable(), null));
+            context.declareVariableBinding(var);
+            if (Dependency.dependsOn(key, Dependency.CONTEXT_ITEM) || Dependency.dependsOn(probe, Dependency.CONTEXT_ITEM))
+                {return null;}
+            int p = 0;
+            for (final SequenceIterator i = in.iterate(); i.hasNext(); p++) {
+                context.proceed(forExpr);
+                final Item item = i.nextItem();
+                newTable.items[p] = item;
+                var.setValue(item.toSequence());
+                final Sequence keys = key.eval(null);
+                // a value comparison raises an error for more than one key
+                if (comparison instanceof ValueComparison && keys.hasMany())
+                    {return null;}
+                for (final SequenceIterator k = keys.iterate(); k.hasNext(); ) {
+                    newTable.keys.add(k.nextItem().atomize(), p);
+                }
+            }
+        } finally {
+            context.popLocalVariables(mark);
+        }
+        if (!listening) {
+            context.registerUpdateListener(this);
+            listening = true;
+        }
+        if (LOG.isDebugEnabled())
+            {LOG.debug("Built hash join table for " + newTable.items.length + " items on " + ExpressionDumper.dump(key));}
+        return newTable;
+    }
+
+    /**
+     * Drop the table and start counting evaluations again.
+     */
+    public void reset() {
+        table = null;
+        evaluations = 0;
+        disabled = false;
+    }
+
+    public void documentUpdated(DocumentImpl document, int event) {
+        table = null;
+    }
+
+    public void nodeMoved(NodeId oldNodeId, StoredNode newNode) {
+        table = null;
+    }
+
+    public void unsubscribe() {
+        listening = false;
+    }
+
+    public void debug() {
+        LOG.debug("Hash join on " + ExpressionDumper.dump(key));
+    }
+
+    /**
+     * The items of the input sequence and the table of their keys.
+     */
+    private static class Table {
+
+        final Item items[];
+        final boolean nodes;
+        final JoinTable keys;
+
+        Table(int size, boolean nodes, JoinTable keys) {
+            this.items = new Item[size];
+            this.nodes = nodes;
+            this.keys = keys;
+        }
+
+        /**
+         * Returns the items having a key equal to one of the values, in input order.
+         */
+        Sequence lookup(Sequence values) throws XPathException {
+            final BitSet matches = new BitSet(items.length);
+            for (final SequenceIterator i = values.iterate(); i.hasNext(); ) {
+                keys.lookup(i.nextItem().atomize(), matches);
+            }
+            if (nodes) {
+                final NodeSet result = new NewArrayNodeSet();
+                for (int p = matches.nextSetBit(0); p >= 0; p = matches.nextSetBit(p + 1)) {
+                    result.add((NodeProxy) items[p]);
+                }
+                return result;
+            }
+            final ValueSequence result = new ValueSequence();
+            for (int p = matches.nextSetBit(0); p >= 0; p = matches.nextSetBit(p + 1)) {
+                result.add(items[p]);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Collects the variables referenced by an expression. Returns null if the
+     * expression contains an expression it does not know how to traverse.
+     */
+    private static class VariableCollector extends DefaultExpressionVisitor {
+
+        private final XQueryContext context;
+        private final Set<QName> variables = new HashSet<QName>();
+        private boolean complete = true;
+
+        private VariableCollector(XQueryContext context) {
+            this.context = context;
+        }
+
+        static Set<QName> collect(XQueryContext context, Expression expr) {
+            final VariableCollector collector = new VariableCollector(context);
+            expr.accept(collector);
+            return collector.complete ? collector.variables : null;
+        }
+
+        public void visit(Expression expression) {
+            if (!(expression instanceof LiteralValue || expression instanceof RootNode))
+                {complete = false;}
+        }
+
+        public void visitVariableReference(VariableReference ref) {
+            try {
+                variables.add(QName.parse(context, ref.getName(), null));
+            } catch (final XPathException e) {
+                complete = false;
+            }
+        }
+
+        public void visitGeneralComparison(GeneralComparison comparison) {
+            comparison.getLeft().accept(this);
+            comparison.getRight().accept(this);
+        }
+
+        public void visitAndExpr(OpAnd and) {
+            and.getLeft().accept(this);
+            and.getRight().accept(this);
+        }
+
+        public void visitOrExpr(OpOr or) {
+            or.getLeft().accept(this);
+            or.getRight().accept(this);
+        }
+
+        public void visitFilteredExpr(FilteredExpression filtered) {
+            filtered.getExpression().accept(this);
+            for (final Predicate pred : filtered.getPredicates()) {
+                pred.accept(this);
+            }
+        }
+
+        public void visitUserFunction(UserDefinedFunction function) {
+            // the body of a function only sees its parameters and global variables
+        }
+
+        public void visitCastExpr(CastExpression expression) {
+            expression.getInnerExpression().accept(this);
+        }
+
+        public void visitFtExpression(ExtFulltext fulltext) {
+            complete = false;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.xquery;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.exist.xquery.value.AtomicValue;
+import org.exist.xquery.value.NumericValue;
+import org.exist.xquery.value.Type;
+
+/**
+ * A hash table of atomic keys, used to evaluate an equality comparison between two
+ * sequences without comparing every item of one sequence with every item of the other.
+ * See {@link HashJoin} and {@link GeneralComparison}.
+ *
+ * Each key is added together with the position of the item it belongs to. Looking up a
+ * value returns the positions of all items having a key which the comparison considers
+ * equal to the value. Strings and untyped values are hashed by their collation key,
+ * numbers by their xs:double value; both are the same for all values which may compare
+ * as equal. Keys of other types, e.g. dates, are compared one by one. Every candidate is
+ * checked with the comparison itself, so collations and type promotion are applied
+ * exactly as if the values were compared in a nested loop. Values of different types
+ * which cannot be compared are compared one by one, so the comparison raises the
+ * same type errors.
+ */
+public class JoinTable {
+
+    private final GeneralComparison comparison;
+    private final Collator collator;
+
+    /** true if the keys are the left operand of the comparison */
+    private final boolean keysLeft;
+
+    /** untyped values compared to numbers are cast to xs:double (general comparisons only) */
+    private final boolean promoteUntyped;
+
+    /** strings and untyped keys by their collation key */
+    private final Map<Object, List<Entry>> strings = new HashMap<Object, List<Entry>>();
+    /** numeric keys by their double value */
+    private final Map<Double, List<Entry>> numbers = new HashMap<Double, List<Entry>>();
+    /** untyped keys by their double value, if they can be cast to xs:double */
+    private final Map<Double, List<Entry>> untypedNumbers = new HashMap<Double, List<Entry>>();
+
+    private final List<Entry> stringEntries = new ArrayList<Entry>();
+    private final List<Entry> numberEntries = new ArrayList<Entry>();
+    /** string keys a numeric value cannot be compared to */
+    private final List<Entry> nonNumericEntries = new ArrayList<Entry>();
+    /** keys of other types, compared one by one */
+    private final List<Entry> others = new ArrayList<Entry>();
+
+    private int size = 0;
+
+    /**
+     * @param comparison the comparison to evaluate
+     * @param collator the collator used to compare strings, may be null
+     * @param keysLeft true if the keys are the left operand of the comparison
+     */
+    public JoinTable(GeneralComparison comparison, Collator collator, boolean keysLeft) {
+        this.comparison = comparison;
+        this.collator = collator;
+        this.keysLeft = keysLeft;
+        this.promoteUntyped = !(comparison instanceof ValueComparison);
+    }
+
+    /**
+     * Add a key for the item at the given position.
+     */
+    public void add(AtomicValue key, int item) throws XPathException {
+        final Entry entry = new Entry(key, item);
+        final int type = key.getType();
+        if (isString(type)) {
+            put(strings, stringKey(key), entry);
+            stringEntries.add(entry);
+            if (type == Type.UNTYPED_ATOMIC && promoteUntyped) {
+                try {
+                    final double d = ((NumericValue) key.convertTo(Type.DOUBLE)).getDouble();
+                    if (!Double.isNaN(d))
+                        {put(untypedNumbers, numberKey(d), entry);}
+                } catch (final XPathException e) {
+                    nonNumericEntries.add(entry);
+                }
+            } else
+                {nonNumericEntries.add(entry);}
+        } else if (Type.subTypeOf(type, Type.NUMBER)) {
+            final NumericValue number = (NumericValue) key;
+            // NaN is not equal to any value
+            if (!number.isNaN())
+                {put(numbers, numberKey(number.getDouble()), entry);}
+            numberEntries.add(entry);
+        } else
+            {others.add(entry);}
+        size++;
+    }
+
+    /**
+     * Returns the number of keys in the table.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns true if the table contains a key equal to the given value.
+     */
+    public boolean contains(AtomicValue value) throws XPathException {
+        return find(value, null);
+    }
+
+    /**
+     * Set the positions of all items having a key equal to the given
+     * value in matches.
+     */
+    public void lookup(AtomicValue value, BitSet matches) throws XPathException {
+        find(value, matches);
+    }
+
+    private boolean find(AtomicValue value, BitSet matches) throws XPathException {
+        final int type = value.getType();
+        if (isString(type)) {
+            if (compare(strings.get(stringKey(value)), value, matches))
+                {return true;}
+            if (!numberEntries.isEmpty()) {
+                List<Entry> candidates = numberEntries;
+                if (type == Type.UNTYPED_ATOMIC && promoteUntyped) {
+                    // the untyped value is cast to xs:double. If this fails,
+                    // the comparison will raise the error
+                    try {
+                        final double d = ((NumericValue) value.convertTo(Type.DOUBLE)).getDouble();
+                        candidates = Double.isNaN(d) ? null : numbers.get(numberKey(d));
+                    } catch (final XPathException e) {
+                        // compare with all numbers
+                    }
+                }
+                if (compare(candidates, value, matches))
+                    {return true;}
+            }
+        } else if (Type.subTypeOf(type, Type.NUMBER)) {
+            // NaN is not equal to any value
+            if (!((NumericValue) value).isNaN()) {
+                final Double key = numberKey(((NumericValue) value).getDouble());
+                if (compare(numbers.get(key), value, matches))
+                    {return true;}
+                if (promoteUntyped && compare(untypedNumbers.get(key), value, matches))
+                    {return true;}
+            }
+            if (compare(promoteUntyped ? nonNumericEntries : stringEntries, value, matches))
+                {return true;}
+        } else {
+            if (compare(stringEntries, value, matches) || compare(numberEntries, value, matches))
+                {return true;}
+        }
+        return compare(others, value, matches);
+    }
+
+    /**
+     * Compare the value with the given keys. Returns true if a key is equal and no
+     * bit set is given, otherwise sets the positions of the equal keys in matches.
+     */
+    private boolean compare(List<Entry> entries, AtomicValue value, BitSet matches) throws XPathException {
+        if (entries == null)
+            {return false;}
+        for (final Entry entry : entries) {
+            if (matches != null && matches.get(entry.item))
+                {continue;}
+            final boolean equal = keysLeft ?
+                comparison.joinCompare(collator, entry.key, value) :
+                comparison.joinCompare(collator, value, entry.key);
+            if (equal) {
+                if (matches == null)
+                    {return true;}
+                matches.set(entry.item);
+            }
+        }
+        return false;
+    }
+
+    private Object stringKey(AtomicValue value) throws XPathException {
+        final String s = value.getStringValue();
+        return collator == null ? s : collator.getCollationKey(s);
+    }
+
+    private static Double numberKey(double d) {
+        // -0 and +0 are equal
+        return Double.valueOf(d == 0.0 ? 0.0 : d);
+    }
+
+    private static boolean isString(int type) {
+        return type == Type.UNTYPED_ATOMIC || Type.subTypeOf(type, Type.STRING) ||
+            Type.subTypeOf(type, Type.ANY_URI);
+    }
+
+    private static <K> void put(Map<K, List<Entry>> map, K key, Entry entry) {
+        List<Entry> entries = map.get(key);
+        if (entries == null) {
+            entries = new ArrayList<Entry>(1);
+            map.put(key, entries);
+        }
+        entries.add(entry);
+    }
+
+    private final static class Entry {
+
+        final AtomicValue key;
+        final int item;
+
+        Entry(AtomicValue key, int item) {
+            this.key = key;
+            this.item = item;
+        }
+    }
+}
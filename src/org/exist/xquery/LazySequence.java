@@ -0,0 +1,310 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.xquery;
+
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.exist.Database;
+import org.exist.EXistException;
+import org.exist.dom.DocumentSet;
+import org.exist.dom.NodeSet;
+import org.exist.storage.DBBroker;
+import org.exist.xquery.value.MemoryNodeSet;
+import org.exist.xquery.value.AbstractSequence;
+import org.exist.xquery.value.Item;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceIterator;
+import org.exist.xquery.value.ValueSequence;
+
+/**
+ * The result of a FLWOR expression whose "return" clause is only evaluated for the
+ * items which are read, e.g. when the REST server or XML-RPC return one page of the
+ * result of a query. See {@link XQuery#executeLazy(CompiledXQuery, Sequence, java.util.Properties)}.
+ *
+ * The input sequence of the "for" clause is evaluated as usual. The return clause must
+ * return exactly one item for every item of the input sequence and must not have side
+ * effects, see {@link #isSupported(Expression)}. Item n of the result is then obtained by
+ * evaluating the return clause for item n of the input sequence. Every item is constructed
+ * in its own in-memory document, so items which are no longer used can be garbage collected.
+ *
+ * Unlike an eager evaluation, the query does not fail on dynamic errors raised by the return
+ * clause for items which are never read. An error is only raised when the failing item is read,
+ * see {@link #itemAt(int)}.
+ *
+ * The items are evaluated in the context of the query, which is therefore not reset when
+ * the query returns. Call {@link #close()} to reset the context when the result is no longer
+ * needed. The compiled query must not be used by another thread until then.
+ */
+public class LazySequence extends AbstractSequence {
+
+    private final static Logger LOG = Logger.getLogger(LazySequence.class);
+
+    private final ForExpr expr;
+    private final Sequence in;
+    private final DocumentSet contextDocs;
+    private final XQueryContext context;
+
+    private boolean closed = false;
+
+    /** the last item read, as the items are usually read one by one */
+    private int lastPos = -1;
+    private Item lastItem = null;
+
+    /**
+     * @param in the input sequence of the "for" clause, filtered by the where clause
+     * @param contextDocs the context documents of the "for" variable
+     */
+    LazySequence(ForExpr expr, Sequence in, DocumentSet contextDocs, XQueryContext context) {
+        this.expr = expr;
+        this.in = in;
+        this.contextDocs = contextDocs;
+        this.context = context;
+    }
+
+    /**
+     * Returns true if the given return clause of a FLWOR expression can be evaluated
+     * lazily: it is an element constructor or a function of the standard function library
+     * which returns exactly one item, and it calls neither user defined functions nor
+     * functions of other modules, which may have side effects. Expressions not known to
+     * be free of side effects, e.g. update expressions, are not supported.
+     */
+    static boolean isSupported(Expression returnExpr) {
+        final Expression expr = unwrap(returnExpr);
+        if (expr instanceof ElementConstructor)
+            {return hasNoSideEffects(expr);}
+        if (expr instanceof Function) {
+            final Function function = (Function) expr;
+            return function.getSignature().getReturnType().getCardinality() == Cardinality.EXACTLY_ONE &&
+                hasNoSideEffects(expr);
+        }
+        return false;
+    }
+
+    private static Expression unwrap(Expression expr) {
+        while (true) {
+            if (expr instanceof DebuggableExpression)
+                {expr = ((DebuggableExpression) expr).getFirst();}
+            else if (expr instanceof InternalFunctionCall)
+                {expr = ((InternalFunctionCall) expr).getFunction();}
+            else if (expr.getClass() == PathExpr.class && ((PathExpr) expr).getLength() == 1)
+                {expr = ((PathExpr) expr).getExpression(0);}
+            else
+                {return expr;}
+        }
+    }
+
+    private static boolean hasNoSideEffects(Expression expr) {
+        if (expr == null || expr instanceof LiteralValue || expr instanceof VariableReference ||
+                expr instanceof TextConstructor || expr instanceof CommentConstructor)
+            {return true;}
+        if (expr instanceof DebuggableExpression)
+            {return hasNoSideEffects(((DebuggableExpression) expr).getFirst());}
+        if (expr instanceof DynamicCardinalityCheck || expr instanceof DynamicTypeCheck ||
+                expr instanceof Atomize || expr instanceof UntypedValueCheck)
+            {return hasNoSideEffects(expr.getSubExpression(0));}
+        if (expr instanceof InternalFunctionCall)
+            {return hasNoSideEffects(((InternalFunctionCall) expr).getFunction());}
+        if (expr instanceof Function) {
+            final Function function = (Function) expr;
+            if (!Function.BUILTIN_FUNCTION_NS.equals(function.getSignature().getName().getNamespaceURI()))
+                {return false;}
+            for (int i = 0; i < function.getArgumentCount(); i++) {
+                if (!hasNoSideEffects(function.getArgument(i)))
+                    {return false;}
+            }
+            return true;
+        }
+        if (expr instanceof PathExpr) {
+            // path expressions, operators and enclosed expressions keep their operands as steps.
+            // Subclasses defined by extension modules may have other operands
+            if (expr.getClass().getPackage() != PathExpr.class.getPackage())
+                {return false;}
+            final PathExpr path = (PathExpr) expr;
+            for (int i = 0; i < path.getLength(); i++) {
+                if (!hasNoSideEffects(path.getExpression(i)))
+                    {return false;}
+            }
+            return true;
+        }
+        if (expr instanceof LocationStep)
+            {return hasNoSideEffects(((LocationStep) expr).getPredicates());}
+        if (expr instanceof FilteredExpression) {
+            final FilteredExpression filtered = (FilteredExpression) expr;
+            return hasNoSideEffects(filtered.getExpression()) && hasNoSideEffects(filtered.getPredicates());
+        }
+        if (expr instanceof CastExpression)
+            {return hasNoSideEffects(((CastExpression) expr).getInnerExpression());}
+        if (expr instanceof ConditionalExpression) {
+            final ConditionalExpression cond = (ConditionalExpression) expr;
+            return hasNoSideEffects(cond.getTestExpr()) && hasNoSideEffects(cond.getThenExpr()) &&
+                hasNoSideEffects(cond.getElseExpr());
+        }
+        if (expr instanceof ElementConstructor) {
+            final ElementConstructor constructor = (ElementConstructor) expr;
+            if (constructor.getAttributes() != null) {
+                for (final AttributeConstructor attr : constructor.getAttributes()) {
+                    if (!hasNoSideEffects(attr))
+                        {return false;}
+                }
+            }
+            return hasNoSideEffects(constructor.getNameExpr()) && hasNoSideEffects(constructor.getContent());
+        }
+        if (expr instanceof AttributeConstructor) {
+            for (final Iterator<Object> i = ((AttributeConstructor) expr).contentIterator(); i.hasNext(); ) {
+                final Object next = i.next();
+                if (next instanceof Expression && !hasNoSideEffects((Expression) next))
+                    {return false;}
+            }
+            return true;
+        }
+        if (expr instanceof DynamicAttributeConstructor) {
+            final DynamicAttributeConstructor constructor = (DynamicAttributeConstructor) expr;
+            return hasNoSideEffects(constructor.getNameExpr()) && hasNoSideEffects(constructor.getContentExpr());
+        }
+        if (expr instanceof DynamicTextConstructor)
+            {return hasNoSideEffects(((DynamicTextConstructor) expr).getContent());}
+        return false;
+    }
+
+    private static boolean hasNoSideEffects(List<Predicate> predicates) {
+        for (final Predicate predicate : predicates) {
+            if (!hasNoSideEffects(predicate))
+                {return false;}
+        }
+        return true;
+    }
+
+    public int getItemType() {
+        return expr.getReturnExpression().returnsType();
+    }
+
+    public SequenceIterator iterate() throws XPathException {
+        return new LazySequenceIterator();
+    }
+
+    public SequenceIterator unorderedIterator() throws XPathException {
+        return new LazySequenceIterator();
+    }
+
+    public int getItemCount() {
+        return in.getItemCount();
+    }
+
+    public boolean isEmpty() {
+        return in.isEmpty();
+    }
+
+    public boolean hasOne() {
+        return in.hasOne();
+    }
+
+    public void add(Item item) throws XPathException {
+        throw new XPathException("Internal error: adding to an immutable sequence");
+    }
+
+    public void addAll(Sequence other) throws XPathException {
+        throw new XPathException("Internal error: adding to an immutable sequence");
+    }
+
+    /**
+     * Evaluates the return clause for the item at the given position of the input sequence.
+     * Errors raised by the return clause are thrown as the cause of an IllegalStateException,
+     * as this method does not declare them, see {@link XPathException#unwrap(Throwable)}.
+     */
+    public synchronized Item itemAt(int pos) {
+        if (closed)
+            {throw new IllegalStateException("The query result has already been released");}
+        if (pos < 0 || pos >= in.getItemCount())
+            {return null;}
+        if (pos != lastPos) {
+            try {
+                lastItem = expr.evalLazy(in, pos, contextDocs);
+            } catch (final XPathException e) {
+                throw new IllegalStateException("Failed to evaluate item " + (pos + 1) +
+                    " of the query result: " + e.getMessage(), e);
+            }
+            lastPos = pos;
+        }
+        return lastItem;
+    }
+
+    /**
+     * Reset the context of the query. The sequence can no longer be read.
+     * May be called by a thread which does not hold a broker, e.g. when a
+     * session times out.
+     */
+    public synchronized void close() {
+        if (closed)
+            {return;}
+        closed = true;
+        lastItem = null;
+        final Database db = context.getDatabase();
+        DBBroker broker = null;
+        try {
+            // returns the active broker of the thread, if any
+            broker = db.get(null);
+            // sequences sorted while the items were evaluated
+            context.closeSortedSequences();
+            context.reset();
+        } catch (final EXistException e) {
+            LOG.warn("Failed to reset the context of the query: " + e.getMessage(), e);
+        } finally {
+            db.release(broker);
+        }
+    }
+
+    private Sequence materialize() throws XPathException {
+        final ValueSequence items = new ValueSequence(getItemCount());
+        for (final SequenceIterator i = iterate(); i.hasNext(); ) {
+            items.add(i.nextItem());
+        }
+        return items;
+    }
+
+    public NodeSet toNodeSet() throws XPathException {
+        return materialize().toNodeSet();
+    }
+
+    public MemoryNodeSet toMemNodeSet() throws XPathException {
+        return materialize().toMemNodeSet();
+    }
+
+    public void removeDuplicates() {
+    }
+
+    private class LazySequenceIterator implements SequenceIterator {
+
+        private int pos = 0;
+
+        public boolean hasNext() {
+            return pos < getItemCount();
+        }
+
+        public Item nextItem() {
+            if (pos < getItemCount())
+                {return itemAt(pos++);}
+            return null;
+        }
+    }
+}
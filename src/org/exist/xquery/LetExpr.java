@@ -176,7 +176,8 @@ public class LetExpr extends BindingExpression {
                 //order expressions for every item when it is added to the result sequence.
                 if (resultSequence == null) {
                     if(orderSpecs != null && !fastOrderBy)
-                        {resultSequence = new OrderedValueSequence(orderSpecs, in.getItemCount());}
+                        {resultSequence = new OrderedValueSequence(orderSpecs, in.getItemCount(),
+                            0, context);}
                 }
                 if (groupedSequence==null){
                     if (returnExpr instanceof BindingExpression) {
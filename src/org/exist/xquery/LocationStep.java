@@ -735,8 +735,12 @@ public class LocationStep extends Step {
 				{context.getProfiler().message(this, Profiler.OPTIMIZATIONS,
 						"OPTIMIZATION",
 						"Using structural index '" + index.toString() + "'");}
-			if (!contextSet.getProcessInReverseOrder() && !(contextSet instanceof VirtualNodeSet) &&
-					contextSet.getLength() < INDEX_SCAN_THRESHOLD) {
+			if (!contextSet.getProcessInReverseOrder() && !(contextSet instanceof VirtualNodeSet)) {
+				if (useMergeJoin(context, contextSet)) {
+					return index.joinDescendantsByTagName(ElementValue.ELEMENT,
+							test.getName(), axis, docs, contextSet,
+							contextId);
+				}
 				return index.findDescendantsByTagName(ElementValue.ELEMENT,
 						test.getName(), axis, docs, contextSet,
 						contextId);
@@ -750,6 +754,27 @@ public class LocationStep extends Step {
 		}
 	}
 
+	/**
+	 * Decide if the structural index should join the context set with all
+	 * nodes matching the node test in one pass instead of doing a lookup for
+	 * every context node, see {@link CostModel#useMergeJoin(QName, int, int)}.
+	 *
+	 * @param context
+	 *            a <code>XQueryContext</code> value
+	 * @param contextSet
+	 *            the context set
+	 * @return true if a merge join should be used
+	 */
+	private boolean useMergeJoin(XQueryContext context, NodeSet contextSet) {
+		final int contextSize = contextSet.getLength();
+		final boolean useMergeJoin = context.getCostModel().useMergeJoin(test.getName(),
+				contextSize, INDEX_SCAN_THRESHOLD);
+		if (useMergeJoin && context.getProfiler().isEnabled())
+			{context.getProfiler().message(this, Profiler.OPTIMIZATIONS,
+					"OPTIMIZATION", "Using merge join for " + contextSize + " context nodes");}
+		return useMergeJoin;
+	}
+
 	/**
 	 * The method <code>getDescendants</code>
 	 * 
@@ -821,10 +846,14 @@ public class LocationStep extends Step {
 						"OPTIMIZATION",
 						"Using structural index '" + index.toString() + "'");
 			}
-			if (!contextSet.getProcessInReverseOrder() && (contextSet instanceof VirtualNodeSet || contextSet.getLength() < INDEX_SCAN_THRESHOLD)) {
+			if (!contextSet.getProcessInReverseOrder() && (contextSet instanceof VirtualNodeSet || !useMergeJoin(context, contextSet))) {
 				return index.findDescendantsByTagName(ElementValue.ELEMENT,
 						test.getName(), axis, docs, contextSet,
 						contextId);
+			} else if (!contextSet.getProcessInReverseOrder()) {
+				return index.joinDescendantsByTagName(ElementValue.ELEMENT,
+						test.getName(), axis, docs, contextSet,
+						contextId);
 			} else {
 				NodeSelector selector;
 				switch (axis) {
@@ -1060,6 +1089,7 @@ public class LocationStep extends Step {
 						return currentSet.selectPreceding(contextSet, position,
 								contextId);
 					} catch (final UnsupportedOperationException e) {
+						applyPredicate = true;
 						return currentSet
 								.selectPreceding(contextSet, contextId);
 					}
@@ -1156,6 +1186,7 @@ public class LocationStep extends Step {
 						return currentSet.selectFollowing(contextSet, position,
 								contextId);
 					} catch (final UnsupportedOperationException e) {
+						applyPredicate = true;
 						return currentSet
 								.selectFollowing(contextSet, contextId);
 					}
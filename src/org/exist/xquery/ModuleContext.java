@@ -31,6 +31,7 @@ import org.exist.xmldb.XmldbURI;
 import org.exist.xquery.functions.response.ResponseModule;
 import org.exist.xquery.value.AnyURIValue;
 import org.exist.xquery.value.BinaryValue;
+import org.exist.xquery.value.OrderedValueSequence;
 import org.exist.xquery.value.Sequence;
 
 import javax.xml.datatype.XMLGregorianCalendar;
@@ -560,6 +561,11 @@ public class ModuleContext extends XQueryContext {
         parentContext.registerBinaryValueInstance(binaryValue);
     }
 
+    @Override
+    public void registerSortedSequence(OrderedValueSequence sequence) {
+        parentContext.registerSortedSequence(sequence);
+    }
+
     @Override
     public void saveState() {
         super.saveState();
@@ -70,6 +70,7 @@ public class Optimizer extends DefaultExpressionVisitor {
 
     public void visitLocationStep(LocationStep locationStep) {
         super.visitLocationStep(locationStep);
+        orderPredicates(locationStep.getPredicates(), context.getCostModel().estimateCount(locationStep));
         // check query rewriters if they want to rewrite the location step
         for (QueryRewriter rewriter : rewriters) {
             try {
@@ -167,6 +168,7 @@ public class Optimizer extends DefaultExpressionVisitor {
 
     public void visitFilteredExpr(FilteredExpression filtered) {
         super.visitFilteredExpr(filtered);
+        orderPredicates(filtered.getPredicates(), CostModel.UNKNOWN);
         boolean optimize = false;
         final List<Predicate> preds = filtered.getPredicates();
         // walk through the predicates attached to the current location step.
@@ -252,8 +254,25 @@ public class Optimizer extends DefaultExpressionVisitor {
         }
 	}
 
+    @Override
+    public void visitForExpression(ForExpr forExpr) {
+        super.visitForExpression(forExpr);
+        // check if the where clause can be evaluated as a hash join
+        final HashJoin join = HashJoin.create(context, forExpr);
+        if (join != null) {
+            if (LOG.isTraceEnabled())
+                {LOG.trace("Evaluating where clause as hash join: " + ExpressionDumper.dump(forExpr.getWhereExpression()));}
+            forExpr.setHashJoin(join);
+        }
+    }
+
     @Override
     public void visitGeneralComparison(GeneralComparison comparison) {
+        // equality comparisons between a node set and a sequence of values can be
+        // evaluated as a hash join if there's no index to use
+        if (comparison.getRelation() == Constants.EQ && comparison.getTruncation() == Constants.TRUNC_NONE &&
+                !(comparison instanceof ValueComparison))
+            {comparison.setHashJoin(true);}
         // Check if the left operand is a path expression ending in a
         // text() step. This step is unnecessary and makes it hard
         // to further optimize the expression. We thus try to remove
@@ -276,6 +295,23 @@ public class Optimizer extends DefaultExpressionVisitor {
         --predicates;
     }
 
+    /**
+     * Evaluate the most selective predicates first, using the estimates of the
+     * {@link CostModel}.
+     */
+    private void orderPredicates(List<Predicate> predicates, double contextCount) {
+        if (predicates.size() < 2)
+            {return;}
+        final List<Predicate> ordered = context.getCostModel().orderPredicates(predicates, contextCount);
+        if (ordered.equals(predicates))
+            {return;}
+        predicates.clear();
+        predicates.addAll(ordered);
+        hasOptimized = true;
+        if (LOG.isTraceEnabled())
+            {LOG.trace("Reordered predicates: " + ordered);}
+    }
+
     private boolean canOptimize(List<Optimizable> list) {
         for (final Optimizable optimizable : list) {
             final int axis = optimizable.getOptimizeAxis();
@@ -0,0 +1,483 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.xquery;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import org.apache.log4j.Logger;
+import org.exist.dom.DocumentSet;
+import org.exist.dom.NodeSet;
+import org.exist.dom.QName;
+import org.exist.security.Subject;
+import org.exist.source.StringSource;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.DocumentSnapshot;
+import org.exist.xquery.value.GroupedValueSequenceTable;
+import org.exist.xquery.value.OrderedValueSequence;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceIterator;
+import org.exist.xquery.value.ValueSequence;
+
+/**
+ * Evaluates the iterations of a "for" expression in parallel, see
+ * {@link org.exist.xquery.pragmas.ParallelPragma}.
+ *
+ * The input sequence is split into chunks, which are evaluated by the calling thread
+ * and by up to threads - 1 worker threads. Expression objects keep state while they
+ * are evaluated, so a worker cannot share the compiled query with the calling thread.
+ * Instead, every worker compiles its own copy of the query, in a new context, and
+ * evaluates the chunks with the "for" expression of the copy. Global variables and the
+ * local variables visible to the "for" expression are passed to the copy by value.
+ * Copies are reused until the query is reset.
+ *
+ * The results of the chunks are concatenated in the order of the input sequence. An
+ * "order by" clause is applied to the concatenated results, as its sort keys are
+ * computed while the chunks are evaluated. The items of a "group by" clause are
+ * collected in parallel, the groups are then returned by the calling thread.
+ *
+ * Each worker needs a broker of its own. If the pool has no brokers to spare, fewer
+ * workers are started, and the calling thread may end up evaluating all chunks.
+ * Iterations which may have side effects (see {@link SideEffectCheck}) are always
+ * evaluated sequentially.
+ */
+public class ParallelFor {
+
+    private final static Logger LOG = Logger.getLogger(ParallelFor.class);
+
+    /** Context attribute: the list of parallel "for" expressions of a query */
+    private final static String ATTR_EXPRESSIONS = "_eXist_parallel_for";
+
+    /** Context attribute: set in the contexts of the copies of a query */
+    private final static String ATTR_COPY = "_eXist_parallel_copy";
+
+    /** Number of chunks per thread. Helps to balance iterations of different cost. */
+    private final static int CHUNKS_PER_THREAD = 4;
+
+    private final static ExecutorService executor = Executors.newCachedThreadPool(new WorkerThreadFactory());
+
+    private final ForExpr expr;
+    private final int index;
+    private final int threads;
+
+    private String query = null;
+    private Queue<Copy> copies = new ConcurrentLinkedQueue<Copy>();
+
+    /** null until checked by {@link #isEnabled(Sequence)} */
+    private Boolean sideEffects = null;
+
+    /** number of workers started by the last evaluation */
+    private volatile int workersStarted = 0;
+
+    private ParallelFor(ForExpr expr, int index, int threads) {
+        this.expr = expr;
+        this.index = index;
+        this.threads = threads;
+    }
+
+    /**
+     * Mark the expression for parallel evaluation. Called while the query is analyzed.
+     *
+     * @param context the context of the main module
+     * @param expr the "for" expression
+     * @param threads the maximum number of threads
+     */
+    @SuppressWarnings("unchecked")
+    public static void register(XQueryContext context, ForExpr expr, int threads) {
+        List<ForExpr> expressions = (List<ForExpr>) context.getAttribute(ATTR_EXPRESSIONS);
+        if (expressions == null) {
+            expressions = new ArrayList<ForExpr>();
+            context.setAttribute(ATTR_EXPRESSIONS, expressions);
+        }
+        int index = expressions.indexOf(expr);
+        if (index < 0) {
+            index = expressions.size();
+            expressions.add(expr);
+        }
+        // the query may be analyzed more than once
+        if (expr.getParallel() == null)
+            {expr.setParallel(new ParallelFor(expr, index, threads));}
+    }
+
+    /**
+     * @return the parallel "for" expressions of a query, or null if there are none
+     */
+    @SuppressWarnings("unchecked")
+    static List<ForExpr> getExpressions(XQueryContext context) {
+        return (List<ForExpr>) context.getAttribute(ATTR_EXPRESSIONS);
+    }
+
+    /**
+     * @return true if the input sequence should be evaluated in parallel
+     */
+    boolean isEnabled(Sequence in) throws XPathException {
+        final XQueryContext context = expr.getContext();
+        return threads > 1 && in.getItemCount() > 1 &&
+            context.getAttribute(ATTR_COPY) == null &&
+            !context.hasParent() &&
+            !context.inProtectedMode() &&
+            context.getSource() != null &&
+            !hasSideEffects();
+    }
+
+    /**
+     * Iterations which may have side effects, e.g. update the database, are evaluated
+     * sequentially. The check is done once, when the query is first evaluated.
+     */
+    private boolean hasSideEffects() {
+        if (sideEffects == null) {
+            sideEffects = Boolean.valueOf(SideEffectCheck.hasSideEffects(expr));
+            if (sideEffects.booleanValue())
+                {LOG.warn("The iterations of a parallel for expression may have side effects. " +
+                    "Evaluating them sequentially.");}
+        }
+        return sideEffects.booleanValue();
+    }
+
+    /**
+     * @return the number of worker threads started by the last evaluation
+     */
+    int getWorkersStarted() {
+        return workersStarted;
+    }
+
+    /**
+     * Drop the copies of the query. Called when the query is reset.
+     */
+    void reset() {
+        copies = new ConcurrentLinkedQueue<Copy>();
+        query = null;
+    }
+
+    /**
+     * Evaluate the iterations over the input sequence and add their results to the
+     * result sequence or the grouped sequence. Called by {@link ForExpr} once the
+     * iteration variables are declared.
+     */
+    void eval(Sequence in, boolean fastExec, LocalVariable var, LocalVariable at,
+            Sequence resultSequence, GroupedValueSequenceTable groupedSequence) throws XPathException {
+        final XQueryContext context = expr.getContext();
+        final int limit = resultSequence instanceof OrderedValueSequence ?
+            ((OrderedValueSequence) resultSequence).getLimit() : 0;
+        final Run run = new Run(context, split(in, limit), fastExec, var.getContextDocs());
+
+        final BrokerPool pool = context.getBroker().getBrokerPool();
+        final int spare = pool.getMax() - pool.countActiveBrokers();
+        final int workers = Math.min(Math.min(threads - 1, spare), run.chunks.length - 1);
+        if (workers > 0 && query == null) {
+            try {
+                query = context.getSource().getContent();
+            } catch (final IOException e) {
+                throw new XPathException(expr, "Failed to read the query: " + e.getMessage(), e);
+            }
+        }
+        workersStarted = Math.max(workers, 0);
+        for (int i = 0; i < workers; i++) {
+            executor.execute(new Worker(run, query, pool, context.getSubject()));
+        }
+
+        Chunk chunk;
+        while ((chunk = run.take()) != null) {
+            Throwable error = null;
+            try {
+                expr.evalChunk(chunk, var, at, fastExec);
+            } catch (final Throwable e) {
+                error = e;
+            } finally {
+                run.done(error);
+            }
+        }
+        run.await();
+        if (run.error instanceof XPathException)
+            {throw (XPathException) run.error;}
+        if (run.error instanceof RuntimeException)
+            {throw (RuntimeException) run.error;}
+        if (run.error instanceof Error)
+            {throw (Error) run.error;}
+        if (run.error != null)
+            {throw new XPathException(expr, "Parallel evaluation failed: " + run.error.getMessage(), run.error);}
+
+        for (final Chunk done : run.chunks) {
+            if (groupedSequence != null)
+                {groupedSequence.merge(done.groups);}
+            else if (resultSequence instanceof OrderedValueSequence)
+                {((OrderedValueSequence) resultSequence).merge((OrderedValueSequence) done.result);}
+            else
+                {resultSequence.addAll(done.result);}
+        }
+    }
+
+    private Chunk[] split(Sequence in, int limit) throws XPathException {
+        final int count = in.getItemCount();
+        final Chunk[] chunks = new Chunk[Math.min(count, threads * CHUNKS_PER_THREAD)];
+        final SequenceIterator i = in.iterate();
+        int offset = 0;
+        for (int c = 0; c < chunks.length; c++) {
+            final int size = (count - offset) / (chunks.length - c);
+            final ValueSequence items = new ValueSequence(size);
+            for (int j = 0; j < size; j++) {
+                items.add(i.nextItem());
+            }
+            chunks[c] = new Chunk(items, offset, limit);
+            offset += size;
+        }
+        return chunks;
+    }
+
+    private Copy compile(XQueryContext context, Run run, String query, DBBroker broker) throws Exception {
+        final XQueryContext copyContext = context.copyStaticContext();
+        copyContext.setAttribute(ATTR_COPY, Boolean.TRUE);
+        // external variables must be known to the compiler
+        for (final Variable var : run.globals.values()) {
+            copyContext.declareGlobalVariable(copyVariable(var));
+        }
+        broker.getXQueryService().compile(copyContext, new StringSource(query));
+        final List<?> expressions = (List<?>) copyContext.getAttribute(ATTR_EXPRESSIONS);
+        if (expressions == null || expressions.size() <= index)
+            {throw new XPathException(expr, "Parallel expression not found in the copy of the query");}
+        return new Copy(copyContext, (ForExpr) expressions.get(index));
+    }
+
+    private static Variable copyVariable(Variable var) {
+        if (var instanceof VariableImpl)
+            {return new VariableImpl((VariableImpl) var);}
+        return var;
+    }
+
+    /**
+     * Values are shared by all threads. Some sequences sort or compute other data when first
+     * accessed, so do this in advance.
+     */
+    private static void prepareValue(Variable var) throws XPathException {
+        final Sequence value = var.getValue();
+        if (value == null)
+            {return;}
+        value.getItemCount();
+        if (value instanceof NodeSet)
+            {value.getDocumentSet();}
+    }
+
+    /**
+     * Part of the input sequence and the results of its evaluation.
+     */
+    static class Chunk {
+
+        final Sequence items;
+        final int offset;
+        /** the limit of the ordered result sequence, see {@link OrderedValueSequence#getLimit()} */
+        final int limit;
+        Sequence result;
+        GroupedValueSequenceTable groups;
+
+        Chunk(Sequence items, int offset, int limit) {
+            this.items = items;
+            this.offset = offset;
+            this.limit = limit;
+        }
+    }
+
+    /**
+     * The state of one parallel evaluation, shared by the calling thread and the workers.
+     */
+    private static class Run {
+
+        final Chunk[] chunks;
+        final boolean fastExec;
+        final DocumentSet contextDocs;
+
+        // dynamic context of the calling thread
+        final XQueryWatchDog watchdog;
+        final XMLGregorianCalendar calendar;
+        final DocumentSnapshot snapshot;
+        final Map<QName, Variable> globals;
+        final List<Variable> locals;
+
+        private int next = 0;
+        private int running = 0;
+        Throwable error = null;
+
+        Run(XQueryContext context, Chunk[] chunks, boolean fastExec, DocumentSet contextDocs) throws XPathException {
+            this.chunks = chunks;
+            this.fastExec = fastExec;
+            this.contextDocs = contextDocs;
+            this.watchdog = context.getWatchDog();
+            this.calendar = context.getCalendar();
+            this.snapshot = context.getSnapshot();
+            this.globals = context.getGlobalVariables();
+            for (final Variable var : globals.values()) {
+                prepareValue(var);
+            }
+            // the stack starts with the variable declared last
+            this.locals = context.getLocalStack();
+            for (final Variable var : locals) {
+                prepareValue(var);
+            }
+        }
+
+        synchronized boolean hasNext() {
+            return error == null && next < chunks.length;
+        }
+
+        synchronized Chunk take() {
+            if (error != null || next == chunks.length)
+                {return null;}
+            running++;
+            return chunks[next++];
+        }
+
+        /**
+         * Called when the evaluation of a chunk completed.
+         *
+         * @param e the error raised by the evaluation or null
+         */
+        synchronized void done(Throwable e) {
+            if (e != null && error == null)
+                {error = e;}
+            running--;
+            notifyAll();
+        }
+
+        /**
+         * Wait until all chunks taken by workers are evaluated. The workers use the
+         * values of the calling thread, so this does not return early if the thread
+         * is interrupted.
+         */
+        synchronized void await() {
+            boolean interrupted = false;
+            while (running > 0) {
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                {Thread.currentThread().interrupt();}
+        }
+    }
+
+    /**
+     * A compiled copy of the query and its parallel "for" expression.
+     */
+    private static class Copy {
+
+        final XQueryContext context;
+        final ForExpr expr;
+
+        Copy(XQueryContext context, ForExpr expr) {
+            this.context = context;
+            this.expr = expr;
+        }
+
+        /**
+         * Pass the dynamic context of the calling thread to the copy.
+         *
+         * @return the mark to restore the local variable stack
+         */
+        LocalVariable prepare(Run run) throws XPathException {
+            context.setWatchDog(run.watchdog);
+            context.setCalendar(run.calendar);
+            context.setSnapshot(run.snapshot);
+            for (final Variable var : run.globals.values()) {
+                context.declareGlobalVariable(copyVariable(var));
+            }
+            final LocalVariable mark = context.markLocalVariables(false);
+            for (int i = run.locals.size() - 1; i >= 0; i--) {
+                context.declareVariableBinding(new LocalVariable((LocalVariable) run.locals.get(i), true));
+            }
+            return mark;
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        private final Run run;
+        private final String query;
+        private final BrokerPool pool;
+        private final Subject subject;
+
+        Worker(Run run, String query, BrokerPool pool, Subject subject) {
+            this.run = run;
+            this.query = query;
+            this.pool = pool;
+            this.subject = subject;
+        }
+
+        public void run() {
+            if (!run.hasNext())
+                {return;}
+            final Queue<Copy> queue = copies;
+            DBBroker broker = null;
+            Copy copy = null;
+            LocalVariable mark = null;
+            try {
+                broker = pool.get(subject);
+                copy = queue.poll();
+                if (copy == null)
+                    {copy = compile(expr.getContext(), run, query, broker);}
+                mark = copy.prepare(run);
+                Chunk chunk;
+                while ((chunk = run.take()) != null) {
+                    Throwable error = null;
+                    try {
+                        copy.expr.evalChunk(chunk, run.fastExec, run.contextDocs);
+                    } catch (final Throwable e) {
+                        error = e;
+                    } finally {
+                        run.done(error);
+                    }
+                }
+            } catch (final Exception e) {
+                // the calling thread evaluates the remaining chunks
+                LOG.warn("Failed to start parallel evaluation: " + e.getMessage(), e);
+                copy = null;
+            } finally {
+                if (copy != null) {
+                    copy.context.popLocalVariables(mark);
+                    queue.offer(copy);
+                }
+                pool.release(broker);
+            }
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private int id = 0;
+
+        public synchronized Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "ParallelFor-" + id++);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
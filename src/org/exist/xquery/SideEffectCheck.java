@@ -0,0 +1,155 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.xquery;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.exist.Namespaces;
+import org.exist.xquery.functions.fn.ExtFulltext;
+import org.exist.xquery.functions.fn.FunTrace;
+import org.exist.xquery.functions.math.MathModule;
+import org.exist.xquery.functions.util.CallFunction;
+import org.exist.xquery.functions.util.Eval;
+import org.exist.xquery.functions.util.LockFunction;
+import org.exist.xquery.functions.util.LogFunction;
+import org.exist.xquery.functions.util.RandomFunction;
+import org.exist.xquery.functions.util.SystemTime;
+import org.exist.xquery.functions.util.UUID;
+import org.exist.xquery.functions.util.UtilModule;
+
+/**
+ * Checks if an expression may be evaluated more than once, or concurrently, without
+ * changing its outcome: it must not modify the database or anything outside the
+ * query and must not depend on values which change between evaluations.
+ *
+ * The check is conservative. Only the functions of the standard function library,
+ * the math functions and the util functions not listed below are considered free
+ * of side effects, as well as user defined functions whose body passes the check.
+ * Functions of all other modules (xmldb, file, http client, ...), update
+ * expressions, dynamic function calls and any expression whose operands cannot
+ * be inspected are assumed to have side effects.
+ */
+final class SideEffectCheck extends DefaultExpressionVisitor {
+
+    private boolean sideEffects = false;
+
+    // the expression passed to accept, used to detect expressions without a specific visitor method
+    private Expression current = null;
+
+    private final Set<UserDefinedFunction> visited = new HashSet<UserDefinedFunction>();
+
+    private SideEffectCheck() {
+    }
+
+    /**
+     * @return true if the expression may have side effects or may return a
+     * different result when evaluated again
+     */
+    public static boolean hasSideEffects(Expression expr) {
+        final SideEffectCheck check = new SideEffectCheck();
+        check.visit(expr);
+        return check.sideEffects;
+    }
+
+    public void visit(Expression expression) {
+        if (sideEffects)
+            {return;}
+        if (expression != current) {
+            final Expression outer = current;
+            current = expression;
+            expression.accept(this);
+            current = outer;
+            return;
+        }
+        // accept did not call a more specific method
+        if (expression instanceof LiteralValue || expression instanceof RootNode)
+            {return;}
+        if (expression.getSubExpressionCount() == 0)
+            {sideEffects = true;}
+        else
+            {visitSubExpressions(expression);}
+    }
+
+    public void visitBuiltinFunction(Function function) {
+        if (isFreeOfSideEffects(function))
+            {super.visitBuiltinFunction(function);}
+        else
+            {sideEffects = true;}
+    }
+
+    public void visitUserFunction(UserDefinedFunction function) {
+        // recursive functions are checked once
+        if (visited.add(function))
+            {super.visitUserFunction(function);}
+    }
+
+    public void visitGeneralComparison(GeneralComparison comparison) {
+        visitSubExpressions(comparison);
+    }
+
+    public void visitAndExpr(OpAnd and) {
+        visitSubExpressions(and);
+    }
+
+    public void visitOrExpr(OpOr or) {
+        visitSubExpressions(or);
+    }
+
+    public void visitCastExpr(CastExpression expression) {
+        visit(expression.getInnerExpression());
+    }
+
+    public void visitFilteredExpr(FilteredExpression filtered) {
+        visit(filtered.getExpression());
+        for (final Predicate pred : filtered.getPredicates()) {
+            visit(pred);
+        }
+    }
+
+    public void visitFtExpression(ExtFulltext fulltext) {
+        // the search term is not accessible
+        sideEffects = true;
+    }
+
+    private void visitSubExpressions(Expression expression) {
+        for (int i = 0; i < expression.getSubExpressionCount() && !sideEffects; i++) {
+            visit(expression.getSubExpression(i));
+        }
+    }
+
+    private static boolean isFreeOfSideEffects(Function function) {
+        final String namespace = function.getSignature().getName().getNamespaceURI();
+        if (Function.BUILTIN_FUNCTION_NS.equals(namespace))
+            // fn:trace writes to the log
+            {return !(function instanceof FunTrace);}
+        if (Namespaces.SCHEMA_NS.equals(namespace) || MathModule.NAMESPACE_URI.equals(namespace))
+            {return true;}
+        if (UtilModule.NAMESPACE_URI.equals(namespace)) {
+            return !(function instanceof LogFunction || function instanceof Eval ||
+                function instanceof CallFunction || function instanceof LockFunction ||
+                function instanceof RandomFunction || function instanceof UUID ||
+                function instanceof SystemTime);
+        }
+        return false;
+    }
+}
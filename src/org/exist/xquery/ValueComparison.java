@@ -114,6 +114,10 @@ public class ValueComparison extends GeneralComparison {
         return result;
 	}
 	
+	boolean joinCompare(Collator collator, AtomicValue lv, AtomicValue rv) throws XPathException {
+		return compareAtomic(collator, lv, rv, Constants.TRUNC_NONE, Constants.EQ);
+	}
+
     /**
 	 * Cast the atomic operands into a comparable type
 	 * and compare them.
@@ -187,6 +187,20 @@ public class XPathException extends Exception {
         this.column = column;
     }
 
+    /**
+     * Returns the XPathException which caused the given exception, or null. Sequences which
+     * evaluate or read their items while they are iterated throw it as the cause of an
+     * unchecked exception, see {@link org.exist.xquery.LazySequence#itemAt(int)}.
+     */
+    public static XPathException unwrap(Throwable e) {
+        for(Throwable t = e; t != null; t = t.getCause()) {
+            if(t instanceof XPathException) {
+                return (XPathException) t;
+            }
+        }
+        return null;
+    }
+
     public void setLocation(int line, int column) {
         this.line = line;
         this.column = column;
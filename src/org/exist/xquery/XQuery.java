@@ -43,11 +43,15 @@ import org.exist.source.Source;
 import org.exist.source.StringSource;
 import org.exist.storage.DBBroker;
 import org.exist.storage.XQueryPool;
+import org.exist.storage.lock.DocumentSnapshot;
+import org.exist.storage.lock.LockedDocumentMap;
+import org.exist.xmldb.XmldbURI;
 import org.exist.xquery.parser.XQueryLexer;
 import org.exist.xquery.parser.XQueryParser;
 import org.exist.xquery.parser.XQueryTreeParser;
 import org.exist.xquery.util.ExpressionDumper;
 import org.exist.xquery.util.HTTPUtils;
+import org.exist.xquery.value.AnyURIValue;
 import org.exist.xquery.value.Sequence;
 
 
@@ -58,6 +62,12 @@ import org.exist.xquery.value.Sequence;
 public class XQuery {
 
     private final static Logger LOG = Logger.getLogger(XQuery.class);
+
+    /**
+     * Number of times a query declaring option exist:snapshot is evaluated without
+     * locks before the documents are locked.
+     */
+    public final static int SNAPSHOT_ATTEMPTS = 3;
     
     private final DBBroker broker;
      
@@ -175,9 +185,14 @@ public class XQuery {
                 }
             }
             
+            final long time = System.currentTimeMillis() - start;
+            final XQueryPool pool = getXQueryPool();
+            if (pool != null) {
+                pool.compiled(time);
+            }
             if (LOG.isDebugEnabled()) {
             	final NumberFormat nf = NumberFormat.getNumberInstance();
-            	LOG.debug("Compilation took "  +  nf.format(System.currentTimeMillis() - start) + " ms");
+            	LOG.debug("Compilation took "  +  nf.format(time) + " ms");
             }
             
             return expr;
@@ -263,8 +278,14 @@ public class XQuery {
 
         context.getProfiler().traceQueryStart();
         broker.getBrokerPool().getProcessMonitor().queryStarted(context.getWatchDog());
+        Sequence result = null;
         try {
-            final Sequence result = expression.eval(contextSequence);
+            final DocumentSnapshot snapshot = context.inProtectedMode() ? null : getSnapshot(context);
+            if(snapshot == null) {
+                result = expression.eval(contextSequence);
+            } else {
+                result = evalSnapshot(expression, contextSequence, snapshot);
+            }
             if(LOG.isDebugEnabled()) {
                 final NumberFormat nf = NumberFormat.getNumberInstance();
                 LOG.debug("Execution took "  +  nf.format(System.currentTimeMillis() - start) + " ms");
@@ -278,13 +299,153 @@ public class XQuery {
         } finally {
             context.getProfiler().traceQueryEnd(context);
             expression.reset();
-            if(resetContext) {
+            //a lazy result resets the context when it is closed
+            if(resetContext && !(result instanceof LazySequence)) {
                 context.reset();
             }
             broker.getBrokerPool().getProcessMonitor().queryCompleted(context.getWatchDog());
         }
     }
 
+    /**
+     * Execute the query for a caller which reads only some items of the result, e.g. to
+     * return one page of the result to a client. If the body of the query is a FLWOR
+     * expression whose return clause can be evaluated lazily, the result is a
+     * {@link LazySequence}, which evaluates the return clause for the items read. Dynamic
+     * errors raised for items which are not read are then not reported. The
+     * context is not reset in this case. The caller must close the sequence before the
+     * query is returned to the pool or executed again.
+     */
+    public Sequence executeLazy(final CompiledXQuery expression, final Sequence contextSequence, final Properties outputProperties) throws XPathException, PermissionDeniedException {
+        final ForExpr body = getBodyFLWOR(expression);
+        if(body == null) {
+            return execute(expression, contextSequence, outputProperties);
+        }
+        body.setLazy(true);
+        try {
+            return execute(expression, contextSequence, outputProperties);
+        } finally {
+            body.setLazy(false);
+        }
+    }
+
+    /**
+     * Returns the FLWOR expression which is the body of the query, or null if
+     * the body is another expression.
+     */
+    private static ForExpr getBodyFLWOR(final CompiledXQuery compiled) {
+        if(!(compiled instanceof PathExpr)) {
+            return null;
+        }
+        final PathExpr root = (PathExpr) compiled;
+        if(root.getLength() == 0) {
+            return null;
+        }
+        // the global variables declared in the prolog precede the query body
+        for(int i = 0; i < root.getLength() - 1; i++) {
+            if(!(root.getExpression(i) instanceof VariableDeclaration)) {
+                return null;
+            }
+        }
+        Expression expr = root.getExpression(root.getLength() - 1);
+        while(true) {
+            if(expr instanceof DebuggableExpression) {
+                expr = ((DebuggableExpression) expr).getFirst();
+            } else if(expr.getClass() == PathExpr.class && ((PathExpr) expr).getLength() == 1) {
+                expr = ((PathExpr) expr).getExpression(0);
+            } else {
+                break;
+            }
+        }
+        return expr instanceof ForExpr ? (ForExpr) expr : null;
+    }
+
+    /**
+     * Evaluate a read-only query which declared option exist:snapshot. The query runs
+     * without holding locks on the documents, so writers are not blocked. If one of the
+     * documents in the snapshot collections was modified during evaluation, the result
+     * may be inconsistent and the query is evaluated again. After {@link #SNAPSHOT_ATTEMPTS}
+     * failed attempts, the documents are locked as in protected mode for a final evaluation.
+     *
+     * A query which may have side effects (see {@link SideEffectCheck}) must not be
+     * evaluated twice, so it locks the documents right away. The same is done if a writer
+     * is active when the snapshot is taken.
+     */
+    private Sequence evalSnapshot(final CompiledXQuery expression, final Sequence contextSequence, final DocumentSnapshot snapshot) throws XPathException, PermissionDeniedException {
+        final XQueryContext context = expression.getContext();
+        context.setSnapshot(snapshot);
+        try {
+            if(SideEffectCheck.hasSideEffects((Expression) expression)) {
+                LOG.debug("Query may have side effects and cannot be repeated. Locking documents.");
+            } else {
+                for(int attempt = 1; attempt <= SNAPSHOT_ATTEMPTS; attempt++) {
+                    if(attempt > 1) {
+                        LOG.debug("Documents were modified during query evaluation. Attempt " + attempt);
+                        expression.reset();
+                    }
+                    if(!snapshot.begin(broker)) {
+                        LOG.debug("Documents are being modified. Locking documents.");
+                        break;
+                    }
+                    try {
+                        final Sequence result = expression.eval(contextSequence);
+                        if(snapshot.isValid(broker)) {
+                            return result;
+                        }
+                    } catch(final XPathException e) {
+                        //errors caused by a concurrent modification are not reported
+                        if(!isStorageError(e) || snapshot.isValid(broker)) {
+                            throw e;
+                        }
+                    } catch(final RuntimeException e) {
+                        if(snapshot.isValid(broker)) {
+                            throw e;
+                        }
+                    }
+                }
+                LOG.info("Could not evaluate query " + expression.getSource().createId() +
+                    " on a snapshot of the documents. Locking documents.");
+                expression.reset();
+            }
+            final LockedDocumentMap lockedDocuments = snapshot.lockDocuments(broker);
+            context.setProtectedDocs(lockedDocuments);
+            try {
+                return expression.eval(contextSequence);
+            } finally {
+                context.setProtectedDocs(null);
+                lockedDocuments.unlock();
+            }
+        } finally {
+            context.setSnapshot(null);
+        }
+    }
+
+    /**
+     * Errors raised by the query itself, e.g. type errors or fn:error, are reported even
+     * if the snapshot became invalid. Only errors caused by another exception, e.g. while
+     * reading a node which was removed concurrently, may be caused by the modification.
+     */
+    private static boolean isStorageError(final XPathException e) {
+        final Throwable cause = e.getCause();
+        return cause != null && !(cause instanceof XPathException);
+    }
+
+    private DocumentSnapshot getSnapshot(final XQueryContext context) throws XPathException {
+        final Option option = context.getOption(Option.SNAPSHOT_QNAME);
+        if(option == null) {
+            return null;
+        }
+        final String[] paths = option.tokenizeContents();
+        if(paths.length == 0) {
+            throw new XPathException("Option exist:snapshot requires a list of collections");
+        }
+        final XmldbURI[] collections = new XmldbURI[paths.length];
+        for(int i = 0; i < paths.length; i++) {
+            collections[i] = new AnyURIValue(paths[i]).toXmldbURI();
+        }
+        return new DocumentSnapshot(collections);
+    }
+
     public Sequence execute(final String expression, final Sequence contextSequence, final AccessContext accessCtx) throws XPathException, PermissionDeniedException {
         final XQueryContext context = new XQueryContext(broker.getBrokerPool(), accessCtx);
         final CompiledXQuery compiled = compile(context, expression);
@@ -80,6 +80,7 @@ import org.exist.stax.ExtendedXMLStreamReader;
 import org.exist.storage.DBBroker;
 import org.exist.storage.UpdateListener;
 import org.exist.storage.lock.Lock;
+import org.exist.storage.lock.DocumentSnapshot;
 import org.exist.storage.lock.LockedDocumentMap;
 import org.exist.util.Collations;
 import org.exist.util.Configuration;
@@ -111,6 +112,7 @@ public class XQueryContext implements BinaryValueManager, Context
     public static final String                         XQUERY_BACKWARD_COMPATIBLE_ATTRIBUTE             = "backwardCompatible";
     public static final String                         XQUERY_RAISE_ERROR_ON_FAILED_RETRIEVAL_ATTRIBUTE = "raise-error-on-failed-retrieval";
     public static final String						   ENFORCE_INDEX_USE_ATTRIBUTE					    = "enforce-index-use";
+    public static final String                         SORT_SPILL_THRESHOLD_ATTRIBUTE                   = "sort-spill-threshold";
 
     //TODO : move elsewhere ?
     public static final String                         BUILT_IN_MODULE_URI_ATTRIBUTE                    = "uri";
@@ -122,6 +124,8 @@ public class XQueryContext implements BinaryValueManager, Context
     public static final String                         PROPERTY_XQUERY_RAISE_ERROR_ON_FAILED_RETRIEVAL  = "xquery.raise-error-on-failed-retrieval";
     public static final boolean                        XQUERY_RAISE_ERROR_ON_FAILED_RETRIEVAL_DEFAULT   = false;
     public static final String						   PROPERTY_ENFORCE_INDEX_USE						= "xquery.enforce-index-use";
+    public static final String                         PROPERTY_SORT_SPILL_THRESHOLD                    = "xquery.sort-spill-threshold";
+    public static final int                            SORT_SPILL_THRESHOLD_DEFAULT                     = 100000;
 
     //TODO : move elsewhere ?
     public static final String                         PROPERTY_BUILT_IN_MODULES                        = "xquery.modules";
@@ -287,9 +291,13 @@ public class XQueryContext implements BinaryValueManager, Context
 
     private LockedDocumentMap                          protectedDocuments            = null;
 
+    private DocumentSnapshot                           snapshot                      = null;
+
     /** The profiler instance used by this context. */
     protected Profiler                                 profiler;
 
+    private CostModel                                  costModel                     = null;
+
     //For holding XQuery Context variables for general storage in the XQuery Context
     HashMap<String, Object>                            XQueryContextVars             = new HashMap<String, Object>();
     
@@ -304,6 +312,9 @@ public class XQueryContext implements BinaryValueManager, Context
 
     private boolean                                    raiseErrorOnFailedRetrieval   = XQUERY_RAISE_ERROR_ON_FAILED_RETRIEVAL_DEFAULT;
 
+    /** number of items an "order by" clause sorts in memory before writing them to a temporary file */
+    private int                                        sortSpillThreshold            = SORT_SPILL_THRESHOLD_DEFAULT;
+
     private boolean                                    isShared                      = false;
 
     private Source source = null;
@@ -504,7 +515,36 @@ public class XQueryContext implements BinaryValueManager, Context
         if (this.staticOptions != null){
         	ctx.staticOptions = new ArrayList<Option>( this.staticOptions );
         }
-        
+
+    }
+
+
+    /**
+     * Create a new, empty context with the settings of this context which were not declared
+     * in the prolog, but through the API. Used by {@link ParallelFor} to compile a separate
+     * copy of the query for every thread. Compiling the query again adds the declarations
+     * of the prolog.
+     *
+     * @return  the new context
+     */
+    protected XQueryContext copyStaticContext()
+    {
+        final XQueryContext ctx = new XQueryContext( db, accessCtx );
+        ctx.calendar            = this.calendar;
+        ctx.implicitTimeZone    = this.implicitTimeZone;
+        ctx.baseURI             = this.baseURI;
+        ctx.staticDocumentPaths = this.staticDocumentPaths;
+        ctx.staticDocuments     = this.staticDocuments;
+        ctx.moduleLoadPath      = this.moduleLoadPath;
+        ctx.backwardsCompatible = this.backwardsCompatible;
+        ctx.enableOptimizer     = this.enableOptimizer;
+        ctx.stripWhitespace     = this.stripWhitespace;
+        ctx.preserveNamespaces  = this.preserveNamespaces;
+        ctx.inheritNamespaces   = this.inheritNamespaces;
+        ctx.orderEmptyGreatest  = this.orderEmptyGreatest;
+        ctx.staticNamespaces    = new HashMap<String, String>( this.staticNamespaces );
+        ctx.staticPrefixes      = new HashMap<String, String>( this.staticPrefixes );
+        return( ctx );
     }
 
 
@@ -522,6 +562,9 @@ public class XQueryContext implements BinaryValueManager, Context
 
         //Reset current context position
         setContextSequencePosition( 0, null );
+
+        //Delete the temporary files of the last execution, if the cleanup tasks did not run
+        closeSortedSequences();
         //Note that, for some reasons, an XQueryContext might be used without calling this method
     }
 
@@ -560,6 +603,20 @@ public class XQueryContext implements BinaryValueManager, Context
     }
 
 
+    /**
+     * Returns the {@link CostModel} used by the optimizer to estimate cardinalities.
+     *
+     * @return  the cost model
+     */
+    public CostModel getCostModel()
+    {
+        if( costModel == null ) {
+            costModel = new CostModel( this );
+        }
+        return( costModel );
+    }
+
+
     /**
      * Called from the XQuery compiler to set the root expression for this context.
      *
@@ -1228,6 +1285,30 @@ public class XQueryContext implements BinaryValueManager, Context
     }
 
 
+    /**
+     * Set while a read-only query declaring the exist:snapshot option is evaluated
+     * without locks. See {@link org.exist.xquery.XQuery}.
+     *
+     * @param  snapshot  the snapshot of the documents accessed by the query or null
+     */
+    public void setSnapshot( DocumentSnapshot snapshot )
+    {
+        this.snapshot = snapshot;
+    }
+
+
+    public DocumentSnapshot getSnapshot()
+    {
+        return( snapshot );
+    }
+
+
+    public boolean inSnapshotMode()
+    {
+        return( snapshot != null );
+    }
+
+
     /**
      * Should loaded documents be locked?
      *
@@ -3054,6 +3135,20 @@ public class XQueryContext implements BinaryValueManager, Context
     }
 
 
+
+    /**
+     * Returns the number of items an "order by" clause may hold in memory before
+     * they are sorted and written to a temporary file, 0 if they are always kept
+     * in memory. See {@link org.exist.xquery.value.OrderedValueSequence}.
+     *
+     * @return  the threshold
+     */
+    public int getSortSpillThreshold()
+    {
+        return( sortSpillThreshold );
+    }
+
+
     /**
      * for static compile-time options i.e. declare option
      *
@@ -3207,6 +3302,10 @@ public class XQueryContext implements BinaryValueManager, Context
             if( NoIndexPragma.NO_INDEX_PRAGMA.equalsSimple( qname ) ) {
                 return( new NoIndexPragma( qname, contents ) );
             }
+
+            if( ParallelPragma.PARALLEL_PRAGMA.equalsSimple( qname ) ) {
+                return( new ParallelPragma( this, qname, contents ) );
+            }
         }
         return( null );
     }
@@ -3318,6 +3417,10 @@ public class XQueryContext implements BinaryValueManager, Context
         final Boolean option = ( (Boolean)config.getProperty( PROPERTY_XQUERY_RAISE_ERROR_ON_FAILED_RETRIEVAL ) );
         raiseErrorOnFailedRetrieval = ( option != null ) && option.booleanValue();
 
+        // Number of items sorted in memory by an "order by" clause
+        final Integer threshold = (Integer)config.getProperty( PROPERTY_SORT_SPILL_THRESHOLD );
+        sortSpillThreshold = ( threshold == null ) ? SORT_SPILL_THRESHOLD_DEFAULT : threshold.intValue();
+
         // Get map of built-in modules
         final Map<String, Class<Module>> builtInModules = (Map)config.getProperty( PROPERTY_BUILT_IN_MODULES );
 
@@ -3511,6 +3614,56 @@ public class XQueryContext implements BinaryValueManager, Context
         binaryValueInstances.add(binaryValue);
     }
 
+    private List<OrderedValueSequence> sortedSequences;
+
+    /**
+     * Register a sequence which wrote sorted items to temporary files. The sequence
+     * is closed, deleting the files, when the cleanup tasks run or the context is
+     * prepared for the next execution, unless the caller took it over by
+     * {@link #detachSortedSequences()}.
+     *
+     * @param sequence the sequence
+     */
+    public synchronized void registerSortedSequence(final OrderedValueSequence sequence) {
+        if(sortedSequences == null) {
+            sortedSequences = new ArrayList<OrderedValueSequence>();
+
+            cleanupTasks.add(new CleanupTask() {
+
+                @Override
+                public void cleanup(final XQueryContext context) {
+                    context.closeSortedSequences();
+                }
+            });
+        }
+
+        sortedSequences.add(sequence);
+    }
+
+    /**
+     * Hand the sequences registered so far over to the caller, which closes them when
+     * it no longer needs the result of the query, e.g. when a cached result is released.
+     *
+     * @return the sequences, which are no longer closed by this context
+     */
+    public synchronized List<OrderedValueSequence> detachSortedSequences() {
+        final List<OrderedValueSequence> detached = new ArrayList<OrderedValueSequence>();
+        if(sortedSequences != null) {
+            detached.addAll(sortedSequences);
+            sortedSequences.clear();
+        }
+        return detached;
+    }
+
+    /**
+     * Close the registered sequences and delete their temporary files.
+     */
+    public void closeSortedSequences() {
+        for(final OrderedValueSequence sequence : detachSortedSequences()) {
+            sequence.close();
+        }
+    }
+
     @Override
     public String getCacheClass() {
         return (String) getBroker().getConfiguration().getProperty(Configuration.BINARY_CACHE_CLASS_PROPERTY);
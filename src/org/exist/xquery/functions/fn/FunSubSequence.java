@@ -65,6 +65,9 @@ public class FunSubSequence extends Function {
                         },
                     new FunctionReturnSequenceType(Type.ITEM, Cardinality.ZERO_OR_MORE, "the subsequence")) };
 
+    /** the source if it is a FLWOR expression with an order by clause */
+    private ForExpr orderedFlwor = null;
+
     /**
      * @param context
      */
@@ -87,6 +90,23 @@ public class FunSubSequence extends Function {
             if (i == 0)
                 {contextInfo.setStaticReturnType(argContextInfo.getStaticReturnType());}
         }
+        orderedFlwor = null;
+        if (getArgumentCount() == 3) {
+            Expression source = getArgument(0);
+            while (true) {
+                // the argument is item()*, so its cardinality is not restricted
+                if (source instanceof DynamicCardinalityCheck)
+                    {source = source.getSubExpression(0);}
+                else if (source instanceof DebuggableExpression)
+                    {source = ((DebuggableExpression) source).getFirst();}
+                else if (source.getClass() == PathExpr.class && ((PathExpr) source).getLength() == 1)
+                    {source = ((PathExpr) source).getExpression(0);}
+                else
+                    {break;}
+            }
+            if (source instanceof ForExpr && ((ForExpr) source).getOrderSpecs().length > 0)
+                {orderedFlwor = (ForExpr) source;}
+        }
     }
 
     /*
@@ -110,18 +130,25 @@ public class FunSubSequence extends Function {
         }
 
         Sequence result;
+        int start = 0;
+        int length = Integer.MAX_VALUE;
+        if (orderedFlwor != null) {
+            // the FLWOR expression only needs to keep the items up to the
+            // end of the subsequence, so evaluate the bounds first
+            start = getStart(contextSequence, contextItem);
+            length = getLength(contextSequence, contextItem);
+            final long end = (long) start + length - 1;
+            if (end > 0 && end < Integer.MAX_VALUE)
+                {orderedFlwor.setOrderLimit((int) end);}
+        }
         final Sequence seq = getArgument(0).eval(contextSequence, contextItem);
         if (seq.isEmpty())
             {result = Sequence.EMPTY_SEQUENCE;}
         else {
-            int start = ((DoubleValue) getArgument(1).eval(contextSequence,
-                    contextItem).convertTo(Type.DOUBLE)).getInt();
-
-            int length = Integer.MAX_VALUE;
-            if (getSignature().getArgumentCount() == 3) {
-                length = ((DoubleValue) getArgument(2).eval(
-                        contextSequence, contextItem)
-                        .convertTo(Type.DOUBLE)).getInt();
+            if (orderedFlwor == null) {
+                start = getStart(contextSequence, contextItem);
+                if (getSignature().getArgumentCount() == 3)
+                    {length = getLength(contextSequence, contextItem);}
             }
 
             // TODO : exception? -pb
@@ -165,4 +192,14 @@ public class FunSubSequence extends Function {
 
     }
 
+    private int getStart(Sequence contextSequence, Item contextItem) throws XPathException {
+        return ((DoubleValue) getArgument(1).eval(contextSequence,
+                contextItem).convertTo(Type.DOUBLE)).getInt();
+    }
+
+    private int getLength(Sequence contextSequence, Item contextItem) throws XPathException {
+        return ((DoubleValue) getArgument(2).eval(contextSequence,
+                contextItem).convertTo(Type.DOUBLE)).getInt();
+    }
+
 }
@@ -78,6 +78,7 @@ import org.exist.xquery.value.FunctionParameterSequenceType;
 import org.exist.xquery.value.FunctionReturnSequenceType;
 import org.exist.xquery.value.Item;
 import org.exist.xquery.value.NodeValue;
+import org.exist.xquery.value.OrderedValueSequence;
 import org.exist.xquery.value.QNameValue;
 import org.exist.xquery.value.Sequence;
 import org.exist.xquery.value.SequenceType;
@@ -466,6 +467,10 @@ public class Eval extends BasicFunction {
             throw new XPathException(this, e);
 		} finally {
             if(compiled != null) {
+                // the result may be read from temporary files until the calling query is cleaned up
+                for(final OrderedValueSequence sorted : compiled.getContext().detachSortedSequences()) {
+                    context.registerSortedSequence(sorted);
+                }
                 if(cache) {
                     pool.returnCompiledXQuery(querySource, compiled);
                 } else {
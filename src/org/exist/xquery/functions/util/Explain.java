@@ -0,0 +1,204 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.xquery.functions.util;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.exist.dom.QName;
+import org.exist.memtree.MemTreeBuilder;
+import org.exist.security.PermissionDeniedException;
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.Cardinality;
+import org.exist.xquery.CompiledXQuery;
+import org.exist.xquery.Constants;
+import org.exist.xquery.CostModel;
+import org.exist.xquery.DefaultExpressionVisitor;
+import org.exist.xquery.Expression;
+import org.exist.xquery.FilteredExpression;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.GeneralComparison;
+import org.exist.xquery.LocationStep;
+import org.exist.xquery.Predicate;
+import org.exist.xquery.UserDefinedFunction;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQuery;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.util.ExpressionDumper;
+import org.exist.xquery.value.FunctionParameterSequenceType;
+import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceType;
+import org.exist.xquery.value.Type;
+
+/**
+ * Compiles a query and reports the plan chosen by the optimizer, without evaluating
+ * the query.
+ */
+public class Explain extends BasicFunction {
+
+    protected static final Logger logger = Logger.getLogger(Explain.class);
+
+    public final static FunctionSignature signature =
+        new FunctionSignature(
+            new QName("explain", UtilModule.NAMESPACE_URI, UtilModule.PREFIX),
+            "Compiles the XQuery expression given in parameter $expression and returns the plan " +
+            "chosen by the query optimizer, without evaluating the expression. The plan contains the " +
+            "optimized expression, each location step with the estimated number of matching elements, " +
+            "its predicates in the order in which they are evaluated and their estimated selectivity, " +
+            "and each comparison with the name of the nodes it may look up in a range index. Element counts " +
+            "are only available if the index-stats module is enabled in conf.xml.",
+            new SequenceType[] {
+                new FunctionParameterSequenceType("expression", Type.STRING, Cardinality.EXACTLY_ONE, "The XPath/XQuery expression.")
+            },
+            new FunctionReturnSequenceType(Type.ELEMENT, Cardinality.EXACTLY_ONE, "the query plan"));
+
+    private static final QName EXPLAIN_ELEMENT = new QName("explain");
+    private static final QName QUERY_ELEMENT = new QName("query");
+    private static final QName STEP_ELEMENT = new QName("step");
+    private static final QName FILTER_ELEMENT = new QName("filter");
+    private static final QName PREDICATE_ELEMENT = new QName("predicate");
+    private static final QName COMPARISON_ELEMENT = new QName("comparison");
+    private static final QName FUNCTION_ELEMENT = new QName("function");
+
+    public Explain(XQueryContext context) {
+        super(context, signature);
+    }
+
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+        final XQuery xquery = context.getBroker().getXQueryService();
+        final XQueryContext innerContext = xquery.newContext(context.getAccessContext());
+        innerContext.setModuleLoadPath(context.getModuleLoadPath());
+        CompiledXQuery compiled;
+        try {
+            compiled = xquery.compile(innerContext, args[0].getStringValue());
+        } catch (final PermissionDeniedException e) {
+            throw new XPathException(this, e);
+        }
+        try {
+            final Expression root = (Expression) compiled;
+            final CostModel costModel = innerContext.getCostModel();
+            context.pushDocumentContext();
+            try {
+                final MemTreeBuilder builder = context.getDocumentBuilder();
+                builder.startElement(EXPLAIN_ELEMENT, null);
+                builder.addAttribute(new QName("optimizer"), innerContext.optimizationsEnabled() ? "enabled" : "disabled");
+                builder.addAttribute(new QName("statistics"), costModel.hasStatistics() ? "yes" : "no");
+                builder.startElement(QUERY_ELEMENT, null);
+                builder.characters(ExpressionDumper.dump(root));
+                builder.endElement();
+                root.accept(new PlanVisitor(builder, costModel));
+                builder.endElement();
+                return builder.getDocument().getNode(1);
+            } finally {
+                context.popDocumentContext();
+            }
+        } finally {
+            innerContext.runCleanupTasks();
+        }
+    }
+
+    /**
+     * Writes the steps, predicates and comparisons of the expression tree.
+     */
+    private static class PlanVisitor extends DefaultExpressionVisitor {
+
+        private final MemTreeBuilder builder;
+        private final CostModel costModel;
+        private final Set<UserDefinedFunction> visited = new HashSet<UserDefinedFunction>();
+        private double contextCount = CostModel.UNKNOWN;
+
+        PlanVisitor(MemTreeBuilder builder, CostModel costModel) {
+            this.builder = builder;
+            this.costModel = costModel;
+        }
+
+        public void visit(Expression expression) {
+            // expressions wrapped by a pragma are passed in here
+            if (expression instanceof LocationStep)
+                {expression.accept(this);}
+            else
+                {super.visit(expression);}
+        }
+
+        public void visitLocationStep(LocationStep locationStep) {
+            builder.startElement(STEP_ELEMENT, null);
+            builder.addAttribute(new QName("axis"), Constants.AXISSPECIFIERS[locationStep.getAxis()]);
+            final QName name = locationStep.getTest().getName();
+            builder.addAttribute(new QName("test"), name == null ? locationStep.getTest().toString() : name.getStringValue());
+            final double count = costModel.estimateCount(locationStep);
+            if (count != CostModel.UNKNOWN)
+                {builder.addAttribute(new QName("estimated-count"), Long.toString((long) count));}
+            final double outerCount = contextCount;
+            contextCount = count;
+            super.visitLocationStep(locationStep);
+            contextCount = outerCount;
+            builder.endElement();
+        }
+
+        public void visitFilteredExpr(FilteredExpression filtered) {
+            builder.startElement(FILTER_ELEMENT, null);
+            filtered.getExpression().accept(this);
+            final double outerCount = contextCount;
+            contextCount = CostModel.UNKNOWN;
+            for (final Predicate pred : filtered.getPredicates()) {
+                pred.accept(this);
+            }
+            contextCount = outerCount;
+            builder.endElement();
+        }
+
+        public void visitPredicate(Predicate predicate) {
+            builder.startElement(PREDICATE_ELEMENT, null);
+            builder.addAttribute(new QName("selectivity"),
+                Double.toString(costModel.estimateSelectivity(predicate, contextCount)));
+            builder.addAttribute(new QName("reorderable"), CostModel.canReorder(predicate) ? "yes" : "no");
+            final double outerCount = contextCount;
+            contextCount = CostModel.UNKNOWN;
+            super.visitPredicate(predicate);
+            contextCount = outerCount;
+            builder.endElement();
+        }
+
+        public void visitGeneralComparison(GeneralComparison comparison) {
+            builder.startElement(COMPARISON_ELEMENT, null);
+            builder.addAttribute(new QName("operator"), Constants.OPS[comparison.getRelation()]);
+            final QName qname = comparison.getContextQName();
+            if (qname != null)
+                {builder.addAttribute(new QName("index-qname"), qname.getStringValue());}
+            comparison.getLeft().accept(this);
+            comparison.getRight().accept(this);
+            builder.endElement();
+        }
+
+        public void visitUserFunction(UserDefinedFunction function) {
+            // recursive functions are written once
+            if (!visited.add(function))
+                {return;}
+            builder.startElement(FUNCTION_ELEMENT, null);
+            builder.addAttribute(new QName("name"), function.getSignature().getName().getStringValue());
+            super.visitUserFunction(function);
+            builder.endElement();
+        }
+    }
+}
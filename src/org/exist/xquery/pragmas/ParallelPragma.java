@@ -0,0 +1,100 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.xquery.pragmas;
+
+import org.apache.log4j.Logger;
+import org.exist.Namespaces;
+import org.exist.dom.QName;
+import org.exist.xquery.*;
+
+/**
+ * Evaluates the iterations of a FLWOR expression in parallel:
+ *
+ * <pre>
+ * (# exist:parallel threads=4 #) {
+ *     for $item in collection('/db/data')//item
+ *     order by $item/@date
+ *     return local:transform($item)
+ * }
+ * </pre>
+ *
+ * The pragma applies to a FLWOR expression starting with a "for" clause, in the main
+ * module. The iterations must not depend on each other. Iterations which may have side
+ * effects, e.g. update the database or call functions of the xmldb module, are evaluated
+ * sequentially. See {@link ParallelFor} for details.
+ *
+ * The number of threads defaults to the number of available processors.
+ */
+public class ParallelPragma extends Pragma {
+
+    private final static Logger LOG = Logger.getLogger(ParallelPragma.class);
+
+    public final static QName PARALLEL_PRAGMA = new QName("parallel", Namespaces.EXIST_NS, "exist");
+
+    private final XQueryContext context;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    public ParallelPragma(XQueryContext context, QName qname, String contents) throws XPathException {
+        super(qname, contents);
+        this.context = context;
+        if (contents != null && contents.length() > 0) {
+            final String options[] = Option.tokenize(contents);
+            for (int i = 0; i < options.length; i++) {
+                final String param[] = Option.parseKeyValuePair(options[i]);
+                if (param == null || !"threads".equals(param[0]))
+                    {throw new XPathException("Invalid content found for pragma " + PARALLEL_PRAGMA.getStringValue() +
+                        ": " + contents);}
+                try {
+                    threads = Integer.parseInt(param[1]);
+                } catch (final NumberFormatException e) {
+                    throw new XPathException("Invalid number of threads for pragma " + PARALLEL_PRAGMA.getStringValue() +
+                        ": " + param[1]);
+                }
+            }
+        }
+    }
+
+    public void analyze(AnalyzeContextInfo contextInfo) throws XPathException {
+        if (!(contextInfo.getParent() instanceof ExtensionExpression))
+            {return;}
+        Expression inner = ((ExtensionExpression) contextInfo.getParent()).getExpression();
+        while (inner instanceof PathExpr && ((PathExpr) inner).getSubExpressionCount() == 1) {
+            inner = ((PathExpr) inner).getSubExpression(0);
+        }
+        if (!(inner instanceof ForExpr)) {
+            LOG.warn("Pragma " + PARALLEL_PRAGMA.getStringValue() +
+                " only applies to a FLWOR expression starting with a for clause. Ignored.");
+            return;
+        }
+        if (context.hasParent()) {
+            LOG.warn("Pragma " + PARALLEL_PRAGMA.getStringValue() + " is not supported in library modules. Ignored.");
+            return;
+        }
+        ParallelFor.register(context, (ForExpr) inner, threads);
+    }
+
+    public void before(XQueryContext context, Expression expression) throws XPathException {
+    }
+
+    public void after(XQueryContext context, Expression expression) throws XPathException {
+    }
+}
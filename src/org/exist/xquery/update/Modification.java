@@ -37,6 +37,7 @@ import org.exist.dom.StoredNode;
 import org.exist.memtree.DocumentBuilderReceiver;
 import org.exist.memtree.MemTreeBuilder;
 import org.exist.security.PermissionDeniedException;
+import org.exist.storage.BrokerPool;
 import org.exist.storage.DBBroker;
 import org.exist.storage.StorageAddress;
 import org.exist.storage.lock.Lock;
@@ -133,9 +134,16 @@ public abstract class Modification extends AbstractExpression
 	 */
 	protected StoredNode[] selectAndLock(Txn transaction, Sequence nodes) throws LockException, PermissionDeniedException,
 		XPathException, TriggerException {
-	    final Lock globalLock = context.getBroker().getBrokerPool().getGlobalUpdateLock();
+	    if (context.inSnapshotMode())
+	        {throw new XPathException(this, "XQuery update expressions are not allowed in a query " +
+	            "declaring option exist:snapshot");}
+	    final BrokerPool pool = context.getBroker().getBrokerPool();
+	    // with per document locking, deadlocks are avoided by locking
+	    // the documents in ascending order of their id
+	    final Lock globalLock = pool.isDocumentUpdateLocking() ? null : pool.getGlobalUpdateLock();
 	    try {
-	        globalLock.acquire(Lock.READ_LOCK);
+	        if (globalLock != null)
+	            {globalLock.acquire(Lock.READ_LOCK);}
 	       
 	        lockedDocuments = nodes.getDocumentSet();
 	        
@@ -163,7 +171,8 @@ public abstract class Modification extends AbstractExpression
 			}
 			return ql;
 	    } finally {
-	        globalLock.release(Lock.READ_LOCK);
+	        if (globalLock != null)
+	            {globalLock.release(Lock.READ_LOCK);}
 	    }
 	}
 	
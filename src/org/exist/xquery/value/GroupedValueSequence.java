@@ -131,6 +131,29 @@ public class GroupedValueSequence extends AbstractSequence {
         }  
     } 
      
+    /**
+     * Append the items of another group with the same key, as collected by
+     * a different thread.
+     * 
+     * @param other
+     */
+    public void merge(GroupedValueSequence other) { 
+        for (int i = 0; i < other.count; i++) { 
+            if (hasOne) 
+                {hasOne = false;} 
+            if (isEmpty) 
+                {hasOne = true;} 
+            isEmpty = false; 
+            if(count == items.length) { 
+                Entry newItems[] = new Entry[count * 2]; 
+                System.arraycopy(items, 0, newItems, 0, count); 
+                items = newItems; 
+            } 
+            items[count++] = other.items[i]; 
+            checkItemType(other.items[i].item.getType()); 
+        } 
+    } 
+ 
     public Item itemAt(int pos) { 
         if(items != null && pos > -1 && pos < count) 
             {return items[pos].item;} 
@@ -116,4 +116,21 @@ public class GroupedValueSequenceTable extends
 			this.add(i.nextItem());
 		}
 	}
+
+	/**
+	 * Add the groups of another table, as collected by a different thread.
+	 * Items of groups with the same key are appended.
+	 * 
+	 * @param other
+	 */
+	public void merge(GroupedValueSequenceTable other) {
+		for (final Iterator<String> i = other.iterate(); i.hasNext();) {
+			final String hashKey = i.next();
+			final GroupedValueSequence group = super.get(hashKey);
+			if (group == null)
+				{super.put(hashKey, other.get(hashKey));}
+			else
+				{group.merge(other.get(hashKey));}
+		}
+	}
 }
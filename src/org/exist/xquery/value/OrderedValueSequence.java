@@ -21,6 +21,16 @@
  */
 package org.exist.xquery.value;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.apache.log4j.Logger;
 import org.exist.dom.AVLTreeNodeSet;
 import org.exist.dom.NodeProxy;
 import org.exist.dom.NodeSet;
@@ -31,6 +41,7 @@ import org.exist.util.FastQSort;
 import org.exist.xquery.Constants;
 import org.exist.xquery.OrderSpec;
 import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
 import org.exist.xquery.util.ExpressionDumper;
 import org.w3c.dom.Node;
 
@@ -42,22 +53,83 @@ import org.w3c.dom.Node;
  * all order expressions are evaluated once for each item in the sequence 
  * <b>while</b> items are added.
  * 
+ * If a spill threshold is set, at most that many items are kept in memory. Once
+ * it is reached, the items are sorted and written to a temporary file (a
+ * {@link SortRun}). The runs and the items left in memory are merged while the
+ * sequence is iterated. Items which cannot be written to a run, e.g. in-memory
+ * nodes, are always kept in memory. If a limit is set, only the first items in
+ * sort order are kept, e.g. for fn:subsequence.
+ *
+ * A sequence which wrote a run registers with the query context, which deletes
+ * the files by calling {@link #close()} when it is cleaned up, see
+ * {@link XQueryContext#registerSortedSequence(OrderedValueSequence)}.
+ * 
  * @author wolf
  */
 public class OrderedValueSequence extends AbstractSequence {
 
+    private final static Logger LOG = Logger.getLogger(OrderedValueSequence.class);
+
     private OrderSpec orderSpecs[];
 	private Entry[] items = null;
+	/** the number of items in memory */
 	private int count = 0;
 	private int state = 0;
 
+	/** the position of the next item added, used to keep the order of items with equal keys */
+	private int nextPos = 0;
+
+	/** if > 0, only the first limit items in sort order are kept */
+	private final int limit;
+
+	/** if > 0, the number of items kept in memory before they are written to a run */
+	private final int spillThreshold;
+	/** the context the sequence is registered with once it wrote a run */
+	private final XQueryContext context;
+	private boolean registered = false;
+	/** false once an item was added which cannot be written to a run */
+	private boolean spillable = true;
+	private List<SortRun> runs = null;
+	/** the number of items in runs */
+	private int spilled = 0;
+	/** the documents of the nodes in the runs */
+	private Map<Integer, org.exist.dom.DocumentImpl> documents = null;
+
+	/** reads the runs for {@link #itemAt(int)} */
+	private MergeIterator cursor = null;
+	private int cursorPos = 0;
+	/** all items, read if {@link #itemAt(int)} moves backwards */
+	private ValueSequence materialized = null;
+	/** the readers of the runs which are not at their end yet */
+	private final List<SortRun.Reader> readers = new ArrayList<SortRun.Reader>();
+
     // used to keep track of the type of added items.
     private int itemType = Type.ANY_TYPE;
     
 	public OrderedValueSequence(OrderSpec orderSpecs[], int size) {
+		this(orderSpecs, size, 0, null);
+	}
+
+	/**
+	 * @param orderSpecs the order specs of the "order by" clause
+	 * @param size the expected number of items
+	 * @param limit if > 0, only the first limit items in sort order are kept
+	 * @param context if not null, items are sorted and written to temporary files
+	 *  once there are more than {@link XQueryContext#getSortSpillThreshold()} items
+	 *  in memory. The files are deleted when the context is cleaned up
+	 */
+	public OrderedValueSequence(OrderSpec orderSpecs[], int size, int limit, XQueryContext context) {
 		this.orderSpecs = orderSpecs;
+		// items are pruned when there are twice as many
+		this.limit = limit < Integer.MAX_VALUE / 2 ? limit : 0;
+		this.context = context;
+		this.spillThreshold = context == null ? 0 : context.getSortSpillThreshold();
         if (size == 0)
             {size = 1;}
+        if (this.limit > 0 && size > 2 * this.limit)
+            {size = 2 * this.limit;}
+        if (spillThreshold > 0 && size > spillThreshold)
+            {size = spillThreshold;}
 		this.items = new Entry[size];
 	}
 
@@ -65,21 +137,24 @@ public class OrderedValueSequence extends AbstractSequence {
 	 * @see org.exist.xquery.value.Sequence#iterate()
 	 */
 	public SequenceIterator iterate() throws XPathException {
-		return new OrderedValueSequenceIterator();
+		return runs == null ? new OrderedValueSequenceIterator() : new MergeIterator();
 	}
 
 	/* (non-Javadoc)
 	 * @see org.exist.xquery.value.AbstractSequence#unorderedIterator()
 	 */
 	public SequenceIterator unorderedIterator() throws XPathException {
-		return new OrderedValueSequenceIterator();
+		return iterate();
 	}
 	
 	/* (non-Javadoc)
 	 * @see org.exist.xquery.value.Sequence#getLength()
 	 */
 	public int getItemCount() {
-		return (items == null) ? 0 : count;
+		if (items == null)
+			{return 0;}
+		final int total = count + spilled;
+		return limit > 0 && total > limit ? limit : total;
 	}
 	
 	public boolean isEmpty() {
@@ -87,18 +162,18 @@ public class OrderedValueSequence extends AbstractSequence {
 	}
 
     public boolean hasOne() {
-    	return hasOne;
+    	return getItemCount() == 1;
     }
 
 	/* (non-Javadoc)
 	 * @see org.exist.xquery.value.Sequence#add(org.exist.xquery.value.Item)
 	 */
 	public void add(Item item) throws XPathException {
-		if (hasOne)
-			{hasOne = false;}
-		if (isEmpty)
-			{hasOne = true;}
         isEmpty = false;
+		if (limit > 0 && count == 2 * limit)
+			{prune();}
+		else if (spillThreshold > 0 && count >= spillThreshold && spillable)
+			{spill();}
 		if(count == 0 && items.length == 1) {
 			items = new Entry[2];
 		} else if (count == items.length) {
@@ -106,7 +181,10 @@ public class OrderedValueSequence extends AbstractSequence {
 			System.arraycopy(items, 0, newItems, 0, count);
 			items = newItems;
 		}
-		items[count] = new Entry(item, count++);
+		final Entry entry = new Entry(item, nextPos++);
+		items[count++] = entry;
+		if (spillable && spillThreshold > 0)
+			{spillable = entry.isWritable();}
 		checkItemType(item.getType());
         setHasChanged();
     }
@@ -126,20 +204,182 @@ public class OrderedValueSequence extends AbstractSequence {
 		} 
 	}
 	
+	/**
+	 * Append the items of another sequence with the same order specs, as computed
+	 * by a different thread. The sort keys of the items are not computed again.
+	 * 
+	 * @param other
+	 */
+	public void merge(OrderedValueSequence other) {
+		if (other.isEmpty)
+			{return;}
+		final int offset = nextPos;
+		if (other.runs != null) {
+			// take over the runs of the other sequence
+			if (runs == null) {
+				runs = new ArrayList<SortRun>();
+				documents = new HashMap<Integer, org.exist.dom.DocumentImpl>();
+			}
+			for (final SortRun run : other.runs) {
+				run.offset += offset;
+				runs.add(run);
+			}
+			documents.putAll(other.documents);
+			spilled += other.spilled;
+			other.runs = null;
+			other.spilled = 0;
+			register();
+		}
+		if (count + other.count > items.length) {
+			final Entry newItems[] = new Entry[count + other.count];
+			System.arraycopy(items, 0, newItems, 0, count);
+			items = newItems;
+		}
+		for (int i = 0; i < other.count; i++) {
+			items[count++] = new Entry(other.items[i], offset + other.items[i].pos);
+		}
+		nextPos += other.nextPos;
+		spillable = spillable && other.spillable;
+		checkItemType(other.itemType);
+		isEmpty = false;
+		setHasChanged();
+	}
+
+	/**
+	 * Returns the number of items kept, 0 if all items are kept.
+	 */
+	public int getLimit() {
+		return limit;
+	}
+
 	public void sort() {
 		FastQSort.sort(items, 0, count - 1);
+		if (limit > 0 && count > limit) {
+			Arrays.fill(items, limit, count, null);
+			count = limit;
+		}
+	}
+
+	/**
+	 * Keep only the first items in sort order.
+	 */
+	private void prune() {
+		FastQSort.sort(items, 0, count - 1);
+		Arrays.fill(items, limit, count, null);
+		count = limit;
+	}
+
+	/**
+	 * Sort the items in memory and write them to a new run.
+	 */
+	private void spill() throws XPathException {
+		FastQSort.sort(items, 0, count - 1);
+		if (runs == null) {
+			runs = new ArrayList<SortRun>();
+			documents = new HashMap<Integer, org.exist.dom.DocumentImpl>();
+		}
+		try {
+			final SortRun.Writer writer = new SortRun.Writer(documents);
+			for (int i = 0; i < count; i++) {
+				writer.write(items[i].pos, items[i].item, items[i].values);
+			}
+			runs.add(writer.close());
+			register();
+		} catch (final IOException e) {
+			LOG.warn("Failed to write sorted items to a temporary file, keeping them in memory: " +
+				e.getMessage(), e);
+			spillable = false;
+			return;
+		}
+		Arrays.fill(items, 0, count, null);
+		spilled += count;
+		count = 0;
 	}
 	
+	private void register() {
+		if (!registered && context != null) {
+			context.registerSortedSequence(this);
+			registered = true;
+		}
+	}
+
+	/**
+	 * Close the readers of the runs and delete their temporary files. The sequence
+	 * is empty afterwards.
+	 */
+	public void close() {
+		for (final SortRun.Reader reader : readers) {
+			try {
+				reader.close();
+			} catch (final IOException e) {
+				LOG.warn("Failed to close a temporary file: " + e.getMessage(), e);
+			}
+		}
+		readers.clear();
+		if (runs != null) {
+			for (final SortRun run : runs) {
+				run.delete();
+			}
+			runs = null;
+		}
+		Arrays.fill(items, 0, count, null);
+		count = 0;
+		spilled = 0;
+		documents = null;
+		setHasChanged();
+	}
+
 	/* (non-Javadoc)
 	 * @see org.exist.xquery.value.Sequence#itemAt(int)
 	 */
 	public Item itemAt(int pos) {
+		if (runs != null) {
+			if (pos < 0 || pos >= getItemCount())
+				{return null;}
+			if (materialized != null)
+				{return materialized.itemAt(pos);}
+			try {
+				// the runs can only be read sequentially. Reading them again for every
+				// step backwards would be quadratic, so all items are read into memory
+				if (cursor != null && pos < cursorPos) {
+					if (LOG.isDebugEnabled())
+						{LOG.debug("Reading " + getItemCount() + " sorted items into memory for random access");}
+					cursor.close();
+					cursor = null;
+					materialized = materialize();
+					return materialized.itemAt(pos);
+				}
+				if (cursor == null) {
+					cursor = new MergeIterator();
+					cursorPos = 0;
+				}
+			} catch (final XPathException e) {
+				// Sequence.itemAt cannot throw an XPathException
+				throw new IllegalStateException(e.getMessage(), e);
+			}
+			for (; cursorPos < pos; cursorPos++) {
+				cursor.nextItem();
+			}
+			cursorPos++;
+			return cursor.nextItem();
+		}
 		if(items != null && pos > -1 && pos < count)
 			{return items[pos].item;}
 		else
 			{return null;}
 	}
 
+	/**
+	 * Read all items into memory.
+	 */
+	private ValueSequence materialize() throws XPathException {
+		final ValueSequence seq = new ValueSequence(getItemCount());
+		for (final SequenceIterator i = iterate(); i.hasNext(); ) {
+			seq.add(i.nextItem());
+		}
+		return seq;
+	}
+
 	private void checkItemType(int type) {
         if (itemType == type)
             {return;}
@@ -163,6 +403,8 @@ public class OrderedValueSequence extends AbstractSequence {
 		//return early
 		if (isEmpty())
 			{return NodeSet.EMPTY_SET;}
+		if (runs != null)
+			{return materialize().toNodeSet();}
         // for this method to work, all items have to be nodes
 		if(itemType != Type.ANY_TYPE && Type.subTypeOf(itemType, Type.NODE)) {
 			//Was ExtArrayNodeset() which orders the nodes in document order
@@ -228,7 +470,8 @@ public class OrderedValueSequence extends AbstractSequence {
     * @see org.exist.xquery.value.Sequence#isPersistentSet()
     */
     public boolean isPersistentSet() {
-        if(count == 0)
+        // runs only contain persistent nodes and atomic values
+        if(getItemCount() == 0)
             {return true;}
         if(itemType != Type.ANY_TYPE && Type.subTypeOf(itemType, Type.NODE)) {
             NodeValue v;
@@ -243,12 +486,14 @@ public class OrderedValueSequence extends AbstractSequence {
     }
 
     public MemoryNodeSet toMemNodeSet() throws XPathException {
-        if(count == 0)
+        if(getItemCount() == 0)
             {return MemoryNodeSet.EMPTY;}
         if(itemType == Type.ANY_TYPE || !Type.subTypeOf(itemType, Type.NODE)) {
             throw new XPathException("Type error: the sequence cannot be converted into" +
 				" a node set. Item type is " + Type.getTypeName(itemType));
         }
+        if (runs != null)
+            {return null;}
         NodeValue v;
         for (int i = 0; i < count; i++) {
             v = (NodeValue)items[i].item;
@@ -275,6 +520,11 @@ public class OrderedValueSequence extends AbstractSequence {
 
     private void setHasChanged() {
         state = (state == Integer.MAX_VALUE ? state = 0 : state + 1);
+        if (cursor != null) {
+            cursor.close();
+            cursor = null;
+        }
+        materialized = null;
     }
 
     public int getState() {
@@ -316,6 +566,37 @@ public class OrderedValueSequence extends AbstractSequence {
 			}
 		}
 
+		/**
+		 * @param other an entry of another sequence
+		 * @param position the position of the item in this sequence
+		 */
+		public Entry(Entry other, int position) {
+			this.item = other.item;
+			this.values = other.values;
+			this.pos = position;
+		}
+
+		/**
+		 * @param item the item in the sequence
+		 * @param values the values of the order specs, as read from a run
+		 * @param position the original position of the item in the result sequence
+		 */
+		Entry(Item item, AtomicValue values[], int position) {
+			this.item = item;
+			this.values = values;
+			this.pos = position;
+		}
+
+		boolean isWritable() {
+			if (!SortRun.isWritable(item))
+				{return false;}
+			for (int i = 0; i < values.length; i++) {
+				if (!SortRun.isWritable(values[i]))
+					{return false;}
+			}
+			return true;
+		}
+
 		/* (non-Javadoc)
 		 * @see java.lang.Comparable#compareTo(java.lang.Object)
 		 */
@@ -402,4 +683,136 @@ public class OrderedValueSequence extends AbstractSequence {
 			return null;
 		}
 	}
+	/**
+	 * Merges the runs and the items in memory.
+	 */
+	private class MergeIterator implements SequenceIterator {
+
+		private final PriorityQueue<Source> queue;
+		private int remaining = getItemCount();
+
+		MergeIterator() throws XPathException {
+			queue = new PriorityQueue<Source>(runs.size() + 1, new Comparator<Source>() {
+				public int compare(Source s1, Source s2) {
+					return s1.current.compareTo(s2.current);
+				}
+			});
+			try {
+				for (final SortRun run : runs) {
+					final RunSource source = new RunSource(run.open(documents, orderSpecs.length));
+					if (source.read())
+						{queue.add(source);}
+				}
+			} catch (final IOException e) {
+				close();
+				throw new XPathException(orderSpecs[0].getSortExpression(),
+					"Failed to read sorted items from a temporary file: " + e.getMessage(), e);
+			}
+			advance(new MemorySource());
+		}
+
+		private void advance(Source source) {
+			if (source.next())
+				{queue.add(source);}
+		}
+
+		/**
+		 * Close the readers of the runs which are not at their end.
+		 */
+		void close() {
+			for (final Source source : queue) {
+				source.close();
+			}
+			queue.clear();
+			remaining = 0;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.exist.xquery.value.SequenceIterator#hasNext()
+		 */
+		public boolean hasNext() {
+			return remaining > 0 && !queue.isEmpty();
+		}
+
+		/* (non-Javadoc)
+		 * @see org.exist.xquery.value.SequenceIterator#nextItem()
+		 */
+		public Item nextItem() {
+			if (!hasNext())
+				{return null;}
+			remaining--;
+			final Source source = queue.poll();
+			final Item item = source.current.item;
+			advance(source);
+			return item;
+		}
+	}
+
+	private abstract static class Source {
+
+		Entry current;
+
+		/** Move to the next entry, returns false at the end */
+		abstract boolean next();
+
+		void close() {
+		}
+	}
+
+	private class MemorySource extends Source {
+
+		private int pos = 0;
+
+		boolean next() {
+			if (pos == count)
+				{return false;}
+			current = items[pos++];
+			return true;
+		}
+	}
+
+	private class RunSource extends Source {
+
+		private final SortRun.Reader reader;
+
+		RunSource(SortRun.Reader reader) {
+			this.reader = reader;
+			readers.add(reader);
+		}
+
+		/**
+		 * Move to the next entry, returns false at the end, where the reader closes the file.
+		 */
+		boolean read() throws IOException, XPathException {
+			if (!reader.next()) {
+				readers.remove(reader);
+				return false;
+			}
+			current = new Entry(reader.item, reader.values, reader.pos);
+			return true;
+		}
+
+		boolean next() {
+			try {
+				return read();
+			} catch (final IOException e) {
+				close();
+				// SequenceIterator.nextItem cannot throw an XPathException
+				throw new IllegalStateException("Failed to read sorted items from a temporary file: " +
+					e.getMessage(), new XPathException(orderSpecs[0].getSortExpression(), e.getMessage(), e));
+			} catch (final XPathException e) {
+				close();
+				throw new IllegalStateException(e.getMessage(), e);
+			}
+		}
+
+		void close() {
+			readers.remove(reader);
+			try {
+				reader.close();
+			} catch (final IOException e) {
+				LOG.warn("Failed to close a temporary file: " + e.getMessage(), e);
+			}
+		}
+	}
 }
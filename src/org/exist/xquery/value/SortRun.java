@@ -0,0 +1,287 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.xquery.value;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.exist.dom.DocumentImpl;
+import org.exist.dom.NodeProxy;
+import org.exist.numbering.NodeId;
+import org.exist.util.io.TemporaryFileManager;
+import org.exist.xquery.XPathException;
+
+/**
+ * A sorted chunk of the entries of an {@link OrderedValueSequence}, written to a
+ * temporary file of the {@link TemporaryFileManager}.
+ *
+ * An entry is written as its position in the sequence, the item and the values of
+ * the order specs. Only persistent nodes and atomic values which can be restored
+ * from their string value can be written, see {@link #isWritable(Item)}. A node is
+ * written as document id and node id, the sequence keeps the documents. The file
+ * is returned to the temporary file manager by {@link #delete()}, when the sequence
+ * is closed.
+ */
+class SortRun {
+
+    private final static Logger LOG = Logger.getLogger(SortRun.class);
+
+    private final static byte EMPTY = 0;
+    private final static byte NODE = 1;
+    private final static byte DOUBLE = 2;
+    private final static byte FLOAT = 3;
+    private final static byte STRING = 4;
+    private final static byte UNTYPED = 5;
+    private final static byte ANY_URI = 6;
+    private final static byte INTEGER = 7;
+    /** other atomic types, cast from their string value */
+    private final static byte ATOMIC = 8;
+
+    private File file;
+    private final int size;
+
+    /** added to the positions read from the file, see {@link OrderedValueSequence#merge(OrderedValueSequence)} */
+    int offset = 0;
+
+    private SortRun(File file, int size) {
+        this.file = file;
+        this.size = size;
+    }
+
+    /**
+     * Returns true if the item or order by value can be written to a run.
+     */
+    static boolean isWritable(Item item) {
+        if (item == AtomicValue.EMPTY_VALUE)
+            {return true;}
+        if (item instanceof NodeProxy)
+            // full text matches would be lost
+            {return ((NodeProxy) item).getMatches() == null;}
+        return item instanceof StringValue || item instanceof UntypedAtomicValue ||
+            item instanceof AnyURIValue || item instanceof NumericValue ||
+            item instanceof BooleanValue || item instanceof AbstractDateTimeValue ||
+            item instanceof DurationValue;
+    }
+
+    /**
+     * Returns the number of entries in the run.
+     */
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * Open the run for reading.
+     *
+     * @param documents the documents of the nodes in the run
+     * @param valueCount the number of order by values of an entry
+     */
+    Reader open(Map<Integer, DocumentImpl> documents, int valueCount) throws IOException {
+        if (file == null)
+            {throw new IOException("The temporary file of the run was deleted");}
+        return new Reader(documents, valueCount);
+    }
+
+    /**
+     * Return the file to the temporary file manager. Readers of the run must be
+     * closed before.
+     */
+    void delete() {
+        if (file != null) {
+            TemporaryFileManager.getInstance().returnTemporaryFile(file);
+            file = null;
+        }
+    }
+
+    /**
+     * Writes entries in sort order to a new run.
+     */
+    static class Writer {
+
+        private final Map<Integer, DocumentImpl> documents;
+        private final File file;
+        private final DataOutputStream os;
+        private int size = 0;
+
+        /**
+         * @param documents receives the documents of the nodes written
+         */
+        Writer(Map<Integer, DocumentImpl> documents) throws IOException {
+            this.documents = documents;
+            this.file = TemporaryFileManager.getInstance().getTemporaryFile();
+            this.os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+        }
+
+        void write(int pos, Item item, AtomicValue values[]) throws IOException, XPathException {
+            os.writeInt(pos);
+            writeItem(item);
+            for (int i = 0; i < values.length; i++) {
+                writeItem(values[i]);
+            }
+            size++;
+        }
+
+        private void writeItem(Item item) throws IOException, XPathException {
+            if (item == AtomicValue.EMPTY_VALUE) {
+                os.writeByte(EMPTY);
+            } else if (item instanceof NodeProxy) {
+                final NodeProxy p = (NodeProxy) item;
+                final DocumentImpl doc = p.getDocument();
+                documents.put(Integer.valueOf(doc.getDocId()), doc);
+                os.writeByte(NODE);
+                os.writeInt(doc.getDocId());
+                final NodeId nodeId = p.getNodeId();
+                final byte data[] = new byte[nodeId.size()];
+                nodeId.serialize(data, 0);
+                os.writeShort(nodeId.units());
+                os.writeShort(data.length);
+                os.write(data);
+                os.writeShort(p.getNodeType());
+                os.writeLong(p.getInternalAddress());
+            } else if (item instanceof DoubleValue) {
+                os.writeByte(DOUBLE);
+                os.writeDouble(((DoubleValue) item).getValue());
+            } else if (item instanceof FloatValue) {
+                os.writeByte(FLOAT);
+                os.writeFloat(((FloatValue) item).getValue());
+            } else {
+                final byte type;
+                if (item instanceof StringValue)
+                    {type = STRING;}
+                else if (item instanceof UntypedAtomicValue)
+                    {type = UNTYPED;}
+                else if (item instanceof AnyURIValue)
+                    {type = ANY_URI;}
+                else if (item instanceof IntegerValue)
+                    {type = INTEGER;}
+                else
+                    {type = ATOMIC;}
+                os.writeByte(type);
+                os.writeInt(item.getType());
+                final byte data[] = item.getStringValue().getBytes("UTF-8");
+                os.writeInt(data.length);
+                os.write(data);
+            }
+        }
+
+        /**
+         * Close the file and return the run.
+         */
+        SortRun close() throws IOException {
+            os.close();
+            if (LOG.isDebugEnabled())
+                {LOG.debug("Wrote " + size + " sorted items to " + file.getName());}
+            return new SortRun(file, size);
+        }
+    }
+
+    /**
+     * Reads the entries of the run in sort order.
+     */
+    class Reader {
+
+        private final Map<Integer, DocumentImpl> documents;
+        private final int valueCount;
+        private final DataInputStream is;
+        private int remaining = size;
+        private boolean closed = false;
+
+        int pos;
+        Item item;
+        AtomicValue values[];
+
+        private Reader(Map<Integer, DocumentImpl> documents, int valueCount) throws IOException {
+            this.documents = documents;
+            this.valueCount = valueCount;
+            this.is = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+        }
+
+        /**
+         * Read the next entry. Returns false and closes the file at the end of the run.
+         */
+        boolean next() throws IOException, XPathException {
+            if (remaining == 0) {
+                close();
+                return false;
+            }
+            remaining--;
+            pos = is.readInt() + offset;
+            item = readItem();
+            values = new AtomicValue[valueCount];
+            for (int i = 0; i < valueCount; i++) {
+                values[i] = (AtomicValue) readItem();
+            }
+            return true;
+        }
+
+        private Item readItem() throws IOException, XPathException {
+            final byte type = is.readByte();
+            switch (type) {
+                case EMPTY :
+                    return AtomicValue.EMPTY_VALUE;
+                case NODE :
+                    final DocumentImpl doc = documents.get(Integer.valueOf(is.readInt()));
+                    final int units = is.readUnsignedShort();
+                    final byte data[] = new byte[is.readUnsignedShort()];
+                    is.readFully(data);
+                    final NodeId nodeId = doc.getBrokerPool().getNodeFactory().createFromData(units, data, 0);
+                    return new NodeProxy(doc, nodeId, is.readShort(), is.readLong());
+                case DOUBLE :
+                    return new DoubleValue(is.readDouble());
+                case FLOAT :
+                    return new FloatValue(is.readFloat());
+                default :
+                    final int xsType = is.readInt();
+                    final byte chars[] = new byte[is.readInt()];
+                    is.readFully(chars);
+                    final String s = new String(chars, "UTF-8");
+                    switch (type) {
+                        case STRING :
+                            return new StringValue(s, xsType, false);
+                        case UNTYPED :
+                            return new UntypedAtomicValue(s);
+                        case ANY_URI :
+                            return new AnyURIValue(s);
+                        case INTEGER :
+                            return new IntegerValue(s, xsType);
+                        default :
+                            return new StringValue(s).convertTo(xsType);
+                    }
+            }
+        }
+
+        void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                is.close();
+            }
+        }
+    }
+}
@@ -45,6 +45,7 @@ import org.exist.security.xacml.AccessContext;
 import org.exist.security.xacml.NullAccessContextException;
 import org.exist.source.Source;
 import org.exist.source.StringSource;
+import org.exist.storage.BrokerPool;
 import org.exist.storage.DBBroker;
 import org.exist.storage.StorageAddress;
 import org.exist.storage.XQueryPool;
@@ -229,9 +230,13 @@ public abstract class Modification {
 	protected final StoredNode[] selectAndLock(Txn transaction)
 			throws LockException, PermissionDeniedException, EXistException,
 			XPathException, TriggerException {
-	    final Lock globalLock = broker.getBrokerPool().getGlobalUpdateLock();
+	    final BrokerPool pool = broker.getBrokerPool();
+	    // with per document locking, deadlocks are avoided by locking
+	    // the documents in ascending order of their id
+	    final Lock globalLock = pool.isDocumentUpdateLocking() ? null : pool.getGlobalUpdateLock();
 	    try {
-	        globalLock.acquire(Lock.READ_LOCK);
+	        if (globalLock != null)
+	            {globalLock.acquire(Lock.READ_LOCK);}
 	        
 	        final NodeList nl = select(docs);
 	        lockedDocuments = ((NodeSet)nl).getDocumentSet();
@@ -254,7 +259,8 @@ public abstract class Modification {
 			}
 			return ql;
 	    } finally {
-	        globalLock.release(Lock.READ_LOCK);
+	        if (globalLock != null)
+	            {globalLock.release(Lock.READ_LOCK);}
 	    }
 	}
 	
@@ -0,0 +1,244 @@
+package org.exist.collections;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.exist.Indexer;
+import org.exist.security.xacml.AccessContext;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.value.Sequence;
+import org.junit.After;
+import org.junit.Test;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Stores documents with single pass ingestion enabled, see {@link Indexer#PROPERTY_SINGLE_PASS}.
+ *
+ * Run {@link #main(String[])} to compare the throughput of single pass and two pass ingestion.
+ */
+public class SinglePassStoreTest {
+
+    private final static String COLLECTION = TestConstants.TEST_COLLECTION_URI.toString();
+
+    private BrokerPool pool;
+
+    @Test
+    public void storeNewDocuments() throws Exception {
+        pool = startDB(true);
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Collection collection = createCollection(broker);
+            for (int i = 0; i < 10; i++) {
+                final IndexInfo info = store(broker, collection, "doc" + i + ".xml", createDocument(i, 50), i % 2 == 0);
+                assertTrue(info.isValidationDeferred());
+            }
+            assertEquals("500", query(broker, "count(collection('" + COLLECTION + "')//item)"));
+            assertEquals("Item 7", query(broker, "doc('" + COLLECTION + "/doc3.xml')//item[@id = '7']/name/string()"));
+            assertEquals("1", query(broker, "count(collection('" + COLLECTION + "')//item[value = 327])"));
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    @Test
+    public void malformedDocument() throws Exception {
+        pool = startDB(true);
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Collection collection = createCollection(broker);
+            store(broker, collection, "good.xml", createDocument(1, 10), false);
+            // fails deep inside the document, after many nodes have been stored
+            final String malformed = createDocument(2, 100).replace("<item id='60'>", "<item id='60'><unclosed>");
+            try {
+                store(broker, collection, "bad.xml", malformed, true);
+                fail("Storing a malformed document should fail");
+            } catch (final SAXException e) {
+                // expected
+            }
+            assertNull(collection.getDocument(broker, XmldbURI.create("bad.xml")));
+            assertEquals(1, collection.getDocumentCount(broker));
+            assertEquals("10", query(broker, "count(collection('" + COLLECTION + "')//item)"));
+
+            // the name can be used again
+            store(broker, collection, "bad.xml", createDocument(2, 20), true);
+            assertEquals("30", query(broker, "count(collection('" + COLLECTION + "')//item)"));
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    @Test
+    public void replaceDocument() throws Exception {
+        pool = startDB(true);
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Collection collection = createCollection(broker);
+            store(broker, collection, "doc.xml", createDocument(1, 10), false);
+            // replacing a document validates first, so the old document survives a failure
+            try {
+                store(broker, collection, "doc.xml", "<root><item></root>", false);
+                fail("Storing a malformed document should fail");
+            } catch (final SAXException e) {
+                // expected
+            }
+            assertEquals("10", query(broker, "count(doc('" + COLLECTION + "/doc.xml')//item)"));
+            final IndexInfo info = store(broker, collection, "doc.xml", createDocument(1, 20), false);
+            assertFalse(info.isValidationDeferred());
+            assertEquals("20", query(broker, "count(doc('" + COLLECTION + "/doc.xml')//item)"));
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    @Test
+    public void disabled() throws Exception {
+        pool = startDB(false);
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Collection collection = createCollection(broker);
+            final IndexInfo info = store(broker, collection, "doc.xml", createDocument(1, 10), false);
+            assertFalse(info.isValidationDeferred());
+            assertEquals("10", query(broker, "count(collection('" + COLLECTION + "')//item)"));
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    /**
+     * Bulk load benchmark: stores the same documents with two pass and with single pass
+     * ingestion and prints the throughput in MB/s.
+     */
+    public static void main(String[] args) throws Exception {
+        final int docs = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        final int items = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        final SinglePassStoreTest test = new SinglePassStoreTest();
+        for (int round = 0; round < 2; round++) {
+            for (final boolean singlePass : new boolean[] { false, true }) {
+                test.pool = startDB(singlePass);
+                DBBroker broker = null;
+                try {
+                    broker = test.pool.get(test.pool.getSecurityManager().getSystemSubject());
+                    final Collection collection = test.createCollection(broker);
+                    long bytes = 0;
+                    final long start = System.currentTimeMillis();
+                    for (int i = 0; i < docs; i++) {
+                        final String data = createDocument(i, items);
+                        bytes += data.length();
+                        test.store(broker, collection, "doc" + i + ".xml", data, true);
+                    }
+                    final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+                    System.out.println((singlePass ? "single pass" : "two pass") + ": " + docs + " documents, " +
+                        (bytes / 1024) + "KB in " + elapsed + "ms; " +
+                        String.format("%.2f", bytes * 1000.0 / elapsed / (1024 * 1024)) + " MB/s");
+                } finally {
+                    test.pool.release(broker);
+                    test.tearDown();
+                }
+            }
+        }
+    }
+
+    private IndexInfo store(DBBroker broker, Collection collection, String name, String data, boolean stream) throws Exception {
+        final TransactionManager transact = pool.getTransactionManager();
+        final Txn transaction = transact.beginTransaction();
+        try {
+            final IndexInfo info;
+            if (stream) {
+                // two pass ingestion needs a stream which can be reset, single pass ingestion
+                // also accepts one which cannot, as received over the network
+                final byte[] bytes = data.getBytes("UTF-8");
+                final InputStream is = isSinglePass() ? new UnmarkableInputStream(bytes) : new ByteArrayInputStream(bytes);
+                final InputSource source = new InputSource(is);
+                info = collection.validateXMLResource(transaction, broker, XmldbURI.create(name), source);
+                collection.store(transaction, broker, info, source, false);
+            } else {
+                info = collection.validateXMLResource(transaction, broker, XmldbURI.create(name), data);
+                collection.store(transaction, broker, info, data, false);
+            }
+            transact.commit(transaction);
+            return info;
+        } catch (final Exception e) {
+            transact.abort(transaction);
+            throw e;
+        }
+    }
+
+    private boolean isSinglePass() {
+        return Boolean.TRUE.equals(pool.getConfiguration().getProperty(Indexer.PROPERTY_SINGLE_PASS));
+    }
+
+    private Collection createCollection(DBBroker broker) throws Exception {
+        final TransactionManager transact = pool.getTransactionManager();
+        final Txn transaction = transact.beginTransaction();
+        final Collection collection = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+        broker.saveCollection(transaction, collection);
+        transact.commit(transaction);
+        return collection;
+    }
+
+    private String query(DBBroker broker, String query) throws Exception {
+        final Sequence seq = broker.getXQueryService().execute(query, null, AccessContext.TEST);
+        return seq.getStringValue();
+    }
+
+    private static String createDocument(int n, int items) {
+        final StringBuilder buf = new StringBuilder();
+        buf.append("<root n='").append(n).append("'>");
+        for (int i = 0; i < items; i++) {
+            buf.append("<item id='").append(i).append("'><name>Item ").append(i)
+                .append("</name><value>").append(n * 100 + i).append("</value></item>");
+        }
+        buf.append("</root>");
+        return buf.toString();
+    }
+
+    private static BrokerPool startDB(boolean singlePass) throws Exception {
+        final Configuration config = new Configuration();
+        config.setProperty(Indexer.PROPERTY_SINGLE_PASS, Boolean.valueOf(singlePass));
+        BrokerPool.configure(1, 5, config);
+        return BrokerPool.getInstance();
+    }
+
+    @After
+    public void tearDown() {
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final TransactionManager transact = pool.getTransactionManager();
+            final Txn transaction = transact.beginTransaction();
+            final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.removeCollection(transaction, root);
+            transact.commit(transaction);
+        } catch (final Exception e) {
+            e.printStackTrace();
+        } finally {
+            pool.release(broker);
+        }
+        BrokerPool.stopAll(false);
+    }
+
+    private static class UnmarkableInputStream extends ByteArrayInputStream {
+
+        public UnmarkableInputStream(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
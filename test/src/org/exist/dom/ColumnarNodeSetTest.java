@@ -0,0 +1,208 @@
+package org.exist.dom;
+
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.numbering.NodeId;
+import org.exist.security.xacml.AccessContext;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.ElementValue;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.xquery.Constants;
+import org.exist.xquery.Expression;
+import org.exist.xquery.XQuery;
+import org.exist.xquery.value.Sequence;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ColumnarNodeSetTest {
+
+    private final static String XML =
+        "<section n='1'>" +
+            "<section n='1.1'>" +
+                "<section n='1.1.1'>" +
+                    "<para n='1.1.1.1'/>" +
+                    "<para n='1.1.1.2'/>" +
+                    "<para n='1.1.1.3'/>" +
+                "</section>" +
+                "<section n='1.1.2'>" +
+                    "<para n='1.1.2.1'/>" +
+                "</section>" +
+            "</section>" +
+            "<section n='1.2'>" +
+                "<para n='1.2.1'/>" +
+            "</section>" +
+        "</section>";
+
+    private static BrokerPool pool;
+    private static DBBroker broker;
+    private static DocumentSet docs;
+
+    @Test
+    public void structuralIndexResult() throws Exception {
+        final NodeSet paras = findElements("para");
+        assertTrue(paras instanceof ColumnarNodeSet);
+        assertEquals(5, paras.getLength());
+        assertTrue(NodeId.ROOT_NODE.equals(findElements("section").get(0).getNodeId()));
+    }
+
+    @Test
+    public void sortAndRemoveDuplicates() throws Exception {
+        final NodeSet paras = findElements("para");
+        final ColumnarNodeSet set = new ColumnarNodeSet(2);
+        for (int i = paras.getLength() - 1; i >= 0; i--) {
+            final NodeProxy p = paras.get(i);
+            set.add(p.getDocument(), p.getNodeId(), p.getNodeType(), p.getInternalAddress());
+            set.add(p.getDocument(), p.getNodeId(), p.getNodeType(), p.getInternalAddress());
+        }
+        assertFalse(set.hasOne());
+        assertEquals(5, set.getLength());
+        for (int i = 0; i < paras.getLength(); i++) {
+            assertTrue(paras.get(i).getNodeId().equals(set.get(i).getNodeId()));
+            assertTrue(set.contains(paras.get(i)));
+        }
+        assertNull(set.get(findElements("section").get(0)));
+    }
+
+    @Test
+    public void proxiesAreKept() throws Exception {
+        final NodeSet paras = findElements("para");
+        final NodeProxy first = paras.get(0);
+        assertSame(first, paras.get(first));
+        first.addContextNode(1, first);
+        assertNotNull(paras.iterator().next().getContext());
+        paras.clearContext(1);
+        assertNull(first.getContext());
+    }
+
+    @Test
+    public void structuralJoins() throws Exception {
+        final NodeSet sections = findElements("section");
+        final NodeSet paras = findElements("para");
+        assertEquals(5, paras.selectAncestorDescendant(sections, NodeSet.DESCENDANT, false,
+            Expression.NO_CONTEXT_ID, true).getLength());
+        assertEquals(5, paras.selectParentChild(sections, NodeSet.DESCENDANT).getLength());
+        assertEquals(4, sections.selectParentChild(sections, NodeSet.DESCENDANT).getLength());
+        assertEquals(3, paras.selectParentChild(sections, NodeSet.ANCESTOR).getLength());
+
+        final NodeProxy section = sections.get(1);
+        assertNotNull(((ExtNodeSet) paras).hasDescendantsInSet(section.getDocument(),
+            section.getNodeId(), false, Expression.NO_CONTEXT_ID, true));
+        assertNull(((ExtNodeSet) paras).hasDescendantsInSet(section.getDocument(),
+            paras.get(0).getNodeId(), false, Expression.NO_CONTEXT_ID, true));
+        assertNotNull(sections.parentWithChild(paras.get(0), true, false, NodeProxy.UNKNOWN_NODE_LEVEL));
+    }
+
+    @Test
+    public void descendantsAndAncestors() throws Exception {
+        assertEquals(5, broker.getStructuralIndex().findDescendantsByTagName(ElementValue.ELEMENT,
+            new QName("para", ""), Constants.DESCENDANT_AXIS, docs, findElements("section"), -1).getLength());
+        assertEquals(5, broker.getStructuralIndex().findAncestorsByTagName(ElementValue.ELEMENT,
+            new QName("section", ""), Constants.ANCESTOR_AXIS, docs, findElements("para"), -1).getLength());
+    }
+
+    @Test
+    public void followingAndPreceding() throws Exception {
+        final NodeSet sections = findElements("section");
+        final NodeSet paras = findElements("para");
+        final NodeProxy second = paras.get(1);
+        assertEquals(3, paras.selectFollowing(second, -1, Expression.NO_CONTEXT_ID).getLength());
+        assertEquals("1.1.1.3", attribute(paras.selectFollowing(second, 1, Expression.NO_CONTEXT_ID)));
+        assertEquals("1.2.1", attribute(paras.selectFollowing(second, 3, Expression.NO_CONTEXT_ID)));
+        assertTrue(paras.selectFollowing(second, 4, Expression.NO_CONTEXT_ID).isEmpty());
+        // ancestors of the context node are not following nodes
+        assertEquals(2, sections.selectFollowing(paras.get(0), -1, Expression.NO_CONTEXT_ID).getLength());
+        assertEquals("1.1.2", attribute(sections.selectFollowing(paras.get(0), 1, Expression.NO_CONTEXT_ID)));
+
+        final NodeProxy fourth = paras.get(3);
+        assertEquals(3, paras.selectPreceding(fourth, -1, Expression.NO_CONTEXT_ID).getLength());
+        assertEquals("1.1.1.3", attribute(paras.selectPreceding(fourth, 1, Expression.NO_CONTEXT_ID)));
+        assertEquals("1.1.1.1", attribute(paras.selectPreceding(fourth, 3, Expression.NO_CONTEXT_ID)));
+        assertTrue(paras.selectPreceding(fourth, 4, Expression.NO_CONTEXT_ID).isEmpty());
+        // ancestors of the context node are not preceding nodes
+        assertEquals(1, sections.selectPreceding(fourth, -1, Expression.NO_CONTEXT_ID).getLength());
+        assertEquals("1.1.1", attribute(sections.selectPreceding(fourth, 1, Expression.NO_CONTEXT_ID)));
+    }
+
+    @Test
+    public void positionalFollowingAndPreceding() throws Exception {
+        assertEquals(1, query("//para[@n = '1.1.1.2']/following::para[1]"));
+        assertEquals("1.1.1.3", queryString("//para[@n = '1.1.1.2']/following::para[1]/@n"));
+        assertEquals("1.2.1", queryString("//para[@n = '1.1.1.2']/following::para[3]/@n"));
+        assertEquals(0, query("//para[@n = '1.1.1.2']/following::para[4]"));
+        assertEquals("1.1.2", queryString("//para[@n = '1.1.1.1']/following::section[1]/@n"));
+        assertEquals(1, query("//para[@n = '1.1.2.1']/preceding::para[1]"));
+        assertEquals("1.1.1.3", queryString("//para[@n = '1.1.2.1']/preceding::para[1]/@n"));
+        assertEquals("1.1.1.1", queryString("//para[@n = '1.1.2.1']/preceding::para[3]/@n"));
+        assertEquals("1.1.1", queryString("//para[@n = '1.1.2.1']/preceding::section[1]/@n"));
+        assertEquals(2, query("//para[@n = ('1.1.1.1', '1.1.2.1')]/following::para[1]"));
+    }
+
+    @Test
+    public void queries() throws Exception {
+        assertEquals(3, query("//section[para]"));
+        assertEquals(2, query("//section[.//section]"));
+        assertEquals(5, query("//para/ancestor::section"));
+        assertEquals(4, query("//section[@n = '1.1']//para"));
+        assertEquals(4, query("//section//section"));
+        assertEquals(1, query("//section[para[3]]"));
+        assertEquals(3, query("for $s in //section return $s/para[1]"));
+    }
+
+    private int query(String query) throws Exception {
+        final XQuery xquery = broker.getXQueryService();
+        final Sequence result = xquery.execute(query, null, AccessContext.TEST);
+        return result.getItemCount();
+    }
+
+    private String queryString(String query) throws Exception {
+        final XQuery xquery = broker.getXQueryService();
+        final Sequence result = xquery.execute("string(" + query + ")", null, AccessContext.TEST);
+        return result.getStringValue();
+    }
+
+    private static String attribute(NodeSet set) {
+        assertEquals(1, set.getLength());
+        return ((org.w3c.dom.Element) set.get(0).getNode()).getAttribute("n");
+    }
+
+    private NodeSet findElements(String name) {
+        return broker.getStructuralIndex().findElementsByTagName(ElementValue.ELEMENT, docs,
+            new QName(name, ""), null);
+    }
+
+    @BeforeClass
+    public static void startDB() throws Exception {
+        final Configuration config = new Configuration();
+        BrokerPool.configure(1, 5, config);
+        pool = BrokerPool.getInstance();
+        broker = pool.get(pool.getSecurityManager().getSystemSubject());
+        final TransactionManager transact = pool.getTransactionManager();
+        final Txn transaction = transact.beginTransaction();
+        final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+        broker.saveCollection(transaction, root);
+        final IndexInfo info = root.validateXMLResource(transaction, broker, TestConstants.TEST_XML_URI, XML);
+        root.store(transaction, broker, info, XML, false);
+        transact.commit(transaction);
+        docs = root.allDocs(broker, new DefaultDocumentSet(), true);
+    }
+
+    @AfterClass
+    public static void stopDB() throws Exception {
+        final TransactionManager transact = pool.getTransactionManager();
+        final Txn transaction = transact.beginTransaction();
+        final Collection root = broker.getCollection(TestConstants.TEST_COLLECTION_URI);
+        if (root != null)
+            {broker.removeCollection(transaction, root);}
+        transact.commit(transaction);
+        pool.release(broker);
+        BrokerPool.stopAll(false);
+        pool = null;
+    }
+}
@@ -0,0 +1,137 @@
+package org.exist.memtree;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.exist.dom.QName;
+import org.exist.util.serializer.DOMSerializer;
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
+
+import static org.junit.Assert.*;
+
+public class DocumentImplTest {
+
+    private final static String XML =
+        "<test count=\"1\" value=\"5543\">" +
+            "<x:title xmlns:x=\"http://foo.org\" id=\"s1\">My title</x:title>" +
+            "<para>First <b xmlns:x=\"http://foo.org\" x:type=\"bold\">paragraph</b></para>" +
+            "<?pi data?>" +
+        "</test>";
+
+    @Test
+    public void names() {
+        final MemTreeBuilder builder = new MemTreeBuilder();
+        builder.startDocument();
+        builder.startElement(new QName("a", null, null), null);
+        builder.startElement(new QName("a", null, null), null);
+        builder.endElement();
+        builder.endElement();
+        builder.endDocument();
+        final DocumentImpl doc = builder.getDocument();
+        assertEquals(doc.nodeName[1], doc.nodeName[2]);
+        assertSame(doc.getQName(1), doc.getQName(2));
+        assertEquals("a", doc.getFirstChild().getNodeName());
+    }
+
+    @Test
+    public void attributeValues() {
+        final MemTreeBuilder builder = new MemTreeBuilder();
+        builder.startDocument();
+        final AttributesImpl attrs = new AttributesImpl();
+        attrs.addAttribute("", "n", "n", "CDATA", "1");
+        builder.startElement(new QName("a", null, null), attrs);
+        builder.characters("abc");
+        final DocumentImpl doc = builder.getDocument();
+        final int text = doc.getLastNode();
+        doc.addAttribute(1, new QName("m", null, null), "2", AttributeImpl.ATTR_CDATA_TYPE);
+        // the attribute value was stored after the text, which has to be moved
+        doc.appendChars(text, "def");
+        builder.endElement();
+        builder.endDocument();
+        final Element a = (Element) doc.getFirstChild();
+        assertEquals("1", a.getAttribute("n"));
+        assertEquals("2", a.getAttribute("m"));
+        assertEquals("abcdef", a.getFirstChild().getNodeValue());
+        a.getAttributeNode("n").setNodeValue("3");
+        assertEquals("3", a.getAttribute("n"));
+    }
+
+    @Test
+    public void serialize() throws Exception {
+        final DocumentImpl doc = parse(XML);
+        assertNull(doc.nodeId);
+        assertEquals(XML, serialize(doc));
+        final NodeImpl title = (NodeImpl) doc.getFirstChild().getFirstChild();
+        assertEquals("My title", title.getStringValue());
+        assertEquals("First paragraph", ((NodeImpl) title.getNextSibling()).getStringValue());
+        // serializing does not compute node ids
+        assertNull(doc.nodeId);
+    }
+
+    @Test
+    public void offHeap() throws Exception {
+        final CharacterBuffer buffer = new CharacterBuffer(300);
+        final StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            final String s = "text" + i;
+            assertEquals(expected.length(), buffer.append(s));
+            expected.append(s);
+        }
+        assertTrue(buffer.isOffHeap());
+        assertFalse(buffer.hasArray());
+        assertEquals(expected.toString(), buffer.getString(0, buffer.length()));
+        assertEquals("text42", buffer.getString(expected.indexOf("text42"), 6));
+        final StringBuilder copy = new StringBuilder();
+        buffer.appendTo(copy, 0, buffer.length());
+        assertEquals(expected.toString(), copy.toString());
+        assertTrue(buffer.equals(expected.indexOf("text7"), 5, "text7"));
+    }
+
+    @Test
+    public void offHeapChunks() throws Exception {
+        final CharacterBuffer buffer = new CharacterBuffer(300);
+        final char[] ch = new char[CharacterBuffer.CHUNK_SIZE + 1000];
+        for (int i = 0; i < ch.length; i++) {
+            ch[i] = (char) ('a' + i % 26);
+        }
+        buffer.append("start");
+        assertEquals(5, buffer.append(ch, 0, ch.length));
+        final int offset = buffer.append("end");
+        assertTrue(buffer.isOffHeap());
+        // strings spanning two chunks
+        final int boundary = CharacterBuffer.CHUNK_SIZE - 5;
+        assertEquals(new String(ch, boundary - 5, 20), buffer.getString(boundary, 20));
+        final char[] dest = new char[ch.length];
+        buffer.getChars(5, ch.length, dest, 0);
+        assertArrayEquals(ch, dest);
+        final StringBuilder copy = new StringBuilder();
+        buffer.appendTo(copy, boundary, 20);
+        assertEquals(new String(ch, boundary - 5, 20), copy.toString());
+        assertTrue(buffer.equals(offset, 3, "end"));
+        assertEquals(offset + 3, buffer.length());
+    }
+
+    private DocumentImpl parse(String xml) throws Exception {
+        final DocumentBuilderReceiver receiver = new DocumentBuilderReceiver();
+        final SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        final XMLReader reader = factory.newSAXParser().getXMLReader();
+        reader.setContentHandler(receiver);
+        reader.parse(new InputSource(new StringReader(xml)));
+        return (DocumentImpl) receiver.getDocument();
+    }
+
+    private String serialize(Node node) throws Exception {
+        final StringWriter writer = new StringWriter();
+        final DOMSerializer serializer = new DOMSerializer(writer, null);
+        serializer.serialize(node.getFirstChild());
+        return writer.toString();
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2013 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.numbering;
+
+import java.util.Random;
+
+/**
+ * Micro benchmark comparing the operations of {@link DLN} objects with the static
+ * methods of {@link DLNBase}, which work on node ids serialized into a byte array,
+ * as they are found in index keys. Run it with
+ *
+ * <pre>java org.exist.numbering.DLNBenchmark [ids] [rounds]</pre>
+ *
+ * Each benchmark is repeated for a number of rounds, the first half of which are
+ * used to warm up the JIT compiler. The time per operation is printed for the
+ * remaining rounds.
+ */
+public class DLNBenchmark {
+
+    private final DLN[] ids;
+    private final byte[] data;
+    private final int[] offsets;
+    private final int[] units;
+
+    // results are summed up here, so the JIT cannot remove the benchmarked code
+    private long sink = 0;
+
+    public DLNBenchmark(int count) {
+        final Random rand = new Random(42);
+        ids = new DLN[count];
+        offsets = new int[count];
+        units = new int[count];
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            // nodes at a depth of 2 to 8, with few ids on the upper levels, so many of them are related
+            final DLN id = new DLN();
+            final int levels = 1 + rand.nextInt(7);
+            for (int j = 0; j < levels; j++) {
+                id.addLevelId(1 + rand.nextInt(j < 2 ? 4 : 50), false);
+            }
+            ids[i] = id;
+            units[i] = id.units();
+            offsets[i] = size;
+            size += id.size();
+        }
+        data = new byte[size];
+        for (int i = 0; i < count; i++) {
+            ids[i].serialize(data, offsets[i]);
+        }
+    }
+
+    public void run(int rounds) {
+        benchmark("compare", rounds, new Runnable() {
+            public void run() {
+                for (int i = 0; i < ids.length; i++) {
+                    for (int j = 0; j < ids.length; j++) {
+                        sink += ids[i].compareTo(ids[j]);
+                    }
+                }
+            }
+        }, new Runnable() {
+            public void run() {
+                for (int i = 0; i < ids.length; i++) {
+                    for (int j = 0; j < ids.length; j++) {
+                        sink += DLNBase.compare(data, offsets[i], units[i], data, offsets[j], units[j]);
+                    }
+                }
+            }
+        }, ids.length * ids.length);
+        benchmark("isDescendantOf", rounds, new Runnable() {
+            public void run() {
+                for (int i = 0; i < ids.length; i++) {
+                    for (int j = 0; j < ids.length; j++) {
+                        if (ids[i].isDescendantOf(ids[j]))
+                            {sink++;}
+                    }
+                }
+            }
+        }, new Runnable() {
+            public void run() {
+                for (int i = 0; i < ids.length; i++) {
+                    for (int j = 0; j < ids.length; j++) {
+                        if (DLNBase.isDescendant(data, offsets[i], units[i], data, offsets[j], units[j]))
+                            {sink++;}
+                    }
+                }
+            }
+        }, ids.length * ids.length);
+        benchmark("isChildOf", rounds, new Runnable() {
+            public void run() {
+                for (int i = 0; i < ids.length; i++) {
+                    for (int j = 0; j < ids.length; j++) {
+                        if (ids[i].computeRelation(ids[j]) == NodeId.IS_CHILD)
+                            {sink++;}
+                    }
+                }
+            }
+        }, new Runnable() {
+            public void run() {
+                for (int i = 0; i < ids.length; i++) {
+                    for (int j = 0; j < ids.length; j++) {
+                        if (DLNBase.isChild(data, offsets[i], units[i], data, offsets[j], units[j]))
+                            {sink++;}
+                    }
+                }
+            }
+        }, ids.length * ids.length);
+        benchmark("getTreeLevel", rounds, new Runnable() {
+            public void run() {
+                for (int i = 0; i < ids.length; i++) {
+                    sink += ids[i].getTreeLevel();
+                }
+            }
+        }, new Runnable() {
+            public void run() {
+                for (int i = 0; i < ids.length; i++) {
+                    sink += DLNBase.getTreeLevel(data, offsets[i], units[i]);
+                }
+            }
+        }, ids.length);
+        // reading the node id from an index key creates a DLN first
+        benchmark("getParentId", rounds, new Runnable() {
+            public void run() {
+                for (int i = 0; i < ids.length; i++) {
+                    final NodeId id = new DLN(units[i], data, offsets[i]);
+                    sink += id.getParentId().units();
+                }
+            }
+        }, new Runnable() {
+            public void run() {
+                for (int i = 0; i < ids.length; i++) {
+                    sink += DLNBase.getParentUnits(data, offsets[i], units[i]);
+                }
+            }
+        }, ids.length);
+    }
+
+    private void benchmark(String name, int rounds, Runnable objects, Runnable packed, long operations) {
+        final long objectTime = time(objects, rounds);
+        final long packedTime = time(packed, rounds);
+        final long measured = operations * (rounds - rounds / 2);
+        System.out.println(name + ": DLN: " + (objectTime / measured) + " ns/op; packed: " +
+            (packedTime / measured) + " ns/op");
+    }
+
+    private long time(Runnable task, int rounds) {
+        long total = 0;
+        for (int i = 0; i < rounds; i++) {
+            final long start = System.nanoTime();
+            task.run();
+            if (i >= rounds / 2)
+                {total += System.nanoTime() - start;}
+        }
+        return total;
+    }
+
+    public static void main(String[] args) {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        final DLNBenchmark benchmark = new DLNBenchmark(count);
+        benchmark.run(rounds);
+        System.out.println("(" + benchmark.sink + ")");
+    }
+}
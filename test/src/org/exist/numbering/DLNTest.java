@@ -23,7 +23,9 @@ package org.exist.numbering;
 
 import junit.framework.TestCase;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 public class DLNTest extends TestCase {
@@ -344,5 +346,58 @@ public class DLNTest extends TestCase {
         assertEquals("1.1/0/34", dln.toString());
         
         System.out.println("------ testInsertion: PASSED ------");
+    }    
+    public void testPackedOperations() {
+        System.out.println("------ testPackedOperations ------");
+        Random rand = new Random(42);
+        List<DLN> ids = new ArrayList<DLN>();
+        for (int i = 0; i < 100; i++) {
+            StringBuilder buf = new StringBuilder("1");
+            int levels = rand.nextInt(5);
+            for (int j = 0; j < levels; j++) {
+                buf.append(rand.nextInt(8) == 0 ? '/' : '.');
+                buf.append(1 + rand.nextInt(rand.nextBoolean() ? 5 : 300));
+            }
+            // add the node and all its ancestors, so there are related ids
+            NodeId id = new DLN(buf.toString());
+            while (id != NodeId.DOCUMENT_NODE) {
+                ids.add((DLN) id);
+                id = id.getParentId();
+            }
+        }
+        // serialize all ids into one array at an odd offset
+        byte[] data = new byte[1];
+        int[] offsets = new int[ids.size()];
+        for (int i = 0; i < ids.size(); i++) {
+            DLN id = ids.get(i);
+            byte[] newData = new byte[data.length + id.size()];
+            System.arraycopy(data, 0, newData, 0, data.length);
+            id.serialize(newData, data.length);
+            offsets[i] = data.length;
+            data = newData;
+        }
+        for (int i = 0; i < ids.size(); i++) {
+            DLN id = ids.get(i);
+            int units = id.units();
+            assertEquals(id.getTreeLevel(), DLNBase.getTreeLevel(data, offsets[i], units));
+            assertEquals(id.lastLevelOffset(), DLNBase.lastLevelOffset(data, offsets[i], units));
+            NodeId parentId = id.getParentId();
+            assertEquals(parentId == NodeId.DOCUMENT_NODE ? 0 : parentId.units(),
+                DLNBase.getParentUnits(data, offsets[i], units));
+            for (int j = 0; j < ids.size(); j++) {
+                DLN other = ids.get(j);
+                int otherUnits = other.units();
+                String msg = id + " <-> " + other;
+                assertEquals(msg, Integer.signum(id.compareTo(other)),
+                    Integer.signum(DLNBase.compare(data, offsets[i], units, data, offsets[j], otherUnits)));
+                assertEquals(msg, id.isDescendantOrSelfOf(other),
+                    DLNBase.isDescendantOrSelf(data, offsets[i], units, data, offsets[j], otherUnits));
+                assertEquals(msg, id.isDescendantOf(other),
+                    DLNBase.isDescendant(data, offsets[i], units, data, offsets[j], otherUnits));
+                assertEquals(msg, id.computeRelation(other) == NodeId.IS_CHILD,
+                    DLNBase.isChild(data, offsets[i], units, data, offsets[j], otherUnits));
+            }
+        }
+        System.out.println("------ testPackedOperations: PASSED ------");
     }
 }
\ No newline at end of file
@@ -47,7 +47,14 @@ import org.junit.runners.Suite;
         ResourceTest.class,
         RangeIndexUpdateTest.class,
         LargeValuesTest.class,
-        StoreBinaryTest.class
+        StoreBinaryTest.class,
+        GroupCommitTest.class,
+        BackgroundPageWriterTest.class,
+        ParallelRecoveryTest.class,
+        CompressedStorageTest.class,
+        BulkLoaderTest.class,
+        StreamSerializerTest.class,
+        XQueryPoolTest.class
 })
 public class AllStorageTests {
 }
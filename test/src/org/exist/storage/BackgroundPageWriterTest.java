@@ -0,0 +1,114 @@
+package org.exist.storage;
+
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.dom.DocumentImpl;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.sync.BackgroundPageWriter;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.xmldb.XmldbURI;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes dirty pages with the background page writer, then crashes the
+ * database and checks that recovery restores all committed documents.
+ */
+public class BackgroundPageWriterTest {
+
+    private final static int DOCS = 50;
+
+    private BrokerPool pool;
+
+    @Test
+    public void writeAndRecover() throws Exception {
+        pool = startDB();
+        // the writer thread is disabled, so the test controls when pages are written
+        assertNull(pool.getPageWriter());
+        storeDocuments();
+
+        final Configuration config = pool.getConfiguration();
+        final int dirty = BackgroundPageWriter.getDirtyPages(config);
+        assertTrue(dirty > 0);
+
+        final BackgroundPageWriter writer = new BackgroundPageWriter(pool, 1000);
+        final int written = writer.writeDirtyPages(5);
+        assertTrue(written > 0 && written <= 5);
+        assertEquals(written, writer.getPagesWritten());
+
+        writer.writeDirtyPages(Integer.MAX_VALUE);
+        assertEquals(0, BackgroundPageWriter.getDirtyPages(config));
+
+        // crash and recover
+        BrokerPool.FORCE_CORRUPTION = true;
+        BrokerPool.stopAll(false);
+        BrokerPool.FORCE_CORRUPTION = false;
+
+        pool = startDB();
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            for (int i = 0; i < DOCS; i++) {
+                final XmldbURI uri = TestConstants.TEST_COLLECTION_URI.append("doc" + i + ".xml");
+                final DocumentImpl doc = broker.getXMLResource(uri, Lock.READ_LOCK);
+                assertNotNull("Document " + uri + " should not be null", doc);
+                doc.getUpdateLock().release(Lock.READ_LOCK);
+            }
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    private void storeDocuments() throws Exception {
+        final TransactionManager transact = pool.getTransactionManager();
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            Txn transaction = transact.beginTransaction();
+            final Collection collection = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.saveCollection(transaction, collection);
+            transact.commit(transaction);
+
+            for (int i = 0; i < DOCS; i++) {
+                transaction = transact.beginTransaction();
+                final String data = "<test n='" + i + "'><para>Background page writer</para></test>";
+                final XmldbURI docUri = XmldbURI.create("doc" + i + ".xml");
+                final IndexInfo info = collection.validateXMLResource(transaction, broker, docUri, data);
+                collection.store(transaction, broker, info, data, false);
+                transact.commit(transaction);
+            }
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    private BrokerPool startDB() throws Exception {
+        final Configuration config = new Configuration();
+        config.setProperty(BackgroundPageWriter.PROPERTY_WRITE_RATE, Integer.valueOf(0));
+        BrokerPool.configure(1, 5, config);
+        return BrokerPool.getInstance();
+    }
+
+    @After
+    public void tearDown() {
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final TransactionManager transact = pool.getTransactionManager();
+            final Txn transaction = transact.beginTransaction();
+            final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.removeCollection(transaction, root);
+            transact.commit(transaction);
+        } catch (final Exception e) {
+            e.printStackTrace();
+        } finally {
+            pool.release(broker);
+        }
+        BrokerPool.stopAll(false);
+    }
+}
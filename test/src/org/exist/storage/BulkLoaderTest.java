@@ -0,0 +1,339 @@
+package org.exist.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.security.xacml.AccessContext;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.value.Sequence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Loads documents with the {@link BulkLoader} and checks the structural and range indexes.
+ *
+ * Run {@link #main(String[])} to compare the throughput of the bulk loader with storing
+ * one document per transaction.
+ */
+public class BulkLoaderTest {
+
+    private final static String COLLECTION = TestConstants.TEST_COLLECTION_URI.toString();
+
+    private final static String COLLECTION_CONFIG =
+        "<collection xmlns=\"http://exist-db.org/collection-config/1.0\">" +
+        "   <index>" +
+        "       <create qname=\"value\" type=\"xs:integer\"/>" +
+        "       <create qname=\"@id\" type=\"xs:string\"/>" +
+        "   </index>" +
+        "</collection>";
+
+    private final static int DOCS = 25;
+    private final static int ITEMS = 40;
+
+    private BrokerPool pool;
+    private File dir;
+
+    @Test
+    public void loadDirectory() throws Exception {
+        final File source = createDirectory();
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final BulkLoader loader = new BulkLoader(pool, 2);
+            loader.setBatchSize(10);
+            loader.load(broker, TestConstants.TEST_COLLECTION_URI, source);
+            assertEquals(DOCS, loader.getDocumentCount());
+            checkIndexes(broker);
+            assertEquals("5", query(broker, "count(collection('" + COLLECTION + "/sub')//root)"));
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    @Test
+    public void loadZip() throws Exception {
+        final File source = createZip();
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final BulkLoader loader = new BulkLoader(pool, 3);
+            loader.setBatchSize(7);
+            loader.load(broker, TestConstants.TEST_COLLECTION_URI, source);
+            assertEquals(DOCS, loader.getDocumentCount());
+            checkIndexes(broker);
+            assertEquals("5", query(broker, "count(collection('" + COLLECTION + "/sub')//root)"));
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    @Test
+    public void replaceDocuments() throws Exception {
+        final File source = createDirectory();
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final BulkLoader loader = new BulkLoader(pool, 2);
+            loader.load(broker, TestConstants.TEST_COLLECTION_URI, source);
+            loader.load(broker, TestConstants.TEST_COLLECTION_URI, source);
+            checkIndexes(broker);
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    @Test
+    public void malformedDocument() throws Exception {
+        final File source = createDirectory();
+        write(new File(source, "doc99.xml"), "<root><item></root>");
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final BulkLoader loader = new BulkLoader(pool, 2);
+            loader.setBatchSize(8);
+            try {
+                loader.load(broker, TestConstants.TEST_COLLECTION_URI, source);
+                fail("Loading a malformed document should fail");
+            } catch (final SAXException e) {
+                // expected
+            }
+            // the malformed document is the 21st: the two batches before it are stored and indexed,
+            // the documents stored by its batch are removed again
+            final int stored = loader.getDocumentCount();
+            assertEquals(16, stored);
+            assertEquals("16", query(broker, "count(collection('" + COLLECTION + "')/root)"));
+            assertEquals(String.valueOf(stored * ITEMS), query(broker, "count(collection('" + COLLECTION + "')//item)"));
+            assertEquals(String.valueOf(stored * ITEMS), query(broker, "count(collection('" + COLLECTION + "')//item[value >= 0])"));
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    @Test
+    public void restart() throws Exception {
+        final File source = createDirectory();
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            new BulkLoader(pool, 2).load(broker, TestConstants.TEST_COLLECTION_URI, source);
+        } finally {
+            pool.release(broker);
+        }
+        BrokerPool.stopAll(false);
+        pool = startDB();
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            checkIndexes(broker);
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    @Test
+    public void reindex() throws Exception {
+        final File source = createDirectory();
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            new BulkLoader(pool, 2).load(broker, TestConstants.TEST_COLLECTION_URI, source);
+            // drops and rebuilds the indexes of the collection and its subcollection
+            broker.reindexCollection(TestConstants.TEST_COLLECTION_URI);
+            checkIndexes(broker);
+            assertEquals("5", query(broker, "count(collection('" + COLLECTION + "/sub')//root)"));
+            // truncates the structural and value index files before reindexing
+            broker.reindexCollection(XmldbURI.ROOT_COLLECTION_URI);
+            checkIndexes(broker);
+            assertEquals("5", query(broker, "count(collection('" + COLLECTION + "/sub')//root)"));
+            // recreates all index files, which are then built bottom-up
+            broker.repair();
+            checkIndexes(broker);
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    private void checkIndexes(DBBroker broker) throws Exception {
+        final String items = "collection('" + COLLECTION + "')//item";
+        assertEquals(String.valueOf(DOCS * ITEMS), query(broker, "count(" + items + ")"));
+        assertEquals(String.valueOf(DOCS * ITEMS), query(broker, "count(" + items + "/name)"));
+        assertEquals("1", query(broker, "count(" + items + "[value = 327])"));
+        assertEquals("Item 27", query(broker, items + "[value = 327]/name/string()"));
+        assertEquals(String.valueOf(DOCS), query(broker, "count(" + items + "[@id = '7'])"));
+        assertEquals("2", query(broker, "count(" + items + "[value > " + ((DOCS - 1) * 100 + ITEMS - 3) + "])"));
+    }
+
+    private File createDirectory() throws Exception {
+        final File sub = new File(dir, "sub");
+        sub.mkdirs();
+        for (int i = 0; i < DOCS; i++) {
+            write(new File(i < DOCS - 5 ? dir : sub, "doc" + i + ".xml"), createDocument(i, ITEMS));
+        }
+        // not loaded
+        write(new File(dir, "readme.txt"), "text");
+        return dir;
+    }
+
+    private File createZip() throws Exception {
+        final File file = new File(dir, "docs.zip");
+        final ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            for (int i = 0; i < DOCS; i++) {
+                zos.putNextEntry(new ZipEntry((i < DOCS - 5 ? "" : "sub/") + "doc" + i + ".xml"));
+                zos.write(createDocument(i, ITEMS).getBytes("UTF-8"));
+                zos.closeEntry();
+            }
+        } finally {
+            zos.close();
+        }
+        return file;
+    }
+
+    /**
+     * Bulk load benchmark: stores the same documents one per transaction and with
+     * the bulk loader, and prints the throughput.
+     */
+    public static void main(String[] args) throws Exception {
+        final int docs = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        final int items = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        final int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        final BulkLoaderTest test = new BulkLoaderTest();
+        for (int round = 0; round < 2; round++) {
+            for (final boolean bulk : new boolean[] { false, true }) {
+                test.setUp();
+                DBBroker broker = null;
+                try {
+                    for (int i = 0; i < docs; i++) {
+                        write(new File(test.dir, "doc" + i + ".xml"), createDocument(i, items));
+                    }
+                    broker = test.pool.get(test.pool.getSecurityManager().getSystemSubject());
+                    final long start = System.currentTimeMillis();
+                    final long bytes;
+                    if (bulk) {
+                        final BulkLoader loader = new BulkLoader(test.pool, threads);
+                        loader.load(broker, TestConstants.TEST_COLLECTION_URI, test.dir);
+                        bytes = loader.getByteCount();
+                    } else
+                        {bytes = test.storeEach(broker);}
+                    final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+                    System.out.println((bulk ? "bulk loader (" + threads + " threads)" : "one document per transaction") +
+                        ": " + docs + " documents, " + (bytes / 1024) + "KB in " + elapsed + "ms; " +
+                        String.format("%.1f docs/s, %.2f MB/s", docs * 1000.0 / elapsed, bytes * 1000.0 / elapsed / (1024 * 1024)));
+                } finally {
+                    test.pool.release(broker);
+                    test.tearDown();
+                }
+            }
+        }
+    }
+
+    private long storeEach(DBBroker broker) throws Exception {
+        final TransactionManager transact = pool.getTransactionManager();
+        Txn transaction = transact.beginTransaction();
+        final Collection collection = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+        broker.saveCollection(transaction, collection);
+        transact.commit(transaction);
+        long bytes = 0;
+        for (final File file : dir.listFiles()) {
+            transaction = transact.beginTransaction();
+            final InputSource source = new InputSource(file.toURI().toASCIIString());
+            final IndexInfo info = collection.validateXMLResource(transaction, broker, XmldbURI.create(file.getName()), source);
+            collection.store(transaction, broker, info, source, false);
+            transact.commit(transaction);
+            bytes += file.length();
+        }
+        return bytes;
+    }
+
+    private String query(DBBroker broker, String query) throws Exception {
+        final Sequence seq = broker.getXQueryService().execute(query, null, AccessContext.TEST);
+        return seq.getStringValue();
+    }
+
+    private static String createDocument(int n, int items) {
+        final StringBuilder buf = new StringBuilder();
+        buf.append("<root n='").append(n).append("'>");
+        for (int i = 0; i < items; i++) {
+            buf.append("<item id='").append(i).append("'><name>Item ").append(i)
+                .append("</name><value>").append(n * 100 + i).append("</value></item>");
+        }
+        buf.append("</root>");
+        return buf.toString();
+    }
+
+    private static void write(File file, String data) throws Exception {
+        final OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+    }
+
+    private static BrokerPool startDB() throws Exception {
+        BrokerPool.configure(1, 5, new Configuration());
+        return BrokerPool.getInstance();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("bulkload", "");
+        dir.delete();
+        dir.mkdirs();
+        pool = startDB();
+        final TransactionManager transact = pool.getTransactionManager();
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Txn transaction = transact.beginTransaction();
+            final Collection collection = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.saveCollection(transaction, collection);
+            pool.getConfigurationManager().addConfiguration(transaction, broker, collection, COLLECTION_CONFIG);
+            transact.commit(transaction);
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final TransactionManager transact = pool.getTransactionManager();
+            final Txn transaction = transact.beginTransaction();
+            final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.removeCollection(transaction, root);
+            transact.commit(transaction);
+        } catch (final Exception e) {
+            e.printStackTrace();
+        } finally {
+            pool.release(broker);
+        }
+        BrokerPool.stopAll(false);
+        delete(dir);
+    }
+
+    private static void delete(File file) {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (final File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
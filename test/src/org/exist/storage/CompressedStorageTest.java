@@ -0,0 +1,210 @@
+package org.exist.storage;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.dom.DocumentImpl;
+import org.exist.security.xacml.AccessContext;
+import org.exist.storage.dom.DOMFile;
+import org.exist.storage.journal.Journal;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.sync.Sync;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.XQuery;
+import org.exist.xquery.value.Sequence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Stores, updates and reads documents with page compression enabled for dom.dbx,
+ * after a clean shutdown and after a crash. Uses a separate data directory,
+ * as compressed files cannot be opened with compression disabled.
+ */
+public class CompressedStorageTest {
+
+    private final static int DOCS = 50;
+    private final static int ELEMENTS = 100;
+
+    private File dataDir;
+    private BrokerPool pool;
+
+    @Test
+    public void storeAndReopen() throws Exception {
+        pool = startDB(true);
+        final DOMFile domDb = getDOMFile();
+        assertTrue(domDb.isCompressed());
+        store();
+        update();
+        assertTrue(domDb.getCompressedPages() > 0);
+        assertTrue("XML pages should compress well, ratio is " + domDb.getCompressionRatio(),
+            domDb.getCompressionRatio() < 0.75);
+        verify();
+        BrokerPool.stopAll(false);
+        assertTrue("page map should be written on shutdown", new File(dataDir, "dom.dbx.map").exists());
+
+        pool = startDB(true);
+        assertFalse(new File(dataDir, "dom.dbx.map").exists());
+        verify();
+    }
+
+    @Test
+    public void crashAndRecover() throws Exception {
+        pool = startDB(true);
+        store();
+        checkpoint();
+        // rewrites the pages written by the first checkpoint
+        update();
+        checkpoint();
+        // changes after the checkpoint are only in the journal
+        BrokerPool.FORCE_CORRUPTION = true;
+        update();
+        BrokerPool.stopAll(false);
+        // the simulated crash still closes the files: remove the page map to
+        // force a scan of the slot headers on restart, as after a real crash
+        assertTrue(new File(dataDir, "dom.dbx.map").delete());
+
+        BrokerPool.FORCE_CORRUPTION = false;
+        pool = startDB(true);
+        verify();
+        assertEquals(2, count("//item[@added]") / DOCS);
+    }
+
+    @Test
+    public void compressionSettingCannotBeChanged() throws Exception {
+        pool = startDB(true);
+        store();
+        BrokerPool.stopAll(false);
+        pool = null;
+        try {
+            startDB(false);
+            fail("Opening a compressed dom.dbx without compression should fail");
+        } catch (final Exception e) {
+            // expected
+        }
+    }
+
+    private void store() throws Exception {
+        final TransactionManager transact = pool.getTransactionManager();
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            Txn transaction = transact.beginTransaction();
+            final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.saveCollection(transaction, root);
+            transact.commit(transaction);
+
+            for (int i = 0; i < DOCS; i++) {
+                transaction = transact.beginTransaction();
+                final String data = createDocument(i);
+                final IndexInfo info = root.validateXMLResource(transaction, broker, XmldbURI.create("doc" + i + ".xml"), data);
+                root.store(transaction, broker, info, data, false);
+                transact.commit(transaction);
+            }
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    private void checkpoint() throws Exception {
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            pool.sync(broker, Sync.MAJOR_SYNC);
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    private void update() throws Exception {
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final XQuery xquery = broker.getXQueryService();
+            xquery.execute("for $root in collection('" + TestConstants.TEST_COLLECTION_URI + "')/root " +
+                "return update insert <item added='yes'><name>Added</name></item> into $root", null, AccessContext.TEST);
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    private void verify() throws Exception {
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            for (int i = 0; i < DOCS; i++) {
+                final XmldbURI uri = TestConstants.TEST_COLLECTION_URI.append("doc" + i + ".xml");
+                final DocumentImpl doc = broker.getXMLResource(uri, Lock.READ_LOCK);
+                assertNotNull("Document " + uri + " not found", doc);
+                try {
+                    assertEquals(Integer.toString(i), doc.getDocumentElement().getAttribute("n"));
+                } finally {
+                    doc.getUpdateLock().release(Lock.READ_LOCK);
+                }
+            }
+        } finally {
+            pool.release(broker);
+        }
+        assertEquals(DOCS * ELEMENTS, count("//item[value]"));
+        assertEquals(1, count("//item[value = " + (DOCS * ELEMENTS - 1) + "]"));
+    }
+
+    private int count(String path) throws Exception {
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Sequence seq = broker.getXQueryService().execute(
+                "count(collection('" + TestConstants.TEST_COLLECTION_URI + "')" + path + ")", null, AccessContext.TEST);
+            return Integer.parseInt(seq.getStringValue());
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    private String createDocument(int n) {
+        final StringBuilder buf = new StringBuilder();
+        buf.append("<root n='").append(n).append("'>");
+        for (int i = 0; i < ELEMENTS; i++) {
+            buf.append("<item id='").append(i).append("'><name>Item ").append(i)
+                .append("</name><value>").append(n * ELEMENTS + i).append("</value></item>");
+        }
+        buf.append("</root>");
+        return buf.toString();
+    }
+
+    private DOMFile getDOMFile() {
+        return (DOMFile) pool.getConfiguration().getProperty(DOMFile.CONFIG_KEY_FOR_FILE);
+    }
+
+    private BrokerPool startDB(boolean compression) throws Exception {
+        final Configuration config = new Configuration();
+        config.setProperty(BrokerPool.PROPERTY_DATA_DIR, dataDir.getAbsolutePath());
+        config.setProperty(Journal.PROPERTY_RECOVERY_JOURNAL_DIR, dataDir.getAbsolutePath());
+        config.setProperty(DOMFile.PROPERTY_COMPRESSION, Boolean.valueOf(compression));
+        BrokerPool.configure(1, 5, config);
+        return BrokerPool.getInstance();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        dataDir = new File(System.getProperty("java.io.tmpdir"), "exist-compressed-test");
+        FileUtils.deleteDirectory(dataDir);
+        dataDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        BrokerPool.FORCE_CORRUPTION = false;
+        BrokerPool.stopAll(false);
+        pool = null;
+        FileUtils.deleteDirectory(dataDir);
+    }
+}
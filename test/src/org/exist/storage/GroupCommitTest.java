@@ -0,0 +1,203 @@
+package org.exist.storage;
+
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.dom.DocumentImpl;
+import org.exist.storage.journal.GroupCommitThread;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.txn.TransactionException;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.xmldb.XmldbURI;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Stores documents from several threads with group commits enabled,
+ * then restarts the database and checks that all committed documents
+ * are still there.
+ */
+public class GroupCommitTest {
+
+    private final static int THREADS = 4;
+    private final static int DOCS_PER_THREAD = 25;
+
+    private BrokerPool pool;
+
+    @Test
+    public void concurrentCommits() throws Exception {
+        pool = startDB();
+        final TransactionManager transact = pool.getTransactionManager();
+        assertTrue(transact.isGroupCommit());
+
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i = 0; i < THREADS; i++) {
+            final int thread = i;
+            futures.add(executor.submit(new Runnable() {
+                public void run() {
+                    storeDocuments(thread);
+                }
+            }));
+        }
+        for (final Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+
+        final GroupCommitThread writer = transact.getJournal().getGroupCommitThread();
+        assertNotNull(writer);
+        assertTrue(writer.getCommitCount() >= THREADS * DOCS_PER_THREAD);
+        assertTrue(writer.getSyncCount() <= writer.getCommitCount());
+        System.out.println("Commits: " + writer.getCommitCount() + "; syncs: " + writer.getSyncCount() +
+            "; average batch size: " + writer.getAverageBatchSize() +
+            "; average sync time: " + writer.getAverageSyncTime() + "ms");
+
+        BrokerPool.stopAll(false);
+
+        pool = startDB();
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            for (int i = 0; i < THREADS; i++) {
+                for (int j = 0; j < DOCS_PER_THREAD; j++) {
+                    final XmldbURI uri = TestConstants.TEST_COLLECTION_URI.append("t" + i).append("doc" + j + ".xml");
+                    final DocumentImpl doc = broker.getXMLResource(uri, Lock.READ_LOCK);
+                    assertNotNull("Document " + uri + " should not be null", doc);
+                    doc.getUpdateLock().release(Lock.READ_LOCK);
+                }
+            }
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    @Test
+    public void failedSyncIsReported() throws Exception {
+        final boolean[] fail = { false };
+        final GroupCommitThread writer = new GroupCommitThread(null) {
+            private long lsn = 0;
+
+            protected long sync() throws IOException {
+                synchronized (fail) {
+                    if (fail[0])
+                        {throw new IOException("disk full");}
+                }
+                return lsn += 100;
+            }
+        };
+        writer.start();
+        try {
+            writer.waitFor(50);
+            synchronized (fail) {
+                fail[0] = true;
+            }
+            try {
+                writer.waitFor(150);
+                fail("The commit should not be acknowledged");
+            } catch (final IOException e) {
+                assertEquals("disk full", e.getCause().getMessage());
+            }
+            synchronized (fail) {
+                fail[0] = false;
+            }
+            // later commits succeed once the journal can be written again
+            writer.waitFor(160);
+        } finally {
+            writer.shutdown();
+        }
+        try {
+            writer.waitFor(1000);
+            fail("A stopped writer should not acknowledge commits");
+        } catch (final IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void failedCommitRecordIsReported() throws Exception {
+        pool = startDB();
+        final TransactionManager transact = pool.getTransactionManager();
+        final Txn durable = transact.beginTransaction();
+        final Txn notDurable = transact.beginTransaction();
+        // the commit records cannot be written to a closed journal
+        transact.getJournal().shutdown(durable.getId(), false);
+        try {
+            transact.commit(durable);
+            fail("A durable commit should fail if its commit record is not written");
+        } catch (final TransactionException e) {
+            // expected
+        }
+        assertEquals(Txn.State.COMMITTED, durable.getState());
+        transact.commit(notDurable, false);
+        BrokerPool.stopAll(false);
+        pool = null;
+    }
+
+    private void storeDocuments(int thread) {
+        final TransactionManager transact = pool.getTransactionManager();
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final XmldbURI collectionUri = TestConstants.TEST_COLLECTION_URI.append("t" + thread);
+            Txn transaction = transact.beginTransaction();
+            final Collection collection = broker.getOrCreateCollection(transaction, collectionUri);
+            broker.saveCollection(transaction, collection);
+            transact.commit(transaction);
+
+            for (int i = 0; i < DOCS_PER_THREAD; i++) {
+                transaction = transact.beginTransaction();
+                final String data = "<test thread='" + thread + "' n='" + i + "'><para>Group commit</para></test>";
+                final XmldbURI docUri = XmldbURI.create("doc" + i + ".xml");
+                final IndexInfo info = collection.validateXMLResource(transaction, broker, docUri, data);
+                collection.store(transaction, broker, info, data, false);
+                transact.commit(transaction);
+            }
+        } catch (final Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    private BrokerPool startDB() throws Exception {
+        final Configuration config = new Configuration();
+        config.setProperty(TransactionManager.PROPERTY_RECOVERY_GROUP_COMMIT, Boolean.TRUE);
+        BrokerPool.configure(1, THREADS + 1, config);
+        return BrokerPool.getInstance();
+    }
+
+    @After
+    public void tearDown() {
+        if (pool == null)
+            {return;}
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final TransactionManager transact = pool.getTransactionManager();
+            final Txn transaction = transact.beginTransaction();
+            final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.removeCollection(transaction, root);
+            transact.commit(transaction);
+        } catch (final Exception e) {
+            e.printStackTrace();
+        } finally {
+            pool.release(broker);
+        }
+        BrokerPool.stopAll(false);
+    }
+}
@@ -0,0 +1,147 @@
+package org.exist.storage;
+
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.dom.DocumentImpl;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.xmldb.XmldbURI;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Crashes the database after storing a number of documents and checks that
+ * recovery restores them, once with a single redo thread and once with
+ * parallel redo. The size of the journal can be increased by setting the system
+ * properties exist.test.recovery.docs and exist.test.recovery.elements,
+ * which is useful to measure recovery time.
+ */
+public class ParallelRecoveryTest {
+
+    private final static int DOCS = Integer.getInteger("exist.test.recovery.docs", 100);
+    private final static int ELEMENTS = Integer.getInteger("exist.test.recovery.elements", 200);
+
+    private BrokerPool pool;
+
+    @Test
+    public void sequentialRedo() throws Exception {
+        crashAndRecover(1);
+    }
+
+    @Test
+    public void parallelRedo() throws Exception {
+        crashAndRecover(4);
+    }
+
+    private void crashAndRecover(int redoThreads) throws Exception {
+        BrokerPool.FORCE_CORRUPTION = true;
+        pool = startDB(redoThreads);
+        store();
+        BrokerPool.stopAll(false);
+
+        BrokerPool.FORCE_CORRUPTION = false;
+        final long start = System.currentTimeMillis();
+        pool = startDB(redoThreads);
+        System.out.println("Startup with recovery using " + redoThreads + " redo threads: " +
+            (System.currentTimeMillis() - start) + "ms");
+        verify();
+    }
+
+    private void store() throws Exception {
+        final TransactionManager transact = pool.getTransactionManager();
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            Txn transaction = transact.beginTransaction();
+            final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.saveCollection(transaction, root);
+            transact.commit(transaction);
+
+            for (int i = 0; i < DOCS; i++) {
+                transaction = transact.beginTransaction();
+                final String data = createDocument(i);
+                final IndexInfo info = root.validateXMLResource(transaction, broker, XmldbURI.create("doc" + i + ".xml"), data);
+                root.store(transaction, broker, info, data, false);
+                transact.commit(transaction);
+            }
+
+            // this transaction is never committed and should be undone
+            transaction = transact.beginTransaction();
+            final String data = createDocument(-1);
+            final IndexInfo info = root.validateXMLResource(transaction, broker, XmldbURI.create("uncommitted.xml"), data);
+            root.store(transaction, broker, info, data, false);
+            transact.getJournal().flushToLog(true);
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    private void verify() throws Exception {
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            for (int i = 0; i < DOCS; i++) {
+                final XmldbURI uri = TestConstants.TEST_COLLECTION_URI.append("doc" + i + ".xml");
+                final DocumentImpl doc = broker.getXMLResource(uri, Lock.READ_LOCK);
+                assertNotNull("Document " + uri + " should have been recovered", doc);
+                try {
+                    assertEquals("root", doc.getDocumentElement().getNodeName());
+                    assertEquals(Integer.toString(i), doc.getDocumentElement().getAttribute("n"));
+                } finally {
+                    doc.getUpdateLock().release(Lock.READ_LOCK);
+                }
+            }
+            final DocumentImpl doc = broker.getXMLResource(TestConstants.TEST_COLLECTION_URI.append("uncommitted.xml"), Lock.READ_LOCK);
+            if (doc != null) {
+                doc.getUpdateLock().release(Lock.READ_LOCK);
+                fail("Uncommitted document should have been removed by recovery");
+            }
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    private String createDocument(int n) {
+        final StringBuilder buf = new StringBuilder();
+        buf.append("<root n='").append(n).append("'>");
+        for (int i = 0; i < ELEMENTS; i++) {
+            buf.append("<item id='").append(i).append("'><name>Item ").append(i)
+                .append("</name><value>").append(n * ELEMENTS + i).append("</value></item>");
+        }
+        buf.append("</root>");
+        return buf.toString();
+    }
+
+    private BrokerPool startDB(int redoThreads) throws Exception {
+        final Configuration config = new Configuration();
+        config.setProperty(TransactionManager.PROPERTY_RECOVERY_REDO_THREADS, Integer.valueOf(redoThreads));
+        BrokerPool.configure(1, 5, config);
+        return BrokerPool.getInstance();
+    }
+
+    @After
+    public void tearDown() {
+        BrokerPool.FORCE_CORRUPTION = false;
+        if (pool == null)
+            {return;}
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final TransactionManager transact = pool.getTransactionManager();
+            final Txn transaction = transact.beginTransaction();
+            final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.removeCollection(transaction, root);
+            transact.commit(transaction);
+        } catch (final Exception e) {
+            e.printStackTrace();
+        } finally {
+            pool.release(broker);
+        }
+        BrokerPool.stopAll(false);
+    }
+}
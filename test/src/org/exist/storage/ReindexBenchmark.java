@@ -0,0 +1,112 @@
+package org.exist.storage;
+
+import org.exist.collections.Collection;
+import org.exist.storage.structural.NativeStructuralIndex;
+import org.exist.storage.sync.Sync;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.xmldb.XmldbURI;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Compares reindexing a collection, which drops its index entries and inserts
+ * the new keys in key order, with reindexing the root collection, which truncates
+ * the structural and value index files and builds them bottom-up. Not a unit test:
+ * run it with exist.home set, optionally passing the number of documents and items
+ * per document.
+ *
+ * <pre>java org.exist.storage.ReindexBenchmark [docs] [items]</pre>
+ */
+public class ReindexBenchmark {
+
+    private final static String COLLECTION_CONFIG =
+        "<collection xmlns=\"http://exist-db.org/collection-config/1.0\">" +
+        "   <index>" +
+        "       <create qname=\"value\" type=\"xs:integer\"/>" +
+        "       <create qname=\"@id\" type=\"xs:string\"/>" +
+        "   </index>" +
+        "</collection>";
+
+    public static void main(String[] args) throws Exception {
+        final int docs = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        final int items = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        final File dir = File.createTempFile("reindex", "");
+        dir.delete();
+        dir.mkdirs();
+        BrokerPool.configure(1, 5, new Configuration());
+        final BrokerPool pool = BrokerPool.getInstance();
+        final String dataDir = (String) pool.getConfiguration().getProperty(BrokerPool.PROPERTY_DATA_DIR);
+        final File values = new File(dataDir, NativeValueIndex.FILE_NAME);
+        final File structure = new File(dataDir, NativeStructuralIndex.FILE_NAME);
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final TransactionManager transact = pool.getTransactionManager();
+            final Txn transaction = transact.beginTransaction();
+            final Collection collection = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.saveCollection(transaction, collection);
+            pool.getConfigurationManager().addConfiguration(transaction, broker, collection, COLLECTION_CONFIG);
+            transact.commit(transaction);
+
+            for (int i = 0; i < docs; i++) {
+                write(new File(dir, "doc" + i + ".xml"), createDocument(i, items));
+            }
+            System.out.println("Loading " + docs + " documents ...");
+            new BulkLoader(pool, Runtime.getRuntime().availableProcessors())
+                .load(broker, TestConstants.TEST_COLLECTION_URI, dir);
+            broker.sync(Sync.MAJOR_SYNC);
+
+            for (int round = 0; round < 3; round++) {
+                for (final XmldbURI uri : new XmldbURI[] { TestConstants.TEST_COLLECTION_URI, XmldbURI.ROOT_COLLECTION_URI }) {
+                    final long start = System.currentTimeMillis();
+                    broker.reindexCollection(uri);
+                    broker.sync(Sync.MAJOR_SYNC);
+                    System.out.println("Round " + round + ": reindex " + uri + " in " +
+                        (System.currentTimeMillis() - start) + "ms; " + NativeValueIndex.FILE_NAME + ": " +
+                        (values.length() / 1024) + "KB, " + NativeStructuralIndex.FILE_NAME + ": " +
+                        (structure.length() / 1024) + "KB");
+                }
+            }
+
+            final Txn cleanup = transact.beginTransaction();
+            broker.removeCollection(cleanup, broker.getCollection(TestConstants.TEST_COLLECTION_URI));
+            transact.commit(cleanup);
+        } finally {
+            pool.release(broker);
+            BrokerPool.stopAll(false);
+            final File[] files = dir.listFiles();
+            if (files != null) {
+                for (final File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    private static String createDocument(int n, int items) {
+        final StringBuilder buf = new StringBuilder();
+        buf.append("<root n='").append(n).append("'>");
+        for (int i = 0; i < items; i++) {
+            buf.append("<item id='").append(i).append("'><name>Item ").append(i)
+                .append("</name><value>").append(n * 100 + i).append("</value></item>");
+        }
+        buf.append("</root>");
+        return buf.toString();
+    }
+
+    private static void write(File file, String data) throws Exception {
+        final OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package org.exist.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Properties;
+
+import javax.xml.transform.OutputKeys;
+
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.dom.DocumentImpl;
+import org.exist.dom.NodeProxy;
+import org.exist.security.xacml.AccessContext;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.serializers.EXistOutputKeys;
+import org.exist.storage.serializers.Serializer;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.value.Sequence;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the output of the byte stream serializer with the
+ * output of the SAX based serializer.
+ */
+public class StreamSerializerTest {
+
+    private final static String DOC1 =
+        "<?xml-stylesheet type=\"text/css\" href=\"test.css\"?>" +
+        "<!-- a comment -->" +
+        "<root xmlns=\"http://exist-db.org/test\" xmlns:x=\"http://exist-db.org/x\" a=\"1 &lt; 2 &amp; &quot;3&quot;\">" +
+        "<x:item x:id=\"i1\" xml:lang=\"en\">Text &lt;&gt;&amp; äöü €   𝄞</x:item>" +
+        "<empty/>" +
+        "<mixed>some <b>bold</b> and <i>italic</i> text</mixed>" +
+        "<plain xmlns=\"\"><child attr=\"tab&#9;newline&#10;cr&#13;\"/></plain>" +
+        "<other xmlns:y=\"http://exist-db.org/y\"><y:z y:attr=\"v\"/></other>" +
+        "<?pi some data?><?pi2?>" +
+        "<![CDATA[<cdata> & stuff]]>" +
+        "<multi>line 1\nline 2</multi>" +
+        "</root>";
+
+    private final static String DOC2 = "<a><b><c>1</c><c>2</c></b><d e=\"f\"/></a>";
+
+    private static BrokerPool pool;
+
+    @Test
+    public void documentNoIndent() throws Exception {
+        compare("doc1.xml", "no", "yes");
+        compare("doc2.xml", "no", "yes");
+    }
+
+    @Test
+    public void documentIndent() throws Exception {
+        compare("doc1.xml", "yes", "yes");
+        compare("doc2.xml", "yes", "no");
+    }
+
+    @Test
+    public void element() throws Exception {
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Sequence seq = broker.getXQueryService().execute(
+                "declare namespace t='http://exist-db.org/test'; " +
+                "doc('" + TestConstants.TEST_COLLECTION_URI + "/doc1.xml')//t:mixed", null, AccessContext.TEST);
+            assertEquals(1, seq.getItemCount());
+            final NodeProxy p = (NodeProxy) seq.itemAt(0);
+            final Serializer serializer = broker.getSerializer();
+            serializer.reset();
+            final String expected = serializer.serialize(p);
+
+            serializer.reset();
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            assertTrue(serializer.toOutputStream(p, os));
+            assertEquals(expected, os.toString("UTF-8"));
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    @Test
+    public void fallback() throws Exception {
+        DBBroker broker = null;
+        DocumentImpl doc = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            doc = broker.getXMLResource(TestConstants.TEST_COLLECTION_URI.append("doc2.xml"), Lock.READ_LOCK);
+            final Serializer serializer = broker.getSerializer();
+
+            serializer.reset();
+            serializer.setProperty(OutputKeys.ENCODING, "ISO-8859-1");
+            serializer.setProperty(OutputKeys.INDENT, "no");
+            assertFalse(serializer.toOutputStream(doc, new ByteArrayOutputStream()));
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            serializer.serialize(doc, os);
+            assertEquals(DOC2, os.toString("ISO-8859-1"));
+
+            serializer.reset();
+            serializer.setProperty(OutputKeys.METHOD, "xhtml");
+            assertFalse(serializer.toOutputStream(doc, new ByteArrayOutputStream()));
+
+            serializer.reset();
+            serializer.setProperty(EXistOutputKeys.ADD_EXIST_ID, "all");
+            assertFalse(serializer.toOutputStream(doc, new ByteArrayOutputStream()));
+        } finally {
+            if (doc != null)
+                doc.getUpdateLock().release(Lock.READ_LOCK);
+            pool.release(broker);
+        }
+    }
+
+    @Test
+    public void xinclude() throws Exception {
+        DBBroker broker = null;
+        DocumentImpl doc = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            doc = broker.getXMLResource(TestConstants.TEST_COLLECTION_URI.append("xinclude.xml"), Lock.READ_LOCK);
+            final Serializer serializer = broker.getSerializer();
+            serializer.reset();
+            serializer.setProperty(EXistOutputKeys.EXPAND_XINCLUDES, "yes");
+            assertFalse(serializer.toOutputStream(doc, new ByteArrayOutputStream()));
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            serializer.serialize(doc, os);
+            assertTrue(os.toString("UTF-8").contains("<d e=\"f\"/>"));
+
+            serializer.reset();
+            serializer.setProperty(EXistOutputKeys.EXPAND_XINCLUDES, "no");
+            assertTrue(serializer.toOutputStream(doc, new ByteArrayOutputStream()));
+        } finally {
+            if (doc != null)
+                doc.getUpdateLock().release(Lock.READ_LOCK);
+            pool.release(broker);
+        }
+    }
+
+    private void compare(String docName, String indent, String omitDecl) throws Exception {
+        DBBroker broker = null;
+        DocumentImpl doc = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            doc = broker.getXMLResource(TestConstants.TEST_COLLECTION_URI.append(docName), Lock.READ_LOCK);
+            final Properties props = new Properties();
+            props.setProperty(OutputKeys.INDENT, indent);
+            props.setProperty(OutputKeys.OMIT_XML_DECLARATION, omitDecl);
+            props.setProperty(EXistOutputKeys.EXPAND_XINCLUDES, "no");
+
+            final Serializer serializer = broker.getSerializer();
+            serializer.reset();
+            serializer.setProperties(props);
+            final String expected = serializer.serialize(doc);
+
+            serializer.reset();
+            serializer.setProperties(props);
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            assertTrue(serializer.toOutputStream(doc, os));
+            assertEquals(expected, os.toString("UTF-8"));
+        } finally {
+            if (doc != null)
+                doc.getUpdateLock().release(Lock.READ_LOCK);
+            pool.release(broker);
+        }
+    }
+
+    @BeforeClass
+    public static void startDB() throws Exception {
+        final Configuration config = new Configuration();
+        BrokerPool.configure(1, 5, config);
+        pool = BrokerPool.getInstance();
+
+        final TransactionManager transact = pool.getTransactionManager();
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Txn transaction = transact.beginTransaction();
+            final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.saveCollection(transaction, root);
+            store(transaction, broker, root, "doc1.xml", DOC1);
+            store(transaction, broker, root, "doc2.xml", DOC2);
+            store(transaction, broker, root, "xinclude.xml",
+                "<doc xmlns:xi=\"http://www.w3.org/2001/XInclude\">" +
+                "<xi:include href=\"doc2.xml\"/></doc>");
+            transact.commit(transaction);
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    private static void store(Txn transaction, DBBroker broker, Collection root, String name, String data)
+            throws Exception {
+        final IndexInfo info = root.validateXMLResource(transaction, broker, XmldbURI.create(name), data);
+        root.store(transaction, broker, info, data, false);
+    }
+
+    @AfterClass
+    public static void stopDB() throws Exception {
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final TransactionManager transact = pool.getTransactionManager();
+            final Txn transaction = transact.beginTransaction();
+            final Collection root = broker.getCollection(TestConstants.TEST_COLLECTION_URI);
+            if (root != null)
+                broker.removeCollection(transaction, root);
+            transact.commit(transaction);
+        } finally {
+            pool.release(broker);
+        }
+        BrokerPool.stopAll(false);
+        pool = null;
+    }
+}
@@ -0,0 +1,224 @@
+package org.exist.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.exist.collections.Collection;
+import org.exist.dom.BinaryDocument;
+import org.exist.dom.DocumentImpl;
+import org.exist.security.xacml.AccessContext;
+import org.exist.source.DBSource;
+import org.exist.source.Source;
+import org.exist.source.StringSource;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.CompiledXQuery;
+import org.exist.xquery.XQuery;
+import org.exist.xquery.XQueryContext;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class XQueryPoolTest {
+
+    private static BrokerPool pool;
+
+    @Test
+    public void borrowAndReturn() throws Exception {
+        final XQueryPool xqPool = newPool(10, 0);
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Source source = new StringSource("1 + 1");
+            assertNull(xqPool.borrowCompiledXQuery(broker, source));
+            final CompiledXQuery compiled = compile(broker, source);
+            xqPool.returnCompiledXQuery(source, compiled);
+            // returning the same instance twice must not pool it twice
+            xqPool.returnCompiledXQuery(source, compiled);
+            assertEquals(1, xqPool.getPooledInstances());
+
+            assertSame(compiled, xqPool.borrowCompiledXQuery(broker, new StringSource("1 + 1")));
+            assertNull(xqPool.borrowCompiledXQuery(broker, source));
+            assertEquals(1, xqPool.getHits());
+            assertEquals(2, xqPool.getMisses());
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() throws Exception {
+        final XQueryPool xqPool = newPool(3, 0);
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Source[] sources = new Source[4];
+            for (int i = 0; i < 3; i++) {
+                sources[i] = new StringSource(Integer.toString(i));
+                xqPool.returnCompiledXQuery(sources[i], compile(broker, sources[i]));
+                Thread.sleep(5);
+            }
+            // use the oldest entry, so the second one becomes least recently used
+            final CompiledXQuery first = xqPool.borrowCompiledXQuery(broker, sources[0]);
+            assertNotNull(first);
+            xqPool.returnCompiledXQuery(sources[0], first);
+            Thread.sleep(5);
+
+            sources[3] = new StringSource("3");
+            xqPool.returnCompiledXQuery(sources[3], compile(broker, sources[3]));
+            assertEquals(3, xqPool.getSize());
+            assertEquals(1, xqPool.getEvictions());
+            assertNull(xqPool.borrowCompiledXQuery(broker, sources[1]));
+            assertNotNull(xqPool.borrowCompiledXQuery(broker, sources[0]));
+            assertNotNull(xqPool.borrowCompiledXQuery(broker, sources[2]));
+            assertNotNull(xqPool.borrowCompiledXQuery(broker, sources[3]));
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    @Test
+    public void invalidateModifiedSource() throws Exception {
+        final XmldbURI uri = TestConstants.TEST_COLLECTION_URI.append("test.xql");
+        storeQuery(uri, "1");
+
+        final XQueryPool checkAlways = newPool(10, 0);
+        final XQueryPool checkLater = newPool(10, 600000);
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Source source = getSource(broker, uri);
+            checkAlways.returnCompiledXQuery(source, compile(broker, source));
+            checkLater.returnCompiledXQuery(source, compile(broker, source));
+
+            Thread.sleep(10);
+            storeQuery(uri, "2");
+            final Source modified = getSource(broker, uri);
+            assertNull(checkAlways.borrowCompiledXQuery(broker, modified));
+            assertEquals(1, checkAlways.getInvalidations());
+            // validated less than validation-interval ago: still served from the pool
+            assertNotNull(checkLater.borrowCompiledXQuery(broker, modified));
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    @Test
+    public void concurrentBorrow() throws Exception {
+        final XQueryPool xqPool = newPool(10, 0);
+        final Source source = new StringSource("for $i in 1 to 10 return $i");
+        final AtomicInteger failures = new AtomicInteger();
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    DBBroker broker = null;
+                    try {
+                        broker = pool.get(pool.getSecurityManager().getSystemSubject());
+                        final XQuery xquery = broker.getXQueryService();
+                        for (int i = 0; i < 200; i++) {
+                            CompiledXQuery compiled = xqPool.borrowCompiledXQuery(broker, source);
+                            if (compiled == null)
+                                {compiled = compile(broker, source);}
+                            else
+                                {compiled.getContext().getWatchDog().reset();}
+                            try {
+                                if (xquery.execute(compiled, null).getItemCount() != 10)
+                                    {failures.incrementAndGet();}
+                            } finally {
+                                compiled.getContext().runCleanupTasks();
+                                xqPool.returnCompiledXQuery(source, compiled);
+                            }
+                        }
+                    } catch (final Exception e) {
+                        e.printStackTrace();
+                        failures.incrementAndGet();
+                    } finally {
+                        pool.release(broker);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+        assertTrue(xqPool.getPooledInstances() <= XQueryPool.MAX_STACK_SIZE);
+        assertEquals(8 * 200, xqPool.getHits() + xqPool.getMisses());
+        assertTrue(xqPool.getHits() > 0);
+    }
+
+    private XQueryPool newPool(int size, long validationInterval) throws Exception {
+        final Configuration config = new Configuration();
+        config.setProperty(XQueryPool.PROPERTY_POOL_SIZE, Integer.valueOf(size));
+        config.setProperty(XQueryPool.PROPERTY_VALIDATION_INTERVAL, Long.valueOf(validationInterval));
+        return new XQueryPool(config);
+    }
+
+    private static CompiledXQuery compile(DBBroker broker, Source source) throws Exception {
+        final XQuery xquery = broker.getXQueryService();
+        final XQueryContext context = xquery.newContext(AccessContext.TEST);
+        return xquery.compile(context, source);
+    }
+
+    private Source getSource(DBBroker broker, XmldbURI uri) throws Exception {
+        DocumentImpl doc = null;
+        try {
+            doc = broker.getXMLResource(uri, Lock.READ_LOCK);
+            return new DBSource(broker, (BinaryDocument) doc, true);
+        } finally {
+            if (doc != null)
+                {doc.getUpdateLock().release(Lock.READ_LOCK);}
+        }
+    }
+
+    private void storeQuery(XmldbURI uri, String query) throws Exception {
+        final TransactionManager transact = pool.getTransactionManager();
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Txn transaction = transact.beginTransaction();
+            final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.saveCollection(transaction, root);
+            root.addBinaryResource(transaction, broker, uri.lastSegment(), query.getBytes("UTF-8"), "application/xquery");
+            transact.commit(transaction);
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    @BeforeClass
+    public static void startDB() throws Exception {
+        final Configuration config = new Configuration();
+        BrokerPool.configure(1, 5, config);
+        pool = BrokerPool.getInstance();
+    }
+
+    @AfterClass
+    public static void stopDB() throws Exception {
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final TransactionManager transact = pool.getTransactionManager();
+            final Txn transaction = transact.beginTransaction();
+            final Collection root = broker.getCollection(TestConstants.TEST_COLLECTION_URI);
+            if (root != null)
+                {broker.removeCollection(transaction, root);}
+            transact.commit(transaction);
+        } finally {
+            pool.release(broker);
+        }
+        BrokerPool.stopAll(false);
+        pool = null;
+    }
+}
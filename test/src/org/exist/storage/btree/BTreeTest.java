@@ -448,6 +448,184 @@ public class BTreeTest {
         System.out.println("------------------ testNumbersWithPrefix: END -------------------------");
     }
 
+    @Test
+    public void batchedFlush() throws Exception {
+        BTree btree = new BTree(pool, (byte) 0, false, pool.getCacheManager(), file, 0.1);
+        try {
+            btree.create((short) -1);
+            for (int i = 1; i <= COUNT; i++) {
+                btree.addValue(new Value("B" + Integer.toString(i)), i);
+            }
+            btree.flush();
+            System.out.println("Flushed " + btree.getBatchedPages() + " pages in " + btree.getBatchWrites() + " writes");
+            assertTrue(btree.getBatchedPages() > 0);
+            // pages allocated during the inserts are adjacent, so writes are merged
+            assertTrue(btree.getBatchWrites() < btree.getBatchedPages());
+        } finally {
+            btree.close();
+        }
+
+        btree = new BTree(pool, (byte) 0, false, pool.getCacheManager(), file, 0.1);
+        try {
+            assertTrue(btree.open((short) -1));
+            for (int i = 1; i <= COUNT; i++) {
+                assertEquals(i, btree.findValue(new Value("B" + Integer.toString(i))));
+            }
+        } finally {
+            btree.close();
+        }
+    }
+
+    @Test
+    public void bulkBuild() throws Exception {
+        // a small memory limit writes most keys to temporary runs
+        final KeySorter sorter = new KeySorter(file.getParentFile(), 16 * 1024);
+        final Random random = new Random(7);
+        final Map<String, Long> expected = new TreeMap<String, Long>();
+        for (int i = 0; i < COUNT * 4; i++) {
+            final String key = "K" + random.nextInt(COUNT * 2);
+            sorter.add(new Value(key), i);
+            // the last pointer added for a key wins
+            expected.put(key, Long.valueOf(i));
+        }
+        assertTrue(sorter.getRunCount() > 1);
+
+        BTree btree = new BTree(pool, (byte) 0, false, pool.getCacheManager(), file, 0.1);
+        try {
+            btree.create((short) -1);
+            assertTrue(btree.isEmpty());
+            btree.addSorted(null, sorter, 0.7);
+            sorter.clear();
+            assertFalse(btree.isEmpty());
+            btree.flush();
+        } finally {
+            btree.close();
+        }
+
+        btree = new BTree(pool, (byte) 0, false, pool.getCacheManager(), file, 0.1);
+        try {
+            assertTrue(btree.open((short) -1));
+            for (final Map.Entry<String, Long> entry : expected.entrySet()) {
+                assertEquals(entry.getValue().longValue(), btree.findValue(new Value(entry.getKey())));
+            }
+            btree.query(new IndexQuery(IndexQuery.TRUNC_RIGHT, new Value("K")), new SimpleCallback());
+            assertEquals(expected.size(), count);
+
+            // pages have room left for inserts
+            for (int i = 0; i < COUNT; i++) {
+                btree.addValue(new Value("K" + i + "x"), i);
+            }
+            for (int i = 0; i < COUNT; i++) {
+                assertEquals(i, btree.findValue(new Value("K" + i + "x")));
+            }
+            for (final Map.Entry<String, Long> entry : expected.entrySet()) {
+                assertEquals(entry.getValue().longValue(), btree.findValue(new Value(entry.getKey())));
+            }
+
+            // keys added to a tree which is not empty are inserted one by one
+            final KeySorter more = new KeySorter(file.getParentFile());
+            for (int i = 0; i < COUNT; i++) {
+                more.add(new Value("L" + i), i);
+            }
+            btree.addSorted(null, more, 0.7);
+            more.clear();
+            btree.query(new IndexQuery(IndexQuery.TRUNC_RIGHT, new Value("L")), new SimpleCallback());
+            assertEquals(COUNT, count);
+        } finally {
+            btree.close();
+        }
+    }
+
+    @Test(expected = BTreeException.class)
+    public void bulkBuildUnsorted() throws Exception {
+        final BTree btree = new BTree(pool, (byte) 0, false, pool.getCacheManager(), file, 0.1);
+        try {
+            btree.create((short) -1);
+            final BTree.BulkBuilder builder = btree.createBulkBuilder(null, 1.0);
+            builder.add(new Value("B"), 1);
+            builder.add(new Value("A"), 2);
+        } finally {
+            btree.close();
+        }
+    }
+
+    @Test
+    public void truncate() throws Exception {
+        BTree btree = new BTree(pool, (byte) 0, false, pool.getCacheManager(), file, 0.1);
+        try {
+            btree.create((short) -1);
+            for (int i = 0; i < COUNT; i++) {
+                btree.addValue(new Value("K" + i), i);
+            }
+            btree.flush();
+            final long length = file.length();
+            btree.truncate();
+            assertTrue(btree.isEmpty());
+            assertTrue(file.length() < length);
+            assertEquals(BTree.KEY_NOT_FOUND, btree.findValue(new Value("K1")));
+
+            // the empty tree is built bottom-up
+            final KeySorter sorter = new KeySorter(file.getParentFile());
+            for (int i = 0; i < COUNT; i++) {
+                sorter.add(new Value("L" + i), i);
+            }
+            btree.addSorted(null, sorter, 0.9);
+            sorter.clear();
+            btree.flush();
+        } finally {
+            btree.close();
+        }
+
+        btree = new BTree(pool, (byte) 0, false, pool.getCacheManager(), file, 0.1);
+        try {
+            assertTrue(btree.open((short) -1));
+            btree.query(new IndexQuery(IndexQuery.TRUNC_RIGHT, new Value("K")), new SimpleCallback());
+            assertEquals(0, count);
+            btree.query(new IndexQuery(IndexQuery.TRUNC_RIGHT, new Value("L")), new SimpleCallback());
+            assertEquals(COUNT, count);
+            assertEquals(17, btree.findValue(new Value("L17")));
+        } finally {
+            btree.close();
+        }
+    }
+
+    /**
+     * Compares the time needed to add random keys one by one and with a bulk build.
+     */
+    public static void main(String[] args) throws Exception {
+        final int keys = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        final BTreeTest test = new BTreeTest();
+        for (int round = 0; round < 2; round++) {
+            for (final boolean bulk : new boolean[] { false, true }) {
+                test.initialize();
+                final BTree btree = new BTree(test.pool, (byte) 0, false, test.pool.getCacheManager(), test.file, 0.1);
+                try {
+                    btree.create((short) -1);
+                    final Random random = new Random(round);
+                    final long start = System.currentTimeMillis();
+                    if (bulk) {
+                        final KeySorter sorter = new KeySorter(test.file.getParentFile());
+                        for (int i = 0; i < keys; i++) {
+                            sorter.add(new Value("K" + random.nextInt()), i);
+                        }
+                        btree.addSorted(null, sorter, 0.9);
+                        sorter.clear();
+                    } else {
+                        for (int i = 0; i < keys; i++) {
+                            btree.addValue(new Value("K" + random.nextInt()), i);
+                        }
+                    }
+                    btree.flush();
+                    System.out.println((bulk ? "bulk build" : "one by one") + ": " + keys + " keys in " +
+                        (System.currentTimeMillis() - start) + "ms, " + (test.file.length() / 1024) + "KB");
+                } finally {
+                    btree.close();
+                    test.cleanUp();
+                }
+            }
+        }
+    }
+
     @Before
     public void initialize() {
         try {
@@ -0,0 +1,103 @@
+package org.exist.storage.btree;
+
+import org.exist.storage.BrokerPool;
+import org.exist.util.Configuration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that pages read through memory mapped segments are identical
+ * to pages read through the normal file access path.
+ */
+public class MemoryMappedPagedTest {
+
+    private static final int COUNT = 20000;
+
+    private BrokerPool pool;
+    private File file = null;
+
+    @Test
+    public void readMappedPages() throws Exception {
+        pool.getConfiguration().setProperty(Paged.PROPERTY_MEMORY_MAPPED, file.getName());
+        BTree btree = new BTree(pool, (byte) 0, false, pool.getCacheManager(), file, 0.1);
+        assertTrue(btree.isMemoryMapped());
+        btree.create((short) -1);
+        for (int i = 1; i <= COUNT; i++) {
+            btree.addValue(new Value("K" + i), i);
+        }
+        btree.flush();
+        final long pageCount = btree.getFileHeader().getTotalCount();
+        final int pageSize = btree.getFileHeader().getPageSize();
+        // reopen: reads are now served from the mapped file
+        btree.close();
+        btree = new BTree(pool, (byte) 0, false, pool.getCacheManager(), file, 0.1);
+        btree.open((short) -1);
+        for (int i = 1; i <= COUNT; i++) {
+            assertEquals(i, btree.findValue(new Value("K" + i)));
+        }
+        btree.close();
+
+        // compare raw page contents, using small segments to test segment boundaries
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final MappedPageReader reader = new MappedPageReader(raf.getChannel(), 4 * pageSize);
+            final byte[] expected = new byte[pageSize];
+            final byte[] actual = new byte[pageSize];
+            int mapped = 0;
+            for (long page = 0; page < pageCount; page++) {
+                final long offset = pageSize + page * pageSize;
+                final ByteBuffer buf = reader.getPage(offset, pageSize);
+                if (buf == null) {
+                    // page is in the last, incomplete segment
+                    assertTrue(offset + pageSize > reader.getMappedLength());
+                    continue;
+                }
+                buf.get(actual);
+                raf.seek(offset);
+                raf.readFully(expected);
+                assertTrue("page " + page + " differs", Arrays.equals(expected, actual));
+                mapped++;
+            }
+            assertTrue(mapped > 0);
+            reader.close();
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Before
+    public void initialize() {
+        try {
+            Configuration config = new Configuration();
+            BrokerPool.configure(1, 5, config);
+            pool = BrokerPool.getInstance();
+
+            file = new File(System.getProperty("exist.home", ".") + "/test/junit/mapped.dbx");
+            assertFalse(file.exists());
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @After
+    public void cleanUp() {
+        try {
+            pool.getConfiguration().removeProperty(Paged.PROPERTY_MEMORY_MAPPED);
+            BrokerPool.stopAll(false);
+            file.delete();
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+        pool = null;
+        file = null;
+    }
+}
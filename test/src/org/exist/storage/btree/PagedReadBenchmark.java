@@ -0,0 +1,74 @@
+package org.exist.storage.btree;
+
+import org.exist.storage.BrokerPool;
+import org.exist.util.Configuration;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Compares random page reads through the {@link java.io.RandomAccessFile} path
+ * with reads through memory mapped segments. Not a unit test: run it with
+ * exist.home set, optionally passing the number of keys to insert.
+ *
+ * <pre>java org.exist.storage.btree.PagedReadBenchmark [keys] [reads]</pre>
+ */
+public class PagedReadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int keys = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        final int reads = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+
+        final Configuration config = new Configuration();
+        BrokerPool.configure(1, 5, config);
+        final BrokerPool pool = BrokerPool.getInstance();
+        final File file = new File(System.getProperty("exist.home", ".") + "/test/junit/benchmark.dbx");
+        file.delete();
+        try {
+            System.out.println("Creating b-tree with " + keys + " keys ...");
+            BTree btree = new BTree(pool, (byte) 0, false, pool.getCacheManager(), file, 0.1);
+            btree.create((short) -1);
+            for (int i = 0; i < keys; i++) {
+                btree.addValue(new Value("key-" + i + "-" + (i * 31)), i);
+            }
+            btree.flush();
+            btree.close();
+            System.out.println("File size: " + (file.length() / (1024 * 1024)) + "M");
+
+            for (int round = 0; round < 3; round++) {
+                config.removeProperty(Paged.PROPERTY_MEMORY_MAPPED);
+                btree = new BTree(pool, (byte) 0, false, pool.getCacheManager(), file, 0.1);
+                btree.open((short) -1);
+                final long raf = readPages(btree, reads);
+                btree.close();
+
+                config.setProperty(Paged.PROPERTY_MEMORY_MAPPED, file.getName());
+                btree = new BTree(pool, (byte) 0, false, pool.getCacheManager(), file, 0.1);
+                btree.open((short) -1);
+                final long mapped = readPages(btree, reads);
+                btree.close();
+
+                System.out.println("Round " + round + ": " + reads + " random page reads; RandomAccessFile: " +
+                    raf + "ms; memory mapped: " + mapped + "ms");
+            }
+        } finally {
+            config.removeProperty(Paged.PROPERTY_MEMORY_MAPPED);
+            BrokerPool.stopAll(false);
+            file.delete();
+        }
+    }
+
+    private static long readPages(BTree btree, int reads) throws Exception {
+        final long pages = btree.getFileHeader().getTotalCount();
+        final Random random = new Random(42);
+        final long start = System.currentTimeMillis();
+        long checksum = 0;
+        for (int i = 0; i < reads; i++) {
+            final Paged.Page page = btree.getPage((long) random.nextInt((int) pages));
+            checksum += page.read().length;
+        }
+        if (checksum == 0)
+            {System.out.println("No data read");}
+        return System.currentTimeMillis() - start;
+    }
+}
@@ -0,0 +1,186 @@
+package org.exist.storage.cache;
+
+import org.exist.storage.CacheManager;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class TwoQueueCacheTest {
+
+    @Test
+    public void addAndGet() {
+        final TwoQueueCache cache = new TwoQueueCache(10, 0.0, 1.0, CacheManager.DATA_CACHE);
+        for (int i = 0; i < 10; i++) {
+            cache.add(new Item(i));
+        }
+        assertEquals(10, cache.getUsedBuffers());
+        for (int i = 0; i < 10; i++) {
+            assertNotNull(cache.get(i));
+        }
+        assertNull(cache.get(100));
+        assertEquals(10, cache.getHits());
+        assertEquals(1, cache.getFails());
+        cache.add(new Item(10));
+        assertEquals(10, cache.getUsedBuffers());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void scanResistance() {
+        final TwoQueueCache cache = new TwoQueueCache(100, 0.0, 1.0, CacheManager.DATA_CACHE);
+        // build a working set which is used repeatedly
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 50; i++) {
+                if (cache.get(i) == null)
+                    {cache.add(new Item(i));}
+            }
+            // some other pages push the working set out of probation
+            for (int i = 1000 + round * 100; i < 1100 + round * 100; i++) {
+                cache.add(new Item(i));
+            }
+        }
+        assertTrue(cache.getProtectedBuffers() >= 50);
+        // a long scan over pages used only once
+        for (int i = 10000; i < 20000; i++) {
+            if (cache.get(i) == null)
+                {cache.add(new Item(i));}
+        }
+        for (int i = 0; i < 50; i++) {
+            assertNotNull("page " + i + " should still be cached", cache.get(i));
+        }
+        assertTrue(cache.getPollution() >= 10000 - 100);
+    }
+
+    @Test
+    public void allowUnload() {
+        final TwoQueueCache cache = new TwoQueueCache(4, 0.0, 1.0, CacheManager.DATA_CACHE);
+        final Item pinned = new Item(0);
+        pinned.allowUnload = false;
+        cache.add(pinned);
+        for (int i = 1; i < 100; i++) {
+            cache.add(new Item(i));
+        }
+        assertSame(pinned, cache.get(0));
+        assertEquals(4, cache.getUsedBuffers());
+    }
+
+    @Test
+    public void evictionSyncsItems() {
+        final TwoQueueCache cache = new TwoQueueCache(2, 0.0, 1.0, CacheManager.DATA_CACHE);
+        final Item first = new Item(0);
+        first.dirty = true;
+        cache.add(first);
+        cache.add(new Item(1));
+        cache.add(new Item(2));
+        assertNull(cache.get(0));
+        assertFalse(first.dirty);
+    }
+
+    @Test
+    public void resize() {
+        final TwoQueueCache cache = new TwoQueueCache(20, 0.0, 1.0, CacheManager.DATA_CACHE);
+        for (int i = 0; i < 20; i++) {
+            cache.add(new Item(i));
+        }
+        cache.resize(10);
+        assertEquals(10, cache.getBuffers());
+        assertEquals(10, cache.getUsedBuffers());
+        cache.resize(40);
+        for (int i = 100; i < 130; i++) {
+            cache.add(new Item(i));
+        }
+        assertEquals(40, cache.getUsedBuffers());
+    }
+
+    @Test
+    public void concurrentAccess() throws InterruptedException {
+        final TwoQueueCache cache = new TwoQueueCache(64, 0.0, 1.0, CacheManager.DATA_CACHE);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        int next = seed;
+                        for (int i = 0; i < 20000; i++) {
+                            next = next * 1103515245 + 12345;
+                            final long key = (next >>> 16) % 200;
+                            final Cacheable item = cache.get(key);
+                            if (item == null)
+                                {cache.add(new Item(key));}
+                            else if (item.getKey() != key)
+                                {failed.set(true);}
+                        }
+                    } catch (final Exception e) {
+                        e.printStackTrace();
+                        failed.set(true);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertFalse(failed.get());
+        assertTrue(cache.getUsedBuffers() <= 64);
+    }
+
+    private static class Item implements Cacheable {
+
+        private final long key;
+        private int refCount = 0;
+        private int timestamp = 0;
+        boolean dirty = false;
+        boolean allowUnload = true;
+
+        Item(long key) {
+            this.key = key;
+        }
+
+        public long getKey() {
+            return key;
+        }
+
+        public int getReferenceCount() {
+            return refCount;
+        }
+
+        public int incReferenceCount() {
+            return ++refCount;
+        }
+
+        public int decReferenceCount() {
+            return refCount > 0 ? --refCount : 0;
+        }
+
+        public void setReferenceCount(int count) {
+            refCount = count;
+        }
+
+        public void setTimestamp(int timestamp) {
+            this.timestamp = timestamp;
+        }
+
+        public int getTimestamp() {
+            return timestamp;
+        }
+
+        public boolean sync(boolean syncJournal) {
+            final boolean wasDirty = dirty;
+            dirty = false;
+            return wasDirty;
+        }
+
+        public boolean allowUnload() {
+            return allowUnload;
+        }
+
+        public boolean isDirty() {
+            return dirty;
+        }
+    }
+}
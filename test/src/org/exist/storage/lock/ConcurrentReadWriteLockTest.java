@@ -0,0 +1,189 @@
+package org.exist.storage.lock;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentReadWriteLockTest {
+
+    @Test
+    public void reentrantRead() throws Exception {
+        final ConcurrentReadWriteLock lock = new ConcurrentReadWriteLock("test");
+        assertTrue(lock.acquire(Lock.READ_LOCK));
+        assertTrue(lock.acquire(Lock.READ_LOCK));
+        assertTrue(lock.isLockedForRead(Thread.currentThread()));
+        lock.release(Lock.READ_LOCK);
+        assertTrue(lock.isLockedForRead(Thread.currentThread()));
+        lock.release(Lock.READ_LOCK);
+        assertFalse(lock.hasLock());
+    }
+
+    @Test
+    public void reentrantWriteAndReadWithinWrite() throws Exception {
+        final ConcurrentReadWriteLock lock = new ConcurrentReadWriteLock("test");
+        assertTrue(lock.acquire(Lock.WRITE_LOCK));
+        assertTrue(lock.acquire(Lock.WRITE_LOCK));
+        assertTrue(lock.acquire(Lock.READ_LOCK));
+        assertTrue(lock.isLockedForWrite());
+        lock.release(Lock.READ_LOCK);
+        lock.release(Lock.WRITE_LOCK, 2);
+        assertFalse(lock.isLockedForWrite());
+        assertFalse(lock.hasLock());
+    }
+
+    @Test
+    public void upgrade() throws Exception {
+        final ConcurrentReadWriteLock lock = new ConcurrentReadWriteLock("test");
+        lock.acquire(Lock.READ_LOCK);
+        assertTrue(lock.attempt(Lock.WRITE_LOCK));
+        assertSame(Thread.currentThread(), lock.getWriteLockedThread());
+        lock.release(Lock.WRITE_LOCK);
+        lock.release(Lock.READ_LOCK);
+        assertFalse(lock.hasLock());
+    }
+
+    @Test
+    public void failedWriteAttempt() throws Exception {
+        final ConcurrentReadWriteLock lock = new ConcurrentReadWriteLock("test");
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread reader = new Thread() {
+            public void run() {
+                try {
+                    lock.acquire(Lock.READ_LOCK);
+                    locked.countDown();
+                    done.await();
+                    lock.release(Lock.READ_LOCK);
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        reader.start();
+        assertTrue(locked.await(10, TimeUnit.SECONDS));
+        // the write lock is not granted while another thread reads, and has no owner
+        assertFalse(lock.attempt(Lock.WRITE_LOCK));
+        assertNull(lock.getWriteLockedThread());
+        assertFalse(lock.isLockedForWrite());
+        assertTrue(lock.attempt(Lock.READ_LOCK));
+        lock.release(Lock.READ_LOCK);
+        done.countDown();
+        reader.join();
+        assertFalse(lock.hasLock());
+    }
+
+    @Test
+    public void writerExcludesReaders() throws Exception {
+        final ConcurrentReadWriteLock lock = new ConcurrentReadWriteLock("test");
+        lock.acquire(Lock.WRITE_LOCK);
+        final AtomicBoolean attempted = new AtomicBoolean(true);
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final Thread reader = new Thread() {
+            public void run() {
+                attempted.set(lock.attempt(Lock.READ_LOCK));
+                try {
+                    lock.acquire(Lock.READ_LOCK);
+                    acquired.countDown();
+                    lock.release(Lock.READ_LOCK);
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        reader.start();
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        lock.release(Lock.WRITE_LOCK);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        reader.join();
+        assertFalse(attempted.get());
+    }
+
+    @Test
+    public void readersExcludeWriter() throws Exception {
+        final ConcurrentReadWriteLock lock = new ConcurrentReadWriteLock("test");
+        lock.acquire(Lock.READ_LOCK);
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final Thread writer = new Thread() {
+            public void run() {
+                try {
+                    lock.acquire(Lock.WRITE_LOCK);
+                    acquired.countDown();
+                    lock.release(Lock.WRITE_LOCK);
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        writer.start();
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        assertTrue(lock.getLockInfo().getWaitingForWrite().length == 1);
+        lock.release(Lock.READ_LOCK);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        writer.join();
+        assertFalse(lock.hasLock());
+    }
+
+    @Test
+    public void mutualExclusion() throws Exception {
+        final ConcurrentReadWriteLock lock = new ConcurrentReadWriteLock("test");
+        final AtomicInteger writers = new AtomicInteger();
+        final AtomicInteger readers = new AtomicInteger();
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final boolean write = i % 4 == 0;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 2000; j++) {
+                            if (write) {
+                                lock.acquire(Lock.WRITE_LOCK);
+                                if (writers.incrementAndGet() != 1 || readers.get() != 0)
+                                    {failed.set(true);}
+                                writers.decrementAndGet();
+                                lock.release(Lock.WRITE_LOCK);
+                            } else {
+                                lock.acquire(Lock.READ_LOCK);
+                                readers.incrementAndGet();
+                                if (writers.get() != 0)
+                                    {failed.set(true);}
+                                readers.decrementAndGet();
+                                lock.release(Lock.READ_LOCK);
+                            }
+                        }
+                    } catch (final Exception e) {
+                        e.printStackTrace();
+                        failed.set(true);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertFalse(failed.get());
+        assertFalse(lock.hasLock());
+    }
+
+    @Test
+    public void lockInfo() throws Exception {
+        final ConcurrentReadWriteLock lock = new ConcurrentReadWriteLock("/db/test", LockInfo.COLLECTION_LOCK);
+        lock.acquire(Lock.READ_LOCK);
+        LockInfo info = lock.getLockInfo();
+        assertEquals(LockInfo.COLLECTION_LOCK, info.getLockType());
+        assertEquals(LockInfo.READ_LOCK, info.getLockMode());
+        assertEquals(1, info.getOwners().length);
+        lock.acquire(Lock.WRITE_LOCK);
+        info = lock.getLockInfo();
+        assertEquals(LockInfo.WRITE_LOCK, info.getLockMode());
+        assertEquals(Thread.currentThread().getName(), info.getOwners()[0]);
+        lock.release(Lock.WRITE_LOCK);
+        lock.release(Lock.READ_LOCK);
+    }
+}
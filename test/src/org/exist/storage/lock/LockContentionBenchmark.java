@@ -0,0 +1,65 @@
+package org.exist.storage.lock;
+
+/**
+ * Measures lock throughput for a read-mostly workload with many threads
+ * acquiring the same lock. Compares {@link ReentrantReadWriteLock},
+ * {@link MultiReadReentrantLock} and {@link ConcurrentReadWriteLock}.
+ * Not a unit test.
+ *
+ * <pre>java org.exist.storage.lock.LockContentionBenchmark [threads] [ops per thread] [write ratio in percent]</pre>
+ */
+public class LockContentionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        final int ops = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+        final int writePercent = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+
+        System.out.println("Threads: " + threads + "; operations per thread: " + ops +
+            "; writes: " + writePercent + "%");
+        for (int round = 0; round < 2; round++) {
+            run("ReentrantReadWriteLock", new ReentrantReadWriteLock("bench"), threads, ops, writePercent);
+            run("MultiReadReentrantLock", new MultiReadReentrantLock("bench"), threads, ops, writePercent);
+            run("ConcurrentReadWriteLock", new ConcurrentReadWriteLock("bench"), threads, ops, writePercent);
+        }
+    }
+
+    private static void run(String name, final Lock lock, int threadCount, final int ops, final int writePercent)
+            throws InterruptedException {
+        final Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final int seed = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    int next = seed;
+                    try {
+                        for (int j = 0; j < ops; j++) {
+                            next = next * 1103515245 + 12345;
+                            final int mode = ((next >>> 16) % 100) < writePercent ? Lock.WRITE_LOCK : Lock.READ_LOCK;
+                            lock.acquire(mode);
+                            try {
+                                // nested acquire as done by most code paths
+                                lock.acquire(Lock.READ_LOCK);
+                                lock.release(Lock.READ_LOCK);
+                            } finally {
+                                lock.release(mode);
+                            }
+                        }
+                    } catch (final Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        }
+        final long start = System.currentTimeMillis();
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        System.out.println(name + ": " + elapsed + "ms; " +
+            ((long) threadCount * ops * 1000 / elapsed) + " ops/sec");
+    }
+}
@@ -0,0 +1,175 @@
+package org.exist.storage.structural;
+
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.dom.ContextItem;
+import org.exist.dom.DefaultDocumentSet;
+import org.exist.dom.DocumentImpl;
+import org.exist.dom.DocumentSet;
+import org.exist.dom.NewArrayNodeSet;
+import org.exist.dom.NodeProxy;
+import org.exist.dom.NodeSet;
+import org.exist.dom.QName;
+import org.exist.indexing.StructuralIndex;
+import org.exist.numbering.NodeId;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.ElementValue;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.Constants;
+import org.exist.xquery.Expression;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+public class StructuralJoinTest {
+
+    private final static String XML =
+        "<section n='1'>" +
+            "<section n='1.1'>" +
+                "<para n='1.1.1'/>" +
+                "<section n='1.1.2'>" +
+                    "<para n='1.1.2.1'/>" +
+                    "<section n='1.1.2.2'>" +
+                        "<para n='1.1.2.2.1'/>" +
+                    "</section>" +
+                "</section>" +
+                "<para n='1.1.3'/>" +
+            "</section>" +
+            "<para n='1.2'/>" +
+            "<section n='1.3'/>" +
+        "</section>";
+
+    private final static int[] AXES = {
+        Constants.CHILD_AXIS, Constants.DESCENDANT_AXIS, Constants.DESCENDANT_SELF_AXIS
+    };
+
+    private static BrokerPool pool;
+    private static DBBroker broker;
+    private static DocumentSet docs;
+
+    @Test
+    public void sameResultAsLookup() throws Exception {
+        final NodeSet sections = findElements("section");
+        assertEquals(10, sections.getLength());
+        assertJoin(sections, "para");
+        assertJoin(sections, "section");
+        assertJoin(findElements("para"), "para");
+    }
+
+    @Test
+    public void documentNodes() throws Exception {
+        final NodeSet documents = new NewArrayNodeSet();
+        for (final Iterator<DocumentImpl> i = docs.getDocumentIterator(); i.hasNext(); ) {
+            documents.add(new NodeProxy(i.next(), NodeId.DOCUMENT_NODE));
+        }
+        assertJoin(documents, "section");
+        assertEquals(2, join(documents, "section", Constants.CHILD_AXIS, Expression.NO_CONTEXT_ID).getLength());
+    }
+
+    @Test
+    public void subsetOfDocuments() throws Exception {
+        final NodeSet sections = findElements("section");
+        final NodeSet subset = new NewArrayNodeSet();
+        for (final NodeProxy p : sections) {
+            if (p.getDocument().getFileURI().equals(XmldbURI.create("test2.xml")))
+                {subset.add(p);}
+        }
+        assertEquals(5, subset.getLength());
+        assertJoin(subset, "para");
+        assertEquals(5, join(subset, "para", Constants.DESCENDANT_AXIS, Expression.NO_CONTEXT_ID).getLength());
+    }
+
+    @Test
+    public void contextNodes() throws Exception {
+        final NodeSet sections = findElements("section");
+        for (final NodeProxy p : sections) {
+            p.addContextNode(1, p);
+        }
+        final NodeSet paras = join(sections, "para", Constants.DESCENDANT_AXIS, 1);
+        final NodeSet expected = lookup(sections, "para", Constants.DESCENDANT_AXIS, 1);
+        assertEquals(expected.getLength(), paras.getLength());
+        for (int i = 0; i < paras.getLength(); i++) {
+            final NodeProxy para = paras.get(i);
+            assertTrue(expected.get(i).getNodeId().equals(para.getNodeId()));
+            assertEquals(countContext(expected.get(i)), countContext(para));
+        }
+        sections.clearContext(1);
+    }
+
+    private void assertJoin(NodeSet contextSet, String name) {
+        for (int i = 0; i < AXES.length; i++) {
+            final NodeSet expected = lookup(contextSet, name, AXES[i], Expression.NO_CONTEXT_ID);
+            final NodeSet joined = join(contextSet, name, AXES[i], Expression.NO_CONTEXT_ID);
+            assertEquals("axis " + AXES[i], expected.getLength(), joined.getLength());
+            for (int j = 0; j < expected.getLength(); j++) {
+                assertSame(expected.get(j).getDocument(), joined.get(j).getDocument());
+                assertTrue(expected.get(j).getNodeId().equals(joined.get(j).getNodeId()));
+                assertEquals(expected.get(j).getInternalAddress(), joined.get(j).getInternalAddress());
+            }
+        }
+    }
+
+    private int countContext(NodeProxy p) {
+        int count = 0;
+        for (ContextItem item = p.getContext(); item != null; item = item.getNextDirect()) {
+            count++;
+        }
+        return count;
+    }
+
+    private NodeSet lookup(NodeSet contextSet, String name, int axis, int contextId) {
+        return broker.getStructuralIndex().findDescendantsByTagName(ElementValue.ELEMENT,
+            new QName(name, ""), axis, docs, contextSet, contextId);
+    }
+
+    private NodeSet join(NodeSet contextSet, String name, int axis, int contextId) {
+        final StructuralIndex index = broker.getStructuralIndex();
+        return index.joinDescendantsByTagName(ElementValue.ELEMENT, new QName(name, ""), axis, docs,
+            contextSet, contextId);
+    }
+
+    private NodeSet findElements(String name) {
+        return broker.getStructuralIndex().findElementsByTagName(ElementValue.ELEMENT, docs,
+            new QName(name, ""), null);
+    }
+
+    @BeforeClass
+    public static void startDB() throws Exception {
+        final Configuration config = new Configuration();
+        BrokerPool.configure(1, 5, config);
+        pool = BrokerPool.getInstance();
+        broker = pool.get(pool.getSecurityManager().getSystemSubject());
+        final TransactionManager transact = pool.getTransactionManager();
+        final Txn transaction = transact.beginTransaction();
+        final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+        broker.saveCollection(transaction, root);
+        IndexInfo info = root.validateXMLResource(transaction, broker, TestConstants.TEST_XML_URI, XML);
+        root.store(transaction, broker, info, XML, false);
+        info = root.validateXMLResource(transaction, broker, XmldbURI.create("test2.xml"), XML);
+        root.store(transaction, broker, info, XML, false);
+        transact.commit(transaction);
+        docs = root.allDocs(broker, new DefaultDocumentSet(), true);
+    }
+
+    @AfterClass
+    public static void stopDB() throws Exception {
+        final TransactionManager transact = pool.getTransactionManager();
+        final Txn transaction = transact.beginTransaction();
+        final Collection root = broker.getCollection(TestConstants.TEST_COLLECTION_URI);
+        if (root != null)
+            {broker.removeCollection(transaction, root);}
+        transact.commit(transaction);
+        pool.release(broker);
+        BrokerPool.stopAll(false);
+        pool = null;
+    }
+}
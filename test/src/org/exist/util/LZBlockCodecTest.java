@@ -0,0 +1,113 @@
+package org.exist.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LZBlockCodecTest {
+
+    private final LZBlockCodec codec = new LZBlockCodec();
+
+    @Test
+    public void emptyAndShortBlocks() throws IOException {
+        for (int len = 0; len < 20; len++) {
+            final byte[] data = new byte[len];
+            for (int i = 0; i < len; i++) {
+                data[i] = (byte) ('a' + i % 3);
+            }
+            roundTrip(data);
+        }
+    }
+
+    @Test
+    public void repetitiveData() throws IOException {
+        final byte[] zeros = new byte[4096];
+        final int len = roundTrip(zeros);
+        assertTrue("Zero page should compress to a few bytes, got " + len, len < 64);
+
+        final StringBuilder buf = new StringBuilder();
+        for (int i = 0; buf.length() < 4000; i++) {
+            buf.append("<item id='").append(i).append("'><name>Item ").append(i).append("</name></item>");
+        }
+        final byte[] xml = buf.toString().getBytes("UTF-8");
+        assertTrue(roundTrip(xml) < xml.length / 2);
+    }
+
+    @Test
+    public void longLiteralsAndMatches() throws IOException {
+        final Random random = new Random(42);
+        final byte[] data = new byte[8192];
+        // 1000 random bytes, followed by a long repetition of them, a random tail
+        for (int i = 0; i < 1000; i++) {
+            data[i] = (byte) random.nextInt();
+        }
+        for (int i = 1000; i < 7000; i++) {
+            data[i] = data[i % 1000];
+        }
+        for (int i = 7000; i < data.length; i++) {
+            data[i] = (byte) random.nextInt();
+        }
+        roundTrip(data);
+    }
+
+    @Test
+    public void randomData() throws IOException {
+        final Random random = new Random(7);
+        for (int round = 0; round < 200; round++) {
+            final byte[] data = new byte[random.nextInt(5000)];
+            // few distinct values produce many short, overlapping matches
+            final int range = 1 + random.nextInt(round % 2 == 0 ? 4 : 256);
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) random.nextInt(range);
+            }
+            roundTrip(data);
+        }
+    }
+
+    @Test
+    public void incompressibleData() {
+        final byte[] data = new byte[4096];
+        new Random(1).nextBytes(data);
+        final byte[] dest = new byte[data.length];
+        assertEquals(-1, codec.compress(data, 0, data.length, dest, 0, data.length - 1));
+    }
+
+    @Test
+    public void corruptData() throws IOException {
+        final byte[] data = new byte[4096];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 7);
+        }
+        final byte[] compressed = new byte[LZBlockCodec.maxCompressedLength(data.length)];
+        final int len = codec.compress(data, 0, data.length, compressed, 0, compressed.length);
+        final byte[] dest = new byte[data.length];
+        try {
+            // output buffer too small
+            codec.decompress(compressed, 0, len, dest, 0, data.length / 2);
+            fail("Expected an IOException");
+        } catch (final IOException e) {
+            // expected
+        }
+        try {
+            // truncated input
+            codec.decompress(compressed, 0, len - 3, dest, 0, dest.length);
+            fail("Expected an IOException");
+        } catch (final IOException e) {
+            // expected
+        }
+    }
+
+    private int roundTrip(byte[] data) throws IOException {
+        final byte[] compressed = new byte[LZBlockCodec.maxCompressedLength(data.length) + 10];
+        final int len = codec.compress(data, 0, data.length, compressed, 5, compressed.length - 5);
+        assertTrue(len > 0);
+        final byte[] result = new byte[data.length + 10];
+        assertEquals(data.length, codec.decompress(compressed, 5, len, result, 3, data.length));
+        assertArrayEquals(data, Arrays.copyOfRange(result, 3, 3 + data.length));
+        return len;
+    }
+}
@@ -44,6 +44,12 @@ import org.junit.runners.Suite;
         XMLNodeAsXQueryParameterTest.class,
         OpNumericTest.class,
         DocumentUpdateTest.class,
+        DocumentUpdateLockingTest.class,
+        SnapshotQueryTest.class,
+        ParallelForTest.class,
+        HashJoinTest.class,
+        OrderBySpillTest.class,
+        LazySequenceTest.class,
         AnyURITest.class,
         ConstructedNodesTest.class,
         ConstructedNodesRecoveryTest.class,
@@ -0,0 +1,116 @@
+package org.exist.xquery;
+
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.dom.QName;
+import org.exist.indexing.IndexManager;
+import org.exist.security.xacml.AccessContext;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.statistics.IndexStatistics;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.xquery.value.Sequence;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs comparisons on a typed range index with element statistics, so the cost model
+ * may decide to compare the nodes one by one instead of using the index.
+ */
+public class CostModelStatisticsTest {
+
+    private final static String COLLECTION_CONFIG =
+        "<collection xmlns=\"http://exist-db.org/collection-config/1.0\">" +
+        "   <index>" +
+        "       <create qname=\"price\" type=\"xs:double\"/>" +
+        "       <create qname=\"name\" type=\"xs:string\"/>" +
+        "   </index>" +
+        "</collection>";
+
+    private final static String XML =
+        "<items>" +
+            "<item><name>a</name><price>10.0</price></item>" +
+        "</items>";
+
+    private static BrokerPool pool;
+    private static DBBroker broker;
+
+    @Test
+    public void statistics() throws Exception {
+        final CostModel costModel = new XQueryContext(pool, AccessContext.TEST).getCostModel();
+        assertTrue(costModel.hasStatistics());
+        // a single node is cheaper to compare than an index lookup
+        assertFalse(costModel.useRangeIndex(new QName("price", ""), Constants.EQ, Constants.TRUNC_NONE, 1, 1));
+    }
+
+    @Test
+    public void typedIndex() throws Exception {
+        // the key is converted to the type of the index, whatever the cost model estimates
+        assertEquals(1, query("//item[price = '10']"));
+        assertEquals(1, query("//item[price = 10]"));
+        assertEquals(0, query("//item[price = '11']"));
+        assertEquals(1, query("//item[name = 'a']"));
+        // a single node on the left: the cost model prefers comparing the nodes, but not for the xs:double index
+        assertEquals(1, query("for $i in //item return $i[price = '10']"));
+        assertEquals(0, query("for $i in //item return $i[price = '11']"));
+        assertEquals(1, query("for $i in //item return $i[name = 'a']"));
+    }
+
+    private int query(String query) throws Exception {
+        final XQuery xquery = broker.getXQueryService();
+        final Sequence result = xquery.execute(query, null, AccessContext.TEST);
+        return result.getItemCount();
+    }
+
+    @BeforeClass
+    public static void startDB() throws Exception {
+        final Configuration config = new Configuration();
+        // add the statistics module to the configured index modules
+        final Element module = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument()
+            .createElement("module");
+        module.setAttribute("id", "index-stats");
+        module.setAttribute("file", "stats.dbx");
+        final Configuration.IndexModuleConfig[] modules =
+            (Configuration.IndexModuleConfig[]) config.getProperty(IndexManager.PROPERTY_INDEXER_MODULES);
+        final int count = modules == null ? 0 : modules.length;
+        final Configuration.IndexModuleConfig[] withStats = new Configuration.IndexModuleConfig[count + 1];
+        if (modules != null)
+            {System.arraycopy(modules, 0, withStats, 0, count);}
+        withStats[count] = new Configuration.IndexModuleConfig("index-stats", IndexStatistics.class.getName(), module);
+        config.setProperty(IndexManager.PROPERTY_INDEXER_MODULES, withStats);
+
+        BrokerPool.configure(1, 5, config);
+        pool = BrokerPool.getInstance();
+        broker = pool.get(pool.getSecurityManager().getSystemSubject());
+        final TransactionManager transact = pool.getTransactionManager();
+        final Txn transaction = transact.beginTransaction();
+        final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+        broker.saveCollection(transaction, root);
+        pool.getConfigurationManager().addConfiguration(transaction, broker, root, COLLECTION_CONFIG);
+        final IndexInfo info = root.validateXMLResource(transaction, broker, TestConstants.TEST_XML_URI, XML);
+        root.store(transaction, broker, info, XML, false);
+        transact.commit(transaction);
+    }
+
+    @AfterClass
+    public static void stopDB() throws Exception {
+        final TransactionManager transact = pool.getTransactionManager();
+        final Txn transaction = transact.beginTransaction();
+        final Collection root = broker.getCollection(TestConstants.TEST_COLLECTION_URI);
+        if (root != null)
+            {broker.removeCollection(transaction, root);}
+        transact.commit(transaction);
+        pool.release(broker);
+        BrokerPool.stopAll(false);
+        pool = null;
+    }
+}
@@ -0,0 +1,137 @@
+package org.exist.xquery;
+
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.security.xacml.AccessContext;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.xquery.value.Sequence;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CostModelTest {
+
+    private final static String XML =
+        "<section n='1'>" +
+            "<section n='1.1'>" +
+                "<para n='1.1.1'/>" +
+                "<para n='1.1.2' type='note'/>" +
+            "</section>" +
+            "<section n='1.2'>" +
+                "<para n='1.2.1' type='note'/>" +
+            "</section>" +
+        "</section>";
+
+    private static BrokerPool pool;
+    private static DBBroker broker;
+
+    @Test
+    public void selectivity() throws Exception {
+        final CostModel costModel = new XQueryContext(pool, AccessContext.TEST).getCostModel();
+        assertEquals(CostModel.EQUALITY_SELECTIVITY, costModel.getComparisonSelectivity(Constants.EQ, Constants.TRUNC_NONE), 0);
+        assertEquals(CostModel.RANGE_SELECTIVITY, costModel.getComparisonSelectivity(Constants.GT, Constants.TRUNC_NONE), 0);
+        assertEquals(CostModel.INEQUALITY_SELECTIVITY, costModel.getComparisonSelectivity(Constants.NEQ, Constants.TRUNC_NONE), 0);
+        // without statistics, the index is always used
+        assertFalse(costModel.hasStatistics());
+        assertTrue(costModel.useRangeIndex(null, Constants.GT, Constants.TRUNC_NONE, 1, 1));
+        assertFalse(costModel.useMergeJoin(null, 10, 100));
+        assertTrue(costModel.useMergeJoin(null, 100, 100));
+    }
+
+    @Test
+    public void orderPredicates() throws Exception {
+        final String plan = explain("//section[para][@n = '1.2'][para != 'x']");
+        assertEquals("3", queryString("count(" + plan + "/step[1]/predicate)"));
+        assertEquals("=", queryString(plan + "/step[1]/predicate[1]/comparison/@operator/string()"));
+        assertEquals("para", queryString(plan + "/step[1]/predicate[2]/step/@test/string()"));
+        assertEquals("!=", queryString(plan + "/step[1]/predicate[3]/comparison/@operator/string()"));
+        assertEquals(1, query("//section[para][@n = '1.2'][para != 'x']"));
+    }
+
+    @Test
+    public void positionalPredicates() throws Exception {
+        final String plan = explain("//section[para][@n = '1.2'][1][para][@n = '1.2']");
+        assertEquals("=", queryString(plan + "/step[1]/predicate[1]/comparison/@operator/string()"));
+        assertEquals("no", queryString(plan + "/step[1]/predicate[3]/@reorderable/string()"));
+        assertEquals("=", queryString(plan + "/step[1]/predicate[4]/comparison/@operator/string()"));
+        assertEquals(0, query("//section[para][last()][@n = '1.1']"));
+        assertEquals(1, query("//section[para][@n = '1.2'][1]"));
+        assertEquals(1, query("//para[position() = 2][@type = 'note']"));
+    }
+
+    @Test
+    public void positionInComparison() throws Exception {
+        // position() = 1 is estimated to be more selective, but must not be moved
+        String query = "//section[@n = '1.1']/para[@n != '1.1.1'][position() = 1]";
+        String plan = explain(query);
+        assertEquals("!=", queryString(plan + "/step[2]/predicate[1]/comparison/@operator/string()"));
+        assertEquals("no", queryString(plan + "/step[2]/predicate[2]/@reorderable/string()"));
+        assertEquals("1.1.2", queryString(query + "/@n/string()"));
+        query = "//section[@n = '1.1']/para[@n != '1.1.1'][@n = 'x' or last() = 1]";
+        plan = explain(query);
+        assertEquals("no", queryString(plan + "/step[2]/predicate[2]/@reorderable/string()"));
+        assertEquals("1.1.2", queryString(query + "/@n/string()"));
+    }
+
+    @Test
+    public void explain() throws Exception {
+        final String plan = explain("//section[para][@n = '1.2']");
+        assertEquals("enabled", queryString(plan + "/@optimizer/string()"));
+        assertEquals("no", queryString(plan + "/@statistics/string()"));
+        assertEquals("section", queryString(plan + "/step[1]/@test/string()"));
+        assertEquals("n", queryString(plan + "/step[1]/predicate[1]/comparison/@index-qname/string()"));
+        assertEquals("yes", queryString(plan + "/step[1]/predicate[2]/@reorderable/string()"));
+        assertEquals("true", queryString("contains(" + plan + "/query, 'section')"));
+    }
+
+    private String explain(String query) {
+        return "util:explain(\"" + query + "\")";
+    }
+
+    private int query(String query) throws Exception {
+        final XQuery xquery = broker.getXQueryService();
+        final Sequence result = xquery.execute(query, null, AccessContext.TEST);
+        return result.getItemCount();
+    }
+
+    private String queryString(String query) throws Exception {
+        final XQuery xquery = broker.getXQueryService();
+        final Sequence result = xquery.execute(query, null, AccessContext.TEST);
+        return result.getStringValue();
+    }
+
+    @BeforeClass
+    public static void startDB() throws Exception {
+        final Configuration config = new Configuration();
+        BrokerPool.configure(1, 5, config);
+        pool = BrokerPool.getInstance();
+        broker = pool.get(pool.getSecurityManager().getSystemSubject());
+        final TransactionManager transact = pool.getTransactionManager();
+        final Txn transaction = transact.beginTransaction();
+        final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+        broker.saveCollection(transaction, root);
+        final IndexInfo info = root.validateXMLResource(transaction, broker, TestConstants.TEST_XML_URI, XML);
+        root.store(transaction, broker, info, XML, false);
+        transact.commit(transaction);
+    }
+
+    @AfterClass
+    public static void stopDB() throws Exception {
+        final TransactionManager transact = pool.getTransactionManager();
+        final Txn transaction = transact.beginTransaction();
+        final Collection root = broker.getCollection(TestConstants.TEST_COLLECTION_URI);
+        if (root != null)
+            {broker.removeCollection(transaction, root);}
+        transact.commit(transaction);
+        pool.release(broker);
+        BrokerPool.stopAll(false);
+        pool = null;
+    }
+}
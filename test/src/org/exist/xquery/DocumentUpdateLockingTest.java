@@ -0,0 +1,171 @@
+package org.exist.xquery;
+
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.security.xacml.AccessContext;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.value.Sequence;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs XQuery Update expressions from several threads, with global and with
+ * per document update locking. Each thread appends to its own document and
+ * every few rounds also to a document shared by all threads, so document
+ * locks are acquired in different combinations. Checks that no update is
+ * lost and prints the throughput for both modes.
+ *
+ * Run {@link #main(String[])} for a longer benchmark.
+ */
+public class DocumentUpdateLockingTest {
+
+    private final static String COLLECTION = TestConstants.TEST_COLLECTION_URI.toString();
+
+    private final static int THREADS = 4;
+    private final static int SHARED_EVERY = 5;
+
+    private BrokerPool pool;
+
+    @Test
+    public void globalLocking() throws Exception {
+        run(BrokerPool.XUPDATE_LOCKING_GLOBAL, 50);
+    }
+
+    @Test
+    public void documentLocking() throws Exception {
+        run(BrokerPool.XUPDATE_LOCKING_DOCUMENT, 50);
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int updates = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        final DocumentUpdateLockingTest test = new DocumentUpdateLockingTest();
+        for (int round = 0; round < 2; round++) {
+            test.run(BrokerPool.XUPDATE_LOCKING_GLOBAL, updates);
+            test.tearDown();
+            test.run(BrokerPool.XUPDATE_LOCKING_DOCUMENT, updates);
+            test.tearDown();
+        }
+    }
+
+    private void run(String locking, final int updates) throws Exception {
+        pool = startDB(locking);
+        assertEquals(BrokerPool.XUPDATE_LOCKING_DOCUMENT.equals(locking), pool.isDocumentUpdateLocking());
+        storeDocuments();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final List<Future<?>> futures = new ArrayList<Future<?>>();
+        final long start = System.currentTimeMillis();
+        for (int i = 0; i < THREADS; i++) {
+            final int thread = i;
+            futures.add(executor.submit(new Runnable() {
+                public void run() {
+                    update(thread, updates);
+                }
+            }));
+        }
+        for (final Future<?> future : futures) {
+            future.get();
+        }
+        final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        System.out.println(locking + " locking: " + (THREADS * updates) + " updates in " + elapsed + "ms; " +
+            (THREADS * updates * 1000L / elapsed) + " updates/sec");
+
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final XQuery xquery = broker.getXQueryService();
+            for (int i = 0; i < THREADS; i++) {
+                final Sequence seq = xquery.execute("count(doc('" + COLLECTION + "/d" + i + ".xml')//item)",
+                    null, AccessContext.TEST);
+                assertEquals(String.valueOf(updates), seq.getStringValue());
+            }
+            final Sequence seq = xquery.execute("count(doc('" + COLLECTION + "/shared.xml')//item)",
+                null, AccessContext.TEST);
+            assertEquals(String.valueOf(THREADS * (updates / SHARED_EVERY)), seq.getStringValue());
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    private void update(int thread, int updates) {
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final XQuery xquery = broker.getXQueryService();
+            final String own = "doc('" + COLLECTION + "/d" + thread + ".xml')/items";
+            final String shared = "doc('" + COLLECTION + "/shared.xml')/items";
+            for (int i = 0; i < updates; i++) {
+                final String target = (i + 1) % SHARED_EVERY == 0 ? "(" + shared + ", " + own + ")" : own;
+                xquery.execute("update insert <item t='" + thread + "' n='" + i + "'/> into " + target,
+                    null, AccessContext.TEST);
+            }
+        } catch (final Exception e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    private void storeDocuments() throws Exception {
+        final TransactionManager transact = pool.getTransactionManager();
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Txn transaction = transact.beginTransaction();
+            final Collection collection = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.saveCollection(transaction, collection);
+            for (int i = 0; i <= THREADS; i++) {
+                final String name = i == THREADS ? "shared.xml" : "d" + i + ".xml";
+                final IndexInfo info = collection.validateXMLResource(transaction, broker,
+                    XmldbURI.create(name), "<items/>");
+                collection.store(transaction, broker, info, "<items/>", false);
+            }
+            transact.commit(transaction);
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    private BrokerPool startDB(String locking) throws Exception {
+        final Configuration config = new Configuration();
+        config.setProperty(BrokerPool.PROPERTY_XUPDATE_LOCKING, locking);
+        BrokerPool.configure(1, THREADS + 1, config);
+        return BrokerPool.getInstance();
+    }
+
+    @After
+    public void tearDown() {
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final TransactionManager transact = pool.getTransactionManager();
+            final Txn transaction = transact.beginTransaction();
+            final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.removeCollection(transaction, root);
+            transact.commit(transaction);
+        } catch (final Exception e) {
+            e.printStackTrace();
+        } finally {
+            pool.release(broker);
+        }
+        BrokerPool.stopAll(false);
+    }
+}
@@ -0,0 +1,246 @@
+package org.exist.xquery;
+
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.security.xacml.AccessContext;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.value.Sequence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Evaluates joins on XMark-like data with the optimizer enabled, which evaluates them as
+ * hash joins, and disabled, and compares the results.
+ *
+ * Run {@link #main(String[])} to compare the time taken by both.
+ */
+public class HashJoinTest {
+
+    private final static String COLLECTION = TestConstants.TEST_COLLECTION_URI.toString();
+
+    private final static String NO_OPTIMIZE = "declare option exist:optimize 'enable=no';\n";
+
+    private final static String PERSONS = "collection('" + COLLECTION + "')//person";
+    private final static String AUCTIONS = "collection('" + COLLECTION + "')//closed_auction";
+
+    private BrokerPool pool;
+
+    @Test
+    public void nestedFlwor() throws Exception {
+        // XMark Q8
+        assertSameResult("",
+            "for $p in " + PERSONS + " " +
+            "let $a := for $t in " + AUCTIONS + " where $t/buyer/@person = $p/@id return $t " +
+            "return <item person='{$p/name/text()}'>{count($a)}</item>");
+    }
+
+    @Test
+    public void forClauses() throws Exception {
+        assertSameResult("",
+            "for $t in " + AUCTIONS + ", $p in " + PERSONS + " where $p/@id = $t/buyer/@person " +
+            "return concat($t/price, ':', $p/name)");
+        // operands switched
+        assertSameResult("",
+            "for $t in " + AUCTIONS + ", $p in " + PERSONS + " where $t/seller/@person = $p/@id " +
+            "return concat($t/price, ':', $p/name)");
+        // value comparison
+        assertSameResult("",
+            "for $t in " + AUCTIONS + ", $p in " + PERSONS + " where $p/@id eq $t/buyer/@person " +
+            "return concat($t/price, ':', $p/name)");
+    }
+
+    @Test
+    public void andClause() throws Exception {
+        assertSameResult("",
+            "for $t in " + AUCTIONS + ", $p in " + PERSONS + " " +
+            "where $t/price > 50 and $p/@id = $t/buyer/@person and $p/name != 'Person 3' " +
+            "return concat($t/price, ':', $p/name)");
+    }
+
+    @Test
+    public void globalVariables() throws Exception {
+        final String prolog =
+            "declare variable $persons := " + PERSONS + ";\n" +
+            "declare variable $prefix := 'person';\n";
+        assertSameResult(prolog,
+            "for $t in " + AUCTIONS + ", $p in $persons where concat($prefix, substring-after($p/@id, $prefix)) = $t/buyer/@person " +
+            "return $p/name/string()");
+        // a local variable hides the global one
+        assertSameResult(prolog,
+            "for $t in " + AUCTIONS + " let $persons := $persons[position() mod 2 = 0] for $p in $persons " +
+            "where $p/@id = $t/buyer/@person return $p/name/string()");
+    }
+
+    @Test
+    public void atomicValues() throws Exception {
+        // untyped values are compared as numbers
+        assertSameResult("",
+            "for $t in " + AUCTIONS + ", $q in (1 to 10) where $q = $t/quantity return concat($t/@id, ':', $q)");
+        assertSameResult("",
+            "for $t in " + AUCTIONS + ", $q in (1.0, 2.0e0, 3, xs:float(4), xs:decimal(5)) where $q = $t/quantity " +
+            "return concat($t/@id, ':', $q)");
+        assertSameResult("",
+            "for $t in (1, 2, 3, 2), $s in ('1', '2', 'x', '3') where $s = string($t) return $s");
+        assertSameResult("",
+            "for $i in (1 to 5), $j in (0, -0.0e0, 1, number('NaN'), 5) where $j = $i - 1 return concat($i, ':', $j)");
+        // keys with more than one value
+        assertSameResult("",
+            "for $i in (1 to 5), $j in (1 to 5) where ($j, $j * 2) = $i return concat($i, ':', $j)");
+    }
+
+    @Test
+    public void collation() throws Exception {
+        final String prolog = "declare default collation 'http://exist-db.org/collation?lang=en&amp;strength=primary';\n";
+        final String flwor = "for $i in ('A', 'b', 'c'), $j in ('a', 'B', 'C', 'd') where $j = $i return concat($i, $j)";
+        assertSameResult(prolog, flwor);
+        assertEquals("Aa|bB|cC", query(prolog + "string-join(" + flwor + ", '|')"));
+    }
+
+    @Test
+    public void typeError() throws Exception {
+        final String flwor = "for $i in (1, 2, 3), $j in ('a', 'b') where $j = $i return $j";
+        for (final String prolog : new String[] { "", NO_OPTIMIZE }) {
+            try {
+                query(prolog + flwor);
+                fail("Comparing strings with numbers should fail");
+            } catch (final XPathException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void predicate() throws Exception {
+        // more values than nodes
+        assertSameResult("",
+            "let $buyers := " + AUCTIONS + "/buyer/@person return " + PERSONS + "[@id = $buyers]/name/string()");
+        // more nodes than values
+        assertSameResult("",
+            "let $persons := " + PERSONS + "[position() < 5]/@id return " + AUCTIONS + "[buyer/@person = $persons]/@id/string()");
+        assertSameResult("",
+            AUCTIONS + "[quantity = (2, 3)]/@id/string()");
+    }
+
+    private void assertSameResult(String prolog, String expr) throws Exception {
+        final String expected = query(prolog + NO_OPTIMIZE + serialize(expr));
+        final String joined = query(prolog + serialize(expr));
+        assertEquals(expected, joined);
+        assertTrue(expected.length() > 0);
+    }
+
+    private static String serialize(String expr) {
+        return "string-join(for $r in (" + expr + ") return " +
+            "if ($r instance of node()) then util:serialize($r, ()) else string($r), '|')";
+    }
+
+    private String query(String query) throws Exception {
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Sequence seq = broker.getXQueryService().execute(query, null, AccessContext.TEST);
+            return seq.getStringValue();
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    /**
+     * Benchmark: evaluates joins on an XMark-like document with and without
+     * hash joins.
+     */
+    public static void main(String[] args) throws Exception {
+        final int persons = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        final int auctions = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        final HashJoinTest test = new HashJoinTest();
+        test.setUp(persons, auctions);
+        try {
+            final String[] queries = {
+                "count(for $p in " + PERSONS + " " +
+                    "let $a := for $t in " + AUCTIONS + " where $t/buyer/@person = $p/@id return $t " +
+                    "return <item person='{$p/name/text()}'>{count($a)}</item>)",
+                "count(for $t in " + AUCTIONS + ", $p in " + PERSONS + " where $p/@id = $t/buyer/@person return $p/name)",
+                "count(let $buyers := " + AUCTIONS + "/buyer/@person return " + PERSONS + "[@id = $buyers])"
+            };
+            for (final String query : queries) {
+                System.out.println(query);
+                for (int round = 0; round < 2; round++) {
+                    for (final boolean join : new boolean[] { false, true }) {
+                        final long start = System.currentTimeMillis();
+                        final String result = test.query((join ? "" : NO_OPTIMIZE) + query);
+                        System.out.println("  " + (join ? "hash join" : "nested loop") + ": " + result + " in " +
+                            (System.currentTimeMillis() - start) + "ms");
+                    }
+                }
+            }
+        } finally {
+            test.tearDown();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        setUp(100, 150);
+    }
+
+    private void setUp(int persons, int auctions) throws Exception {
+        BrokerPool.configure(1, 5, new Configuration());
+        pool = BrokerPool.getInstance();
+        final TransactionManager transact = pool.getTransactionManager();
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Txn transaction = transact.beginTransaction();
+            final Collection collection = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.saveCollection(transaction, collection);
+            final StringBuilder buf = new StringBuilder();
+            buf.append("<site><people>");
+            for (int i = 0; i < persons; i++) {
+                buf.append("<person id='person").append(i).append("'><name>Person ").append(i).append("</name></person>");
+            }
+            buf.append("</people><closed_auctions>");
+            for (int i = 0; i < auctions; i++) {
+                // some buyers do not exist
+                buf.append("<closed_auction id='auction").append(i).append("'>")
+                    .append("<seller person='person").append((i * 7) % persons).append("'/>")
+                    .append("<buyer person='person").append((i * 13) % (persons + persons / 10)).append("'/>")
+                    .append("<price>").append(i % 100).append(".50</price>")
+                    .append("<quantity>").append(i % 6).append("</quantity>")
+                    .append("</closed_auction>");
+            }
+            buf.append("</closed_auctions></site>");
+            final IndexInfo info = collection.validateXMLResource(transaction, broker,
+                XmldbURI.create("auction.xml"), buf.toString());
+            collection.store(transaction, broker, info, buf.toString(), false);
+            transact.commit(transaction);
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final TransactionManager transact = pool.getTransactionManager();
+            final Txn transaction = transact.beginTransaction();
+            final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.removeCollection(transaction, root);
+            transact.commit(transaction);
+        } catch (final Exception e) {
+            e.printStackTrace();
+        } finally {
+            pool.release(broker);
+        }
+        BrokerPool.stopAll(false);
+    }
+}
@@ -0,0 +1,338 @@
+package org.exist.xquery;
+
+import java.util.HashMap;
+
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.http.SessionManager;
+import org.exist.security.xacml.AccessContext;
+import org.exist.source.Source;
+import org.exist.source.StringSource;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.XQueryPool;
+import org.exist.storage.serializers.Serializer;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xmlrpc.RpcConnection;
+import org.exist.xmlrpc.XmldbRequestProcessorFactory;
+import org.exist.xquery.value.Item;
+import org.exist.xquery.value.NodeValue;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.Type;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Pages through query results which are evaluated lazily, see {@link LazySequence},
+ * and compares the items with the result evaluated as usual.
+ *
+ * Run {@link #main(String[])} to compare the time and memory taken to return the
+ * first page of a large result.
+ */
+public class LazySequenceTest {
+
+    private final static String COLLECTION = TestConstants.TEST_COLLECTION_URI.toString();
+
+    private final static String ITEMS = "collection('" + COLLECTION + "')//item";
+
+    private final static int COUNT = 200;
+
+    private BrokerPool pool;
+
+    @Test
+    public void flwor() throws Exception {
+        assertSamePage("for $i in " + ITEMS + " return <hit id='{$i/@id}'>{$i/name/text()}</hit>", true);
+        // the where clause is applied to the input sequence
+        assertSamePage("for $i in " + ITEMS + " where $i/value mod 3 = 0 return <hit>{$i/@id}</hit>", true);
+        // positional and global variables
+        assertSamePage("declare variable $prefix := 'item '; " +
+            "for $i at $p in " + ITEMS + " return <hit pos='{$p}'>{$prefix, string($i/@id)}</hit>", true);
+        assertSamePage("for $i in 1 to " + COUNT + " return string-join(('n', string($i)), ':')", true);
+    }
+
+    @Test
+    public void notLazy() throws Exception {
+        // the number of items returned is not known
+        assertSamePage("for $i in " + ITEMS + " return $i/name", false);
+        assertSamePage("for $i in " + ITEMS + ", $j in (1, 2) return <hit>{$j}</hit>", false);
+        // the items must be sorted
+        assertSamePage("for $i in " + ITEMS + " order by $i/value descending return <hit>{$i/@id}</hit>", false);
+        // functions which may have side effects
+        assertSamePage("declare function local:hit($i) { <hit>{$i/@id}</hit> }; " +
+            "for $i in " + ITEMS + " return local:hit($i)", false);
+        assertSamePage("for $i in " + ITEMS + " return <hit>{util:log('debug', string($i/@id))}</hit>", false);
+        // not a FLWOR expression
+        assertSamePage("(for $i in " + ITEMS + " return <hit>{$i/@id}</hit>)[position() > 5]", false);
+    }
+
+    @Test
+    public void errors() throws Exception {
+        final String query = "for $i in 1 to 10 return <n>{if ($i = 5) then error() else $i}</n>";
+        DBBroker broker = null;
+        final Source source = new StringSource(query);
+        CompiledXQuery compiled = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final XQuery xquery = broker.getXQueryService();
+            compiled = xquery.compile(xquery.newContext(AccessContext.TEST), source);
+            // items before the failing one can be read, the error is raised when item 5 is read
+            final Sequence failing = xquery.executeLazy(compiled, null, null);
+            assertTrue(failing instanceof LazySequence);
+            assertEquals("4", failing.itemAt(3).getStringValue());
+            try {
+                failing.itemAt(4);
+                fail("Evaluating item 5 should fail");
+            } catch (final IllegalStateException e) {
+                assertTrue(XPathException.unwrap(e) != null);
+            }
+            ((LazySequence) failing).close();
+            xquery.getXQueryPool().returnCompiledXQuery(source, compiled);
+
+            final Source valid = new StringSource("for $i in 1 to 10 return <n>{$i}</n>");
+            compiled = xquery.compile(xquery.newContext(AccessContext.TEST), valid);
+            final Sequence result = xquery.executeLazy(compiled, null, null);
+            assertTrue(result instanceof LazySequence);
+            assertEquals("4", result.itemAt(3).getStringValue());
+            ((LazySequence) result).close();
+            xquery.getXQueryPool().returnCompiledXQuery(valid, compiled);
+            compiled = null;
+            try {
+                result.itemAt(0);
+                fail("Reading a closed result should fail");
+            } catch (final IllegalStateException e) {
+                // expected
+            }
+        } finally {
+            if (compiled != null)
+                {broker.getXQueryService().getXQueryPool().returnCompiledXQuery(source, compiled);}
+            pool.release(broker);
+        }
+
+        // XML-RPC clients receive the query error
+        final RpcConnection rpc = new RpcConnection(new XmldbRequestProcessorFactory(null, false),
+            pool.getSecurityManager().getSystemSubject());
+        // a page without the failing item does not raise it
+        assertNotNull(rpc.query(query, 2, 1, new HashMap<String, Object>()));
+        try {
+            rpc.query(query, 1, 5, new HashMap<String, Object>());
+            fail("Evaluating item 5 should fail");
+        } catch (final EXistException e) {
+            assertTrue(e.getCause() instanceof XPathException);
+        }
+        // errors raised while the items are read are unwrapped
+        final XPathException error = new XPathException("error");
+        assertSame(error, XPathException.unwrap(new IllegalStateException("reading item 1", error)));
+        assertNull(XPathException.unwrap(new IllegalStateException("not a query error")));
+    }
+
+    @Test
+    public void session() throws Exception {
+        final String query = "for $i in " + ITEMS + " return <hit>{$i/@id}</hit>";
+        final SessionManager sessions = new SessionManager(pool);
+        final int sessionId;
+        final CompiledXQuery compiled;
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final XQuery xquery = broker.getXQueryService();
+            final Source source = new StringSource(query);
+            compiled = xquery.compile(xquery.newContext(AccessContext.TEST), source);
+            final Sequence result = xquery.executeLazy(compiled, null, null);
+            sessionId = sessions.add(query, result, compiled.getContext().detachSortedSequences(),
+                xquery.getXQueryPool(), source, compiled);
+        } finally {
+            pool.release(broker);
+        }
+        // read a page in another request
+        final Sequence cached = sessions.get(query, sessionId);
+        assertTrue(cached instanceof LazySequence);
+        assertEquals(COUNT, cached.getItemCount());
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            assertEquals("<hit id=\"50\"/>", serialize(broker, cached.itemAt(50)));
+        } finally {
+            pool.release(broker);
+        }
+        // releasing the session closes the result and returns the query to the pool
+        sessions.release(sessionId);
+        try {
+            cached.itemAt(51);
+            fail("Reading a released result should fail");
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final XQueryPool queryPool = broker.getXQueryService().getXQueryPool();
+            final Source source = new StringSource(query);
+            assertSame(compiled, queryPool.borrowCompiledXQuery(broker, source));
+            queryPool.returnCompiledXQuery(source, compiled);
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    @Test
+    public void xmlrpc() throws Exception {
+        final RpcConnection rpc = new RpcConnection(new XmldbRequestProcessorFactory(null, false),
+            pool.getSecurityManager().getSystemSubject());
+        final String query = "for $i in " + ITEMS + " return <hit>{$i/@id}</hit>";
+        final String page = rpc.query(query, 2, 11, new HashMap<String, Object>());
+        assertTrue(page, page.contains("hits=\"" + COUNT + "\" start=\"11\" count=\"2\""));
+        assertTrue(page, page.contains("<hit id=\"10\"/><hit id=\"11\"/>"));
+
+        final int handle = rpc.executeQuery(query, new HashMap<String, Object>());
+        assertEquals(COUNT, rpc.getHits(handle));
+        assertEquals("<hit id=\"42\"/>", new String(rpc.retrieve(handle, 42, new HashMap<String, Object>()), "UTF-8"));
+        rpc.releaseQueryResult(handle);
+        try {
+            rpc.retrieve(handle, 43, new HashMap<String, Object>());
+            fail("The result should have been released");
+        } catch (final EXistException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Compare items 11 to 20 of the query result with and without lazy evaluation.
+     */
+    private void assertSamePage(String query, boolean lazy) throws Exception {
+        DBBroker broker = null;
+        final Source source = new StringSource(query);
+        CompiledXQuery compiled = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final XQuery xquery = broker.getXQueryService();
+            final XQueryPool queryPool = xquery.getXQueryPool();
+            compiled = xquery.compile(xquery.newContext(AccessContext.TEST), source);
+            final String expected = page(broker, xquery.execute(compiled, null));
+            final Sequence result = xquery.executeLazy(compiled, null, null);
+            try {
+                assertEquals(query, lazy, result instanceof LazySequence);
+                assertEquals(query, expected, page(broker, result));
+            } finally {
+                if (result instanceof LazySequence)
+                    {((LazySequence) result).close();}
+            }
+            // the query can be executed again
+            assertEquals(query, expected, page(broker, xquery.execute(compiled, null)));
+            queryPool.returnCompiledXQuery(source, compiled);
+            compiled = null;
+        } finally {
+            if (compiled != null)
+                {broker.getXQueryService().getXQueryPool().returnCompiledXQuery(source, compiled);}
+            pool.release(broker);
+        }
+    }
+
+    private static String page(DBBroker broker, Sequence result) throws Exception {
+        final StringBuilder buf = new StringBuilder();
+        buf.append(result.getItemCount()).append(':');
+        for (int i = 10; i < 20 && i < result.getItemCount(); i++) {
+            buf.append(serialize(broker, result.itemAt(i))).append('|');
+        }
+        return buf.toString();
+    }
+
+    private static String serialize(DBBroker broker, Item item) throws Exception {
+        if (!Type.subTypeOf(item.getType(), Type.NODE))
+            {return item.getStringValue();}
+        final Serializer serializer = broker.getSerializer();
+        serializer.reset();
+        return serializer.serialize((NodeValue) item);
+    }
+
+    /**
+     * Benchmark: returns the first 10 of the given number of items, with and
+     * without lazy evaluation.
+     */
+    public static void main(String[] args) throws Exception {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        final LazySequenceTest test = new LazySequenceTest();
+        test.setUp(0);
+        final String query = "for $i in 1 to " + count + " return " +
+            "<hit n='{$i}'><title>Item {$i}</title><score>{$i mod 97}</score></hit>";
+        DBBroker broker = null;
+        try {
+            broker = test.pool.get(test.pool.getSecurityManager().getSystemSubject());
+            final XQuery xquery = broker.getXQueryService();
+            for (int round = 0; round < 3; round++) {
+                for (final boolean lazy : new boolean[] { false, true }) {
+                    final CompiledXQuery compiled = xquery.compile(xquery.newContext(AccessContext.TEST), new StringSource(query));
+                    System.gc();
+                    final Runtime runtime = Runtime.getRuntime();
+                    final long memory = runtime.totalMemory() - runtime.freeMemory();
+                    final long start = System.currentTimeMillis();
+                    final Sequence result = lazy ? xquery.executeLazy(compiled, null, null) : xquery.execute(compiled, null);
+                    final String page = page(broker, result);
+                    final long time = System.currentTimeMillis() - start;
+                    final long used = runtime.totalMemory() - runtime.freeMemory() - memory;
+                    System.out.println((lazy ? "lazy:  " : "eager: ") + page.substring(0, page.indexOf(':')) +
+                        " items, first page in " + time + "ms, heap used " + (used / 1024 / 1024) + "MB");
+                    if (result instanceof LazySequence)
+                        {((LazySequence) result).close();}
+                }
+            }
+        } finally {
+            test.pool.release(broker);
+            test.tearDown();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        setUp(COUNT);
+    }
+
+    private void setUp(int items) throws Exception {
+        BrokerPool.configure(1, 5, new Configuration());
+        pool = BrokerPool.getInstance();
+        final TransactionManager transact = pool.getTransactionManager();
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Txn transaction = transact.beginTransaction();
+            final Collection collection = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.saveCollection(transaction, collection);
+            final StringBuilder buf = new StringBuilder();
+            buf.append("<root>");
+            for (int i = 0; i < items; i++) {
+                buf.append("<item id='").append(i).append("'><name>Item ").append(i)
+                    .append("</name><value>").append(i * 7).append("</value></item>");
+            }
+            buf.append("</root>");
+            final IndexInfo info = collection.validateXMLResource(transaction, broker,
+                XmldbURI.create("items.xml"), buf.toString());
+            collection.store(transaction, broker, info, buf.toString(), false);
+            transact.commit(transaction);
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final TransactionManager transact = pool.getTransactionManager();
+            final Txn transaction = transact.beginTransaction();
+            final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.removeCollection(transaction, root);
+            transact.commit(transaction);
+        } catch (final Exception e) {
+            e.printStackTrace();
+        } finally {
+            pool.release(broker);
+        }
+        BrokerPool.stopAll(false);
+    }
+}
@@ -0,0 +1,259 @@
+package org.exist.xquery;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.security.xacml.AccessContext;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.util.io.TemporaryFileManager;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.value.Sequence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sorts more items than the sort spill threshold, so they are written to temporary
+ * files, and checks the order. Also checks fn:subsequence on ordered FLWOR expressions,
+ * which only keeps the items in the subsequence.
+ *
+ * Run {@link #main(String[])} with a small heap to compare sorting in memory with
+ * sorting in temporary files.
+ */
+public class OrderBySpillTest {
+
+    private final static String COLLECTION = TestConstants.TEST_COLLECTION_URI.toString();
+
+    private final static String ITEMS = "collection('" + COLLECTION + "')//item";
+
+    private final static int THRESHOLD = 100;
+    private final static int COUNT = 1000;
+
+    private BrokerPool pool;
+
+    @Test
+    public void atomicValues() throws Exception {
+        final List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 1; i <= COUNT; i++) {
+            expected.add(i);
+        }
+        // ties keep the input order
+        Collections.sort(expected, new Comparator<Integer>() {
+            public int compare(Integer i1, Integer i2) {
+                return (i1 * 37) % 101 - (i2 * 37) % 101;
+            }
+        });
+        assertEquals(join(expected), query("string-join(for $i in 1 to " + COUNT + " order by ($i * 37) mod 101 return string($i), ',')"));
+
+        Collections.reverse(expected);
+        assertEquals(join(expected), query("string-join(for $i in 1 to " + COUNT +
+            " order by ($i * 37) mod 101 descending, $i descending return string($i), ',')"));
+    }
+
+    @Test
+    public void keyTypes() throws Exception {
+        // strings, empty keys, dates and doubles are restored from the temporary files
+        assertEquals("p1,p101,p103,p105,p107", query("string-join(subsequence(" +
+            "for $i in 1 to " + COUNT + " order by if ($i mod 2 = 0) then () else concat('p', $i) empty greatest " +
+            "return concat('p', $i), 1, 5), ',')"));
+        assertEquals(String.valueOf(COUNT / 2), query("count(subsequence(" +
+            "for $i in 1 to " + COUNT + " order by if ($i mod 2 = 0) then () else concat('p', $i) empty greatest " +
+            "return $i, " + (COUNT / 2 + 1) + ")[. mod 2 = 0])"));
+        assertEquals("2,5", query("string-join((for $j in 1 to " + COUNT + " " +
+            "order by xs:date('2000-01-01') + xs:dayTimeDuration(concat('P', $j mod 3, 'D')) descending, $j * 1.5e0 " +
+            "return string($j))[position() < 3], ',')"));
+        assertEquals(query("for $i in 1 to " + COUNT + " order by string($i) return $i"),
+            query("for $i in 1 to " + COUNT + " order by xs:untypedAtomic(string($i)) return $i"));
+    }
+
+    @Test
+    public void nodes() throws Exception {
+        final List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < COUNT; i++) {
+            expected.add(i);
+        }
+        Collections.sort(expected, new Comparator<Integer>() {
+            public int compare(Integer i1, Integer i2) {
+                return (i1 * 7) % 13 - (i2 * 7) % 13;
+            }
+        });
+        final String flwor = "for $i in " + ITEMS + " order by xs:integer($i/value) mod 13 return $i";
+        assertEquals(join(expected), query("string-join(for $i in (" + flwor + ") return $i/@id/string(), ',')"));
+        // random access
+        assertEquals(String.valueOf(expected.get(500)), query("let $s := " + flwor + " return $s[501]/@id/string()"));
+        assertEquals(String.valueOf(COUNT), query("count(" + flwor + ")"));
+        assertEquals(String.valueOf(expected.get(COUNT - 2)), query("reverse(" + flwor + ")[2]/@id/string()"));
+        // the items are converted into a node set
+        assertEquals(String.valueOf(COUNT), query("count((" + flwor + ")/name)"));
+    }
+
+    @Test
+    public void inMemoryNodes() throws Exception {
+        // constructed nodes cannot be written to a file
+        assertEquals("1000,999,998", query("string-join(subsequence(for $i in 1 to " + COUNT + " " +
+            "let $n := <n>{$i}</n> order by xs:integer($n) descending return $n, 1, 3), ',')"));
+        assertEquals("1,2,3", query("string-join((for $i in 1 to " + COUNT + " " +
+            "order by $i return if ($i = 500) then <n>{$i}</n> else $i)[position() < 4], ',')"));
+    }
+
+    @Test
+    public void subsequence() throws Exception {
+        final String flwor = "for $i in 1 to " + COUNT + " order by ($i * 37) mod 101 descending return $i";
+        for (final String bounds : new String[] { "1, 10", "3, 7", "0, 5", "-2, 4", "995, 20", "2.6, 1.5", "1, 0" }) {
+            assertEquals(bounds,
+                query("let $s := " + flwor + " return string-join(subsequence($s, " + bounds + "), ',')"),
+                query("string-join(subsequence(" + flwor + ", " + bounds + "), ',')"));
+        }
+        // nested "for" clauses and variable bounds
+        assertEquals(
+            query("let $s := for $i in 1 to 50, $j in 1 to 20 order by $i * $j descending, $i return concat($i, ':', $j) " +
+                "return string-join(subsequence($s, 5, 10), ',')"),
+            query("let $start := 5 let $length := 10 return string-join(subsequence(" +
+                "for $i in 1 to 50, $j in 1 to 20 order by $i * $j descending, $i return concat($i, ':', $j), $start, $length), ',')"));
+        // parallel evaluation
+        assertEquals(
+            query("let $s := " + flwor + " return string-join(subsequence($s, 1, 10), ',')"),
+            query("string-join(subsequence((# exist:parallel threads=4 #) { " + flwor + " }, 1, 10), ',')"));
+    }
+
+    @Test
+    public void temporaryFiles() throws Exception {
+        final int before = countTemporaryFiles();
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final XQuery xquery = broker.getXQueryService();
+            final XQueryContext context = xquery.newContext(AccessContext.TEST);
+            final CompiledXQuery compiled = xquery.compile(context,
+                "for $i in 1 to " + COUNT + " order by $i descending return $i");
+            final Sequence result = xquery.execute(compiled, null);
+            assertTrue(countTemporaryFiles() > before);
+            // forward and backward access
+            assertEquals(String.valueOf(COUNT), result.itemAt(0).getStringValue());
+            assertEquals("1", result.itemAt(COUNT - 1).getStringValue());
+            assertEquals(String.valueOf(COUNT / 2), result.itemAt(COUNT / 2).getStringValue());
+            assertEquals(String.valueOf(COUNT - 1), result.itemAt(1).getStringValue());
+            // the files are deleted when the context is cleaned up
+            context.runCleanupTasks();
+            assertEquals(before, countTemporaryFiles());
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    private static int countTemporaryFiles() throws Exception {
+        final TemporaryFileManager manager = TemporaryFileManager.getInstance();
+        final File file = manager.getTemporaryFile();
+        final File dir = file.getParentFile();
+        manager.returnTemporaryFile(file);
+        return dir.list().length;
+    }
+
+    private static String join(List<Integer> values) {
+        final StringBuilder buf = new StringBuilder();
+        for (final Integer value : values) {
+            if (buf.length() > 0)
+                {buf.append(',');}
+            buf.append(value);
+        }
+        return buf.toString();
+    }
+
+    private String query(String query) throws Exception {
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Sequence seq = broker.getXQueryService().execute(query, null, AccessContext.TEST);
+            return seq.getStringValue();
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    /**
+     * Benchmark: sorts the given number of items with the given spill threshold.
+     * Run with a small heap, e.g. -Xmx128m, and compare with threshold 0.
+     */
+    public static void main(String[] args) throws Exception {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        final int threshold = args.length > 1 ? Integer.parseInt(args[1]) : XQueryContext.SORT_SPILL_THRESHOLD_DEFAULT;
+        final OrderBySpillTest test = new OrderBySpillTest();
+        test.setUp(threshold, 0);
+        try {
+            final String flwor = "for $i in 1 to " + count + " order by ($i * 7919) mod " + count +
+                " return concat('item ', $i)";
+            long start = System.currentTimeMillis();
+            String result = test.query("count(" + flwor + ")");
+            System.out.println("threshold " + threshold + ": " + result + " items sorted in " +
+                (System.currentTimeMillis() - start) + "ms");
+            start = System.currentTimeMillis();
+            result = test.query("string-join(subsequence(" + flwor + ", 1, 3), ',')");
+            System.out.println("subsequence 1 to 3: " + result + " in " + (System.currentTimeMillis() - start) + "ms");
+        } finally {
+            test.tearDown();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        setUp(THRESHOLD, COUNT);
+    }
+
+    private void setUp(int threshold, int items) throws Exception {
+        final Configuration config = new Configuration();
+        config.setProperty(XQueryContext.PROPERTY_SORT_SPILL_THRESHOLD, Integer.valueOf(threshold));
+        BrokerPool.configure(1, 5, config);
+        pool = BrokerPool.getInstance();
+        final TransactionManager transact = pool.getTransactionManager();
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Txn transaction = transact.beginTransaction();
+            final Collection collection = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.saveCollection(transaction, collection);
+            final StringBuilder buf = new StringBuilder();
+            buf.append("<root>");
+            for (int i = 0; i < items; i++) {
+                buf.append("<item id='").append(i).append("'><name>Item ").append(i)
+                    .append("</name><value>").append(i * 7).append("</value></item>");
+            }
+            buf.append("</root>");
+            final IndexInfo info = collection.validateXMLResource(transaction, broker,
+                XmldbURI.create("items.xml"), buf.toString());
+            collection.store(transaction, broker, info, buf.toString(), false);
+            transact.commit(transaction);
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final TransactionManager transact = pool.getTransactionManager();
+            final Txn transaction = transact.beginTransaction();
+            final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.removeCollection(transaction, root);
+            transact.commit(transaction);
+        } catch (final Exception e) {
+            e.printStackTrace();
+        } finally {
+            pool.release(broker);
+        }
+        BrokerPool.stopAll(false);
+    }
+}
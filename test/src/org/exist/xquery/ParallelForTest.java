@@ -0,0 +1,218 @@
+package org.exist.xquery;
+
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.security.xacml.AccessContext;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.value.Sequence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Evaluates FLWOR expressions with and without pragma exist:parallel and compares
+ * the results.
+ *
+ * Run {@link #main(String[])} to compare the time taken by sequential and parallel
+ * evaluation of an expensive return clause.
+ */
+public class ParallelForTest {
+
+    private final static String COLLECTION = TestConstants.TEST_COLLECTION_URI.toString();
+
+    private final static String ITEMS = "collection('" + COLLECTION + "')//item";
+
+    private final static String PRAGMA = "(# exist:parallel threads=4 #)";
+
+    private final static int DOCS = 3;
+    private final static int ITEMS_PER_DOC = 100;
+
+    private BrokerPool pool;
+
+    @Test
+    public void plain() throws Exception {
+        assertSameResult("", "for $i in " + ITEMS + " return $i/name/string()");
+        assertSameResult("", "for $i in (1 to 100) return $i * 2");
+    }
+
+    @Test
+    public void positionalAndWhere() throws Exception {
+        assertSameResult("", "for $i at $p in " + ITEMS + " where $i/value mod 3 = 0 return concat($p, ':', $i/@id)");
+        // the where clause is applied to the input sequence in advance
+        assertSameResult("", "for $i in " + ITEMS + " where $i/value > 150 return $i/value/string()");
+    }
+
+    @Test
+    public void orderBy() throws Exception {
+        assertSameResult("", "for $i in " + ITEMS + " order by xs:integer($i/value) descending return $i/value/string()");
+        // ties keep the input order
+        assertSameResult("", "for $i in " + ITEMS + " order by xs:integer($i/@id) mod 5 return $i/value/string()");
+    }
+
+    @Test
+    public void groupBy() throws Exception {
+        final String flwor = "for $i in " + ITEMS + " group by $k := $i/@id mod 7 " +
+            "return concat($k, ':', count($i), ':', string-join($i/value, ','))";
+        // the order of the groups is not defined
+        final String expected = query("xquery version '3.0'; for $s in (" + flwor + ") order by $s return $s");
+        final String parallel = query("xquery version '3.0'; for $s in " + PRAGMA + " { " + flwor + " } order by $s return $s");
+        assertEquals(expected, parallel);
+        assertTrue(expected.length() > 0);
+    }
+
+    @Test
+    public void variablesAndFunctions() throws Exception {
+        final String prolog =
+            "declare variable $factor := 3;\n" +
+            "declare function local:f($x) { <r id='{$x/@id}'>{ $x/value * $factor }</r> };\n";
+        assertSameResult(prolog, "let $base := 10 return " +
+            "for $i in " + ITEMS + " for $j in (1, 2) return xs:integer(local:f($i)) + $base + $j");
+        assertSameResult(prolog, "for $i in " + ITEMS + " return local:f($i)");
+    }
+
+    @Test
+    public void error() throws Exception {
+        final String query = PRAGMA + " { for $i in " + ITEMS +
+            " return if ($i/value = 150) then error(xs:QName('local:e'), 'failed at 150') else $i/value }";
+        try {
+            query(query);
+            fail("Query should fail");
+        } catch (final XPathException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("failed at 150"));
+        }
+    }
+
+    @Test
+    public void parallel() throws Exception {
+        final String query = "sum(" + PRAGMA + " { for $i in 1 to 16 return (util:wait(10), $i) })";
+        assertEquals(String.valueOf(16 * 17 / 2), query(query));
+        // the pool has brokers to spare, so workers are started
+        assertTrue(workersStarted(query) > 0);
+    }
+
+    @Test
+    public void sideEffects() throws Exception {
+        final String query = PRAGMA + " { for $i in 1 to 4 return (util:log('debug', $i), $i) }";
+        assertEquals("1 2 3 4", query("string-join(" + query + ", ' ')"));
+        assertEquals(0, workersStarted(query));
+    }
+
+    private int workersStarted(String query) throws Exception {
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final XQuery xquery = broker.getXQueryService();
+            final XQueryContext context = xquery.newContext(AccessContext.TEST);
+            final CompiledXQuery compiled = xquery.compile(context, query);
+            final ForExpr expr = ParallelFor.getExpressions(context).get(0);
+            xquery.execute(compiled, null);
+            return expr.getParallel().getWorkersStarted();
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    private void assertSameResult(String prolog, String flwor) throws Exception {
+        final String expected = query(prolog + serialize(flwor));
+        final String parallel = query(prolog + serialize(PRAGMA + " { " + flwor + " }"));
+        assertEquals(expected, parallel);
+        assertTrue(expected.length() > 0);
+    }
+
+    private static String serialize(String expr) {
+        return "string-join(for $r in (" + expr + ") return " +
+            "if ($r instance of node()) then util:serialize($r, ()) else string($r), '|')";
+    }
+
+    private String query(String query) throws Exception {
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Sequence seq = broker.getXQueryService().execute(query, null, AccessContext.TEST);
+            return seq.getStringValue();
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    /**
+     * Benchmark: evaluates a FLWOR expression with an expensive return clause
+     * sequentially and in parallel.
+     */
+    public static void main(String[] args) throws Exception {
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        final ParallelForTest test = new ParallelForTest();
+        test.setUp();
+        try {
+            final String flwor = "for $i in " + ITEMS + " return " +
+                "sum(for $k in 1 to 5000 return ($k * xs:integer($i/value)) mod 7)";
+            for (int round = 0; round < 3; round++) {
+                for (final boolean parallel : new boolean[] { false, true }) {
+                    final String query = "sum(" +
+                        (parallel ? "(# exist:parallel threads=" + threads + " #) { " + flwor + " }" : flwor) + ")";
+                    final long start = System.currentTimeMillis();
+                    final String result = test.query(query);
+                    System.out.println((parallel ? "parallel (" + threads + " threads)" : "sequential") + ": " +
+                        result + " in " + (System.currentTimeMillis() - start) + "ms");
+                }
+            }
+        } finally {
+            test.tearDown();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        BrokerPool.configure(1, 5, new Configuration());
+        pool = BrokerPool.getInstance();
+        final TransactionManager transact = pool.getTransactionManager();
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Txn transaction = transact.beginTransaction();
+            final Collection collection = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.saveCollection(transaction, collection);
+            for (int n = 0; n < DOCS; n++) {
+                final StringBuilder buf = new StringBuilder();
+                buf.append("<root>");
+                for (int i = 0; i < ITEMS_PER_DOC; i++) {
+                    buf.append("<item id='").append(i).append("'><name>Item ").append(n).append('.').append(i)
+                        .append("</name><value>").append(n * ITEMS_PER_DOC + i).append("</value></item>");
+                }
+                buf.append("</root>");
+                final IndexInfo info = collection.validateXMLResource(transaction, broker,
+                    XmldbURI.create("doc" + n + ".xml"), buf.toString());
+                collection.store(transaction, broker, info, buf.toString(), false);
+            }
+            transact.commit(transaction);
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final TransactionManager transact = pool.getTransactionManager();
+            final Txn transaction = transact.beginTransaction();
+            final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.removeCollection(transaction, root);
+            transact.commit(transaction);
+        } catch (final Exception e) {
+            e.printStackTrace();
+        } finally {
+            pool.release(broker);
+        }
+        BrokerPool.stopAll(false);
+    }
+}
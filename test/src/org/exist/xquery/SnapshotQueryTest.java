@@ -0,0 +1,210 @@
+package org.exist.xquery;
+
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.security.xacml.AccessContext;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.DocumentSnapshot;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.value.Sequence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests read-only queries declaring option exist:snapshot while other
+ * threads update the queried documents.
+ */
+public class SnapshotQueryTest {
+
+    private final static String COLLECTION = TestConstants.TEST_COLLECTION_URI.toString();
+
+    private final static int DOCS = 3;
+
+    /** counts all items twice, with a pause in between, and reports if the counts differ */
+    private final static String QUERY =
+        "declare option exist:snapshot '" + COLLECTION + "';\n" +
+        "let $before := count(collection('" + COLLECTION + "')//item)\n" +
+        "let $wait := util:wait(300)\n" +
+        "let $after := count(collection('" + COLLECTION + "')//item)\n" +
+        "return $before = $after";
+
+    private BrokerPool pool;
+
+    @Test
+    public void snapshotValidation() throws Exception {
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final DocumentSnapshot snapshot = new DocumentSnapshot(new XmldbURI[] { TestConstants.TEST_COLLECTION_URI });
+            assertTrue(snapshot.begin(broker));
+            assertTrue(snapshot.isValid(broker));
+            insert(broker, 0);
+            assertFalse(snapshot.isValid(broker));
+            assertTrue(snapshot.begin(broker));
+            assertTrue(snapshot.isValid(broker));
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    @Test
+    public void writerIsNotBlocked() throws Exception {
+        final AtomicLong writerDone = new AtomicLong();
+        final Thread writer = new Thread() {
+            public void run() {
+                DBBroker broker = null;
+                try {
+                    broker = pool.get(pool.getSecurityManager().getSystemSubject());
+                    // let the query start
+                    sleep(100);
+                    for (int i = 0; i < 5; i++) {
+                        insert(broker, i % DOCS);
+                    }
+                    writerDone.set(System.currentTimeMillis());
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    pool.release(broker);
+                }
+            }
+        };
+        writer.start();
+        final String result = query(QUERY);
+        final long queryDone = System.currentTimeMillis();
+        writer.join();
+        assertTrue("writer did not complete", writerDone.get() > 0);
+        assertTrue("writer was blocked by the query", writerDone.get() < queryDone);
+        assertEquals("true", result);
+        assertEquals(String.valueOf(DOCS + 5), query("count(collection('" + COLLECTION + "')//item)"));
+    }
+
+    @Test
+    public void continuousWriter() throws Exception {
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final AtomicInteger updates = new AtomicInteger();
+        final Thread writer = new Thread() {
+            public void run() {
+                DBBroker broker = null;
+                try {
+                    broker = pool.get(pool.getSecurityManager().getSystemSubject());
+                    while (!stop.get()) {
+                        insert(broker, updates.getAndIncrement() % DOCS);
+                        sleep(20);
+                    }
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    pool.release(broker);
+                }
+            }
+        };
+        writer.start();
+        try {
+            // the documents change during every attempt: the query has to lock them eventually
+            assertEquals("true", query(QUERY));
+        } finally {
+            stop.set(true);
+            writer.join();
+        }
+        assertTrue(updates.get() > 0);
+    }
+
+    @Test
+    public void updateIsRejected() throws Exception {
+        try {
+            query("declare option exist:snapshot '" + COLLECTION + "';\n" +
+                "update insert <item/> into doc('" + COLLECTION + "/d0.xml')/items");
+            fail("Update in a snapshot query should fail");
+        } catch (final XPathException e) {
+            // expected
+        }
+        assertEquals(String.valueOf(DOCS), query("count(collection('" + COLLECTION + "')//item)"));
+    }
+
+    @Test
+    public void sideEffectsAreNotRepeated() throws Exception {
+        // storing a document invalidates the snapshot, but the query must not run again
+        query("declare option exist:snapshot '" + COLLECTION + "';\n" +
+            "xmldb:store('" + COLLECTION + "', concat('r', count(collection('" + COLLECTION + "')/result), '.xml'), <result/>)");
+        assertEquals("1", query("count(collection('" + COLLECTION + "')/result)"));
+    }
+
+    @Test
+    public void errorIsReported() throws Exception {
+        try {
+            query("declare option exist:snapshot '" + COLLECTION + "';\n" +
+                "if (count(collection('" + COLLECTION + "')//item) > 0) then error(xs:QName('local:e'), 'failed') else ()");
+            fail("Error in a snapshot query should be reported");
+        } catch (final XPathException e) {
+            assertTrue(e.getMessage().indexOf("failed") > -1);
+        }
+    }
+
+    private String query(String query) throws Exception {
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Sequence seq = broker.getXQueryService().execute(query, null, AccessContext.TEST);
+            return seq.getStringValue();
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    private void insert(DBBroker broker, int doc) throws Exception {
+        broker.getXQueryService().execute("update insert <item/> into doc('" + COLLECTION + "/d" + doc + ".xml')/items",
+            null, AccessContext.TEST);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        BrokerPool.configure(1, 5, new Configuration());
+        pool = BrokerPool.getInstance();
+        final TransactionManager transact = pool.getTransactionManager();
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final Txn transaction = transact.beginTransaction();
+            final Collection collection = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.saveCollection(transaction, collection);
+            for (int i = 0; i < DOCS; i++) {
+                final IndexInfo info = collection.validateXMLResource(transaction, broker,
+                    XmldbURI.create("d" + i + ".xml"), "<items><item/></items>");
+                collection.store(transaction, broker, info, "<items><item/></items>", false);
+            }
+            transact.commit(transaction);
+        } finally {
+            pool.release(broker);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        DBBroker broker = null;
+        try {
+            broker = pool.get(pool.getSecurityManager().getSystemSubject());
+            final TransactionManager transact = pool.getTransactionManager();
+            final Txn transaction = transact.beginTransaction();
+            final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.removeCollection(transaction, root);
+            transact.commit(transaction);
+        } catch (final Exception e) {
+            e.printStackTrace();
+        } finally {
+            pool.release(broker);
+        }
+        BrokerPool.stopAll(false);
+    }
+}
@@ -0,0 +1,112 @@
+package org.exist.xquery.modules.cache;
+
+import static org.junit.Assert.assertEquals;
+
+import org.exist.xmldb.DatabaseInstanceManager;
+import org.exist.xmldb.XmldbURI;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmldb.api.DatabaseManager;
+import org.xmldb.api.base.Collection;
+import org.xmldb.api.base.Database;
+import org.xmldb.api.base.ResourceSet;
+import org.xmldb.api.modules.XPathQueryService;
+
+public class CacheModuleTest {
+
+    private final static String IMPORT = "import module namespace cache=\"" + CacheModule.NAMESPACE_URI + "\" " +
+        "at \"java:org.exist.xquery.modules.cache.CacheModule\"; ";
+
+    private XPathQueryService service;
+    private Collection root = null;
+    private Database database = null;
+
+    @Before
+    public void setUp() throws Exception {
+        Class<?> cl = Class.forName("org.exist.xmldb.DatabaseImpl");
+        database = (Database) cl.newInstance();
+        database.setProperty("create-database", "true");
+        DatabaseManager.registerDatabase(database);
+        root = DatabaseManager.getCollection(XmldbURI.LOCAL_DB, "admin", "");
+        service = (XPathQueryService) root.getService("XQueryService", "1.0");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        query("cache:clear()");
+        DatabaseManager.deregisterDatabase(database);
+        DatabaseInstanceManager dim = (DatabaseInstanceManager) root.getService("DatabaseInstanceManager", "1.0");
+        dim.shutdown();
+        service = null;
+        root = null;
+    }
+
+    @Test
+    public void putAndGet() throws Exception {
+        query("cache:put('test-put', 'a', (1, 2, 3))");
+        assertEquals("1 2 3", query("string-join(for $i in cache:get('test-put', 'a') return string($i), ' ')"));
+        assertEquals("1 2 3", query("string-join(for $i in cache:remove('test-put', 'a') return string($i), ' ')"));
+        assertEquals("0", query("count(cache:get('test-put', 'a'))"));
+        assertEquals("1", query("cache:stats('test-put')/@hits/string()"));
+        assertEquals("1", query("cache:stats('test-put')/@misses/string()"));
+    }
+
+    @Test
+    public void maxEntries() throws Exception {
+        query("let $c := cache:cache('test-max', <options><max-entries>10</max-entries></options>) " +
+            "for $i in 1 to 10 return cache:put($c, concat('k', $i), $i)");
+        // touch the oldest entry so it is not evicted next
+        query("cache:get('test-max', 'k1')");
+        query("for $i in 11 to 15 return cache:put('test-max', concat('k', $i), $i)");
+        assertEquals("true", query("cache:stats('test-max')/@entries <= 10"));
+        assertEquals("true", query("cache:stats('test-max')/@evictions > 0"));
+        assertEquals("1", query("cache:get('test-max', 'k1')"));
+        assertEquals("0", query("count(cache:get('test-max', 'k2'))"));
+        assertEquals("15", query("cache:get('test-max', 'k15')"));
+    }
+
+    @Test
+    public void maxBytes() throws Exception {
+        query("let $c := cache:cache('test-bytes', <options><max-bytes>4096</max-bytes></options>) " +
+            "for $i in 1 to 100 return cache:put($c, concat('k', $i), string-join(for $j in 1 to 100 return 'x', ''))");
+        assertEquals("true", query("cache:stats('test-bytes')/@estimated-bytes <= 4096"));
+        assertEquals("100", query("string-length(cache:get('test-bytes', 'k100'))"));
+    }
+
+    @Test
+    public void timeToLive() throws Exception {
+        query("cache:put(cache:cache('test-ttl', <options><time-to-live>50</time-to-live></options>), 'a', 1)");
+        assertEquals("1", query("cache:get('test-ttl', 'a')"));
+        Thread.sleep(100);
+        assertEquals("0", query("count(cache:get('test-ttl', 'a'))"));
+        assertEquals("1", query("cache:stats('test-ttl')/@expirations/string()"));
+    }
+
+    @Test
+    public void invalidateOnUpdate() throws Exception {
+        query("xmldb:create-collection('/db', 'cache-test')");
+        query("cache:put(cache:cache('test-inv', <options><collection>/db/cache-test</collection></options>), 'a', 1)");
+        query("cache:put('test-inv', 'b', 2)");
+        query("xmldb:store('/db', 'outside.xml', <doc/>)");
+        assertEquals("1", query("cache:get('test-inv', 'a')"));
+        query("xmldb:store('/db/cache-test', 'test.xml', <doc/>)");
+        assertEquals("0", query("count(cache:get('test-inv', 'a'))"));
+        assertEquals("0", query("count(cache:get('test-inv', 'b'))"));
+        assertEquals("1", query("cache:stats('test-inv')/@invalidations/string()"));
+        assertEquals("/db/cache-test", query("cache:stats('test-inv')/cache:collection/string()"));
+        query("xmldb:remove('/db/cache-test')");
+        query("xmldb:remove('/db', 'outside.xml')");
+    }
+
+    private String query(String query) throws Exception {
+        final ResourceSet result = service.query(IMPORT + query);
+        final StringBuilder buf = new StringBuilder();
+        for (long i = 0; i < result.getSize(); i++) {
+            if (i > 0)
+                {buf.append(' ');}
+            buf.append(result.getResource(i).getContent().toString());
+        }
+        return buf.toString();
+    }
+}